@@ -4,11 +4,17 @@ from hive_service.ttypes import HiveServerException
 from thrift import Thrift
 from thrift.transport import TSocket, TTransport
 from thrift.protocol import TBinaryProtocol
+import struct
 import sys
 
 HIVE_HOST = "localhost"
 HIVE_PORT = 10000
 
+# binary record stream read by HiveIndexer's "binary" mode
+STREAM_MAGIC = 0x48495831
+STREAM_ROWS = 0
+END_OF_ROWS = -1
+
 HIVE_OFFSET_QUERY = "SELECT %(col)s, INPUT__FILE__NAME, \
     COLLECT_SET(BLOCK__OFFSET__INSIDE__FILE) FROM %(table)s GROUP BY %(col)s, INPUT__FILE__NAME"
 
@@ -45,25 +51,40 @@ class HiveClient:
         pass
     except AttributeError:
       raise HiveClientError("Client is not connected to any Thrift server")
-    print("hive> %s;" % query)
+    sys.stderr.write("hive> %s;\n" % query)
     self.client.execute(query)
     if n <= 0:
       return self.client.fetchAll()
     else:
       return self.client.fetchN(n)
 
+def write_binary(results, out):
+  # each row as its key and the rest of the row, length-prefixed
+  out.write(struct.pack('>ii', STREAM_MAGIC, STREAM_ROWS))
+  for result in results:
+    key, value = result.split('\t', 1)
+    key = key.encode('utf-8')
+    value = value.encode('utf-8')
+    out.write(struct.pack('>i', len(key)) + key + struct.pack('>i', len(value)) + value)
+  out.write(struct.pack('>i', END_OF_ROWS))
+  out.flush()
+
 if __name__ == '__main__':
-  if len(sys.argv) < 3:
-    sys.exit("Usage: %s table column" % sys.argv[0])
+  args = [a for a in sys.argv[1:] if a != '--binary']
+  if len(args) < 2:
+    sys.exit("Usage: %s [--binary] table column" % sys.argv[0])
   arg = {}
-  arg['table'] = sys.argv[1]
-  arg['col'] = sys.argv[2]
+  arg['table'] = args[0]
+  arg['col'] = args[1]
 
   hive = HiveClient(HIVE_HOST, HIVE_PORT)
   hive.connect()
   results = hive.execute(HIVE_OFFSET_QUERY % arg)
-  for result in results:
-    print(result)
-  print(0)
+  if '--binary' in sys.argv:
+    write_binary(results, getattr(sys.stdout, 'buffer', sys.stdout))
+  else:
+    for result in results:
+      print(result)
+    print(0)
 
 
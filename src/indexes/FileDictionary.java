@@ -0,0 +1,235 @@
+package indexes;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import trees.HdfsFile;
+
+/**
+ * The files an index points into, each given a small integer id, so that a
+ * value of the index names its file in four bytes rather than by its whole
+ * path.  The dictionary is kept in a file named <tree>.files next to the
+ * tree and is read into memory whole when the index is opened.
+ */
+public class FileDictionary
+{
+    public static final String FILES_SUFFIX = ".files";
+
+    private static final int MAGIC = 0x46494c31; // "FIL1"
+    private static final int FORMAT_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final List<String> paths;
+    private final Map<String, Integer> ids;
+
+    public FileDictionary()
+    {
+        this.paths = new ArrayList<String>();
+        this.ids = new HashMap<String, Integer>();
+    }
+
+    /**
+     * @param treeFileName
+     * @return the path of the dictionary of the tree
+     */
+    public static Path pathFor(String treeFileName)
+    {
+        return new Path(treeFileName + FILES_SUFFIX);
+    }
+
+    /**
+     * @param path
+     * @return the id of the file, given it if it has none yet
+     */
+    public int idFor(String path)
+    {
+        Integer id = ids.get(path);
+        if (id == null)
+        {
+            id = paths.size();
+            paths.add(path);
+            ids.put(path, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param path
+     * @return the id of the file, or -1 if it has none
+     */
+    public int getId(String path)
+    {
+        Integer id = ids.get(path);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id
+     * @return the path of the file with the id
+     * @throws IllegalArgumentException if no file has the id
+     */
+    public String pathOf(int id)
+    {
+        if (id < 0 || id >= paths.size())
+        {
+            throw new IllegalArgumentException("No file has id " + id);
+        }
+        return paths.get(id);
+    }
+
+    /**
+     * @param value
+     * @return the path of the file of an index value
+     */
+    public String pathOf(FileOffsets value)
+    {
+        return pathOf(value.getFileId());
+    }
+
+    /**
+     * Groups index values by the file they point into.
+     * @param values
+     * @return the values of each file, by path, in the order the files
+     * first appear
+     */
+    public Map<String, List<FileOffsets>> groupByFile(Collection<FileOffsets> values)
+    {
+        Map<Integer, List<FileOffsets>> byId = new LinkedHashMap<Integer, List<FileOffsets>>();
+        for (FileOffsets value : values)
+        {
+            List<FileOffsets> group = byId.get(value.getFileId());
+            if (group == null)
+            {
+                group = new ArrayList<FileOffsets>();
+                byId.put(value.getFileId(), group);
+            }
+            group.add(value);
+        }
+        Map<String, List<FileOffsets>> byPath = new LinkedHashMap<String, List<FileOffsets>>();
+        for (Map.Entry<Integer, List<FileOffsets>> group : byId.entrySet())
+        {
+            byPath.put(pathOf(group.getKey()), group.getValue());
+        }
+        return byPath;
+    }
+
+    /**
+     * Resolves values to the files they point into.
+     * @param values
+     * @return the sorted, distinct offsets in each file, by path
+     */
+    public Map<String, long[]> offsetsByFile(Collection<FileOffsets> values)
+    {
+        Map<String, long[]> byFile = new LinkedHashMap<String, long[]>();
+        for (Map.Entry<String, List<FileOffsets>> group : groupByFile(values).entrySet())
+        {
+            int count = 0;
+            for (FileOffsets value : group.getValue())
+            {
+                count += value.getOffsets().size();
+            }
+            long[] offsets = new long[count];
+            int filled = 0;
+            for (FileOffsets value : group.getValue())
+            {
+                for (long offset : value.getOffsets().toArray())
+                {
+                    offsets[filled++] = offset;
+                }
+            }
+            byFile.put(group.getKey(), OffsetList.of(offsets).toArray());
+        }
+        return byFile;
+    }
+
+    /**
+     * @return the files in the dictionary
+     */
+    public int size()
+    {
+        return paths.size();
+    }
+
+    /**
+     * Writes the dictionary next to a tree, replacing any older one.
+     * @param fs
+     * @param treeFileName
+     * @throws IOException
+     */
+    public void write(FileSystem fs, String treeFileName) throws IOException
+    {
+        Path path = pathFor(treeFileName);
+        Path temp = new Path(path.toString() + TEMP_SUFFIX);
+        FSDataOutputStream out = fs.create(temp, true);
+        try
+        {
+            write(out);
+        }
+        finally
+        {
+            out.close();
+        }
+        HdfsFile.replace(fs, temp, path);
+    }
+
+    private void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(paths.size());
+        for (String path : paths)
+        {
+            out.writeUTF(path);
+        }
+    }
+
+    /**
+     * Reads the dictionary of a tree.
+     * @param fs
+     * @param treeFileName
+     * @return the dictionary
+     * @throws IOException if there is none, or the file is not one
+     */
+    public static FileDictionary read(FileSystem fs, String treeFileName) throws IOException
+    {
+        Path path = pathFor(treeFileName);
+        FSDataInputStream in = fs.open(path);
+        try
+        {
+            return read(in, path.toString());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static FileDictionary read(DataInputStream in, String name) throws IOException
+    {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC || version > FORMAT_VERSION)
+        {
+            throw new IOException(name + " is not a file dictionary");
+        }
+        FileDictionary dictionary = new FileDictionary();
+        int files = in.readInt();
+        for (int i = 0; i < files; i++)
+        {
+            dictionary.idFor(in.readUTF());
+        }
+        return dictionary;
+    }
+}
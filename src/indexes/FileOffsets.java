@@ -0,0 +1,50 @@
+package indexes;
+
+/**
+ * A value of a Hive index: the offsets of the rows of a key within one file,
+ * the file named by its id in the FileDictionary of the index.
+ */
+public class FileOffsets
+{
+    private final int fileId;
+    private final OffsetList offsets;
+
+    public FileOffsets(int fileId, OffsetList offsets)
+    {
+        this.fileId = fileId;
+        this.offsets = offsets;
+    }
+
+    public int getFileId()
+    {
+        return fileId;
+    }
+
+    public OffsetList getOffsets()
+    {
+        return offsets;
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof FileOffsets))
+        {
+            return false;
+        }
+        FileOffsets that = (FileOffsets) other;
+        return fileId == that.fileId && offsets.equals(that.offsets);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * fileId + offsets.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return fileId + ":" + offsets;
+    }
+}
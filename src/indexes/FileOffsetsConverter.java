@@ -0,0 +1,95 @@
+package indexes;
+
+import java.nio.ByteBuffer;
+
+import util.Converter;
+
+/**
+ * Stores a (file id, offsets) value as a tree record of fixed length: the
+ * id in an int, the length of the encoded offsets in a short, then the
+ * offsets and padding.  Offsets too many for one record are split with
+ * OffsetList.chunks() into several values of the same file.  Keys are
+ * converted by another converter.
+ * @param <KeyType>
+ */
+public class FileOffsetsConverter<KeyType> implements Converter<KeyType, FileOffsets>
+{
+    private static final int HEADER_LENGTH = 4 + 2;
+
+    private final Converter<KeyType, ?> keyConverter;
+    private final int maxEncodedLength;
+
+    /**
+     * @param keyConverter the converter of the keys
+     * @param maxEncodedLength the most bytes of encoded offsets a record
+     * holds, below 32K
+     */
+    public FileOffsetsConverter(Converter<KeyType, ?> keyConverter, int maxEncodedLength)
+    {
+        if (maxEncodedLength > Short.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Records of " + maxEncodedLength + " bytes are too long");
+        }
+        this.keyConverter = keyConverter;
+        this.maxEncodedLength = maxEncodedLength;
+    }
+
+    public FileOffsetsConverter(Converter<KeyType, ?> keyConverter)
+    {
+        this(keyConverter, OffsetListConverter.DEFAULT_MAX_ENCODED_LENGTH);
+    }
+
+    @Override
+    public KeyType bytesToKey(byte[] b)
+    {
+        return keyConverter.bytesToKey(b);
+    }
+
+    @Override
+    public byte[] keyToBytes(KeyType key)
+    {
+        return keyConverter.keyToBytes(key);
+    }
+
+    @Override
+    public FileOffsets bytesToRecord(byte[] b)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        int fileId = buffer.getInt();
+        short length = buffer.getShort();
+        return new FileOffsets(fileId, OffsetList.decode(b, HEADER_LENGTH, length));
+    }
+
+    @Override
+    public byte[] recordToBytes(FileOffsets record)
+    {
+        OffsetList offsets = record.getOffsets();
+        if (offsets.getEncodedLength() > maxEncodedLength)
+        {
+            throw new IllegalArgumentException(offsets.size() + " offsets take " + offsets.getEncodedLength()
+                + " bytes, a record holds " + maxEncodedLength + "; split them with OffsetList.chunks()");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(getRecordLength());
+        buffer.putInt(record.getFileId());
+        buffer.putShort((short) offsets.getEncodedLength());
+        buffer.put(offsets.getEncoded());
+        return buffer.array();
+    }
+
+    @Override
+    public int getKeyLength()
+    {
+        return keyConverter.getKeyLength();
+    }
+
+    @Override
+    public int getRecordLength()
+    {
+        return HEADER_LENGTH + maxEncodedLength;
+    }
+
+    public int getMaxEncodedLength()
+    {
+        return maxEncodedLength;
+    }
+}
@@ -0,0 +1,62 @@
+package indexes;
+
+/**
+ * A byte range of one file to read for a query, and the offsets of the
+ * matching rows within it.  Like a Hadoop split, the range holds the rows
+ * that start in it; a reader finishes the last row past the end.
+ */
+public class FileRange
+{
+    private final String path;
+    private final long start;
+    private final long length;
+    private final long[] offsets;
+
+    /**
+     * @param path
+     * @param start
+     * @param length
+     * @param offsets the rows to read in the range, increasing
+     */
+    public FileRange(String path, long start, long length, long[] offsets)
+    {
+        this.path = path;
+        this.start = start;
+        this.length = length;
+        this.offsets = offsets;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    public long getStart()
+    {
+        return start;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public long getEnd()
+    {
+        return start + length;
+    }
+
+    /**
+     * @return the offsets of the matching rows; not to be changed
+     */
+    public long[] getOffsets()
+    {
+        return offsets;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path + ":" + start + "+" + length + " (" + offsets.length + " rows)";
+    }
+}
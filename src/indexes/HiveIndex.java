@@ -0,0 +1,145 @@
+package indexes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+
+import trees.BPlusTreeFile;
+import trees.MultiValueBPlusTree;
+import trees.PostingFile;
+import util.Converter;
+
+/**
+ * An index of a Hive table: for each key, the files holding rows of the key
+ * and the block offsets of those rows in each.  The tree maps a key to
+ * (file id, offsets) values, several per key, and the file dictionary next
+ * to it maps the ids back to paths.  A tree, its postings and its
+ * dictionary are built locally and synced to HDFS together.
+ * @param <KeyType>
+ */
+public class HiveIndex<KeyType extends Comparable<? super KeyType>>
+{
+    public static final int DEFAULT_ORDER = 7;
+
+    private final FileOffsetsConverter<KeyType> converter;
+    private final MultiValueBPlusTree<KeyType, FileOffsets> tree;
+    private final FileDictionary dictionary;
+
+    /**
+     * Creates an empty index in a local file.  A tree left in the file, with
+     * its redo log and postings, is deleted first: its file ids would not
+     * match the new dictionary.
+     * @param keyConverter
+     * @param localFileName
+     * @throws IOException
+     */
+    public HiveIndex(Converter<KeyType, ?> keyConverter, String localFileName) throws IOException
+    {
+        new File(localFileName).delete();
+        new File(localFileName + BPlusTreeFile.WAL_SUFFIX).delete();
+        new File(localFileName + PostingFile.POSTINGS_SUFFIX).delete();
+        this.converter = new FileOffsetsConverter<KeyType>(keyConverter);
+        this.tree = new MultiValueBPlusTree<KeyType, FileOffsets>(DEFAULT_ORDER, converter,
+            MultiValueBPlusTree.DEFAULT_INLINE_VALUES, localFileName);
+        this.dictionary = new FileDictionary();
+    }
+
+    /**
+     * Opens a synced index, reading its dictionary into memory.
+     * @param keyConverter
+     * @param hdfsFileName
+     * @param conf
+     * @throws IOException
+     */
+    public HiveIndex(Converter<KeyType, ?> keyConverter, String hdfsFileName, Configuration conf) throws IOException
+    {
+        this.converter = new FileOffsetsConverter<KeyType>(keyConverter);
+        this.tree = new MultiValueBPlusTree<KeyType, FileOffsets>(DEFAULT_ORDER, converter,
+            MultiValueBPlusTree.DEFAULT_INLINE_VALUES, hdfsFileName, conf);
+        this.dictionary = FileDictionary.read(FileSystem.get(conf), hdfsFileName);
+    }
+
+    /**
+     * Adds the rows of a key in a file.
+     * @param key
+     * @param path the file, as INPUT__FILE__NAME gives it
+     * @param offsets the block offsets of the rows, in any order
+     * @throws IOException
+     */
+    public void add(KeyType key, String path, long[] offsets) throws IOException
+    {
+        int fileId = dictionary.idFor(path);
+        for (OffsetList chunk : OffsetList.chunks(offsets, converter.getMaxEncodedLength()))
+        {
+            tree.add(key, new FileOffsets(fileId, chunk));
+        }
+    }
+
+    /**
+     * @param key
+     * @return the values of the key
+     * @throws IOException
+     */
+    public List<FileOffsets> search(KeyType key) throws IOException
+    {
+        return tree.search(key);
+    }
+
+    /**
+     * @param key1
+     * @param key2
+     * @return the values of the keys between key1 and key2, inclusive
+     * @throws IOException
+     */
+    public List<FileOffsets> getRange(KeyType key1, KeyType key2) throws IOException
+    {
+        return tree.getRange(key1, key2);
+    }
+
+    /**
+     * @param prefix
+     * @return the values of the keys starting with the prefix, in key order
+     * @throws IOException
+     */
+    public List<FileOffsets> getPrefixRange(KeyType prefix) throws IOException
+    {
+        return tree.getPrefixRange(prefix);
+    }
+
+    /**
+     * Resolves values to the files they point into.
+     * @param values
+     * @return the sorted, distinct offsets in each file, by path
+     */
+    public Map<String, long[]> offsetsByFile(List<FileOffsets> values)
+    {
+        return dictionary.offsetsByFile(values);
+    }
+
+    /**
+     * Moves the tree and its postings to HDFS, and writes the dictionary
+     * next to them.
+     * @param hdfsFileName
+     * @param conf
+     * @throws IOException
+     */
+    public void syncToHdfs(String hdfsFileName, Configuration conf) throws IOException
+    {
+        tree.syncToHdfs(hdfsFileName, conf);
+        dictionary.write(FileSystem.get(conf), hdfsFileName);
+    }
+
+    public FileDictionary getDictionary()
+    {
+        return dictionary;
+    }
+
+    public MultiValueBPlusTree<KeyType, FileOffsets> getTree()
+    {
+        return tree;
+    }
+}
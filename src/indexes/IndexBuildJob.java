@@ -0,0 +1,486 @@
+package indexes;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.InputSampler;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+
+import trees.MultiValueBPlusTree;
+import trees.MultiValueTreeBuilder;
+import trees.PostingFile;
+import trees.ShardManifest;
+import util.BPlusConverter;
+
+/**
+ * Builds a SegmentedHiveIndex of a text table with a MapReduce job rather
+ * than in one process.  Before the job every file of the table is given an
+ * id in the file dictionary, and a sample of the keys picks the split keys
+ * of the segments.  The input format reads each row as (key, (file id,
+ * offset)), a total order partitioner sends each key range to its reducer,
+ * and every reducer gets its keys in order and builds its segment bottom-up
+ * straight into hdfs.  Once all segments are there the range manifest over
+ * them is written, which is what makes the index appear.
+ *
+ * Keys are the text of one column, compared as strings; the table must be
+ * uncompressed text, as the offsets are those of its lines.  The shuffle
+ * and the partitioner sort keys with KeyComparator, in the order of
+ * String.compareTo() that the segments and the manifest use, not in the
+ * byte order of their UTF-8.
+ */
+public class IndexBuildJob
+{
+    public static final String INDEX = "index.build.index";
+    public static final String KEY_COLUMN = "index.build.key.column";
+    public static final String DELIMITER = "index.build.delimiter";
+    // Hive's default field delimiter, ^A
+    public static final String DEFAULT_DELIMITER = "\u0001";
+
+    private static final String PARTITIONS_SUFFIX = ".partitions";
+    private static final double SAMPLE_FREQUENCY = 0.1;
+    private static final int SAMPLE_KEYS = 10000;
+    private static final int SAMPLE_SPLITS = 10;
+
+    /**
+     * A row of a file: the id of the file and the offset of the row.
+     */
+    public static class Posting implements Writable
+    {
+        private int fileId;
+        private long offset;
+
+        public void set(int fileId, long offset)
+        {
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+
+        public int getFileId()
+        {
+            return fileId;
+        }
+
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException
+        {
+            out.writeInt(fileId);
+            out.writeLong(offset);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException
+        {
+            fileId = in.readInt();
+            offset = in.readLong();
+        }
+    }
+
+    /**
+     * Sorts Text keys as String.compareTo() does, by UTF-16 code unit,
+     * without decoding them.  This is the byte order of their UTF-8 except
+     * where characters from U+E000 up meet characters beyond U+FFFF, whose
+     * surrogates sort below U+E000: at the first byte that differs, the
+     * lead bytes of such characters are ranked accordingly.
+     */
+    public static class KeyComparator extends WritableComparator
+    {
+        public KeyComparator()
+        {
+            super(Text.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+        {
+            int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+            return compareUtf8(b1, s1 + n1, l1 - n1, b2, s2 + n2, l2 - n2);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b)
+        {
+            Text t1 = (Text) a;
+            Text t2 = (Text) b;
+            return compareUtf8(t1.getBytes(), 0, t1.getLength(), t2.getBytes(), 0, t2.getLength());
+        }
+
+        /**
+         * @param b1
+         * @param s1
+         * @param l1
+         * @param b2
+         * @param s2
+         * @param l2
+         * @return the order of two UTF-8 strings by UTF-16 code unit
+         */
+        public static int compareUtf8(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+        {
+            int length = Math.min(l1, l2);
+            for (int i = 0; i < length; i++)
+            {
+                int x = b1[s1 + i] & 0xff;
+                int y = b2[s2 + i] & 0xff;
+                if (x != y)
+                {
+                    //the bytes before are equal, so both are lead bytes or
+                    //both continue characters of the same length
+                    return rank(x) - rank(y);
+                }
+            }
+            return l1 - l2;
+        }
+
+        private static int rank(int b)
+        {
+            if (b >= 0xf0)
+            {
+                //beyond U+FFFF: surrogates, between U+D7FF and U+E000
+                return b - 0xf0 + 0xee;
+            }
+            if (b >= 0xee)
+            {
+                //U+E000 to U+FFFF: after the surrogates
+                return b - 0xee + 0xf5;
+            }
+            return b;
+        }
+    }
+
+    /**
+     * Reads the rows of the table as (key, posting), the key being the text
+     * of the key column.  Rows without that column are skipped.
+     */
+    public static class RowInputFormat extends FileInputFormat<Text, Posting>
+    {
+        @Override
+        public RecordReader<Text, Posting> createRecordReader(InputSplit split, TaskAttemptContext context)
+        {
+            return new RowRecordReader();
+        }
+    }
+
+    private static class RowRecordReader extends RecordReader<Text, Posting>
+    {
+        private final LineRecordReader lines = new LineRecordReader();
+        private final Text key = new Text();
+        private final Posting value = new Posting();
+        private byte delimiter;
+        private int keyColumn;
+        private int fileId;
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException
+        {
+            Configuration conf = context.getConfiguration();
+            lines.initialize(split, context);
+            delimiter = (byte) conf.get(DELIMITER, DEFAULT_DELIMITER).charAt(0);
+            keyColumn = conf.getInt(KEY_COLUMN, 0);
+            FileDictionary dictionary = FileDictionary.read(FileSystem.get(conf), conf.get(INDEX));
+            Path path = ((FileSplit) split).getPath();
+            fileId = dictionary.getId(path.getFileSystem(conf).makeQualified(path).toString());
+            if (fileId < 0)
+            {
+                throw new IOException(path + " is not in the file dictionary");
+            }
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException
+        {
+            while (lines.nextKeyValue())
+            {
+                Text line = lines.getCurrentValue();
+                byte[] bytes = line.getBytes();
+                int start = 0;
+                int column = 0;
+                for (int i = 0; i <= line.getLength(); i++)
+                {
+                    if (i < line.getLength() && bytes[i] != delimiter)
+                    {
+                        continue;
+                    }
+                    if (column == keyColumn)
+                    {
+                        key.set(bytes, start, i - start);
+                        value.set(fileId, lines.getCurrentKey().get());
+                        return true;
+                    }
+                    column++;
+                    start = i + 1;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Text getCurrentKey()
+        {
+            return key;
+        }
+
+        @Override
+        public Posting getCurrentValue()
+        {
+            return value;
+        }
+
+        @Override
+        public float getProgress() throws IOException
+        {
+            return lines.getProgress();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            lines.close();
+        }
+    }
+
+    /**
+     * Builds the segment of one key range from its keys, in order.
+     */
+    public static class SegmentReducer extends Reducer<Text, Posting, NullWritable, NullWritable>
+    {
+        private FileOffsetsConverter<String> converter;
+        private MultiValueTreeBuilder<String, FileOffsets> builder;
+        private File localPostings;
+
+        @Override
+        protected void setup(Context context) throws IOException
+        {
+            Configuration conf = context.getConfiguration();
+            int segment = context.getTaskAttemptID().getTaskID().getId();
+            converter = new FileOffsetsConverter<String>(new BPlusConverter());
+            localPostings = File.createTempFile("segment-" + segment + "-", PostingFile.POSTINGS_SUFFIX);
+            builder = new MultiValueTreeBuilder<String, FileOffsets>(HiveIndex.DEFAULT_ORDER, converter,
+                MultiValueBPlusTree.DEFAULT_INLINE_VALUES, ShardManifest.defaultShardPath(conf.get(INDEX), segment),
+                localPostings, conf);
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<Posting> postings, Context context) throws IOException
+        {
+            Map<Integer, List<Long>> byFile = new TreeMap<Integer, List<Long>>();
+            for (Posting posting : postings)
+            {
+                List<Long> offsets = byFile.get(posting.getFileId());
+                if (offsets == null)
+                {
+                    offsets = new ArrayList<Long>();
+                    byFile.put(posting.getFileId(), offsets);
+                }
+                offsets.add(posting.getOffset());
+            }
+            List<FileOffsets> values = new ArrayList<FileOffsets>();
+            for (Map.Entry<Integer, List<Long>> file : byFile.entrySet())
+            {
+                long[] offsets = new long[file.getValue().size()];
+                for (int i = 0; i < offsets.length; i++)
+                {
+                    offsets[i] = file.getValue().get(i);
+                }
+                for (OffsetList chunk : OffsetList.chunks(offsets, converter.getMaxEncodedLength()))
+                {
+                    values.add(new FileOffsets(file.getKey(), chunk));
+                }
+            }
+            builder.add(key.toString(), values);
+        }
+
+        /**
+         * Finishes the segment only if every key made it; a failed attempt
+         * leaves nothing behind.
+         */
+        @Override
+        public void run(Context context) throws IOException, InterruptedException
+        {
+            setup(context);
+            boolean built = false;
+            try
+            {
+                while (context.nextKey())
+                {
+                    reduce(context.getCurrentKey(), context.getValues(), context);
+                }
+                builder.finish();
+                built = true;
+            }
+            finally
+            {
+                if (!built)
+                {
+                    builder.abort();
+                }
+                localPostings.delete();
+            }
+        }
+    }
+
+    /**
+     * Builds an index of a table and waits for it.
+     * @param conf
+     * @param table the directory of the table's files
+     * @param indexName where the manifest goes; the segments and the file
+     * dictionary go next to it
+     * @param segments how many segments to build at most
+     * @return the manifest of the index
+     * @throws IOException if the job fails
+     */
+    public static ShardManifest<String> build(Configuration conf, Path table, String indexName, int segments)
+        throws IOException, InterruptedException, ClassNotFoundException
+    {
+        FileSystem fs = FileSystem.get(conf);
+        FileDictionary dictionary = new FileDictionary();
+        FileStatus[] files = fs.listStatus(table);
+        Arrays.sort(files);
+        for (FileStatus file : files)
+        {
+            String name = file.getPath().getName();
+            if (file.isFile() && !name.startsWith("_") && !name.startsWith("."))
+            {
+                dictionary.idFor(fs.makeQualified(file.getPath()).toString());
+            }
+        }
+        dictionary.write(fs, indexName);
+
+        Job job = Job.getInstance(conf, "index " + table);
+        job.setJarByClass(IndexBuildJob.class);
+        Configuration jobConf = job.getConfiguration();
+        jobConf.set(INDEX, indexName);
+        //two attempts at a segment would race for its name
+        jobConf.setBoolean("mapreduce.reduce.speculative", false);
+        job.setInputFormatClass(RowInputFormat.class);
+        FileInputFormat.addInputPath(job, table);
+        job.setMapperClass(Mapper.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(Posting.class);
+        job.setSortComparatorClass(KeyComparator.class);
+        job.setReducerClass(SegmentReducer.class);
+        job.setOutputFormatClass(NullOutputFormat.class);
+
+        List<String> splits = sampleSplits(job, segments);
+        job.setNumReduceTasks(splits.size() + 1);
+        Path partitionFile = new Path(indexName + PARTITIONS_SUFFIX);
+        writePartitionFile(jobConf, partitionFile, splits);
+        TotalOrderPartitioner.setPartitionFile(jobConf, partitionFile);
+        //search the splits with the sort comparator rather than a trie of their bytes
+        jobConf.setBoolean(TotalOrderPartitioner.NATURAL_ORDER, false);
+        job.setPartitionerClass(TotalOrderPartitioner.class);
+        try
+        {
+            if (!job.waitForCompletion(false))
+            {
+                throw new IOException("Building the index of " + table + " failed");
+            }
+        }
+        finally
+        {
+            fs.delete(partitionFile, false);
+        }
+        ShardManifest<String> manifest = new ShardManifest<String>(new BPlusConverter(),
+            ShardManifest.Partitioning.RANGE, splits.size() + 1, splits, indexName);
+        manifest.write(fs, indexName);
+        return manifest;
+    }
+
+    /**
+     * @param job
+     * @param segments
+     * @return up to segments - 1 distinct keys, increasing, that split a
+     * sample of the keys evenly
+     */
+    private static List<String> sampleSplits(Job job, int segments)
+        throws IOException, InterruptedException
+    {
+        InputSampler.RandomSampler<Text, Posting> sampler = new InputSampler.RandomSampler<Text, Posting>(
+            SAMPLE_FREQUENCY, SAMPLE_KEYS, SAMPLE_SPLITS);
+        TreeSet<String> distinct = new TreeSet<String>();
+        //the sample comes as an Object[], whatever its declared type
+        Object[] sample = sampler.getSample(new RowInputFormat(), job);
+        for (Object key : sample)
+        {
+            distinct.add(key.toString());
+        }
+        List<String> sorted = new ArrayList<String>(distinct);
+        List<String> splits = new ArrayList<String>();
+        for (int i = 1; i < segments && !sorted.isEmpty(); i++)
+        {
+            String split = sorted.get((int) ((long) i * sorted.size() / segments));
+            if (splits.isEmpty() || split.compareTo(splits.get(splits.size() - 1)) > 0)
+            {
+                splits.add(split);
+            }
+        }
+        return splits;
+    }
+
+    private static void writePartitionFile(Configuration conf, Path partitionFile, List<String> splits)
+        throws IOException
+    {
+        SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(partitionFile),
+            SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(NullWritable.class));
+        try
+        {
+            for (String split : splits)
+            {
+                writer.append(new Text(split), NullWritable.get());
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * @param args the table directory, the index name and the most segments
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Usage: IndexBuildJob <table dir> <index> <segments>");
+            System.exit(-1);
+        }
+        ShardManifest<String> manifest = build(new Configuration(), new Path(args[0]), args[1],
+            Integer.parseInt(args[2]));
+        System.out.println("built " + manifest.getShardCount() + " segments");
+    }
+}
@@ -0,0 +1,116 @@
+package indexes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import util.BPlusConverter;
+import util.Converter;
+
+/**
+ * Reads only the rows of a text table whose key lies in a range, as found
+ * by a synced HiveIndex of the table, rather than the whole table.  The
+ * matching offsets are planned into coalesced ranges (see SplitPlanner),
+ * each becomes a split, and the reader goes straight to the rows within
+ * it.  Files without a match get no split at all.
+ *
+ * The table must be uncompressed text, as the offsets are those of its
+ * lines.
+ */
+public class IndexedInputFormat extends InputFormat<LongWritable, Text>
+{
+    public static final String INDEX = "indexed.input.index";
+    public static final String KEY_FROM = "indexed.input.key.from";
+    public static final String KEY_TO = "indexed.input.key.to";
+    public static final String KEY_CONVERTER = "indexed.input.key.converter";
+    public static final String MAX_GAP = "indexed.input.max.gap";
+    public static final String MAX_SPLIT_SIZE = "mapreduce.input.fileinputformat.split.maxsize";
+
+    /**
+     * @param job
+     * @param indexFileName the synced index of the table
+     */
+    public static void setIndex(Job job, String indexFileName)
+    {
+        job.getConfiguration().set(INDEX, indexFileName);
+    }
+
+    /**
+     * @param job
+     * @param from the smallest key to read
+     * @param to the largest key to read
+     */
+    public static void setKeyRange(Job job, String from, String to)
+    {
+        job.getConfiguration().set(KEY_FROM, from);
+        job.getConfiguration().set(KEY_TO, to);
+    }
+
+    /**
+     * @param job
+     * @param converter of the keys of the index, taking them as strings
+     */
+    @SuppressWarnings("rawtypes")
+    public static void setKeyConverter(Job job, Class<? extends Converter> converter)
+    {
+        job.getConfiguration().setClass(KEY_CONVERTER, converter, Converter.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<InputSplit> getSplits(JobContext context) throws IOException
+    {
+        Configuration conf = context.getConfiguration();
+        String indexFileName = conf.get(INDEX);
+        String from = conf.get(KEY_FROM);
+        String to = conf.get(KEY_TO);
+        if (indexFileName == null || from == null || to == null)
+        {
+            throw new IOException("The index and the key range must be set");
+        }
+        Converter<String, ?> converter = ReflectionUtils.newInstance(
+            conf.getClass(KEY_CONVERTER, BPlusConverter.class, Converter.class), conf);
+        HiveIndex<String> index = new HiveIndex<String>(converter, indexFileName, conf);
+        FileSystem fs = FileSystem.get(conf);
+        SplitPlanner<String> planner = new SplitPlanner<String>(index, fs);
+        planner.setMaxGap(conf.getLong(MAX_GAP, SplitPlanner.DEFAULT_MAX_GAP));
+        planner.setMaxSplitSize(conf.getLong(MAX_SPLIT_SIZE, SplitPlanner.DEFAULT_MAX_SPLIT_SIZE));
+
+        ArrayList<InputSplit> splits = new ArrayList<InputSplit>();
+        for (FileRange range : planner.plan(from, to))
+        {
+            splits.add(new IndexedSplit(range, hostsOf(conf, range)));
+        }
+        return splits;
+    }
+
+    private static String[] hostsOf(Configuration conf, FileRange range) throws IOException
+    {
+        Path path = new Path(range.getPath());
+        FileSystem fs = path.getFileSystem(conf);
+        FileStatus status = fs.getFileStatus(path);
+        BlockLocation[] blocks = fs.getFileBlockLocations(status, range.getStart(), range.getLength());
+        return blocks.length == 0 ? new String[0] : blocks[0].getHosts();
+    }
+
+    @Override
+    public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context)
+    {
+        return new IndexedRecordReader();
+    }
+}
@@ -0,0 +1,110 @@
+package indexes;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Reads the rows an IndexedSplit names from an uncompressed text file, one
+ * line from each offset, keyed by the offset as BLOCK__OFFSET__INSIDE__FILE
+ * gives it.  Rows close after one another are reached by reading on through
+ * the lines between them; a farther one by a seek.
+ */
+public class IndexedRecordReader extends RecordReader<LongWritable, Text>
+{
+    // the most bytes read through rather than seeking past
+    public static final String MAX_SKIP = "indexed.input.max.skip";
+    public static final int DEFAULT_MAX_SKIP = 64 * 1024;
+
+    private Configuration conf;
+    private FSDataInputStream in;
+    private LineReader lines;
+    private long position;
+    private long[] offsets;
+    private int next;
+    private long maxSkip;
+    private final LongWritable key = new LongWritable();
+    private final Text value = new Text();
+    private final Text skipped = new Text();
+
+    @Override
+    public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException
+    {
+        IndexedSplit split = (IndexedSplit) genericSplit;
+        conf = context.getConfiguration();
+        Path path = split.getPath();
+        in = path.getFileSystem(conf).open(path);
+        offsets = split.getOffsets();
+        maxSkip = conf.getInt(MAX_SKIP, DEFAULT_MAX_SKIP);
+        next = 0;
+        position = -1;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException
+    {
+        if (next >= offsets.length)
+        {
+            return false;
+        }
+        long offset = offsets[next++];
+        if (lines == null || offset < position || offset - position > maxSkip)
+        {
+            in.seek(offset);
+            lines = new LineReader(in, conf);
+            position = offset;
+        }
+        while (position < offset)
+        {
+            int read = lines.readLine(skipped);
+            if (read == 0)
+            {
+                throw new IOException("No row at " + offset + " in " + in);
+            }
+            position += read;
+        }
+        if (position != offset)
+        {
+            throw new IOException("Offset " + offset + " is not the start of a row");
+        }
+        position += lines.readLine(value);
+        key.set(offset);
+        return true;
+    }
+
+    @Override
+    public LongWritable getCurrentKey()
+    {
+        return key;
+    }
+
+    @Override
+    public Text getCurrentValue()
+    {
+        return value;
+    }
+
+    @Override
+    public float getProgress()
+    {
+        return offsets.length == 0 ? 1.0f : (float) next / offsets.length;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (in != null)
+        {
+            in.close();
+            in = null;
+        }
+    }
+}
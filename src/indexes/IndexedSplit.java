@@ -0,0 +1,72 @@
+package indexes;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * A split of a file holding rows an index matched: a FileRange, with the
+ * hosts of its block for locality.
+ */
+public class IndexedSplit extends FileSplit
+{
+    private long[] offsets;
+
+    /**
+     * For deserialization.
+     */
+    public IndexedSplit()
+    {
+        super();
+        this.offsets = new long[0];
+    }
+
+    /**
+     * @param range
+     * @param hosts where the block of the range is stored
+     */
+    public IndexedSplit(FileRange range, String[] hosts)
+    {
+        super(new Path(range.getPath()), range.getStart(), range.getLength(), hosts);
+        this.offsets = range.getOffsets();
+    }
+
+    /**
+     * @return the offsets of the matching rows in the split, increasing
+     */
+    public long[] getOffsets()
+    {
+        return offsets;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        super.write(out);
+        out.writeInt(offsets.length);
+        for (long offset : offsets)
+        {
+            out.writeLong(offset);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        super.readFields(in);
+        offsets = new long[in.readInt()];
+        for (int i = 0; i < offsets.length; i++)
+        {
+            offsets[i] = in.readLong();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + " (" + offsets.length + " rows)";
+    }
+}
@@ -0,0 +1,321 @@
+package indexes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of block offsets within a file, as Hive gives them for a key by
+ * COLLECT_SET(BLOCK__OFFSET__INSIDE__FILE), kept compressed: the offsets
+ * are sorted, each is stored as its distance from the one before it, and
+ * every number is written as a varint, seven bits to a byte.  Offsets of
+ * neighbouring rows are close together, so most take one or two bytes
+ * where the text of the set takes a byte per digit and a comma.
+ *
+ * The encoded form is the count of offsets followed by the first offset and
+ * the gaps.  It is decoded lazily by the iterator, one offset at a time.
+ */
+public class OffsetList implements Iterable<Long>
+{
+    private final byte[] encoded;
+    private final int count;
+
+    private OffsetList(byte[] encoded, int count)
+    {
+        this.encoded = encoded;
+        this.count = count;
+    }
+
+    /**
+     * @param offsets in any order, possibly repeated; not changed
+     * @return the set of the offsets
+     */
+    public static OffsetList of(long[] offsets)
+    {
+        long[] sorted = sortedSet(offsets);
+        return encode(sorted, 0, sorted.length);
+    }
+
+    /**
+     * Splits a set of offsets into lists of at most a number of encoded
+     * bytes each, in order, for a store of fixed length values.
+     * @param offsets in any order, possibly repeated; not changed
+     * @param maxEncodedLength the most bytes one list may take
+     * @return the lists; none if there are no offsets
+     */
+    public static List<OffsetList> chunks(long[] offsets, int maxEncodedLength)
+    {
+        long[] sorted = sortedSet(offsets);
+        ArrayList<OffsetList> chunks = new ArrayList<OffsetList>();
+        int start = 0;
+        while (start < sorted.length)
+        {
+            int end = start;
+            int payload = 0;
+            while (end < sorted.length)
+            {
+                int next = payload + varLongLength(end == start ? sorted[end] : sorted[end] - sorted[end - 1]);
+                if (varLongLength(end - start + 1) + next > maxEncodedLength)
+                {
+                    break;
+                }
+                payload = next;
+                end++;
+            }
+            if (end == start)
+            {
+                throw new IllegalArgumentException("Offset " + sorted[start] + " does not fit in "
+                    + maxEncodedLength + " bytes");
+            }
+            chunks.add(encode(sorted, start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * @param set as Hive prints an array: [12,0,345]
+     * @return the offsets in the text
+     */
+    public static long[] parseSet(String set)
+    {
+        String trimmed = set.trim();
+        if (trimmed.startsWith("["))
+        {
+            trimmed = trimmed.substring(1);
+        }
+        if (trimmed.endsWith("]"))
+        {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        if (trimmed.trim().isEmpty())
+        {
+            return new long[0];
+        }
+        String[] parts = trimmed.split(",");
+        long[] offsets = new long[parts.length];
+        for (int i = 0; i < parts.length; i++)
+        {
+            offsets[i] = Long.parseLong(parts[i].trim());
+        }
+        return offsets;
+    }
+
+    /**
+     * Wraps an encoded list, as written by getEncoded().
+     * @param b
+     * @param offset where the list starts in b
+     * @param length the bytes of the list
+     * @return the list
+     */
+    public static OffsetList decode(byte[] b, int offset, int length)
+    {
+        byte[] encoded = Arrays.copyOfRange(b, offset, offset + length);
+        return new OffsetList(encoded, (int) readVarLong(encoded, new int[1]));
+    }
+
+    private static long[] sortedSet(long[] offsets)
+    {
+        long[] sorted = offsets.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++)
+        {
+            if (sorted[i] < 0)
+            {
+                throw new IllegalArgumentException("Negative offset " + sorted[i]);
+            }
+            if (i == 0 || sorted[i] != sorted[i - 1])
+            {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+
+    private static OffsetList encode(long[] sorted, int start, int end)
+    {
+        int length = varLongLength(end - start);
+        for (int i = start; i < end; i++)
+        {
+            length += varLongLength(i == start ? sorted[i] : sorted[i] - sorted[i - 1]);
+        }
+        byte[] encoded = new byte[length];
+        int position = writeVarLong(encoded, 0, end - start);
+        for (int i = start; i < end; i++)
+        {
+            position = writeVarLong(encoded, position, i == start ? sorted[i] : sorted[i] - sorted[i - 1]);
+        }
+        return new OffsetList(encoded, end - start);
+    }
+
+    private static int varLongLength(long value)
+    {
+        int length = 1;
+        while ((value >>>= 7) != 0)
+        {
+            length++;
+        }
+        return length;
+    }
+
+    private static int writeVarLong(byte[] b, int position, long value)
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            b[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        b[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * @param b
+     * @param position holds where to read, moved past the varint
+     * @return the varint
+     */
+    private static long readVarLong(byte[] b, int[] position)
+    {
+        long value = 0;
+        int shift = 0;
+        while (true)
+        {
+            byte next = b[position[0]++];
+            value |= (long) (next & 0x7f) << shift;
+            if (next >= 0)
+            {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * @return the number of offsets
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * @return the encoded list; not to be changed
+     */
+    public byte[] getEncoded()
+    {
+        return encoded;
+    }
+
+    public int getEncodedLength()
+    {
+        return encoded.length;
+    }
+
+    /**
+     * @return the offsets, in increasing order
+     */
+    public long[] toArray()
+    {
+        long[] offsets = new long[count];
+        OffsetIterator iterator = iterator();
+        for (int i = 0; i < count; i++)
+        {
+            offsets[i] = iterator.nextOffset();
+        }
+        return offsets;
+    }
+
+    @Override
+    public OffsetIterator iterator()
+    {
+        return new OffsetIterator();
+    }
+
+    /**
+     * Decodes the offsets in increasing order as they are asked for.
+     */
+    public class OffsetIterator implements Iterator<Long>
+    {
+        private final int[] position;
+        private int remaining;
+        private long last;
+
+        private OffsetIterator()
+        {
+            position = new int[1];
+            remaining = (int) readVarLong(encoded, position);
+            last = 0;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return remaining > 0;
+        }
+
+        /**
+         * @return the next offset, unboxed
+         */
+        public long nextOffset()
+        {
+            if (remaining == 0)
+            {
+                throw new NoSuchElementException();
+            }
+            last += readVarLong(encoded, position);
+            remaining--;
+            return last;
+        }
+
+        @Override
+        public Long next()
+        {
+            return nextOffset();
+        }
+
+        /**
+         * Moves to the first offset of at least target.
+         * @param target
+         * @return that offset, or -1 if there is none
+         */
+        public long skipTo(long target)
+        {
+            while (remaining > 0)
+            {
+                long offset = nextOffset();
+                if (offset >= target)
+                {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        return other instanceof OffsetList && Arrays.equals(encoded, ((OffsetList) other).encoded);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(encoded);
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(toArray());
+    }
+}
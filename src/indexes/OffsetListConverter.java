@@ -0,0 +1,90 @@
+package indexes;
+
+import java.nio.ByteBuffer;
+
+import util.Converter;
+
+/**
+ * Stores an offset list as a tree record of fixed length: the length of the
+ * encoded list in a short, then the list, then padding.  A set too long for
+ * one record is split with OffsetList.chunks() and stored as several values
+ * of its key (see MultiValueBPlusTree).  Keys are converted by another
+ * converter.
+ * @param <KeyType>
+ */
+public class OffsetListConverter<KeyType> implements Converter<KeyType, OffsetList>
+{
+    public static final int DEFAULT_MAX_ENCODED_LENGTH = 126;
+
+    private final Converter<KeyType, ?> keyConverter;
+    private final int maxEncodedLength;
+
+    /**
+     * @param keyConverter the converter of the keys
+     * @param maxEncodedLength the most bytes of an encoded list a record
+     * holds, below 32K
+     */
+    public OffsetListConverter(Converter<KeyType, ?> keyConverter, int maxEncodedLength)
+    {
+        if (maxEncodedLength > Short.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Records of " + maxEncodedLength + " bytes are too long");
+        }
+        this.keyConverter = keyConverter;
+        this.maxEncodedLength = maxEncodedLength;
+    }
+
+    public OffsetListConverter(Converter<KeyType, ?> keyConverter)
+    {
+        this(keyConverter, DEFAULT_MAX_ENCODED_LENGTH);
+    }
+
+    @Override
+    public KeyType bytesToKey(byte[] b)
+    {
+        return keyConverter.bytesToKey(b);
+    }
+
+    @Override
+    public byte[] keyToBytes(KeyType key)
+    {
+        return keyConverter.keyToBytes(key);
+    }
+
+    @Override
+    public OffsetList bytesToRecord(byte[] b)
+    {
+        return OffsetList.decode(b, 2, ByteBuffer.wrap(b).getShort());
+    }
+
+    @Override
+    public byte[] recordToBytes(OffsetList record)
+    {
+        if (record.getEncodedLength() > maxEncodedLength)
+        {
+            throw new IllegalArgumentException(record.size() + " offsets take " + record.getEncodedLength()
+                + " bytes, a record holds " + maxEncodedLength + "; split them with OffsetList.chunks()");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(getRecordLength());
+        buffer.putShort((short) record.getEncodedLength());
+        buffer.put(record.getEncoded());
+        return buffer.array();
+    }
+
+    @Override
+    public int getKeyLength()
+    {
+        return keyConverter.getKeyLength();
+    }
+
+    @Override
+    public int getRecordLength()
+    {
+        return 2 + maxEncodedLength;
+    }
+
+    public int getMaxEncodedLength()
+    {
+        return maxEncodedLength;
+    }
+}
@@ -0,0 +1,114 @@
+package indexes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The values of one key of a multi-value tree.  A short list is kept inline,
+ * in the tree record of its key; a long one is kept in an overflow block of
+ * a postings file, and the record only says where and how many.
+ * @param <RecordType> The type of the values.
+ */
+public class PostingList<RecordType> implements AggregateRecords<RecordType>
+{
+    public static final long INLINE = -1;
+
+    private final List<RecordType> records;
+    private int count;
+    private long overflowOffset;
+    private int overflowCapacity;
+
+    /**
+     * An empty list, kept inline.
+     */
+    public PostingList()
+    {
+        this.records = new ArrayList<RecordType>();
+        this.overflowOffset = INLINE;
+    }
+
+    /**
+     * A list whose values are in an overflow block, not yet read.
+     * @param count the values in the list
+     * @param overflowOffset where the block is in the postings file
+     * @param overflowCapacity the values the block has room for
+     */
+    public PostingList(int count, long overflowOffset, int overflowCapacity)
+    {
+        this.records = new ArrayList<RecordType>();
+        this.count = count;
+        this.overflowOffset = overflowOffset;
+        this.overflowCapacity = overflowCapacity;
+    }
+
+    @Override
+    public void addValue(RecordType toAdd)
+    {
+        records.add(toAdd);
+        if (records.size() > count)
+        {
+            count = records.size();
+        }
+    }
+
+    /**
+     * @return the values at hand: all of them for an inline list, those read
+     * or added so far for an overflowed one.
+     */
+    @Override
+    public List<RecordType> getRecords()
+    {
+        return records;
+    }
+
+    @Override
+    public RecordType getRecord()
+    {
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * @return the values in the list, wherever they are kept
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    public void setCount(int count)
+    {
+        this.count = count;
+    }
+
+    public boolean isInline()
+    {
+        return overflowOffset == INLINE;
+    }
+
+    public long getOverflowOffset()
+    {
+        return overflowOffset;
+    }
+
+    public int getOverflowCapacity()
+    {
+        return overflowCapacity;
+    }
+
+    /**
+     * Moves the list to an overflow block; the values at hand stay readable.
+     * @param offset
+     * @param capacity
+     */
+    public void setOverflow(long offset, int capacity)
+    {
+        this.overflowOffset = offset;
+        this.overflowCapacity = capacity;
+    }
+
+    @Override
+    public String toString()
+    {
+        return isInline() ? records.toString() : count + " values at " + overflowOffset;
+    }
+}
@@ -0,0 +1,111 @@
+package indexes;
+
+import java.nio.ByteBuffer;
+
+import util.Converter;
+
+/**
+ * Stores a posting list as a tree record of fixed length, given a converter
+ * for its single values.  The record holds the count of values and the
+ * offset of the overflow block (-1 while there is none), the capacity of
+ * that block, and room for a few values inline:
+ * [int count][long overflow offset][int overflow capacity][inline values]
+ * Keys are converted by the value converter.
+ * @param <KeyType>
+ * @param <RecordType> The type of the values.
+ */
+public class PostingListConverter<KeyType, RecordType> implements Converter<KeyType, PostingList<RecordType>>
+{
+    private static final int HEADER_LENGTH = 4 + 8 + 4;
+
+    private final Converter<KeyType, RecordType> valueConverter;
+    private final int inlineValues;
+
+    /**
+     * @param valueConverter
+     * @param inlineValues the values kept in the record itself; longer
+     * lists go to an overflow block
+     */
+    public PostingListConverter(Converter<KeyType, RecordType> valueConverter, int inlineValues)
+    {
+        this.valueConverter = valueConverter;
+        this.inlineValues = inlineValues;
+    }
+
+    @Override
+    public KeyType bytesToKey(byte[] b)
+    {
+        return valueConverter.bytesToKey(b);
+    }
+
+    @Override
+    public byte[] keyToBytes(KeyType key)
+    {
+        return valueConverter.keyToBytes(key);
+    }
+
+    @Override
+    public PostingList<RecordType> bytesToRecord(byte[] b)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        int count = buffer.getInt();
+        long overflowOffset = buffer.getLong();
+        int overflowCapacity = buffer.getInt();
+        if (overflowOffset != PostingList.INLINE)
+        {
+            return new PostingList<RecordType>(count, overflowOffset, overflowCapacity);
+        }
+        PostingList<RecordType> list = new PostingList<RecordType>();
+        byte[] value = new byte[valueConverter.getRecordLength()];
+        for (int i = 0; i < count; i++)
+        {
+            buffer.get(value);
+            list.addValue(valueConverter.bytesToRecord(value.clone()));
+        }
+        return list;
+    }
+
+    @Override
+    public byte[] recordToBytes(PostingList<RecordType> record)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(getRecordLength());
+        buffer.putInt(record.getCount());
+        buffer.putLong(record.getOverflowOffset());
+        buffer.putInt(record.getOverflowCapacity());
+        if (record.isInline())
+        {
+            if (record.getCount() > inlineValues)
+            {
+                throw new IllegalArgumentException(record.getCount() + " values do not fit inline, only "
+                    + inlineValues + " do");
+            }
+            for (RecordType value : record.getRecords())
+            {
+                buffer.put(valueConverter.recordToBytes(value), 0, valueConverter.getRecordLength());
+            }
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public int getKeyLength()
+    {
+        return valueConverter.getKeyLength();
+    }
+
+    @Override
+    public int getRecordLength()
+    {
+        return HEADER_LENGTH + inlineValues * valueConverter.getRecordLength();
+    }
+
+    public Converter<KeyType, RecordType> getValueConverter()
+    {
+        return valueConverter;
+    }
+
+    public int getInlineValues()
+    {
+        return inlineValues;
+    }
+}
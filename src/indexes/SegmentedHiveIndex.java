@@ -0,0 +1,119 @@
+package indexes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+
+import trees.MultiValueBPlusTree;
+import trees.ShardManifest;
+import util.Converter;
+
+/**
+ * A Hive index built by IndexBuildJob: segments of the key range, each a
+ * multi-value tree of its own written by one reducer, with a range
+ * manifest over them as the top level (see ShardManifest) and the file
+ * dictionary next to the manifest.  A lookup reads the manifest's split
+ * keys from memory and then searches one segment.
+ *
+ * Segments are opened on first use.
+ * @param <KeyType>
+ */
+public class SegmentedHiveIndex<KeyType extends Comparable<? super KeyType>>
+{
+    private final FileOffsetsConverter<KeyType> converter;
+    private final String manifestName;
+    private final Configuration conf;
+    private final ShardManifest<KeyType> manifest;
+    private final FileDictionary dictionary;
+    private final List<MultiValueBPlusTree<KeyType, FileOffsets>> segments;
+
+    /**
+     * @param keyConverter
+     * @param manifestName
+     * @param conf
+     * @throws IOException
+     */
+    public SegmentedHiveIndex(Converter<KeyType, ?> keyConverter, String manifestName, Configuration conf)
+        throws IOException
+    {
+        FileSystem fs = FileSystem.get(conf);
+        this.converter = new FileOffsetsConverter<KeyType>(keyConverter);
+        this.manifestName = manifestName;
+        this.conf = conf;
+        this.manifest = ShardManifest.read(fs, manifestName, keyConverter);
+        this.dictionary = FileDictionary.read(fs, manifestName);
+        this.segments = new ArrayList<MultiValueBPlusTree<KeyType, FileOffsets>>();
+        for (int i = 0; i < manifest.getShardCount(); i++)
+        {
+            segments.add(null);
+        }
+    }
+
+    /**
+     * @param segment
+     * @return the tree of the segment, opened if need be
+     * @throws IOException
+     */
+    public synchronized MultiValueBPlusTree<KeyType, FileOffsets> getSegment(int segment) throws IOException
+    {
+        MultiValueBPlusTree<KeyType, FileOffsets> tree = segments.get(segment);
+        if (tree == null)
+        {
+            tree = new MultiValueBPlusTree<KeyType, FileOffsets>(HiveIndex.DEFAULT_ORDER, converter,
+                MultiValueBPlusTree.DEFAULT_INLINE_VALUES, manifest.getShardPath(manifestName, segment), conf);
+            segments.set(segment, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * @param key
+     * @return the values of the key
+     * @throws IOException
+     */
+    public List<FileOffsets> search(KeyType key) throws IOException
+    {
+        return getSegment(manifest.shardFor(key)).search(key);
+    }
+
+    /**
+     * @param key1
+     * @param key2
+     * @return the values of the keys between key1 and key2, inclusive, in
+     * key order
+     * @throws IOException
+     */
+    public List<FileOffsets> getRange(KeyType key1, KeyType key2) throws IOException
+    {
+        ArrayList<FileOffsets> values = new ArrayList<FileOffsets>();
+        for (int segment : manifest.shardsFor(key1, key2))
+        {
+            values.addAll(getSegment(segment).getRange(key1, key2));
+        }
+        return values;
+    }
+
+    /**
+     * Resolves values to the files they point into.
+     * @param values
+     * @return the sorted, distinct offsets in each file, by path
+     */
+    public Map<String, long[]> offsetsByFile(List<FileOffsets> values)
+    {
+        return dictionary.offsetsByFile(values);
+    }
+
+    public FileDictionary getDictionary()
+    {
+        return dictionary;
+    }
+
+    public int getSegmentCount()
+    {
+        return manifest.getShardCount();
+    }
+}
@@ -0,0 +1,143 @@
+package indexes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Turns the rows an index finds for a query into the few byte ranges a job
+ * has to read.  The offsets of each file are sorted, and offsets close
+ * enough together are coalesced into one range, so that the rows are read
+ * sequentially rather than by a seek each.  A range never grows past a
+ * maximum length, and with block alignment never crosses a block boundary
+ * of its file, so each range can be read from a single datanode.
+ * @param <KeyType>
+ */
+public class SplitPlanner<KeyType extends Comparable<? super KeyType>>
+{
+    public static final long DEFAULT_MAX_GAP = 1024 * 1024;
+    public static final long DEFAULT_MAX_SPLIT_SIZE = 128 * 1024 * 1024;
+
+    private final HiveIndex<KeyType> index;
+    private final FileSystem fs;
+    private long maxGap;
+    private long maxSplitSize;
+    private boolean alignToBlocks;
+
+    /**
+     * @param index
+     * @param fs the file system of the indexed files, for their block sizes
+     */
+    public SplitPlanner(HiveIndex<KeyType> index, FileSystem fs)
+    {
+        this.index = index;
+        this.fs = fs;
+        this.maxGap = DEFAULT_MAX_GAP;
+        this.maxSplitSize = DEFAULT_MAX_SPLIT_SIZE;
+        this.alignToBlocks = true;
+    }
+
+    /**
+     * @param maxGap the most bytes between two rows read as one range rather
+     * than by a seek
+     */
+    public void setMaxGap(long maxGap)
+    {
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * @param maxSplitSize the longest range
+     */
+    public void setMaxSplitSize(long maxSplitSize)
+    {
+        this.maxSplitSize = maxSplitSize;
+    }
+
+    /**
+     * @param alignToBlocks whether ranges may not cross block boundaries
+     */
+    public void setAlignToBlocks(boolean alignToBlocks)
+    {
+        this.alignToBlocks = alignToBlocks;
+    }
+
+    /**
+     * @param key
+     * @return the ranges holding the rows of the key
+     * @throws IOException
+     */
+    public List<FileRange> plan(KeyType key) throws IOException
+    {
+        return plan(index.offsetsByFile(index.search(key)));
+    }
+
+    /**
+     * @param key1
+     * @param key2
+     * @return the ranges holding the rows of the keys between key1 and key2,
+     * inclusive
+     * @throws IOException
+     */
+    public List<FileRange> plan(KeyType key1, KeyType key2) throws IOException
+    {
+        return plan(index.offsetsByFile(index.getRange(key1, key2)));
+    }
+
+    /**
+     * @param offsetsByFile the sorted offsets of the rows to read, by path
+     * @return the ranges holding the rows, by file and then by offset
+     * @throws IOException
+     */
+    public List<FileRange> plan(Map<String, long[]> offsetsByFile) throws IOException
+    {
+        ArrayList<FileRange> ranges = new ArrayList<FileRange>();
+        for (Map.Entry<String, long[]> file : offsetsByFile.entrySet())
+        {
+            long[] offsets = file.getValue();
+            long blockSize = alignToBlocks ? blockSizeOf(file.getKey()) : Long.MAX_VALUE;
+            int first = 0;
+            for (int i = 1; i <= offsets.length; i++)
+            {
+                if (i == offsets.length || offsets[i] - offsets[i - 1] > maxGap
+                    || offsets[i] + 1 - offsets[first] > maxSplitSize
+                    || offsets[i] / blockSize != offsets[first] / blockSize)
+                {
+                    ranges.add(new FileRange(file.getKey(), offsets[first], offsets[i - 1] + 1 - offsets[first],
+                        Arrays.copyOfRange(offsets, first, i)));
+                    first = i;
+                }
+            }
+        }
+        return ranges;
+    }
+
+    private long blockSizeOf(String path) throws IOException
+    {
+        if (fs == null)
+        {
+            return Long.MAX_VALUE;
+        }
+        Path file = new Path(path);
+        return fs.exists(file) ? fs.getFileStatus(file).getBlockSize() : fs.getDefaultBlockSize(file);
+    }
+
+    /**
+     * @param ranges
+     * @return the bytes in all the ranges
+     */
+    public static long totalLength(List<FileRange> ranges)
+    {
+        long total = 0;
+        for (FileRange range : ranges)
+        {
+            total += range.getLength();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,122 @@
+package main;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import trees.ConcurrentBPlusTree;
+import util.BattingBPlusRecord;
+
+/**
+ * Mixed read/write scaling benchmark for ConcurrentBPlusTree.  Every thread
+ * count is run twice: once with optimistic lock coupling and once with the
+ * same tree behind a single coarse lock, which serializes everyone.
+ *
+ * usage: ConcurrentBPlusTreeBenchmark [keys] [readPercent] [maxThreads] [seconds]
+ */
+public class ConcurrentBPlusTreeBenchmark {
+
+    private static final int ORDER = 64;
+
+    private interface Workload {
+        void read(String key);
+        void write(String key, long value);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int readPercent = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        final ConcurrentBPlusTree<String, Long, BattingBPlusRecord> tree =
+                new ConcurrentBPlusTree<String, Long, BattingBPlusRecord>(ORDER);
+        for (int i = 0; i < numKeys; i += 2) {
+            tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+        }
+
+        Workload optimistic = new Workload() {
+            public void read(String key) {
+                tree.search(key);
+            }
+            public void write(String key, long value) {
+                tree.insert(new BattingBPlusRecord(key, value));
+            }
+        };
+        final Object lock = new Object();
+        Workload coarse = new Workload() {
+            public void read(String key) {
+                synchronized (lock) {
+                    tree.search(key);
+                }
+            }
+            public void write(String key, long value) {
+                synchronized (lock) {
+                    tree.insert(new BattingBPlusRecord(key, value));
+                }
+            }
+        };
+
+        // warm up the JIT so the first row is not penalized
+        run(optimistic, 1, numKeys, readPercent, 1);
+        run(coarse, 1, numKeys, readPercent, 1);
+
+        System.out.println("keys=" + numKeys + " reads=" + readPercent + "% order=" + ORDER);
+        System.out.println("threads\toptimistic ops/s\tcoarse lock ops/s\tspeedup");
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            long olc = run(optimistic, threads, numKeys, readPercent, seconds);
+            long locked = run(coarse, threads, numKeys, readPercent, seconds);
+            System.out.println(threads + "\t" + olc + "\t" + locked + "\t"
+                    + String.format("%.2f", (double) olc / Math.max(1, locked)));
+            if (threads >= maxThreads) {
+                break;
+            }
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("%09d", i);
+    }
+
+    private static long run(final Workload workload, int threads, final int numKeys,
+            final int readPercent, int seconds) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    long done = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (!stop.get()) {
+                        int i = random.nextInt(numKeys);
+                        if (random.nextInt(100) < readPercent) {
+                            workload.read(key(i));
+                        } else {
+                            workload.write(key(i), i);
+                        }
+                        done++;
+                    }
+                    ops.addAndGet(done);
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.get() / seconds;
+    }
+}
@@ -7,13 +7,8 @@ import java.util.List;
 
 import org.junit.Before;
 
-import trees.BPlusTree;
-import util.BattingBPlusConverter;
-import util.BattingBPlusRecord;
-import util.BPlusRecord;
+import trees.MultiValueBPlusTree;
 import util.BPlusConverter;
-import util.Converter;
-import util.HiveBPlusRecord;
 
 import org.apache.hadoop.conf.Configuration;
 
@@ -28,21 +23,20 @@ public class HDFSBTreeTest {
             System.exit(-1);
         }
         Configuration conf = new Configuration();
-        BPlusTree<String, String, BPlusRecord<String, String>> tree = 
-                new BPlusTree<String, String, BPlusRecord<String, String>>(
+        // keys repeat, so each key keeps a posting list of its values
+        MultiValueBPlusTree<String, String> tree = 
+                new MultiValueBPlusTree<String, String>(
                         7, 
                         new BPlusConverter(), 
-                        null, 
-                        args[0],
-                        args[1],
-                        null);
+                        MultiValueBPlusTree.DEFAULT_INLINE_VALUES, 
+                        args[0]);
         for (int i = 0; i < 100; ++i) {
-            tree.insert(new HiveBPlusRecord("a" + i, "" + i));
+            tree.add("a" + i, "" + i);
        }
         for (int i = 0; i < 100; ++i) {
-            tree.insert(new HiveBPlusRecord("a" + i, "" + (i + 1)));
+            tree.add("a" + i, "" + (i + 1));
         }
-        tree.printTree();
+        tree.getTree().printTree();
         
         tree.syncToHdfs(args[1], conf);
         File deleteit = new File(args[0]);
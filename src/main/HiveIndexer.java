@@ -7,18 +7,36 @@ import java.io.File;
 import java.util.List;
 
 
+import indexes.HiveIndex;
+import indexes.OffsetList;
 import trees.BPlusTree;
+import trees.BPlusTreeBuilder;
+import trees.BPlusTreeFile;
+import trees.ParallelTreeBuilder;
+import trees.PostingFile;
 import util.BattingBPlusConverter;
 import util.BattingBPlusRecord;
+import util.BatchReader;
 import util.BPlusRecord;
 import util.BPlusConverter;
 import util.Converter;
 import util.HiveBPlusRecord;
+import util.RecordBatch;
 
 import org.apache.hadoop.conf.Configuration;
 
 public class HiveIndexer {
 
+    // number of inserts per forced write of the redo log
+    private static final int GROUP_COMMIT_SIZE = 1024;
+
+    // records per batch, and batches read ahead, of a binary stream
+    private static final int BATCH_RECORDS = 4096;
+    private static final int QUEUED_BATCHES = 4;
+
+    // where a tree is built before it is synced to hdfs
+    private static final String LOCAL_TREE = "/tmp/hiveBPlusTree";
+
     /**
      * @param args
      */
@@ -28,14 +46,42 @@ public class HiveIndexer {
 			System.exit(-1);
 		}
 		Configuration conf = new Configuration();
+		if (args.length > 2 && args[2].equals("sorted")) {
+			// rows come in key order: build straight into hdfs, no local copy
+			indexSorted(args[1], conf);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("parallel")) {
+			indexParallel(args[1], conf);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("binary")) {
+			// length-prefixed records, parsed on a thread of their own
+			indexBinary(args[1], conf);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("compact")) {
+			// binary (file id, offsets) values, with a dictionary of the files
+			indexCompact(args[1], conf);
+			return;
+		}
+		// "resume" continues a run that died, fed the same rows in the same order;
+		// otherwise the rows start over, and a recovered tree would hold them twice
+		boolean resume = args.length > 2 && args[2].equals("resume");
+		if (!resume) {
+			deleteLocalTree();
+		}
 		BPlusTree<String, String, HiveBPlusRecord> tree = 
 				new BPlusTree<String, String, HiveBPlusRecord>(
 						7,
 						new BPlusConverter(),
 						null,
-						"/tmp/hiveBPlusTree",
+						LOCAL_TREE,
 						args[1],
 						null);
+		tree.enableWriteAheadLog(GROUP_COMMIT_SIZE);
+		// the redo log recovered the first rows, one record each
+		long recovered = tree.getKeyCount();
 		
 		BufferedReader stdin=new BufferedReader(new InputStreamReader(System.in));
 		while(true){
@@ -43,6 +89,10 @@ public class HiveIndexer {
 			if(str.equals("0")){
 				break;
 			}
+			if (recovered > 0) {
+				recovered--;
+				continue;
+			}
 			
 			int i = str.indexOf("\t");
 			String key = str.substring(0, i);
@@ -51,8 +101,100 @@ public class HiveIndexer {
 		}
 		
 		tree.syncToHdfs(args[1], conf);
-		File deleteit = new File("/tmp/hiveBPlusTree");
-		deleteit.delete();
+		deleteLocalTree();
+	}
+
+	private static void indexSorted(String hdfsFileName, Configuration conf) throws IOException {
+		BPlusTreeBuilder<String, String> builder =
+				BPlusTreeBuilder.toHdfs(7, new BPlusConverter(), hdfsFileName, conf);
+		BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			while (true) {
+				String str = stdin.readLine();
+				if (str == null || str.equals("0")) {
+					break;
+				}
+				int i = str.indexOf("\t");
+				builder.add(str.substring(0, i), str.substring(i + 1));
+			}
+		} catch (RuntimeException e) {
+			builder.abort();
+			throw e;
+		} catch (IOException e) {
+			builder.abort();
+			throw e;
+		}
+		builder.finish();
+	}
+
+	private static void indexParallel(String hdfsFileName, Configuration conf) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ParallelTreeBuilder<String, String> builder = new ParallelTreeBuilder<String, String>(
+				7, new BPlusConverter(), threads, 4 * threads, new File("/tmp"));
+		BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+		while (true) {
+			String str = stdin.readLine();
+			if (str == null || str.equals("0")) {
+				break;
+			}
+			int i = str.indexOf("\t");
+			builder.add(str.substring(0, i), str.substring(i + 1));
+		}
+		builder.build(hdfsFileName, conf);
+	}
+	private static void indexBinary(String hdfsFileName, Configuration conf) throws IOException {
+		// the stream starts over, so nothing recovered from an earlier run is
+		// kept, and the tree needs no redo log
+		deleteLocalTree();
+		BPlusTree<String, String, HiveBPlusRecord> tree = 
+				new BPlusTree<String, String, HiveBPlusRecord>(
+						7,
+						new BPlusConverter(),
+						null,
+						LOCAL_TREE,
+						null,
+						null);
+		BatchReader reader = new BatchReader(System.in, BATCH_RECORDS, QUEUED_BATCHES);
+		try {
+			while (true) {
+				RecordBatch batch = reader.take();
+				for (int i = 0; i < batch.size(); i++) {
+					tree.insert(new HiveBPlusRecord(batch.getKey(i), batch.getValue(i)));
+				}
+				boolean last = batch.isLast();
+				reader.release(batch);
+				if (last) {
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		tree.syncToHdfs(hdfsFileName, conf);
+		deleteLocalTree();
+	}
+
+	private static void indexCompact(String hdfsFileName, Configuration conf) throws IOException {
+		HiveIndex<String> index = new HiveIndex<String>(new BPlusConverter(), LOCAL_TREE);
+		BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+		while (true) {
+			String str = stdin.readLine();
+			if (str == null || str.equals("0")) {
+				break;
+			}
+			// key, INPUT__FILE__NAME, COLLECT_SET(BLOCK__OFFSET__INSIDE__FILE)
+			String[] fields = str.split("\t", 3);
+			index.add(fields[0], fields[1], OffsetList.parseSet(fields[2]));
+		}
+		index.syncToHdfs(hdfsFileName, conf);
+		deleteLocalTree();
+	}
+
+	// removes a local tree together with the files kept next to it
+	private static void deleteLocalTree() {
+		new File(LOCAL_TREE).delete();
+		new File(LOCAL_TREE + BPlusTreeFile.WAL_SUFFIX).delete();
+		new File(LOCAL_TREE + PostingFile.POSTINGS_SUFFIX).delete();
 	}
 //    public static void main(String[] args) throws IOException{
 //        if (args.length < 2) {
@@ -0,0 +1,127 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import trees.BPlusTree;
+import trees.BPlusTreeFile;
+import trees.TreeLayout;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+/**
+ * Point lookup benchmark for a read-only tree served from a memory mapped
+ * local file, in the order the nodes were allocated (the file as built)
+ * against the level-ordered and van Emde Boas exports.  Each layout gets a
+ * fresh mapping, so the page faults it takes are the pages its lookups
+ * touch.  Faults are read from /proc/self/stat and include whatever the
+ * rest of the JVM does meanwhile.
+ *
+ * usage: TreeLayoutBenchmark [keys] [lookups] [order]
+ */
+public class TreeLayoutBenchmark {
+
+    private static final String BUILT_FILE = "TreeLayoutBenchmark.bin";
+
+    public static void main(String[] args) throws IOException {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int order = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        new File(BUILT_FILE).delete();
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(
+                order, new BattingBPlusConverter(), null, BUILT_FILE, null, null);
+        // random insertion order scatters the nodes over the built file
+        int[] keys = new int[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            keys[i] = i;
+        }
+        Random random = new Random(1);
+        for (int i = numKeys - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = keys[i];
+            keys[i] = keys[j];
+            keys[j] = swap;
+        }
+        for (int i = 0; i < numKeys; i++) {
+            tree.insert(new BattingBPlusRecord(key(keys[i]), new Long(keys[i])));
+        }
+        tree.flush();
+
+        String[] names = { "allocation", "level", "veb" };
+        String[] files = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            files[i] = "TreeLayoutBenchmark." + names[i] + ".bin";
+        }
+        Files.copy(Paths.get(BUILT_FILE), Paths.get(files[0]),
+                StandardCopyOption.REPLACE_EXISTING);
+        tree.export(files[1], TreeLayout.LEVEL_ORDER);
+        tree.export(files[2], TreeLayout.VAN_EMDE_BOAS);
+
+        // warm up the JIT on a throwaway mapping so the first row is not penalized
+        run(files[0], order, numKeys, lookups, 2);
+
+        System.out.println("keys=" + numKeys + " lookups=" + lookups + " order=" + order
+                + " height=" + tree.getHeight());
+        System.out.println("layout\tns/lookup\tminor faults\tmajor faults\tfaults/lookup");
+        for (int i = 0; i < names.length; i++) {
+            long[] result = run(files[i], order, numKeys, lookups, 3);
+            System.out.println(names[i] + "\t" + result[0] + "\t" + result[1] + "\t"
+                    + result[2] + "\t" + String.format("%.3f",
+                            (double) (result[1] + result[2]) / lookups));
+        }
+        for (String file : files) {
+            new File(file).delete();
+        }
+        new File(BUILT_FILE).delete();
+    }
+
+    private static String key(int i) {
+        return String.format("%09d", i);
+    }
+
+    /**
+     * Maps the file and looks random keys up.
+     *
+     * @return nanoseconds per lookup, minor faults and major faults
+     */
+    private static long[] run(String fileName, int order, int numKeys, int lookups,
+            long seed) throws IOException {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(
+                order, new BPlusTreeFile<String, Long>(order, new BattingBPlusConverter(),
+                        new File(fileName)));
+        Random random = new Random(seed);
+        long[] faults = faults();
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            int k = random.nextInt(numKeys);
+            if (tree.search(key(k)) == null) {
+                throw new IllegalStateException("lost key " + k + " in " + fileName);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long[] after = faults();
+        return new long[] { elapsed / lookups, after[0] - faults[0], after[1] - faults[1] };
+    }
+
+    /**
+     * @return the minor and major faults of the process so far, or zeros
+     *         where /proc is not available
+     */
+    private static long[] faults() {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc/self/stat")),
+                    Charset.forName("US-ASCII"));
+            // the fields after the command name, which may hold spaces, start at field 3
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return new long[] { Long.parseLong(fields[7]), Long.parseLong(fields[9]) };
+        } catch (IOException e) {
+            return new long[] { 0, 0 };
+        }
+    }
+}
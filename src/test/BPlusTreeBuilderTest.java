@@ -0,0 +1,119 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.BPlusTreeBuilder;
+import trees.KeyFilter;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class BPlusTreeBuilderTest
+{
+    private static final String HDFS_FILE = new File("BPlusTreeBuilderTest.hdfs.bin").getAbsolutePath();
+
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileSystem fs = FileSystem.get(conf);
+        fs.delete(new Path(HDFS_FILE), false);
+        fs.delete(new Path(HDFS_FILE + BPlusTreeBuilder.TEMP_SUFFIX), false);
+        fs.delete(KeyFilter.pathFor(HDFS_FILE), false);
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%06d", i);
+    }
+
+    private BPlusTree<String, Long, BattingBPlusRecord> open() throws IOException
+    {
+        return new BPlusTree<String, Long, BattingBPlusRecord>(7, new BattingBPlusConverter(), null, null,
+            HDFS_FILE, conf);
+    }
+
+    private void build(int keys, boolean filter) throws IOException
+    {
+        BPlusTreeBuilder<String, Long> builder = BPlusTreeBuilder.toHdfs(7, new BattingBPlusConverter(), HDFS_FILE,
+            conf);
+        if (filter)
+        {
+            builder.setKeyFilter(0.01, 0, keys);
+        }
+        for (int i = 0; i < keys; i++)
+        {
+            builder.add(key(2 * i), new Long(i));
+        }
+        builder.finish();
+    }
+
+    @Test
+    public void testBuildIntoHdfs() throws IOException
+    {
+        build(5000, true);
+        FileSystem fs = FileSystem.get(conf);
+        assertFalse(fs.exists(new Path(HDFS_FILE + BPlusTreeBuilder.TEMP_SUFFIX)));
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        assertEquals(5000, tree.getKeyCount());
+        assertNotNull(tree.getKeyFilter());
+        for (int i = 0; i < 5000; i++)
+        {
+            assertEquals(new Long(i), tree.search(key(2 * i)));
+            assertNull(tree.search(key(2 * i + 1)));
+        }
+        ArrayList<Long> expected = new ArrayList<Long>();
+        for (int i = 100; i <= 200; i++)
+        {
+            expected.add(new Long(i));
+        }
+        assertEquals(expected, tree.getRange(key(200), key(401)));
+    }
+
+    @Test
+    public void testEmptyTree() throws IOException
+    {
+        build(0, false);
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        assertEquals(0, tree.getKeyCount());
+        assertNull(tree.search(key(0)));
+        assertTrue(tree.getRange(key(0), key(10)).isEmpty());
+    }
+
+    @Test
+    public void testAbortLeavesOldTree() throws IOException
+    {
+        build(100, false);
+        BPlusTreeBuilder<String, Long> builder = BPlusTreeBuilder.toHdfs(7, new BattingBPlusConverter(), HDFS_FILE,
+            conf);
+        for (int i = 0; i < 1000; i++)
+        {
+            builder.add(key(i), new Long(-i));
+        }
+        builder.abort();
+        assertFalse(FileSystem.get(conf).exists(new Path(HDFS_FILE + BPlusTreeBuilder.TEMP_SUFFIX)));
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        assertEquals(100, tree.getKeyCount());
+        assertEquals(new Long(3), tree.search(key(6)));
+    }
+}
@@ -0,0 +1,308 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.BPlusTreeCursor;
+import trees.BPlusTreeFile;
+import trees.Superblock;
+import trees.TreeLayout;
+import util.BPlusConverter;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class BPlusTreeFileTest
+{
+    private static final String LOCAL_FILE = "BPlusTreeFileTest.bin";
+    private static final String SYNCED_FILE = "BPlusTreeFileTest.synced.bin";
+    private static final String EXPORTED_FILE = "BPlusTreeFileTest.exported.bin";
+
+    private Configuration conf;
+
+    @Before
+    public void setUp()
+    {
+        tearDown();
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+    }
+
+    @After
+    public void tearDown()
+    {
+        new File(LOCAL_FILE).delete();
+        new File(SYNCED_FILE).delete();
+        new File("." + SYNCED_FILE + ".crc").delete();
+        new File(EXPORTED_FILE).delete();
+    }
+
+    private BPlusTree<String, Long, BattingBPlusRecord> build(int numKeys) throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(5,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < numKeys; i++)
+        {
+            tree.insert(new BattingBPlusRecord("k" + i, new Long(i)));
+        }
+        return tree;
+    }
+
+    private BPlusTree<String, Long, BattingBPlusRecord> openSynced() throws IOException
+    {
+        return new BPlusTree<String, Long, BattingBPlusRecord>(5,
+            new BattingBPlusConverter(), null, LOCAL_FILE, new File(SYNCED_FILE).getAbsolutePath(), conf);
+    }
+
+    private void flipByte(String fileName, long position) throws IOException
+    {
+        // the local file system keeps its own checksums; only ours should catch this
+        new File("." + fileName + ".crc").delete();
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        file.seek(position);
+        int b = file.read();
+        file.seek(position);
+        file.write(b ^ 0x10);
+        file.close();
+    }
+
+    @Test
+    public void testSyncedTreeReadsBack() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = build(200);
+        tree.syncToHdfs(new File(SYNCED_FILE).getAbsolutePath(), conf);
+        for (int i = 0; i < 200; i++)
+        {
+            assertEquals(new Long(i), tree.search("k" + i));
+        }
+        BPlusTree<String, Long, BattingBPlusRecord> reopened = openSynced();
+        for (int i = 0; i < 200; i++)
+        {
+            assertEquals(new Long(i), reopened.search("k" + i));
+        }
+        assertEquals(200, reopened.getRange("k", "l").size());
+    }
+
+    @Test
+    public void testCorruptPageIsDetected() throws IOException
+    {
+        build(200).syncToHdfs(new File(SYNCED_FILE).getAbsolutePath(), conf);
+        long length = new File(SYNCED_FILE).length();
+        flipByte(SYNCED_FILE, length - 20);
+
+        BPlusTree<String, Long, BattingBPlusRecord> tree = openSynced();
+        try
+        {
+            tree.getRange("k", "l");
+            fail("corrupt page was decoded");
+        }
+        catch (ChecksumException e)
+        {
+            // expected
+        }
+        tree.setVerifyChecksums(false);
+        tree.getRange("k", "l");
+    }
+
+    @Test
+    public void testCorruptRootIsDetected() throws IOException
+    {
+        build(10).syncToHdfs(new File(SYNCED_FILE).getAbsolutePath(), conf);
+        flipByte(SYNCED_FILE, Superblock.regionLength(new BattingBPlusConverter().getKeyLength()) + 7);
+        try
+        {
+            openSynced();
+            fail("corrupt root was decoded");
+        }
+        catch (ChecksumException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSuperblockDescribesTree() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = build(200);
+        tree.remove(new BattingBPlusRecord("k0", new Long(0)));
+        tree.remove(new BattingBPlusRecord("k99", new Long(99)));
+        tree.remove(new BattingBPlusRecord("missing", new Long(0)));
+        tree.syncToHdfs(new File(SYNCED_FILE).getAbsolutePath(), conf);
+
+        BPlusTree<String, Long, BattingBPlusRecord> reopened = openSynced();
+        assertEquals(198, reopened.getKeyCount());
+        assertEquals("k1", reopened.getMinKey());
+        assertEquals("k98", reopened.getMaxKey());
+        assertEquals(tree.getHeight(), reopened.getHeight());
+        assertTrue(reopened.getHeight() > 1);
+    }
+
+    @Test
+    public void testTornSuperblockFallsBackToPreviousOne() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = build(20);
+        // every insert writes the next generation, so the newest went to this slot
+        int slot = (int) (tree.getKeyCount() & 1);
+        int slotLength = Superblock.slotLength(new BattingBPlusConverter().getKeyLength());
+        flipByte(LOCAL_FILE, slot * slotLength + 40);
+
+        BPlusTree<String, Long, BattingBPlusRecord> reopened = new BPlusTree<String, Long, BattingBPlusRecord>(5,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        assertEquals(19, reopened.getKeyCount());
+    }
+
+    @Test
+    public void testMismatchedConverterFailsFast() throws IOException
+    {
+        build(20).flush();
+        try
+        {
+            new BPlusTreeFile<String, String>(5, new BPlusConverter(), LOCAL_FILE, null, null);
+            fail("opened a file written with another converter");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains(BattingBPlusConverter.class.getName()));
+        }
+    }
+
+    /**
+     * Checks that the synced file holds the internal nodes before the leaves,
+     * that no page crosses a block boundary, and that the tree reads back.
+     */
+    private void checkLevelOrdered(int numKeys, long blockSize) throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = build(numKeys);
+        tree.setLevelOrderedSync(true);
+        tree.syncToHdfs(new File(SYNCED_FILE).getAbsolutePath(), conf);
+
+        BPlusTreeFile<String, Long> synced = new BPlusTreeFile<String, Long>(5, new BattingBPlusConverter(), null,
+            new File(SYNCED_FILE).getAbsolutePath(), conf);
+        int pageLength = synced.getNodeLength();
+        int headerLength = Superblock.regionLength(new BattingBPlusConverter().getKeyLength());
+        RandomAccessFile file = new RandomAccessFile(SYNCED_FILE, "r");
+        byte[] page = new byte[pageLength];
+        boolean sawLeaf = false;
+        int internalNodes = 0;
+        int leaves = 0;
+        for (long position = headerLength; position < file.length(); position += pageLength)
+        {
+            file.seek(position);
+            file.readFully(page);
+            boolean empty = true;
+            for (byte b : page)
+            {
+                empty &= b == 0;
+            }
+            if (empty)
+            {
+                continue;
+            }
+            if (blockSize > 0)
+            {
+                assertEquals(position / blockSize, (position + pageLength - 1) / blockSize);
+            }
+            if (page[0] == 0)
+            {
+                sawLeaf = true;
+                leaves++;
+            }
+            else
+            {
+                assertFalse("internal node after a leaf", sawLeaf);
+                internalNodes++;
+            }
+        }
+        file.close();
+        assertTrue(internalNodes > 1);
+        assertTrue(leaves > internalNodes);
+
+        TreeMap<String, Long> reference = new TreeMap<String, Long>();
+        for (int i = 0; i < numKeys; i++)
+        {
+            reference.put("k" + i, new Long(i));
+        }
+        BPlusTree<String, Long, BattingBPlusRecord> reopened = openSynced();
+        for (BPlusTree<String, Long, BattingBPlusRecord> t : new BPlusTree[] { tree, reopened })
+        {
+            for (int i = 0; i < numKeys; i++)
+            {
+                assertEquals(new Long(i), t.search("k" + i));
+            }
+            assertNull(t.search("missing"));
+            assertEquals(new ArrayList<Long>(reference.values()), t.getRange("k", "l"));
+            assertEquals(new ArrayList<Long>(reference.subMap("k3", true, "k7", true).values()),
+                t.getRange("k3", "k7"));
+        }
+        assertEquals(tree.getHeight(), reopened.getHeight());
+        assertEquals(numKeys, reopened.getKeyCount());
+    }
+
+    @Test
+    public void testLevelOrderedSync() throws IOException
+    {
+        checkLevelOrdered(1000, 0);
+    }
+
+    @Test
+    public void testLevelOrderedSyncKeepsPagesInsideBlocks() throws IOException
+    {
+        // a fresh file system, so that it sees the tiny block size
+        conf.setBoolean("fs.file.impl.disable.cache", true);
+        conf.setLong("fs.local.block.size", 1000);
+        checkLevelOrdered(1000, 1000);
+    }
+
+    @Test
+    public void testExportedLayoutsReadBackMapped() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = build(1500);
+        tree.remove(new BattingBPlusRecord("k7", new Long(7)));
+        TreeMap<String, Long> reference = new TreeMap<String, Long>();
+        for (int i = 0; i < 1500; i++)
+        {
+            reference.put("k" + i, new Long(i));
+        }
+        reference.remove("k7");
+        for (TreeLayout layout : TreeLayout.values())
+        {
+            tree.export(EXPORTED_FILE, layout);
+            BPlusTree<String, Long, BattingBPlusRecord> exported = new BPlusTree<String, Long, BattingBPlusRecord>(5,
+                new BPlusTreeFile<String, Long>(5, new BattingBPlusConverter(), new File(EXPORTED_FILE)));
+            assertEquals(tree.getHeight(), exported.getHeight());
+            assertEquals(1499, exported.getKeyCount());
+            for (int i = 0; i < 1500; i++)
+            {
+                assertEquals(reference.get("k" + i), exported.search("k" + i));
+            }
+            assertEquals(new ArrayList<Long>(reference.values()), exported.getRange("k", "l"));
+            assertEquals(new ArrayList<Long>(reference.subMap("k5", true, "k6", true).values()),
+                exported.getRange("k5", "k6"));
+            assertEquals(reference.size(), countWithCursor(exported));
+        }
+        // the source tree is untouched
+        assertEquals(new Long(1499), tree.search("k1499"));
+    }
+
+    private static int countWithCursor(BPlusTree<String, Long, BattingBPlusRecord> tree) throws IOException
+    {
+        int count = 0;
+        BPlusTreeCursor<String, Long> cursor = tree.cursor(null);
+        while (cursor.next())
+        {
+            count++;
+        }
+        return count;
+    }
+}
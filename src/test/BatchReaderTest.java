@@ -0,0 +1,161 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import util.BatchReader;
+import util.RecordBatch;
+
+public class BatchReaderTest
+{
+    private static byte[] rows(int records, boolean ended) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BatchReader.MAGIC);
+        out.writeInt(BatchReader.ROWS);
+        for (int i = 0; i < records; i++)
+        {
+            //a key of "0" is a key like any other
+            byte[] key = ("" + i % 1000).getBytes("UTF-8");
+            byte[] value = ("file" + i + "\t[" + i + "]").getBytes("UTF-8");
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        if (ended)
+        {
+            out.writeInt(BatchReader.END_OF_ROWS);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<String> readAll(BatchReader reader, IdentityHashMap<RecordBatch, Boolean> batches)
+        throws IOException
+    {
+        List<String> records = new ArrayList<String>();
+        while (true)
+        {
+            RecordBatch batch = reader.take();
+            batches.put(batch, true);
+            for (int i = 0; i < batch.size(); i++)
+            {
+                records.add(batch.getKey(i) + "=" + batch.getValue(i));
+            }
+            boolean last = batch.isLast();
+            reader.release(batch);
+            if (last)
+            {
+                return records;
+            }
+        }
+    }
+
+    @Test
+    public void testRowsAreReadIntoReusedBatches() throws IOException
+    {
+        BatchReader reader = new BatchReader(new ByteArrayInputStream(rows(10000, true)), 100, 2);
+        IdentityHashMap<RecordBatch, Boolean> batches = new IdentityHashMap<RecordBatch, Boolean>();
+        List<String> records = readAll(reader, batches);
+        reader.close();
+        assertEquals(10000, records.size());
+        assertEquals("0=file0\t[0]", records.get(0));
+        assertEquals("999=file9999\t[9999]", records.get(9999));
+        //the queued batches, the one being filled and the one being consumed
+        assertTrue(batches.size() <= 4);
+    }
+
+    @Test
+    public void testColumnarBatches() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BatchReader.MAGIC);
+        out.writeInt(BatchReader.COLUMNS);
+        for (int batch = 0; batch < 3; batch++)
+        {
+            String[] keys = { "a" + batch, "bb" + batch, "ccc" + batch };
+            String[] values = { "x", "", "zzz" + batch };
+            out.writeInt(keys.length);
+            for (String key : keys)
+            {
+                out.writeInt(key.length());
+            }
+            for (String value : values)
+            {
+                out.writeInt(value.length());
+            }
+            for (String key : keys)
+            {
+                out.writeBytes(key);
+            }
+            for (String value : values)
+            {
+                out.writeBytes(value);
+            }
+        }
+        out.writeInt(0);
+
+        BatchReader reader = new BatchReader(new ByteArrayInputStream(bytes.toByteArray()), 100, 2);
+        List<String> records = readAll(reader, new IdentityHashMap<RecordBatch, Boolean>());
+        reader.close();
+        assertEquals(9, records.size());
+        assertEquals("a0=x", records.get(0));
+        assertEquals("bb1=", records.get(4));
+        assertEquals("ccc2=zzz2", records.get(8));
+    }
+
+    @Test
+    public void testNegativeLengthsFail() throws IOException
+    {
+        for (int[] lengths : new int[][] { { -2 }, { 2, -1, 3, 1 } })
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(BatchReader.MAGIC);
+            out.writeInt(BatchReader.COLUMNS);
+            //a record count, then the lengths of the keys and the values
+            for (int length : lengths)
+            {
+                out.writeInt(length);
+            }
+            out.write(new byte[16]);
+            out.writeInt(0);
+            BatchReader reader = new BatchReader(new ByteArrayInputStream(bytes.toByteArray()), 100, 2);
+            try
+            {
+                readAll(reader, new IdentityHashMap<RecordBatch, Boolean>());
+                fail("a negative length is corrupt");
+            }
+            catch (IOException expected)
+            {
+            }
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedStreamFails() throws IOException
+    {
+        BatchReader reader = new BatchReader(new ByteArrayInputStream(rows(500, false)), 100, 2);
+        try
+        {
+            readAll(reader, new IdentityHashMap<RecordBatch, Boolean>());
+            fail("a stream without its end is incomplete");
+        }
+        catch (IOException expected)
+        {
+        }
+        reader.close();
+    }
+}
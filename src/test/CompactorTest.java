@@ -0,0 +1,241 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.Compactor;
+import trees.DeltaBPlusTree;
+import trees.DeltaFile;
+import trees.RecordCursor;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class CompactorTest
+{
+    private static final String LOCAL_FILE = "CompactorTest.bin";
+    private static final String BASE_FILE = new File("CompactorTest.base.bin").getAbsolutePath();
+
+    private Configuration conf;
+    private TreeMap<String, Long> reference;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+        reference = new TreeMap<String, Long>();
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(5,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < 500; i += 2)
+        {
+            tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+            reference.put(key(i), new Long(i));
+        }
+        tree.syncToHdfs(BASE_FILE, conf);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        new File(LOCAL_FILE).delete();
+        FileSystem fs = FileSystem.get(conf);
+        fs.delete(new Path(BASE_FILE), false);
+        for (FileStatus status : fs.globStatus(new Path(BASE_FILE + Compactor.BASE_SUFFIX + "*")))
+        {
+            fs.delete(status.getPath(), false);
+        }
+        for (Path path : DeltaFile.list(fs, BASE_FILE))
+        {
+            fs.delete(path, false);
+        }
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%05d", i);
+    }
+
+    private DeltaBPlusTree<String, Long, BattingBPlusRecord> open() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> base = new BPlusTree<String, Long, BattingBPlusRecord>(5,
+            new BattingBPlusConverter(), null, LOCAL_FILE,
+            Compactor.currentBaseFileName(FileSystem.get(conf), BASE_FILE), conf);
+        return new DeltaBPlusTree<String, Long, BattingBPlusRecord>(base, new BattingBPlusConverter(), BASE_FILE,
+            conf);
+    }
+
+    private void update(DeltaBPlusTree<String, Long, BattingBPlusRecord> tree, Random random, int ops)
+        throws IOException
+    {
+        for (int op = 0; op < ops; op++)
+        {
+            int i = random.nextInt(700);
+            if (random.nextInt(3) == 0)
+            {
+                tree.remove(new BattingBPlusRecord(key(i), new Long(0)));
+                reference.remove(key(i));
+            }
+            else
+            {
+                tree.insert(new BattingBPlusRecord(key(i), new Long(op)));
+                reference.put(key(i), new Long(op));
+            }
+        }
+    }
+
+    private void check(DeltaBPlusTree<String, Long, BattingBPlusRecord> tree) throws IOException
+    {
+        for (int i = 0; i < 700; i++)
+        {
+            assertEquals(reference.get(key(i)), tree.search(key(i)));
+        }
+        assertEquals(new ArrayList<Long>(reference.values()), tree.getRange(key(0), key(99999)));
+        assertEquals(new ArrayList<Long>(reference.subMap(key(123), true, key(456), true).values()),
+            tree.getRange(key(123), key(456)));
+    }
+
+    @Test
+    public void testCompactionFoldsRunsIntoBase() throws IOException
+    {
+        DeltaBPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.setMemtableSize(41);
+        update(tree, new Random(5), 800);
+        tree.flush();
+        assertTrue(tree.getDeltaFiles().size() > 1);
+        FileSystem fs = FileSystem.get(conf);
+        ArrayList<Path> runs = new ArrayList<Path>(DeltaFile.list(fs, BASE_FILE));
+
+        Compactor<String, Long, BattingBPlusRecord> compactor = new Compactor<String, Long, BattingBPlusRecord>(
+            tree, 5, 0);
+        assertTrue(compactor.compact());
+        assertTrue(tree.getDeltaFiles().isEmpty());
+        assertEquals(reference.size(), compactor.getRecordsWritten());
+        assertEquals(compactor.getEstimatedRecords(), compactor.getRecordsRead());
+        assertEquals(1f, compactor.getProgress(), 0f);
+        assertFalse(compactor.isRunning());
+        for (Path run : runs)
+        {
+            assertTrue(fs.exists(run));
+        }
+        compactor.deleteRetired();
+        for (Path run : runs)
+        {
+            assertFalse(fs.exists(run));
+        }
+        assertEquals(reference.size(), tree.getBase().getKeyCount());
+        assertEquals(runs.size(), tree.getBase().getDeltaSequence());
+        check(tree);
+        assertFalse(compactor.compact());
+
+        //updates go on over the new base, and a second compaction folds them in too
+        update(tree, new Random(6), 300);
+        check(tree);
+        tree.flush();
+        assertTrue(compactor.compact());
+        check(tree);
+        tree.close();
+        check(open());
+    }
+
+    @Test
+    public void testOldLayersAreReadableUntilRetired() throws IOException
+    {
+        DeltaBPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        update(tree, new Random(8), 300);
+        tree.flush();
+        ArrayList<Long> expected = new ArrayList<Long>(reference.values());
+        BPlusTree<String, Long, BattingBPlusRecord> oldBase = tree.getBase();
+        RecordCursor<String, Long> cursor = tree.cursor(null, true);
+        ArrayList<Long> values = new ArrayList<Long>();
+        for (int i = 0; i < expected.size() / 2 && cursor.next(); i++)
+        {
+            values.add(cursor.getValue());
+        }
+
+        Compactor<String, Long, BattingBPlusRecord> compactor = new Compactor<String, Long, BattingBPlusRecord>(
+            tree, 5, 0);
+        assertTrue(compactor.compact());
+        //a scan started before the switch reads on through the old base and runs
+        while (cursor.next())
+        {
+            values.add(cursor.getValue());
+        }
+        assertEquals(expected, values);
+        assertEquals(new Long(498), oldBase.search(key(498)));
+        FileSystem fs = FileSystem.get(conf);
+        assertTrue(fs.exists(new Path(BASE_FILE)));
+        String newBase = Compactor.currentBaseFileName(fs, BASE_FILE);
+        assertEquals(Compactor.basePathFor(BASE_FILE, 1).getName(), new Path(newBase).getName());
+
+        compactor.deleteRetired();
+        assertFalse(fs.exists(new Path(BASE_FILE)));
+        check(tree);
+        tree.close();
+        check(open());
+    }
+
+    @Test
+    public void testRunsLeftBehindAreIgnored() throws IOException
+    {
+        DeltaBPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.remove(new BattingBPlusRecord(key(10), new Long(0)));
+        reference.remove(key(10));
+        tree.flush();
+        FileSystem fs = FileSystem.get(conf);
+        Path run = tree.getDeltaFiles().get(0).getPath();
+        Path copy = new Path(run.toString() + ".copy");
+        FileUtil.copy(fs, run, fs, copy, false, conf);
+
+        new Compactor<String, Long, BattingBPlusRecord>(tree, 5, 0).compact();
+        //as if the compactor died before deleting the run it folded in
+        fs.rename(copy, run);
+        tree.insert(new BattingBPlusRecord(key(10), new Long(10)));
+        reference.put(key(10), new Long(10));
+        tree.close();
+
+        DeltaBPlusTree<String, Long, BattingBPlusRecord> reopened = open();
+        assertEquals(1, reopened.getDeltaFiles().size());
+        assertEquals(2, reopened.getDeltaFiles().get(0).getSequence());
+        check(reopened);
+    }
+
+    @Test
+    public void testBackgroundCompactionWithReaders() throws Exception
+    {
+        final DeltaBPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.setMemtableSize(50);
+        update(tree, new Random(7), 500);
+        tree.flush();
+        Compactor<String, Long, BattingBPlusRecord> compactor = new Compactor<String, Long, BattingBPlusRecord>(
+            tree, 5, 16 * 1024);
+        Thread thread = new Thread(compactor);
+        thread.start();
+        //lookups go on while the first half is merged
+        while (thread.isAlive() && (compactor.getEstimatedRecords() == 0
+            || compactor.getRecordsRead() < compactor.getEstimatedRecords() / 2))
+        {
+            check(tree);
+        }
+        thread.join();
+        assertNull(compactor.getFailure());
+        assertTrue(compactor.getElapsedMillis() > 0);
+        assertTrue(tree.getDeltaFiles().isEmpty());
+        check(tree);
+    }
+}
@@ -0,0 +1,123 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import util.BPlusRecord;
+import util.CompositeKey;
+import util.CompositeKeyConverter;
+import util.OrderedKeyConverter;
+
+public class CompositeKeyTest
+{
+    private static final String LOCAL_FILE = "CompositeKeyTest.bin";
+
+    private static class CompositeRecord extends BPlusRecord<CompositeKey, Long>
+    {
+        public CompositeRecord(CompositeKey key, Long value)
+        {
+            super(key, value);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        new File(LOCAL_FILE).delete();
+    }
+
+    @Test
+    public void testBytesSortLikeKeys()
+    {
+        CompositeKeyConverter converter = new CompositeKeyConverter(40, String.class, Integer.class, Double.class);
+        CompositeKey[] keys = {
+            CompositeKey.of(""),
+            CompositeKey.of("", Integer.MIN_VALUE),
+            CompositeKey.of("a"),
+            CompositeKey.of("a", -1),
+            CompositeKey.of("a", -1, -0.5),
+            CompositeKey.of("a", -1, 0.0),
+            CompositeKey.of("a", 0),
+            CompositeKey.of("a", 7, 2.5),
+            CompositeKey.of("a\u0000"),
+            CompositeKey.of("a\u0000", 3),
+            CompositeKey.of("a\u0000b"),
+            CompositeKey.of("a\u0001"),
+            CompositeKey.of("aaronha01", 1954),
+            CompositeKey.of("aaronha01", 1955),
+            CompositeKey.of("ab"),
+            CompositeKey.of("\uffff"),
+            CompositeKey.of("\ud83d\ude00"),
+        };
+        for (int i = 0; i < keys.length; i++)
+        {
+            byte[] bytes = converter.keyToBytes(keys[i]);
+            assertEquals(40, bytes.length);
+            assertEquals(keys[i], converter.bytesToKey(bytes));
+            for (int j = 0; j < keys.length; j++)
+            {
+                int expected = Integer.signum(Integer.valueOf(i).compareTo(j));
+                assertEquals(keys[i] + " against " + keys[j], expected, Integer.signum(keys[i].compareTo(keys[j])));
+                assertEquals(keys[i] + " against " + keys[j], expected,
+                    Integer.signum(OrderedKeyConverter.compareBytes(bytes, converter.keyToBytes(keys[j]))));
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidKeysAreRejected()
+    {
+        CompositeKeyConverter converter = new CompositeKeyConverter(12, String.class, Integer.class);
+        CompositeKey[] invalid = {
+            CompositeKey.of("a", 1, 2),
+            CompositeKey.of(1),
+            CompositeKey.of("a very long player id", 1),
+        };
+        for (CompositeKey key : invalid)
+        {
+            try
+            {
+                converter.keyToBytes(key);
+                fail(key + " should not convert");
+            }
+            catch (IllegalArgumentException expected)
+            {
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixRangeScansTheLeadingColumn() throws IOException
+    {
+        BPlusTree<CompositeKey, Long, CompositeRecord> tree = new BPlusTree<CompositeKey, Long, CompositeRecord>(7,
+            new CompositeKeyConverter(24, String.class, Integer.class), null, LOCAL_FILE, null, null);
+        List<String> players = Arrays.asList("aaronha01", "aaronto01", "abbotji01", "ruthba01", "ruthba01x");
+        long offset = 0;
+        for (int year = 1950; year < 1975; year++)
+        {
+            for (String player : players)
+            {
+                tree.insert(new CompositeRecord(CompositeKey.of(player, year), offset++));
+            }
+        }
+
+        List<Long> expected = new ArrayList<Long>();
+        for (int year = 1950; year < 1975; year++)
+        {
+            expected.add((year - 1950) * 5L + 3);
+        }
+        assertEquals(expected, tree.getPrefixRange(CompositeKey.of("ruthba01")));
+        assertTrue(tree.getPrefixRange(CompositeKey.of("ruth")).isEmpty());
+        assertEquals(Arrays.asList(3L + 5 * 10), tree.getPrefixRange(CompositeKey.of("ruthba01", 1960)));
+        assertEquals(125, tree.getPrefixRange(CompositeKey.of()).size());
+    }
+}
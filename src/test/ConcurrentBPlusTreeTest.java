@@ -0,0 +1,144 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.ConcurrentBPlusTree;
+import util.BattingBPlusRecord;
+
+public class ConcurrentBPlusTreeTest
+{
+    ConcurrentBPlusTree<String, Long, BattingBPlusRecord> tree;
+
+    @Before
+    public void setUp()
+    {
+        tree = new ConcurrentBPlusTree<String, Long, BattingBPlusRecord>(4);
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%05d", i);
+    }
+
+    @Test
+    public void testInsertAndSearch()
+    {
+        for (int i = 999; i >= 0; i--)
+        {
+            tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+        }
+        assertEquals(1000, tree.size());
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals(new Long(i), tree.search(key(i)));
+        }
+        assertNull(tree.search("a"));
+        assertNull(tree.search("z"));
+        tree.insert(new BattingBPlusRecord(key(5), new Long(-5)));
+        assertEquals(new Long(-5), tree.search(key(5)));
+        assertEquals(1000, tree.size());
+    }
+
+    @Test
+    public void testRangeAndRemove()
+    {
+        for (int i = 0; i < 200; i++)
+        {
+            tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+        }
+        for (int i = 0; i < 200; i += 2)
+        {
+            tree.remove(new BattingBPlusRecord(key(i), null));
+        }
+        List<Long> range = tree.getRange(key(10), key(20));
+        assertEquals(5, range.size());
+        for (int i = 0; i < range.size(); i++)
+        {
+            assertEquals(new Long(11 + 2 * i), range.get(i));
+        }
+        assertNull(tree.search(key(10)));
+        assertEquals(100, tree.size());
+    }
+
+    @Test
+    public void testConcurrentWritersAndReaders() throws InterruptedException
+    {
+        final int perThread = 5000;
+        final int writers = 4;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[writers * 2];
+        for (int t = 0; t < writers; t++)
+        {
+            final int base = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < perThread; i++)
+                        {
+                            int k = i * writers + base;
+                            tree.insert(new BattingBPlusRecord(key(k), new Long(k)));
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[writers + t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < perThread; i++)
+                        {
+                            int k = i * writers + base;
+                            Long found = tree.search(key(k));
+                            if (found != null && found.longValue() != k)
+                            {
+                                throw new AssertionError("wrong value for " + k);
+                            }
+                            List<Long> range = tree.getRange(key(k), key(k + 50));
+                            for (int j = 1; j < range.size(); j++)
+                            {
+                                if (range.get(j - 1) >= range.get(j))
+                                {
+                                    throw new AssertionError("range out of order at " + k);
+                                }
+                            }
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(perThread * writers, tree.size());
+        for (int k = 0; k < perThread * writers; k++)
+        {
+            assertEquals(new Long(k), tree.search(key(k)));
+        }
+        assertEquals(perThread * writers, tree.getRange(key(0), key(perThread * writers)).size());
+    }
+}
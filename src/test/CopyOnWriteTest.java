@@ -0,0 +1,164 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.BPlusTreeSnapshot;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class CopyOnWriteTest
+{
+    private static final String FILE_NAME = "CopyOnWriteTest.bin";
+
+    @Before
+    public void setUp()
+    {
+        tearDown();
+    }
+
+    @After
+    public void tearDown()
+    {
+        new File(FILE_NAME).delete();
+    }
+
+    private BPlusTree<String, Long, BattingBPlusRecord> open() throws IOException
+    {
+        return new BPlusTree<String, Long, BattingBPlusRecord>(5,
+            new BattingBPlusConverter(), null, FILE_NAME, null, null);
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%05d", i);
+    }
+
+    @Test
+    public void testSnapshotIsUnaffectedByLaterUpdates() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.enableCopyOnWrite(1);
+        for (int i = 0; i < 300; i++)
+        {
+            tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+        }
+        BPlusTreeSnapshot<String, Long> before = tree.snapshot();
+        for (int i = 0; i < 300; i += 2)
+        {
+            tree.remove(new BattingBPlusRecord(key(i), new Long(i)));
+        }
+        for (int i = 300; i < 400; i++)
+        {
+            tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+        }
+
+        assertEquals(300, before.getKeyCount());
+        assertEquals(300, before.getRange(key(0), key(999)).size());
+        assertEquals(new Long(0), before.search(key(0)));
+        assertNull(before.search(key(350)));
+
+        BPlusTreeSnapshot<String, Long> after = tree.snapshot();
+        assertTrue(after.getGeneration() > before.getGeneration());
+        assertEquals(250, after.getKeyCount());
+        assertEquals(250, after.getRange(key(0), key(999)).size());
+        assertNull(after.search(key(0)));
+        assertEquals(new Long(351), after.search(key(351)));
+        assertEquals(key(1), after.getMinKey());
+    }
+
+    @Test
+    public void testMatchesReferenceAndReopens() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.enableCopyOnWrite(16);
+        TreeMap<String, Long> reference = new TreeMap<String, Long>();
+        Random random = new Random(7);
+        for (int op = 0; op < 3000; op++)
+        {
+            int i = random.nextInt(500);
+            if (random.nextInt(3) == 0)
+            {
+                if (reference.remove(key(i)) != null)
+                {
+                    tree.remove(new BattingBPlusRecord(key(i), new Long(i)));
+                }
+            }
+            else if (!reference.containsKey(key(i)))
+            {
+                reference.put(key(i), new Long(i));
+                tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+            }
+        }
+        assertEquals(new ArrayList<Long>(reference.subMap(key(100), true, key(200), true).values()),
+            tree.getRange(key(100), key(200)));
+        tree.publish();
+
+        BPlusTree<String, Long, BattingBPlusRecord> reopened = open();
+        assertTrue(reopened.isCopyOnWrite());
+        assertEquals(reference.size(), reopened.getKeyCount());
+        assertEquals(new ArrayList<Long>(reference.values()), reopened.getRange(key(0), key(999)));
+        assertEquals(reference.firstKey(), reopened.getMinKey());
+        assertEquals(reference.lastKey(), reopened.getMaxKey());
+    }
+
+    @Test
+    public void testReadersDoNotSeePartialUpdates() throws Exception
+    {
+        final BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.enableCopyOnWrite(4);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread reader = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (!done.get())
+                    {
+                        BPlusTreeSnapshot<String, Long> snapshot = tree.snapshot();
+                        List<Long> records = snapshot.getRange(key(0), key(99999));
+                        assertEquals(snapshot.getKeyCount(), records.size());
+                        List<Long> sorted = new ArrayList<Long>(records);
+                        Collections.sort(sorted);
+                        assertEquals(sorted, records);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    failure.set(t);
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 2000; i++)
+        {
+            tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+            if (i % 3 == 0)
+            {
+                tree.remove(new BattingBPlusRecord(key(i / 2), new Long(i / 2)));
+            }
+        }
+        done.set(true);
+        reader.join();
+        if (failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
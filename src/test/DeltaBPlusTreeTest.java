@@ -0,0 +1,202 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.DeltaBPlusTree;
+import trees.DeltaFile;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class DeltaBPlusTreeTest
+{
+    private static final String LOCAL_FILE = "DeltaBPlusTreeTest.bin";
+    private static final String BASE_FILE = new File("DeltaBPlusTreeTest.base.bin").getAbsolutePath();
+
+    private Configuration conf;
+    private TreeMap<String, Long> reference;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+        reference = new TreeMap<String, Long>();
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(5,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < 300; i += 2)
+        {
+            tree.insert(new BattingBPlusRecord(key(i), new Long(i)));
+            reference.put(key(i), new Long(i));
+        }
+        tree.syncToHdfs(BASE_FILE, conf);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        new File(LOCAL_FILE).delete();
+        FileSystem fs = FileSystem.get(conf);
+        fs.delete(new Path(BASE_FILE), false);
+        for (Path path : DeltaFile.list(fs, BASE_FILE))
+        {
+            fs.delete(path, false);
+        }
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%05d", i);
+    }
+
+    private DeltaBPlusTree<String, Long, BattingBPlusRecord> open() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> base = new BPlusTree<String, Long, BattingBPlusRecord>(5,
+            new BattingBPlusConverter(), null, LOCAL_FILE, BASE_FILE, conf);
+        return new DeltaBPlusTree<String, Long, BattingBPlusRecord>(base, new BattingBPlusConverter(), BASE_FILE,
+            conf);
+    }
+
+    private void check(DeltaBPlusTree<String, Long, BattingBPlusRecord> tree) throws IOException
+    {
+        for (int i = 0; i < 400; i++)
+        {
+            assertEquals(reference.get(key(i)), tree.search(key(i)));
+        }
+        assertEquals(new ArrayList<Long>(reference.values()), tree.getRange(key(0), key(99999)));
+        assertEquals(new ArrayList<Long>(reference.subMap(key(57), true, key(211), true).values()),
+            tree.getRange(key(57), key(211)));
+    }
+
+    @Test
+    public void testUpdatesAreMergedWithBase() throws IOException
+    {
+        DeltaBPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.setMemtableSize(37);
+        Random random = new Random(11);
+        for (int op = 0; op < 600; op++)
+        {
+            int i = random.nextInt(400);
+            if (random.nextInt(3) == 0)
+            {
+                tree.remove(new BattingBPlusRecord(key(i), new Long(0)));
+                reference.remove(key(i));
+            }
+            else
+            {
+                tree.insert(new BattingBPlusRecord(key(i), new Long(op)));
+                reference.put(key(i), new Long(op));
+            }
+            //a full memtable is flushed at once
+            assertTrue(tree.getMemtableCount() < 37);
+            if (op % 100 == 0)
+            {
+                check(tree);
+            }
+        }
+        assertTrue(tree.getDeltaFiles().size() > 1);
+        assertTrue(tree.getMemtableCount() > 0);
+        check(tree);
+        tree.flush();
+        //a key updated again in the memtable is counted once
+        tree.insert(new BattingBPlusRecord(key(1000), new Long(1)));
+        tree.remove(new BattingBPlusRecord(key(1000), new Long(0)));
+        assertEquals(1, tree.getMemtableCount());
+        check(tree);
+        tree.close();
+
+        DeltaBPlusTree<String, Long, BattingBPlusRecord> reopened = open();
+        assertEquals(0, reopened.getMemtableCount());
+        check(reopened);
+    }
+
+    @Test
+    public void testBaseIsUntouched() throws IOException
+    {
+        DeltaBPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.remove(new BattingBPlusRecord(key(10), new Long(0)));
+        tree.insert(new BattingBPlusRecord(key(11), new Long(11)));
+        tree.flush();
+        assertNull(tree.search(key(10)));
+        assertEquals(new Long(11), tree.search(key(11)));
+        assertEquals(new Long(10), tree.getBase().search(key(10)));
+        assertNull(tree.getBase().search(key(11)));
+    }
+
+    @Test
+    public void testSearchesDuringFlushes() throws Exception
+    {
+        final DeltaBPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.setMemtableSize(10);
+        final int records = 600;
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; t++)
+        {
+            final Random random = new Random(t);
+            readers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        while (written.get() < records && failure.get() == null)
+                        {
+                            int count = written.get();
+                            if (count == 0)
+                            {
+                                continue;
+                            }
+                            //every key written so far is found, whichever flush is under way
+                            int i = 1000 + random.nextInt(count);
+                            Long found = tree.search(key(i));
+                            if (found == null || found.longValue() != i)
+                            {
+                                throw new AssertionError("lost " + key(i) + ", found " + found);
+                            }
+                            List<Long> range = tree.getRange(key(i), key(i));
+                            if (range.size() != 1 || range.get(0).longValue() != i)
+                            {
+                                throw new AssertionError("lost " + key(i) + " in range, found " + range);
+                            }
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (int i = 0; i < records; i++)
+        {
+            tree.insert(new BattingBPlusRecord(key(1000 + i), new Long(1000 + i)));
+            written.incrementAndGet();
+        }
+        for (Thread reader : readers)
+        {
+            reader.join();
+        }
+        assertNull(failure.get());
+        tree.close();
+    }
+}
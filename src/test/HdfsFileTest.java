@@ -0,0 +1,169 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.HdfsFile;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class HdfsFileTest
+{
+    private static final String LOCAL_FILE = "HdfsFileTest.bin";
+    private static final String HDFS_FILE = new File("HdfsFileTest.hdfs.bin").getAbsolutePath();
+    private static final String TREE_FILE = new File("HdfsFileTest.tree.bin").getAbsolutePath();
+    private static final int FILE_LENGTH = 1 << 20;
+
+    private Configuration conf;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+        contents = new byte[FILE_LENGTH];
+        new Random(3).nextBytes(contents);
+        FSDataOutputStream out = FileSystem.get(conf).create(new Path(HDFS_FILE), true);
+        out.write(contents);
+        out.close();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        new File(LOCAL_FILE).delete();
+        FileSystem.get(conf).delete(new Path(HDFS_FILE), false);
+        FileSystem.get(conf).delete(new Path(TREE_FILE), false);
+        FileSystem.get(conf).delete(new Path(HDFS_FILE + ".tmp"), false);
+    }
+
+    private HdfsFile.Range range(long position, int length)
+    {
+        return new HdfsFile.Range(position, new byte[length + 2], 1, length);
+    }
+
+    private void check(ArrayList<HdfsFile.Range> ranges)
+    {
+        for (HdfsFile.Range range : ranges)
+        {
+            int position = (int) range.getPosition();
+            assertArrayEquals(Arrays.copyOfRange(contents, position, position + range.getLength()),
+                Arrays.copyOfRange(range.getBuffer(), 1, 1 + range.getLength()));
+            assertEquals(0, range.getBuffer()[0]);
+            assertEquals(0, range.getBuffer()[range.getLength() + 1]);
+        }
+    }
+
+    private long readVectored(HdfsFile file, ArrayList<HdfsFile.Range> ranges) throws IOException
+    {
+        long before = file.getReadCount();
+        file.readVectored(ranges);
+        check(ranges);
+        return file.getReadCount() - before;
+    }
+
+    @Test
+    public void testReplaceOverwritesTheTarget() throws IOException
+    {
+        FileSystem fs = FileSystem.get(conf);
+        Path temp = new Path(HDFS_FILE + ".tmp");
+        FSDataOutputStream out = fs.create(temp, true);
+        out.write(contents, 0, 100);
+        out.close();
+        HdfsFile.replace(fs, temp, new Path(HDFS_FILE));
+        assertFalse(fs.exists(temp));
+        assertEquals(100, fs.getFileStatus(new Path(HDFS_FILE)).getLen());
+        //the checksums moved with the file, so it still reads back
+        byte[] read = new byte[100];
+        FSDataInputStream in = fs.open(new Path(HDFS_FILE));
+        in.readFully(0, read);
+        in.close();
+        assertArrayEquals(Arrays.copyOf(contents, 100), read);
+    }
+
+    @Test
+    public void testCloseRangesAreMerged() throws IOException
+    {
+        HdfsFile file = new HdfsFile(HDFS_FILE, conf);
+        file.open();
+        ArrayList<HdfsFile.Range> ranges = new ArrayList<HdfsFile.Range>();
+        //out of order, adjacent, overlapping and a little apart
+        ranges.add(range(9000, 500));
+        ranges.add(range(1000, 1000));
+        ranges.add(range(2000, 300));
+        ranges.add(range(1500, 1200));
+        ranges.add(range(5000, 10));
+        assertEquals(1, readVectored(file, ranges));
+    }
+
+    @Test
+    public void testGapAndLengthLimits() throws IOException
+    {
+        HdfsFile file = new HdfsFile(HDFS_FILE, conf);
+        file.open();
+        file.setMaxGap(100);
+        ArrayList<HdfsFile.Range> ranges = new ArrayList<HdfsFile.Range>();
+        ranges.add(range(0, 100));
+        ranges.add(range(200, 100));
+        ranges.add(range(301, 100));
+        ranges.add(range(10000, 100));
+        ranges.add(range(FILE_LENGTH - 50, 50));
+        assertEquals(3, readVectored(file, ranges));
+
+        file.setMaxGap(HdfsFile.DEFAULT_MAX_GAP);
+        file.setMaxMergedLength(4096);
+        ranges.clear();
+        for (int i = 0; i < 16; i++)
+        {
+            ranges.add(range(i * 1024, 1024));
+        }
+        assertEquals(4, readVectored(file, ranges));
+    }
+
+    @Test
+    public void testSearchAllMatchesSearch() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < 3000; i++)
+        {
+            tree.insert(new BattingBPlusRecord(String.format("k%06d", 2 * i), new Long(i)));
+        }
+        tree.syncToHdfs(TREE_FILE, conf);
+        BPlusTree<String, Long, BattingBPlusRecord> synced = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, TREE_FILE, conf);
+        Random random = new Random(4);
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 500; i++)
+        {
+            keys.add(String.format("k%06d", random.nextInt(6100)));
+        }
+        keys.add(keys.get(0));
+        keys.add("");
+        ArrayList<Long> expected = new ArrayList<Long>();
+        for (String key : keys)
+        {
+            expected.add(synced.search(key));
+        }
+        assertEquals(expected, synced.searchAll(keys));
+        assertEquals(expected, tree.searchAll(keys));
+        assertTrue(synced.searchAll(new ArrayList<String>()).isEmpty());
+    }
+}
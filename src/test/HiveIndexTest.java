@@ -0,0 +1,146 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import indexes.FileDictionary;
+import indexes.FileOffsets;
+import indexes.FileOffsetsConverter;
+import indexes.HiveIndex;
+import indexes.OffsetList;
+import trees.PostingFile;
+import util.BPlusConverter;
+
+public class HiveIndexTest
+{
+    private static final String LOCAL_FILE = "HiveIndexTest.bin";
+    private static final String HDFS_FILE = new File("HiveIndexTest.hdfs.bin").getAbsolutePath();
+    private static final String TABLE = "hdfs://namenode/user/hive/warehouse/batting/";
+
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileSystem fs = FileSystem.get(conf);
+        new File(LOCAL_FILE).delete();
+        new File(LOCAL_FILE + PostingFile.POSTINGS_SUFFIX).delete();
+        fs.delete(new Path(HDFS_FILE), false);
+        fs.delete(new Path(HDFS_FILE + PostingFile.POSTINGS_SUFFIX), false);
+        fs.delete(FileDictionary.pathFor(HDFS_FILE), false);
+    }
+
+    private static long[] offsets(int key, int file)
+    {
+        long[] offsets = new long[(key + file) % 7 * 30];
+        for (int i = 0; i < offsets.length; i++)
+        {
+            offsets[i] = 1000L * file + 97L * i * (key + 1);
+        }
+        return offsets;
+    }
+
+    private static String file(int file)
+    {
+        return TABLE + String.format("%06d_0", file);
+    }
+
+    @Test
+    public void testNewIndexStartsEmpty() throws IOException
+    {
+        HiveIndex<String> index = new HiveIndex<String>(new BPlusConverter(), LOCAL_FILE);
+        for (int key = 0; key < 40; key++)
+        {
+            index.add("key" + key, file(key % 3), offsets(key, 1));
+        }
+        //a run that died before syncing its index
+        HiveIndex<String> next = new HiveIndex<String>(new BPlusConverter(), LOCAL_FILE);
+        assertEquals(0, next.getDictionary().size());
+        next.add("key1", file(7), offsets(1, 7));
+        assertTrue(next.search("key0").isEmpty());
+        assertEquals(1, next.search("key1").size());
+        assertEquals(file(7), next.getDictionary().pathOf(next.search("key1").get(0).getFileId()));
+    }
+
+    @Test
+    public void testValuesResolveThroughTheDictionary() throws IOException
+    {
+        HiveIndex<String> index = new HiveIndex<String>(new BPlusConverter(), LOCAL_FILE);
+        for (int key = 0; key < 40; key++)
+        {
+            for (int file = 0; file < 5; file++)
+            {
+                if (offsets(key, file).length > 0)
+                {
+                    index.add("key" + key, file(file), offsets(key, file));
+                }
+            }
+        }
+        assertEquals(5, index.getDictionary().size());
+        index.syncToHdfs(HDFS_FILE, conf);
+
+        HiveIndex<String> reopened = new HiveIndex<String>(new BPlusConverter(), HDFS_FILE, conf);
+        for (int file = 0; file < 5; file++)
+        {
+            int id = index.getDictionary().getId(file(file));
+            assertEquals(id, reopened.getDictionary().getId(file(file)));
+            assertEquals(file(file), reopened.getDictionary().pathOf(id));
+        }
+        for (int key = 0; key < 40; key++)
+        {
+            Map<String, long[]> byFile = reopened.offsetsByFile(reopened.search("key" + key));
+            for (int file = 0; file < 5; file++)
+            {
+                long[] expected = offsets(key, file);
+                if (expected.length == 0)
+                {
+                    assertFalse(byFile.containsKey(file(file)));
+                }
+                else
+                {
+                    assertArrayEquals(expected, byFile.get(file(file)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testValuesAreSmallerThanTheText()
+    {
+        FileOffsetsConverter<String> converter = new FileOffsetsConverter<String>(new BPlusConverter());
+        FileOffsets value = new FileOffsets(12, OffsetList.of(new long[] { 40960, 41012, 41100, 41377 }));
+        assertEquals(value, converter.bytesToRecord(converter.recordToBytes(value)));
+        String text = file(12) + "\t" + Arrays.toString(value.getOffsets().toArray());
+        assertTrue(value.getOffsets().getEncodedLength() + 4 < text.length() / 5);
+
+        FileDictionary dictionary = new FileDictionary();
+        assertEquals(0, dictionary.idFor(file(7)));
+        assertEquals(1, dictionary.idFor(file(2)));
+        assertEquals(0, dictionary.idFor(file(7)));
+        List<FileOffsets> values = Arrays.asList(new FileOffsets(1, value.getOffsets()),
+            new FileOffsets(0, value.getOffsets()), new FileOffsets(1, value.getOffsets()));
+        Map<String, List<FileOffsets>> groups = dictionary.groupByFile(values);
+        assertEquals(Arrays.asList(file(2), file(7)), Arrays.asList(groups.keySet().toArray()));
+        assertEquals(2, groups.get(file(2)).size());
+    }
+}
@@ -0,0 +1,171 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import indexes.IndexBuildJob;
+import indexes.SegmentedHiveIndex;
+import trees.ShardManifest;
+import util.BPlusConverter;
+
+public class IndexBuildJobTest
+{
+    private static final Path WORK = new Path(new File("IndexBuildJobTest").getAbsolutePath());
+    private static final Path TABLE = new Path(WORK, "table");
+    private static final String INDEX = new Path(WORK, "index").toString();
+    private static final int FILES = 3;
+    private static final int KEYS = 300;
+
+    private Configuration conf;
+    private FileSystem fs;
+    // key -> file -> offsets of its rows
+    private Map<String, Map<String, List<Long>>> rows;
+
+    private static String key(int i)
+    {
+        return String.format("k%04d", i);
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        conf.set("mapreduce.framework.name", "local");
+        conf.set(IndexBuildJob.DELIMITER, "\t");
+        conf.setInt(IndexBuildJob.KEY_COLUMN, 1);
+        fs = FileSystem.get(conf);
+        tearDown();
+
+        rows = new HashMap<String, Map<String, List<Long>>>();
+        Random random = new Random(3);
+        for (int file = 0; file < FILES; file++)
+        {
+            Path path = fs.makeQualified(new Path(TABLE, String.format("%06d_0", file)));
+            Writer out = new OutputStreamWriter(fs.create(path), "UTF-8");
+            long offset = 0;
+            for (int i = 0; i < 3000; i++)
+            {
+                String key = key(random.nextInt(KEYS));
+                String row = i + "\t" + key + "\t" + random.nextInt();
+                out.write(row + "\n");
+                if (!rows.containsKey(key))
+                {
+                    rows.put(key, new HashMap<String, List<Long>>());
+                }
+                if (!rows.get(key).containsKey(path.toString()))
+                {
+                    rows.get(key).put(path.toString(), new ArrayList<Long>());
+                }
+                rows.get(key).get(path.toString()).add(offset);
+                offset += row.length() + 1;
+            }
+            out.close();
+        }
+        //a file Hadoop leaves behind is not part of the table
+        fs.create(new Path(TABLE, "_SUCCESS")).close();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        fs.delete(WORK, true);
+    }
+
+    @Test
+    public void testSegmentsCoverEveryRow() throws Exception
+    {
+        ShardManifest<String> manifest = IndexBuildJob.build(conf, TABLE, INDEX, 4);
+        assertEquals(4, manifest.getShardCount());
+        assertEquals(3, manifest.getSplits().size());
+
+        SegmentedHiveIndex<String> index = new SegmentedHiveIndex<String>(new BPlusConverter(), INDEX, conf);
+        assertEquals(FILES, index.getDictionary().size());
+        int found = 0;
+        for (int k = 0; k < KEYS; k++)
+        {
+            Map<String, long[]> byFile = index.offsetsByFile(index.search(key(k)));
+            Map<String, List<Long>> expected = rows.get(key(k));
+            if (expected == null)
+            {
+                assertTrue(byFile.isEmpty());
+                continue;
+            }
+            assertEquals(expected.keySet(), byFile.keySet());
+            for (String file : expected.keySet())
+            {
+                long[] offsets = byFile.get(file);
+                assertEquals(expected.get(file).size(), offsets.length);
+                for (int i = 0; i < offsets.length; i++)
+                {
+                    assertEquals(expected.get(file).get(i).longValue(), offsets[i]);
+                }
+                found += offsets.length;
+            }
+        }
+        assertEquals(FILES * 3000, found);
+
+        //a range over all the segments
+        int inRange = 0;
+        for (long[] offsets : index.offsetsByFile(index.getRange(key(0), key(KEYS))).values())
+        {
+            inRange += offsets.length;
+        }
+        assertEquals(FILES * 3000, inRange);
+    }
+
+    @Test
+    public void testKeysSortAsStrings() throws Exception
+    {
+        //U+E000 and up sort after the surrogates of U+10000 and up as strings,
+        //before them as UTF-8 bytes
+        String[] keys = { "k\ue000", "k\ud83d\ude00", "k\uffee", "k\u00e9", "k\ud800\udc00", "ka", "k" };
+        Path table = new Path(WORK, "unicode");
+        Path path = fs.makeQualified(new Path(table, "000000_0"));
+        Map<String, List<Long>> offsets = new HashMap<String, List<Long>>();
+        Writer out = new OutputStreamWriter(fs.create(path), "UTF-8");
+        long offset = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            String key = keys[i % keys.length] + (i % 50);
+            String row = i + "\t" + key;
+            out.write(row + "\n");
+            if (!offsets.containsKey(key))
+            {
+                offsets.put(key, new ArrayList<Long>());
+            }
+            offsets.get(key).add(offset);
+            offset += row.getBytes("UTF-8").length + 1;
+        }
+        out.close();
+
+        IndexBuildJob.build(conf, table, INDEX, 3);
+        SegmentedHiveIndex<String> index = new SegmentedHiveIndex<String>(new BPlusConverter(), INDEX, conf);
+        for (Map.Entry<String, List<Long>> key : offsets.entrySet())
+        {
+            long[] found = index.offsetsByFile(index.search(key.getKey())).get(path.toString());
+            assertNotNull(key.getKey(), found);
+            assertEquals(key.getValue().size(), found.length);
+            for (int i = 0; i < found.length; i++)
+            {
+                assertEquals(key.getValue().get(i).longValue(), found[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import indexes.FileDictionary;
+import indexes.HiveIndex;
+import indexes.IndexedInputFormat;
+import indexes.IndexedSplit;
+import trees.PostingFile;
+import util.BPlusConverter;
+
+public class IndexedInputFormatTest
+{
+    private static final String LOCAL_FILE = "IndexedInputFormatTest.bin";
+    private static final Path WORK = new Path(new File("IndexedInputFormatTest").getAbsolutePath());
+    private static final Path TABLE = new Path(WORK, "table");
+    private static final Path OUTPUT = new Path(WORK, "output");
+    private static final String INDEX = new Path(WORK, "index.bin").toString();
+    private static final int FILES = 3;
+    private static final int ROWS = 20000;
+
+    private Configuration conf;
+    private FileSystem fs;
+    private List<String> rows;
+
+    private static String key(int i)
+    {
+        return String.format("k%04d", i);
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        conf.set("mapreduce.framework.name", "local");
+        fs = FileSystem.get(conf);
+        tearDown();
+
+        //a table of rows in key order of nothing, as Hive leaves them, and an index of it
+        HiveIndex<String> index = new HiveIndex<String>(new BPlusConverter(), LOCAL_FILE);
+        rows = new ArrayList<String>();
+        Random random = new Random(5);
+        for (int file = 0; file < FILES; file++)
+        {
+            Path path = new Path(TABLE, String.format("%06d_0", file));
+            Writer out = new OutputStreamWriter(fs.create(path), "UTF-8");
+            List<List<Long>> offsets = new ArrayList<List<Long>>();
+            for (int k = 0; k < 1000; k++)
+            {
+                offsets.add(new ArrayList<Long>());
+            }
+            long offset = 0;
+            for (int i = 0; i < ROWS / FILES; i++)
+            {
+                int k = random.nextInt(1000);
+                String row = key(k) + "\t" + file + "-" + i + "\t" + Long.toHexString(random.nextLong());
+                rows.add(row);
+                offsets.get(k).add(offset);
+                out.write(row + "\n");
+                offset += row.length() + 1;
+            }
+            out.close();
+            for (int k = 0; k < 1000; k++)
+            {
+                long[] array = new long[offsets.get(k).size()];
+                for (int j = 0; j < array.length; j++)
+                {
+                    array[j] = offsets.get(k).get(j);
+                }
+                if (array.length > 0)
+                {
+                    index.add(key(k), path.toString(), array);
+                }
+            }
+        }
+        index.syncToHdfs(INDEX, conf);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        fs.delete(WORK, true);
+        new File(LOCAL_FILE).delete();
+        new File(LOCAL_FILE + PostingFile.POSTINGS_SUFFIX).delete();
+    }
+
+    private List<String> expected(String from, String to)
+    {
+        List<String> expected = new ArrayList<String>();
+        for (String row : rows)
+        {
+            String key = row.substring(0, row.indexOf('\t'));
+            if (key.compareTo(from) >= 0 && key.compareTo(to) <= 0)
+            {
+                expected.add(row);
+            }
+        }
+        Collections.sort(expected);
+        return expected;
+    }
+
+    private Job newJob(String from, String to) throws IOException
+    {
+        Job job = Job.getInstance(conf, "indexed scan");
+        job.setInputFormatClass(IndexedInputFormat.class);
+        IndexedInputFormat.setIndex(job, INDEX);
+        IndexedInputFormat.setKeyRange(job, from, to);
+        return job;
+    }
+
+    @Test
+    public void testSelectiveQueryReadsLittleOfTheTable() throws Exception
+    {
+        long tableBytes = 0;
+        for (FileStatus status : fs.listStatus(TABLE))
+        {
+            tableBytes += status.getLen();
+        }
+        Job job = newJob(key(100), key(104));
+        job.getConfiguration().setLong(IndexedInputFormat.MAX_GAP, 1024);
+        List<InputSplit> splits = new IndexedInputFormat().getSplits(job);
+        long splitBytes = 0;
+        int matches = 0;
+        for (InputSplit split : splits)
+        {
+            splitBytes += split.getLength();
+            matches += ((IndexedSplit) split).getOffsets().length;
+        }
+        assertEquals(expected(key(100), key(104)).size(), matches);
+        assertTrue(splitBytes + " of " + tableBytes, splitBytes < tableBytes / 20);
+    }
+
+    @Test
+    public void testJobReadsOnlyMatchingRows() throws Exception
+    {
+        Job job = newJob(key(500), key(519));
+        job.setMapperClass(Mapper.class);
+        job.setNumReduceTasks(0);
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(Text.class);
+        FileOutputFormat.setOutputPath(job, OUTPUT);
+        assertTrue(job.waitForCompletion(false));
+
+        List<String> found = new ArrayList<String>();
+        for (FileStatus status : fs.listStatus(OUTPUT))
+        {
+            if (!status.getPath().getName().startsWith("part-"))
+            {
+                continue;
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                //the offset, then the row
+                found.add(line.substring(line.indexOf('\t') + 1));
+            }
+            in.close();
+        }
+        Collections.sort(found);
+        assertEquals(expected(key(500), key(519)), found);
+        assertTrue(fs.exists(FileDictionary.pathFor(INDEX)));
+    }
+}
@@ -0,0 +1,171 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.Compactor;
+import trees.DeltaBPlusTree;
+import trees.DeltaFile;
+import trees.KeyFilter;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class KeyFilterTest
+{
+    private static final String LOCAL_FILE = "KeyFilterTest.bin";
+    private static final String HDFS_FILE = new File("KeyFilterTest.hdfs.bin").getAbsolutePath();
+
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        new File(LOCAL_FILE).delete();
+        FileSystem fs = FileSystem.get(conf);
+        fs.delete(new Path(HDFS_FILE), false);
+        fs.delete(KeyFilter.pathFor(HDFS_FILE), false);
+        for (FileStatus status : fs.globStatus(new Path(HDFS_FILE + Compactor.BASE_SUFFIX + "*")))
+        {
+            fs.delete(status.getPath(), false);
+        }
+        for (Path path : DeltaFile.list(fs, HDFS_FILE))
+        {
+            fs.delete(path, false);
+        }
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%06d", i);
+    }
+
+    private void build(int keys, double falsePositiveRate, int keysPerPartition) throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < keys; i++)
+        {
+            tree.insert(new BattingBPlusRecord(key(2 * i), new Long(i)));
+        }
+        if (falsePositiveRate > 0)
+        {
+            tree.setKeyFilter(falsePositiveRate, keysPerPartition);
+        }
+        tree.syncToHdfs(HDFS_FILE, conf);
+    }
+
+    private BPlusTree<String, Long, BattingBPlusRecord> open() throws IOException
+    {
+        return new BPlusTree<String, Long, BattingBPlusRecord>(7, new BattingBPlusConverter(), null, LOCAL_FILE,
+            HDFS_FILE, conf);
+    }
+
+    private void checkFilter(int keys, double falsePositiveRate, int keysPerPartition, int partitions)
+        throws IOException
+    {
+        build(keys, falsePositiveRate, keysPerPartition);
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        KeyFilter<String> filter = tree.getKeyFilter();
+        assertNotNull(filter);
+        assertEquals(partitions, filter.getPartitionCount());
+        int falsePositives = 0;
+        for (int i = 0; i < keys; i++)
+        {
+            assertEquals(new Long(i), tree.search(key(2 * i)));
+            assertNull(tree.search(key(2 * i + 1)));
+            if (filter.mightContain(key(2 * i + 1)))
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives + " false positives", falsePositives < 3 * falsePositiveRate * keys);
+        assertFalse(filter.mightContain(""));
+    }
+
+    @Test
+    public void testSingleFilter() throws IOException
+    {
+        checkFilter(5000, 0.01, 0, 1);
+    }
+
+    @Test
+    public void testPartitionedFilters() throws IOException
+    {
+        checkFilter(5000, 0.02, 512, 10);
+    }
+
+    @Test
+    public void testNoFilterUnlessAsked() throws IOException
+    {
+        build(100, 0, 0);
+        assertFalse(FileSystem.get(conf).exists(KeyFilter.pathFor(HDFS_FILE)));
+        assertNull(open().getKeyFilter());
+    }
+
+    @Test
+    public void testStaleFilterIsIgnored() throws IOException
+    {
+        build(100, 0.01, 0);
+        FileSystem fs = FileSystem.get(conf);
+        fs.delete(new Path(HDFS_FILE), false);
+        new File(LOCAL_FILE).delete();
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < 120; i++)
+        {
+            tree.insert(new BattingBPlusRecord(key(2 * i + 1), new Long(i)));
+        }
+        tree.syncToHdfs(HDFS_FILE, conf);
+        assertTrue(fs.exists(KeyFilter.pathFor(HDFS_FILE)));
+
+        BPlusTree<String, Long, BattingBPlusRecord> reopened = open();
+        assertNull(reopened.getKeyFilter());
+        assertEquals(new Long(7), reopened.search(key(15)));
+    }
+
+    @Test
+    public void testCompactionRebuildsFilter() throws IOException
+    {
+        build(1000, 0.01, 100);
+        DeltaBPlusTree<String, Long, BattingBPlusRecord> tree = new DeltaBPlusTree<String, Long, BattingBPlusRecord>(
+            open(), new BattingBPlusConverter(), HDFS_FILE, conf);
+        for (int i = 0; i < 1000; i += 10)
+        {
+            tree.insert(new BattingBPlusRecord(key(2 * i + 1), new Long(-i)));
+        }
+        tree.flush();
+        new Compactor<String, Long, BattingBPlusRecord>(tree, 7, 0).compact();
+        KeyFilter<String> filter = tree.getBase().getKeyFilter();
+        assertNotNull(filter);
+        assertEquals(0.01, filter.getFalsePositiveRate(), 0);
+        assertEquals(100, filter.getKeysPerPartition());
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals(new Long(i), tree.search(key(2 * i)));
+            assertEquals(i % 10 == 0 ? new Long(-i) : null, tree.search(key(2 * i + 1)));
+        }
+        String newBase = Compactor.currentBaseFileName(FileSystem.get(conf), HDFS_FILE);
+        assertTrue(FileSystem.get(conf).exists(KeyFilter.pathFor(newBase)));
+        assertNotNull(new BPlusTree<String, Long, BattingBPlusRecord>(7, new BattingBPlusConverter(), null,
+            LOCAL_FILE, newBase, conf).getKeyFilter());
+    }
+}
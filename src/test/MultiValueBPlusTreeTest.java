@@ -0,0 +1,189 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTreeBuilder;
+import trees.MultiValueBPlusTree;
+import trees.MultiValueTreeBuilder;
+import trees.PostingFile;
+import util.BattingBPlusConverter;
+
+public class MultiValueBPlusTreeTest
+{
+    private static final String LOCAL_FILE = "MultiValueBPlusTreeTest.bin";
+    private static final String HDFS_FILE = new File("MultiValueBPlusTreeTest.hdfs.bin").getAbsolutePath();
+
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileSystem fs = FileSystem.get(conf);
+        for (String name : new String[] { LOCAL_FILE, HDFS_FILE })
+        {
+            fs.delete(new Path(new File(name).getAbsolutePath()), false);
+            fs.delete(new Path(new File(name + PostingFile.POSTINGS_SUFFIX).getAbsolutePath()), false);
+        }
+        new File(LOCAL_FILE + ".build" + PostingFile.POSTINGS_SUFFIX).delete();
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%06d", i);
+    }
+
+    private MultiValueBPlusTree<String, Long> fill(int keys) throws IOException
+    {
+        MultiValueBPlusTree<String, Long> tree = new MultiValueBPlusTree<String, Long>(7,
+            new BattingBPlusConverter(), 3, LOCAL_FILE);
+        //key i gets i % 20 values, added in rounds as in the Hive output
+        for (int round = 0; round < 20; round++)
+        {
+            for (int i = 0; i < keys; i++)
+            {
+                if (round < i % 20)
+                {
+                    tree.add(key(i), new Long(1000L * i + round));
+                }
+            }
+        }
+        return tree;
+    }
+
+    private void checkValues(MultiValueBPlusTree<String, Long> tree, int keys) throws IOException
+    {
+        for (int i = 0; i < keys; i++)
+        {
+            List<Long> values = tree.search(key(i));
+            assertEquals(key(i), i % 20, values.size());
+            for (int round = 0; round < values.size(); round++)
+            {
+                assertEquals(new Long(1000L * i + round), values.get(round));
+            }
+        }
+    }
+
+    @Test
+    public void testEveryValueOfAKeyIsFound() throws IOException
+    {
+        MultiValueBPlusTree<String, Long> tree = fill(200);
+        assertEquals(190, tree.getKeyCount());
+        checkValues(tree, 200);
+        assertTrue(tree.search("absent").isEmpty());
+
+        List<Long> range = tree.getRange(key(18), key(21));
+        assertEquals(18 + 19 + 1, range.size());
+        assertEquals(new Long(18000), range.get(0));
+        assertEquals(new Long(21000), range.get(range.size() - 1));
+    }
+
+    @Test
+    public void testPostingsAreSyncedWithTheTree() throws IOException
+    {
+        MultiValueBPlusTree<String, Long> tree = fill(100);
+        tree.syncToHdfs(HDFS_FILE, conf);
+        assertTrue(FileSystem.get(conf).exists(new Path(HDFS_FILE + PostingFile.POSTINGS_SUFFIX)));
+        checkValues(tree, 100);
+
+        MultiValueBPlusTree<String, Long> reopened = new MultiValueBPlusTree<String, Long>(7,
+            new BattingBPlusConverter(), 3, HDFS_FILE, conf);
+        checkValues(reopened, 100);
+    }
+
+    private void build(int offset) throws IOException
+    {
+        MultiValueTreeBuilder<String, Long> builder = new MultiValueTreeBuilder<String, Long>(7,
+            new BattingBPlusConverter(), 3, HDFS_FILE, new File(LOCAL_FILE + ".build" + PostingFile.POSTINGS_SUFFIX),
+            conf);
+        for (int i = 0; i < 100; i++)
+        {
+            List<Long> values = new ArrayList<Long>();
+            for (int round = 0; round < i % 20; round++)
+            {
+                values.add(new Long(1000L * i + round + offset));
+            }
+            if (!values.isEmpty())
+            {
+                builder.add(key(i), values);
+            }
+        }
+        builder.finish();
+    }
+
+    @Test
+    public void testRebuiltTreeReplacesItsPostings() throws IOException
+    {
+        build(1);
+        build(0);
+        FileSystem fs = FileSystem.get(conf);
+        assertFalse(fs.exists(new Path(HDFS_FILE + PostingFile.POSTINGS_SUFFIX + BPlusTreeBuilder.TEMP_SUFFIX)));
+        assertFalse(fs.exists(new Path(HDFS_FILE + BPlusTreeBuilder.TEMP_SUFFIX)));
+        MultiValueBPlusTree<String, Long> reopened = new MultiValueBPlusTree<String, Long>(7,
+            new BattingBPlusConverter(), 3, HDFS_FILE, conf);
+        checkValues(reopened, 100);
+    }
+
+    @Test
+    public void testFailedAddKeepsTheKey() throws IOException
+    {
+        MultiValueBPlusTree<String, Long> tree = fill(100);
+        tree.close();
+        //key 3 has a full inline list, and spilling it needs the closed postings file
+        try
+        {
+            tree.add(key(3), new Long(3003));
+            fail("the postings file is closed");
+        }
+        catch (IOException expected)
+        {
+        }
+        assertEquals(95, tree.getKeyCount());
+        tree.close();
+
+        MultiValueBPlusTree<String, Long> reopened = new MultiValueBPlusTree<String, Long>(7,
+            new BattingBPlusConverter(), 3, LOCAL_FILE);
+        checkValues(reopened, 100);
+        reopened.close();
+    }
+
+    @Test
+    public void testReopenedTreeKeepsItsPostings() throws IOException
+    {
+        MultiValueBPlusTree<String, Long> tree = fill(100);
+        tree.close();
+
+        MultiValueBPlusTree<String, Long> reopened = new MultiValueBPlusTree<String, Long>(7,
+            new BattingBPlusConverter(), 3, LOCAL_FILE);
+        assertEquals(95, reopened.getKeyCount());
+        checkValues(reopened, 100);
+        //key 19 has an overflow block already, which grows in place or moves on
+        reopened.add(key(19), new Long(19000L + 19));
+        reopened.add(key(2), new Long(2000L + 2));
+        reopened.add(key(2), new Long(2000L + 3));
+        assertEquals(20, reopened.search(key(19)).size());
+        assertEquals(new Long(19019), reopened.search(key(19)).get(19));
+        assertEquals(4, reopened.search(key(2)).size());
+        assertEquals(new Long(2003), reopened.search(key(2)).get(3));
+        reopened.close();
+    }
+}
@@ -0,0 +1,106 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import trees.NodeCache;
+
+public class NodeCacheTest
+{
+    @Test
+    public void testReferencedNodesOutliveColdOnes()
+    {
+        NodeCache<String> cache = new NodeCache<String>(4);
+        for (long offset = 0; offset < 4; offset++)
+        {
+            cache.put(offset, null, true);
+        }
+        assertNotNull(cache.get(0));
+        assertNotNull(cache.get(2));
+        cache.put(4, null, true);
+        cache.put(5, null, true);
+        assertEquals(4, cache.size());
+        //the hand passed over the referenced entries and took the cold ones
+        assertNotNull(cache.get(0));
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(2));
+        assertNull(cache.get(3));
+        assertEquals(4, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        cache.setCapacity(1);
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(5));
+    }
+
+    @Test
+    public void testVerifiedNodesReplaceUnverifiedOnes()
+    {
+        NodeCache<String> cache = new NodeCache<String>(4);
+        //read while checks were off
+        cache.put(7, null, false);
+        assertFalse(cache.get(7).isVerified());
+        //with checks on again the lookup reads and verifies the page, and caches it
+        cache.put(7, null, true);
+        assertTrue(cache.get(7).isVerified());
+        //but an unverified read does not undo that
+        cache.put(7, null, false);
+        assertTrue(cache.get(7).isVerified());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testConcurrentLookupsStayWithinCapacity() throws InterruptedException
+    {
+        final NodeCache<String> cache = new NodeCache<String>(100);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++)
+        {
+            final Random random = new Random(t);
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < 50000; i++)
+                        {
+                            //a skewed workload: a few hot nodes and many cold ones
+                            long offset = random.nextInt(4) == 0 ? random.nextInt(1000) : random.nextInt(20);
+                            NodeCache.Entry<String> entry = cache.get(offset);
+                            if (entry == null)
+                            {
+                                cache.put(offset, null, offset % 2 == 0);
+                            }
+                            else if (entry.isVerified() != (offset % 2 == 0))
+                            {
+                                throw new AssertionError("wrong entry for " + offset);
+                            }
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertTrue(cache.size() <= 100);
+        assertEquals(4 * 50000, cache.getHits() + cache.getMisses());
+        //the hot nodes are mostly found
+        assertTrue(cache.getHits() > 4 * 50000 / 2);
+    }
+}
@@ -0,0 +1,120 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import indexes.OffsetList;
+import indexes.OffsetListConverter;
+import trees.MultiValueBPlusTree;
+import trees.PostingFile;
+import util.BPlusConverter;
+
+public class OffsetListTest
+{
+    private static final String LOCAL_FILE = "OffsetListTest.bin";
+
+    @After
+    public void tearDown()
+    {
+        new File(LOCAL_FILE).delete();
+        new File(LOCAL_FILE + PostingFile.POSTINGS_SUFFIX).delete();
+    }
+
+    private static long[] rowOffsets(int rows, long seed)
+    {
+        Random random = new Random(seed);
+        long[] offsets = new long[rows];
+        long offset = random.nextInt(1 << 20);
+        for (int i = 0; i < rows; i++)
+        {
+            offsets[i] = offset;
+            offset += 20 + random.nextInt(200);
+        }
+        return offsets;
+    }
+
+    @Test
+    public void testSetsAreSortedAndDecodedLazily()
+    {
+        OffsetList list = OffsetList.of(OffsetList.parseSet("[345, 0,12,345, 70000000000]"));
+        assertEquals(4, list.size());
+        assertArrayEquals(new long[] { 0, 12, 345, 70000000000L }, list.toArray());
+
+        OffsetList.OffsetIterator iterator = list.iterator();
+        assertEquals(345, iterator.skipTo(100));
+        assertEquals(new Long(70000000000L), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertEquals(-1, list.iterator().skipTo(70000000001L));
+
+        assertEquals(0, OffsetList.of(OffsetList.parseSet("[]")).size());
+    }
+
+    @Test
+    public void testRecordsRoundTripAndCompress()
+    {
+        long[] offsets = rowOffsets(3000, 42);
+        OffsetList list = OffsetList.of(offsets);
+        assertArrayEquals(offsets, list.toArray());
+
+        StringBuilder text = new StringBuilder();
+        for (long offset : offsets)
+        {
+            text.append(offset).append(',');
+        }
+        assertTrue(list.getEncodedLength() * 3 < text.length());
+
+        OffsetListConverter<String> converter = new OffsetListConverter<String>(new BPlusConverter(), 8192);
+        assertEquals(list, converter.bytesToRecord(converter.recordToBytes(list)));
+        try
+        {
+            new OffsetListConverter<String>(new BPlusConverter(), 64).recordToBytes(list);
+            fail("a long list must not be truncated");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    @Test
+    public void testLongSetsAreStoredInChunks() throws IOException
+    {
+        OffsetListConverter<String> converter = new OffsetListConverter<String>(new BPlusConverter());
+        MultiValueBPlusTree<String, OffsetList> tree = new MultiValueBPlusTree<String, OffsetList>(7, converter,
+            MultiValueBPlusTree.DEFAULT_INLINE_VALUES, LOCAL_FILE);
+        for (int key = 0; key < 50; key++)
+        {
+            long[] offsets = rowOffsets(key * 40, key);
+            List<OffsetList> chunks = OffsetList.chunks(offsets, converter.getMaxEncodedLength());
+            for (OffsetList chunk : chunks)
+            {
+                assertTrue(chunk.getEncodedLength() <= converter.getMaxEncodedLength());
+                tree.add("key" + key, chunk);
+            }
+        }
+        for (int key = 0; key < 50; key++)
+        {
+            ArrayList<Long> found = new ArrayList<Long>();
+            for (OffsetList chunk : tree.search("key" + key))
+            {
+                for (long offset : chunk)
+                {
+                    found.add(offset);
+                }
+            }
+            long[] offsets = rowOffsets(key * 40, key);
+            assertEquals(offsets.length, found.size());
+            for (int i = 0; i < offsets.length; i++)
+            {
+                assertEquals(offsets[i], found.get(i).longValue());
+            }
+        }
+    }
+}
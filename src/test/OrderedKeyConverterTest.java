@@ -0,0 +1,92 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import indexes.FileOffsets;
+import indexes.HiveIndex;
+import trees.PostingFile;
+import util.DoubleKeyConverter;
+import util.IntKeyConverter;
+import util.LongKeyConverter;
+import util.OrderedKeyConverter;
+import util.TimestampKeyConverter;
+
+public class OrderedKeyConverterTest
+{
+    private static final String LOCAL_FILE = "OrderedKeyConverterTest.bin";
+
+    @After
+    public void tearDown()
+    {
+        new File(LOCAL_FILE).delete();
+        new File(LOCAL_FILE + PostingFile.POSTINGS_SUFFIX).delete();
+    }
+
+    /**
+     * Checks that keys, given in ascending order, round-trip and that their
+     * bytes sort the same way.
+     */
+    private static <K extends Comparable<? super K>> void assertOrdered(OrderedKeyConverter<K> converter, K[] keys)
+    {
+        for (int i = 0; i < keys.length; i++)
+        {
+            byte[] bytes = converter.keyToBytes(keys[i]);
+            assertEquals(converter.getKeyLength(), bytes.length);
+            assertEquals(keys[i], converter.bytesToKey(bytes));
+            for (int j = 0; j < keys.length; j++)
+            {
+                int expected = Integer.signum(keys[i].compareTo(keys[j]));
+                int actual = Integer.signum(OrderedKeyConverter.compareBytes(bytes, converter.keyToBytes(keys[j])));
+                assertEquals(keys[i] + " against " + keys[j], expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testBytesSortLikeKeys()
+    {
+        assertOrdered(new IntKeyConverter(), new Integer[] { Integer.MIN_VALUE, -65536, -256, -1, 0, 1, 255, 256,
+            Integer.MAX_VALUE });
+        assertOrdered(new LongKeyConverter(), new Long[] { Long.MIN_VALUE, -(1L << 40), -1L, 0L, 1L, 1L << 32,
+            Long.MAX_VALUE });
+        assertOrdered(new DoubleKeyConverter(), new Double[] { Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1.5,
+            -Double.MIN_VALUE, -0.0, 0.0, Double.MIN_VALUE, 1.0, 1.5, Double.MAX_VALUE, Double.POSITIVE_INFINITY,
+            Double.NaN });
+        assertOrdered(new TimestampKeyConverter(), new Timestamp[] { timestamp(-86400001L, 0),
+            timestamp(-1000L, 999999999), timestamp(-1L, 999000000), timestamp(0L, 0), timestamp(0L, 1),
+            timestamp(1500L, 500000001), timestamp(1500L, 999999999), timestamp(1476000000000L, 0) });
+    }
+
+    private static Timestamp timestamp(long millis, int nanos)
+    {
+        Timestamp timestamp = new Timestamp(millis);
+        timestamp.setNanos(nanos);
+        return timestamp;
+    }
+
+    @Test
+    public void testNumericIndexRanges() throws IOException
+    {
+        HiveIndex<Long> index = new HiveIndex<Long>(new LongKeyConverter(), LOCAL_FILE);
+        for (long key = -500; key < 500; key += 3)
+        {
+            index.add(key * 1000, "/warehouse/table/000000_0", new long[] { key + 500 });
+        }
+        List<FileOffsets> values = index.getRange(-2000L, 7000L);
+        Map<String, long[]> offsets = index.offsetsByFile(values);
+        assertEquals(1, offsets.size());
+        assertTrue(Arrays.equals(new long[] { 498, 501, 504, 507 }, offsets.get("/warehouse/table/000000_0")));
+        assertEquals(1, index.search(-500000L).size());
+        assertTrue(index.search(-499000L).isEmpty());
+    }
+}
@@ -0,0 +1,210 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.PageCache;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class PageCacheTest
+{
+    private static final String LOCAL_FILE = "PageCacheTest.bin";
+    private static final String HDFS_FILE = new File("PageCacheTest.hdfs.bin").getAbsolutePath();
+    private static final File CACHE_DIR = new File("PageCacheTest.cache");
+    private static final int PAGE = 100;
+
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        new File(LOCAL_FILE).delete();
+        FileSystem.get(conf).delete(new Path(HDFS_FILE), false);
+        File[] files = CACHE_DIR.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        CACHE_DIR.delete();
+    }
+
+    private static byte[] page(int seed)
+    {
+        byte[] page = new byte[PAGE];
+        Arrays.fill(page, (byte) seed);
+        page[0] = (byte) (seed >> 8);
+        return page;
+    }
+
+    @Test
+    public void testPagesAreKeyedAndKept() throws IOException
+    {
+        PageCache cache = new PageCache(CACHE_DIR, PAGE, 1 << 20);
+        byte[] read = new byte[PAGE];
+        assertFalse(cache.get("a@1", 5, 0, read));
+        cache.put("a@1", 5, 0, page(1));
+        cache.put("a@1", 5, PAGE, page(2));
+        cache.put("b@1", 5, 0, page(3));
+        assertTrue(cache.get("a@1", 5, 0, read));
+        assertArrayEquals(page(1), read);
+        assertTrue(cache.get("b@1", 5, 0, read));
+        assertArrayEquals(page(3), read);
+        //the file was replaced since
+        assertFalse(cache.get("a@1", 6, 0, read));
+        cache.put("a@1", 5, PAGE, page(4));
+        cache.close();
+
+        //another process, or this one after a restart
+        PageCache reopened = new PageCache(CACHE_DIR, PAGE, 1 << 20);
+        assertTrue(reopened.get("a@1", 5, PAGE, read));
+        assertArrayEquals(page(4), read);
+        assertEquals(1, reopened.getHits());
+        reopened.close();
+
+        //a slab of another size starts empty
+        PageCache resized = new PageCache(CACHE_DIR, PAGE, 1 << 19);
+        assertFalse(resized.get("a@1", 5, PAGE, read));
+        resized.close();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPageIsEvicted() throws IOException
+    {
+        //a single set of four slots
+        PageCache cache = new PageCache(CACHE_DIR, PAGE, PageCache.slabLength(PAGE, 4), 4);
+        assertEquals(4, cache.getCapacity());
+        byte[] read = new byte[PAGE];
+        for (int i = 0; i < 4; i++)
+        {
+            cache.put("f", 1, i * PAGE, page(i));
+        }
+        assertTrue(cache.get("f", 1, 0, read));
+        cache.put("f", 1, 4 * PAGE, page(4));
+        assertFalse(cache.get("f", 1, PAGE, read));
+        for (int i : new int[] { 0, 2, 3, 4 })
+        {
+            assertTrue(cache.get("f", 1, i * PAGE, read));
+            assertArrayEquals(page(i), read);
+        }
+        assertTrue(cache.getFile().length() <= PageCache.slabLength(PAGE, 4));
+        cache.close();
+    }
+
+    @Test
+    public void testRestartedTreeReadsFromCache() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < 1000; i++)
+        {
+            tree.insert(new BattingBPlusRecord(String.format("k%05d", i), new Long(i)));
+        }
+        tree.syncToHdfs(HDFS_FILE, conf);
+
+        for (int run = 0; run < 2; run++)
+        {
+            BPlusTree<String, Long, BattingBPlusRecord> synced = new BPlusTree<String, Long, BattingBPlusRecord>(
+                7, new BattingBPlusConverter(), null, LOCAL_FILE, HDFS_FILE, conf);
+            //a single set with a slot for every page of the tree, so that
+            //where the pages hash to cannot make one evict another
+            int pages = (int) (new File(HDFS_FILE).length() / synced.getPageLength()) + 1;
+            PageCache cache = new PageCache(CACHE_DIR, synced.getPageLength(),
+                PageCache.slabLength(synced.getPageLength(), pages), pages);
+            assertEquals(pages, cache.getCapacity());
+            synced.setPageCache(cache);
+            for (int i = 0; i < 1000; i += 3)
+            {
+                assertEquals(new Long(i), synced.search(String.format("k%05d", i)));
+            }
+            if (run == 0)
+            {
+                assertEquals(0, cache.getHits());
+                assertTrue(cache.getMisses() > 0);
+            }
+            else
+            {
+                assertTrue(cache.getHits() > 0);
+                assertEquals(0, cache.getMisses());
+            }
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testCorruptCachedPagesAreReadAgain() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < 1000; i++)
+        {
+            tree.insert(new BattingBPlusRecord(String.format("k%05d", i), new Long(i)));
+        }
+        tree.syncToHdfs(HDFS_FILE, conf);
+
+        //pages that went bad after they were put, behind an intact slot
+        BPlusTree<String, Long, BattingBPlusRecord> synced = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, HDFS_FILE, conf);
+        int pages = (int) (new File(HDFS_FILE).length() / synced.getPageLength()) + 1;
+        PageCache corrupting = new PageCache(CACHE_DIR, synced.getPageLength(),
+            PageCache.slabLength(synced.getPageLength(), pages), pages)
+        {
+            @Override
+            public synchronized void put(String fileIdentity, long modificationTime, long position, byte[] page)
+            {
+                byte[] corrupt = page.clone();
+                corrupt[1] ^= 1;
+                super.put(fileIdentity, modificationTime, position, corrupt);
+            }
+        };
+        synced.setPageCache(corrupting);
+        for (int i = 0; i < 1000; i += 3)
+        {
+            assertEquals(new Long(i), synced.search(String.format("k%05d", i)));
+        }
+        corrupting.close();
+
+        for (int run = 0; run < 2; run++)
+        {
+            BPlusTree<String, Long, BattingBPlusRecord> restarted = new BPlusTree<String, Long, BattingBPlusRecord>(
+                7, new BattingBPlusConverter(), null, LOCAL_FILE, HDFS_FILE, conf);
+            PageCache cache = new PageCache(CACHE_DIR, restarted.getPageLength(),
+                PageCache.slabLength(restarted.getPageLength(), pages), pages);
+            restarted.setPageCache(cache);
+            for (int i = 0; i < 1000; i += 3)
+            {
+                assertEquals(new Long(i), restarted.search(String.format("k%05d", i)));
+            }
+            //the bad pages are dropped and read from hdfs on the first run,
+            //and kept for the next
+            if (run == 1)
+            {
+                assertTrue(cache.getHits() > 0);
+                assertEquals(0, cache.getMisses());
+            }
+            cache.close();
+        }
+    }
+}
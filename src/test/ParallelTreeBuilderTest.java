@@ -0,0 +1,171 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusInternalNode;
+import trees.BPlusLeaf;
+import trees.BPlusNode;
+import trees.BPlusTree;
+import trees.BPlusTreeFile;
+import trees.ParallelTreeBuilder;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class ParallelTreeBuilderTest
+{
+    private static final File DIR = new File("ParallelTreeBuilderTest.dir").getAbsoluteFile();
+    private static final String HDFS_FILE = new File(DIR, "tree.bin").getPath();
+
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+        DIR.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileSystem.get(conf).delete(new Path(DIR.getPath()), true);
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%07d", i);
+    }
+
+    private BPlusTree<String, Long, BattingBPlusRecord> build(ArrayList<Integer> keys, int threads, int partitions)
+        throws IOException
+    {
+        ParallelTreeBuilder<String, Long> builder = new ParallelTreeBuilder<String, Long>(7,
+            new BattingBPlusConverter(), threads, partitions, DIR);
+        for (int i : keys)
+        {
+            builder.add(key(i), new Long(i));
+        }
+        builder.build(HDFS_FILE, conf);
+        //nothing but the tree (and its checksum) is left behind
+        for (FileStatus status : FileSystem.get(conf).listStatus(new Path(DIR.getPath())))
+        {
+            assertTrue(status.getPath().getName(), status.getPath().getName().startsWith("tree.bin")
+                || status.getPath().getName().startsWith(".tree.bin"));
+        }
+        return new BPlusTree<String, Long, BattingBPlusRecord>(7, new BattingBPlusConverter(), null, null,
+            HDFS_FILE, conf);
+    }
+
+    /**
+     * Walks the leaf chain from the leftmost leaf.
+     */
+    private ArrayList<Object> leafChain() throws IOException
+    {
+        BPlusTreeFile<String, Long> treeFile = new BPlusTreeFile<String, Long>(7, new BattingBPlusConverter(), null,
+            HDFS_FILE, conf);
+        BPlusNode<String> node = treeFile.getRoot();
+        long offset = -1;
+        while (!node.isLeaf())
+        {
+            offset = ((BPlusInternalNode<String>) node).getChildren()[0];
+            node = treeFile.readNode(offset);
+        }
+        ArrayList<Object> keys = new ArrayList<Object>();
+        long left = -1;
+        while (true)
+        {
+            BPlusLeaf<?, ?> leaf = (BPlusLeaf<?, ?>) node;
+            assertEquals(left, leaf.getLeft());
+            Object[] leafKeys = leaf.getKeys();
+            for (int i = 0; i < leaf.getNumKeys(); i++)
+            {
+                keys.add(leafKeys[i]);
+            }
+            if (leaf.getRight() < 0)
+            {
+                return keys;
+            }
+            left = offset;
+            offset = leaf.getRight();
+            node = treeFile.readNode(offset);
+        }
+    }
+
+    @Test
+    public void testShuffledKeys() throws IOException
+    {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 20000; i++)
+        {
+            keys.add(3 * i);
+        }
+        Collections.shuffle(keys, new Random(10));
+        BPlusTree<String, Long, BattingBPlusRecord> tree = build(keys, 4, 8);
+        assertEquals(20000, tree.getKeyCount());
+        for (int i = 0; i < 60000; i++)
+        {
+            assertEquals(i % 3 == 0 ? new Long(i) : null, tree.search(key(i)));
+        }
+        ArrayList<Long> expected = new ArrayList<Long>();
+        for (int i = 9000; i <= 51000; i += 3)
+        {
+            expected.add(new Long(i));
+        }
+        assertEquals(expected, tree.getRange(key(9000), key(51000)));
+
+        ArrayList<Object> chain = leafChain();
+        assertEquals(20000, chain.size());
+        for (int i = 0; i < chain.size(); i++)
+        {
+            assertEquals(key(3 * i), chain.get(i));
+        }
+    }
+
+    @Test
+    public void testSkewedAndSmallInputs() throws IOException
+    {
+        //most keys fall in one range, and some ranges stay empty
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 3000; i++)
+        {
+            keys.add(i < 2900 ? 1000 + i : 1000000 + i);
+        }
+        Collections.shuffle(keys, new Random(11));
+        BPlusTree<String, Long, BattingBPlusRecord> tree = build(keys, 3, 16);
+        assertEquals(3000, tree.getKeyCount());
+        for (int i : keys)
+        {
+            assertEquals(new Long(i), tree.search(key(i)));
+        }
+        assertEquals(3000, leafChain().size());
+
+        keys.clear();
+        keys.add(5);
+        keys.add(2);
+        tree = build(keys, 4, 8);
+        assertEquals(2, tree.getKeyCount());
+        assertEquals(new Long(2), tree.search(key(2)));
+        assertEquals(new Long(5), tree.search(key(5)));
+
+        keys.clear();
+        tree = build(keys, 4, 8);
+        assertEquals(0, tree.getKeyCount());
+        assertNull(tree.search(key(2)));
+    }
+}
@@ -0,0 +1,38 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import util.RateLimiter;
+
+public class RateLimiterTest
+{
+    private static long millisToAcquire(RateLimiter limiter, long bytes) throws IOException
+    {
+        long start = System.nanoTime();
+        limiter.acquire(bytes);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void testResetDropsIdleCredit() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(1 << 20);
+        Thread.sleep(500);
+        limiter.reset();
+        //a quarter of a second's worth, due a quarter of a second after the reset
+        assertTrue(millisToAcquire(limiter, 1 << 18) >= 200);
+    }
+
+    @Test
+    public void testIdleCreditIsCapped() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(1 << 20);
+        Thread.sleep(1500);
+        //two seconds' worth, of which the idle time pays for one at most
+        assertTrue(millisToAcquire(limiter, 2 << 20) >= 900);
+    }
+}
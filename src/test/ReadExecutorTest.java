@@ -0,0 +1,239 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.HdfsFile;
+import trees.ReadExecutor;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class ReadExecutorTest
+{
+    private static final String LOCAL_FILE = "ReadExecutorTest.bin";
+    private static final String DATA_FILE = new File("ReadExecutorTest.data.bin").getAbsolutePath();
+    private static final String TREE_FILE = new File("ReadExecutorTest.tree.bin").getAbsolutePath();
+    private static final int FILE_LENGTH = 1 << 18;
+    private static final long SLOW_MILLIS = 300;
+
+    /**
+     * The local file system, with every slowEvery-th positional read held
+     * up for SLOW_MILLIS, as if it had gone to a slow datanode.
+     */
+    public static class SlowFileSystem extends LocalFileSystem
+    {
+        private static final AtomicLong reads = new AtomicLong();
+        private static volatile int slowEvery;
+
+        @Override
+        public FSDataInputStream open(Path path, int bufferSize) throws IOException
+        {
+            return new FSDataInputStream(new SlowInputStream(super.open(path, bufferSize)));
+        }
+    }
+
+    private static class SlowInputStream extends FSInputStream
+    {
+        private final FSDataInputStream in;
+
+        private SlowInputStream(FSDataInputStream in)
+        {
+            this.in = in;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException
+        {
+            long read = SlowFileSystem.reads.incrementAndGet();
+            if (SlowFileSystem.slowEvery > 0 && read % SlowFileSystem.slowEvery == 0)
+            {
+                try
+                {
+                    Thread.sleep(SLOW_MILLIS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return in.read(position, buffer, offset, length);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return in.read();
+        }
+
+        @Override
+        public void seek(long pos) throws IOException
+        {
+            in.seek(pos);
+        }
+
+        @Override
+        public long getPos() throws IOException
+        {
+            return in.getPos();
+        }
+
+        @Override
+        public boolean seekToNewSource(long targetPos) throws IOException
+        {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    private Configuration conf;
+    private Configuration slowConf;
+    private byte[] contents;
+    private ReadExecutor executor;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        slowConf = new Configuration(conf);
+        slowConf.setClass("fs.file.impl", SlowFileSystem.class, FileSystem.class);
+        slowConf.setBoolean("fs.file.impl.disable.cache", true);
+        SlowFileSystem.slowEvery = 0;
+        tearDown();
+        contents = new byte[FILE_LENGTH];
+        new Random(8).nextBytes(contents);
+        FSDataOutputStream out = FileSystem.get(conf).create(new Path(DATA_FILE), true);
+        out.write(contents);
+        out.close();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (executor != null)
+        {
+            executor.close();
+        }
+        new File(LOCAL_FILE).delete();
+        FileSystem fs = FileSystem.get(conf);
+        fs.delete(new Path(DATA_FILE), false);
+        fs.delete(new Path(TREE_FILE), false);
+    }
+
+    /**
+     * @return the slowest of the reads, in milliseconds
+     */
+    private long readAll(HdfsFile file, int count, Random random) throws IOException
+    {
+        long slowest = 0;
+        byte[] buffer = new byte[512];
+        for (int i = 0; i < count; i++)
+        {
+            int position = random.nextInt(FILE_LENGTH - buffer.length);
+            long start = System.nanoTime();
+            file.read(position, buffer, 0, buffer.length);
+            slowest = Math.max(slowest, (System.nanoTime() - start) / 1000000);
+            assertArrayEquals(Arrays.copyOfRange(contents, position, position + buffer.length), buffer);
+        }
+        return slowest;
+    }
+
+    @Test
+    public void testHedgingHidesSlowReads() throws IOException
+    {
+        HdfsFile file = new HdfsFile(DATA_FILE, slowConf);
+        file.open();
+        SlowFileSystem.slowEvery = 25;
+        Random random = new Random(9);
+        assertTrue(readAll(file, 50, random) >= SLOW_MILLIS);
+
+        //enough threads that the slow losers still running do not hold up the hedges
+        executor = new ReadExecutor(16, 0.9);
+        file.setReadExecutor(executor);
+        //time enough reads for the delay to come down from the initial one
+        readAll(file, 64, random);
+        assertTrue(executor.getHedgeDelayNanos() < SLOW_MILLIS * 1000000 / 10);
+        long hedges = executor.getHedgeCount();
+        long wins = executor.getHedgeWinCount();
+        assertTrue(readAll(file, 200, random) < SLOW_MILLIS / 3);
+        assertTrue(executor.getHedgeCount() - hedges >= 200 / 25 - 1);
+        assertTrue(executor.getHedgeWinCount() - wins >= 200 / 25 - 1);
+    }
+
+    @Test
+    public void testParallelVectoredRead() throws IOException
+    {
+        HdfsFile file = new HdfsFile(DATA_FILE, slowConf);
+        file.open();
+        file.setMaxGap(0);
+        executor = new ReadExecutor(8, 0);
+        file.setReadExecutor(executor);
+        SlowFileSystem.slowEvery = 1;
+        ArrayList<HdfsFile.Range> ranges = new ArrayList<HdfsFile.Range>();
+        for (int i = 0; i < 8; i++)
+        {
+            ranges.add(new HdfsFile.Range(i * 20000, new byte[1000], 0, 1000));
+        }
+        long start = System.currentTimeMillis();
+        file.readVectored(ranges);
+        //all eight slow reads at once take about as long as one
+        assertTrue(System.currentTimeMillis() - start < 3 * SLOW_MILLIS);
+        assertEquals(8, executor.getReadCount());
+        assertEquals(0, executor.getHedgeCount());
+        for (HdfsFile.Range range : ranges)
+        {
+            int position = (int) range.getPosition();
+            assertArrayEquals(Arrays.copyOfRange(contents, position, position + 1000), range.getBuffer());
+        }
+    }
+
+    @Test
+    public void testSearchThroughExecutor() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, null, null);
+        for (int i = 0; i < 2000; i++)
+        {
+            tree.insert(new BattingBPlusRecord(String.format("k%05d", i), new Long(i)));
+        }
+        tree.syncToHdfs(TREE_FILE, conf);
+        BPlusTree<String, Long, BattingBPlusRecord> synced = new BPlusTree<String, Long, BattingBPlusRecord>(7,
+            new BattingBPlusConverter(), null, LOCAL_FILE, TREE_FILE, slowConf);
+        executor = new ReadExecutor(4, ReadExecutor.DEFAULT_HEDGE_PERCENTILE);
+        synced.setReadExecutor(executor);
+        SlowFileSystem.slowEvery = 50;
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < 2100; i += 7)
+        {
+            keys.add(String.format("k%05d", i));
+            expected.add(i < 2000 ? new Long(i) : null);
+            assertEquals(expected.get(expected.size() - 1), synced.search(keys.get(keys.size() - 1)));
+        }
+        assertEquals(expected, synced.searchAll(keys));
+        assertTrue(executor.getHedgeCount() > 0);
+    }
+}
@@ -0,0 +1,116 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.ShardManifest;
+import trees.ShardedIndex;
+import trees.ShardedIndexBuilder;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class ShardedIndexTest
+{
+    private static final File DIR = new File("ShardedIndexTest.dir").getAbsoluteFile();
+    private static final String MANIFEST = new File(DIR, "index.manifest").getPath();
+
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        tearDown();
+        DIR.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileSystem.get(conf).delete(new Path(DIR.getPath()), true);
+    }
+
+    private static String key(int i)
+    {
+        return String.format("k%06d", i);
+    }
+
+    private ShardedIndex<String, Long, BattingBPlusRecord> build(ShardManifest<String> manifest) throws IOException
+    {
+        ShardedIndexBuilder<String, Long> builder = new ShardedIndexBuilder<String, Long>(7,
+            new BattingBPlusConverter(), manifest, MANIFEST, 3, DIR);
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 10000; i++)
+        {
+            keys.add(2 * i);
+        }
+        Collections.shuffle(keys, new Random(12));
+        for (int i : keys)
+        {
+            builder.add(key(i), new Long(i));
+        }
+        builder.build(conf);
+        return new ShardedIndex<String, Long, BattingBPlusRecord>(7, new BattingBPlusConverter(), MANIFEST, conf);
+    }
+
+    private void check(ShardedIndex<String, Long, BattingBPlusRecord> index) throws IOException
+    {
+        assertEquals(10000, index.getKeyCount());
+        for (int i = 0; i < 20000; i++)
+        {
+            assertEquals(i % 2 == 0 ? new Long(i) : null, index.search(key(i)));
+        }
+        ArrayList<Long> expected = new ArrayList<Long>();
+        for (int i = 4990; i <= 15010; i += 2)
+        {
+            expected.add(new Long(i));
+        }
+        assertEquals(expected, index.getRange(key(4989), key(15011)));
+        assertEquals(Arrays.asList(new Long(0)), index.getRange("", key(1)));
+        assertTrue(index.getRange(key(20000), key(30000)).isEmpty());
+    }
+
+    @Test
+    public void testHashShards() throws IOException
+    {
+        ShardedIndex<String, Long, BattingBPlusRecord> index = build(new ShardManifest<String>(
+            new BattingBPlusConverter(), ShardManifest.Partitioning.HASH, 5, null, MANIFEST));
+        assertEquals(5, index.getShardCount());
+        check(index);
+        for (int i = 0; i < 5; i++)
+        {
+            //the keys spread evenly
+            long keys = index.getShard(i).getKeyCount();
+            assertTrue(keys + " keys in shard " + i, keys > 1500 && keys < 2500);
+        }
+    }
+
+    @Test
+    public void testRangeShards() throws IOException
+    {
+        List<String> splits = Arrays.asList(key(5000), key(10000), key(18000));
+        ShardedIndex<String, Long, BattingBPlusRecord> index = build(new ShardManifest<String>(
+            new BattingBPlusConverter(), ShardManifest.Partitioning.RANGE, 4, splits, MANIFEST));
+        check(index);
+        assertEquals(splits, index.getManifest().getSplits());
+        assertEquals(2500, index.getShard(0).getKeyCount());
+        assertEquals(1000, index.getShard(3).getKeyCount());
+        assertEquals(Arrays.asList(1, 2), index.getManifest().shardsFor(key(6000), key(12000)));
+        assertEquals(Arrays.asList(2), index.getManifest().shardsFor(key(10000), key(10000)));
+    }
+}
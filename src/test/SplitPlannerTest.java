@@ -0,0 +1,101 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.junit.After;
+import org.junit.Test;
+
+import indexes.FileRange;
+import indexes.HiveIndex;
+import indexes.SplitPlanner;
+import trees.PostingFile;
+import util.BPlusConverter;
+
+public class SplitPlannerTest
+{
+    private static final String LOCAL_FILE = "SplitPlannerTest.bin";
+
+    @After
+    public void tearDown()
+    {
+        new File(LOCAL_FILE).delete();
+        new File(LOCAL_FILE + PostingFile.POSTINGS_SUFFIX).delete();
+    }
+
+    private static void checkRange(FileRange range, String path, long start, long end, int rows)
+    {
+        assertEquals(path, range.getPath());
+        assertEquals(start, range.getStart());
+        assertEquals(end, range.getEnd());
+        assertEquals(rows, range.getOffsets().length);
+    }
+
+    @Test
+    public void testNearbyOffsetsAreCoalesced() throws IOException
+    {
+        SplitPlanner<String> planner = new SplitPlanner<String>(null, null);
+        planner.setMaxGap(100);
+        planner.setMaxSplitSize(1000);
+        Map<String, long[]> offsets = new LinkedHashMap<String, long[]>();
+        offsets.put("/t/a", new long[] { 0, 50, 150, 400, 450, 900, 1000, 1300 });
+        offsets.put("/t/b", new long[] { 7 });
+
+        List<FileRange> ranges = planner.plan(offsets);
+        assertEquals(5, ranges.size());
+        checkRange(ranges.get(0), "/t/a", 0, 151, 3);
+        checkRange(ranges.get(1), "/t/a", 400, 451, 2);
+        checkRange(ranges.get(2), "/t/a", 900, 1001, 2);
+        checkRange(ranges.get(3), "/t/a", 1300, 1301, 1);
+        checkRange(ranges.get(4), "/t/b", 7, 8, 1);
+
+        //a range stops growing at the most a split may take
+        planner.setMaxGap(Long.MAX_VALUE);
+        ranges = planner.plan(offsets);
+        assertEquals(3, ranges.size());
+        checkRange(ranges.get(0), "/t/a", 0, 901, 6);
+        checkRange(ranges.get(1), "/t/a", 1000, 1301, 2);
+    }
+
+    @Test
+    public void testRangesStayWithinBlocks() throws IOException
+    {
+        Configuration conf = new Configuration();
+        conf.set("fs.defaultFS", "file:///");
+        conf.setLong("fs.local.block.size", 4096);
+        FileSystem fs = FileSystem.newInstance(conf);
+        try
+        {
+            HiveIndex<String> index = new HiveIndex<String>(new BPlusConverter(), LOCAL_FILE);
+            index.add("k1", "/t/a", new long[] { 4000, 4090, 4100, 8000 });
+            index.add("k2", "/t/a", new long[] { 9000 });
+            index.add("k3", "/t/b", new long[] { 100 });
+            index.add("k3", "/t/a", new long[] { 8100 });
+            SplitPlanner<String> planner = new SplitPlanner<String>(index, fs);
+            planner.setMaxGap(4000);
+
+            List<FileRange> ranges = planner.plan("k1", "k2");
+            assertEquals(3, ranges.size());
+            checkRange(ranges.get(0), "/t/a", 4000, 4091, 2);
+            checkRange(ranges.get(1), "/t/a", 4100, 8001, 2);
+            checkRange(ranges.get(2), "/t/a", 9000, 9001, 1);
+
+            ranges = planner.plan("k3");
+            assertEquals(2, ranges.size());
+            checkRange(ranges.get(0), "/t/b", 100, 101, 1);
+            checkRange(ranges.get(1), "/t/a", 8100, 8101, 1);
+            assertEquals(2, SplitPlanner.totalLength(ranges));
+        }
+        finally
+        {
+            fs.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import trees.BPlusTree;
+import trees.BPlusTreeFile;
+import util.BattingBPlusConverter;
+import util.BattingBPlusRecord;
+
+public class WriteAheadLogTest
+{
+    private static final String FILE_NAME = "WriteAheadLogTest.bin";
+
+    @Before
+    public void setUp()
+    {
+        tearDown();
+    }
+
+    @After
+    public void tearDown()
+    {
+        new File(FILE_NAME).delete();
+        new File(FILE_NAME + BPlusTreeFile.WAL_SUFFIX).delete();
+    }
+
+    private BPlusTree<String, Long, BattingBPlusRecord> open() throws IOException
+    {
+        return new BPlusTree<String, Long, BattingBPlusRecord>(4,
+            new BattingBPlusConverter(), null, FILE_NAME, null, null);
+    }
+
+    @Test
+    public void testRecoverCommittedGroups() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.enableWriteAheadLog(10);
+        for (int i = 0; i < 105; i++)
+        {
+            tree.insert(new BattingBPlusRecord("k" + i, new Long(i)));
+        }
+        // the last five inserts are still searchable before the crash
+        assertEquals(new Long(104), tree.search("k104"));
+
+        // the JVM dies here: nothing past the last group commit is durable
+        BPlusTree<String, Long, BattingBPlusRecord> recovered = open();
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(new Long(i), recovered.search("k" + i));
+        }
+        assertNull(recovered.search("k104"));
+        assertFalse(new File(FILE_NAME + BPlusTreeFile.WAL_SUFFIX).exists());
+    }
+
+    @Test
+    public void testTornTailIsIgnored() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.enableWriteAheadLog(1);
+        for (int i = 0; i < 50; i++)
+        {
+            tree.insert(new BattingBPlusRecord("k" + i, new Long(i)));
+        }
+        RandomAccessFile log = new RandomAccessFile(FILE_NAME + BPlusTreeFile.WAL_SUFFIX, "rw");
+        log.setLength(log.length() - 3);
+        log.close();
+
+        BPlusTree<String, Long, BattingBPlusRecord> recovered = open();
+        for (int i = 0; i < 49; i++)
+        {
+            assertEquals(new Long(i), recovered.search("k" + i));
+        }
+    }
+
+    @Test
+    public void testFlushEmptiesLog() throws IOException
+    {
+        BPlusTree<String, Long, BattingBPlusRecord> tree = open();
+        tree.enableWriteAheadLog(1000);
+        for (int i = 0; i < 30; i++)
+        {
+            tree.insert(new BattingBPlusRecord("k" + i, new Long(i)));
+        }
+        tree.flush();
+        assertEquals(0, new File(FILE_NAME + BPlusTreeFile.WAL_SUFFIX).length());
+        BPlusTree<String, Long, BattingBPlusRecord> reopened = open();
+        for (int i = 0; i < 30; i++)
+        {
+            assertEquals(new Long(i), reopened.search("k" + i));
+        }
+    }
+}
@@ -297,4 +297,25 @@ public class BPlusInternalNode<KeyType extends Comparable<? super KeyType>> exte
         System.arraycopy( children, 1, tempChildren, 0, numChildren - 1);
         --numChildren;
     }
+    
+    /**
+     * Removes the child at childIndex along with the key that separates it
+     * from its left sibling (from its right sibling for the first child).
+     * @param childIndex
+     */
+    @SuppressWarnings("unchecked")
+    public void deleteChild(int childIndex)
+    {
+        int keyIndex = childIndex == 0 ? 0 : childIndex - 1;
+        KeyType[] tempKeys = (KeyType[]) new Comparable[keys.length];
+        System.arraycopy(keys, 0, tempKeys, 0, keyIndex);
+        System.arraycopy(keys, keyIndex + 1, tempKeys, keyIndex, keys.length - keyIndex - 1);
+        keys = tempKeys;
+        Long[] tempChildren = new Long[children.length];
+        System.arraycopy(children, 0, tempChildren, 0, childIndex);
+        System.arraycopy(children, childIndex + 1, tempChildren, childIndex, children.length - childIndex - 1);
+        children = tempChildren;
+        --numKeys;
+        --numChildren;
+    }
 }
\ No newline at end of file
@@ -6,14 +6,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import util.BPlusRecord;
 import util.Converter;
 import util.ModifiedBinarySearcher;
+import util.PrefixKey;
 import util.Utility;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 /**
  * This class implements a B+ Tree on disk.  The disk IO is handled by
  * the BPlusTreeFile class.
@@ -34,7 +37,21 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
     private long upRightChildOffset; //This is an offset pointing to the new child after a split occurs.
     private long upLeftChildOffset; //This offset represents the left node after being split.
     private BPlusTreeFile<KeyType, ValueType> treeFile;
+    private final Converter<KeyType, ValueType> converter;
     private BufferedWriter logger;
+    private int height; //Number of levels, a lone root leaf is 1.
+    private long keyCount;
+    private KeyType minKey;
+    private KeyType maxKey;
+    private boolean copyOnWrite;
+    private boolean childEmptied; //Set when a copy-on-write delete empties a leaf.
+    private long rootOffset; //Where the root lives in copy-on-write mode.
+    private int publishEvery;
+    private int updatesSincePublish;
+    private volatile BPlusTreeSnapshot<KeyType, ValueType> published;
+    private KeyFilter<KeyType> keyFilter; //Answers lookups for absent keys of a synced tree.
+    private double filterFalsePositiveRate; //0 when no filter is built on sync.
+    private int filterKeysPerPartition;
     
     /**
      * Sets m and the logger, initializes the tree file with the converter.
@@ -47,12 +64,41 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
             throws FileNotFoundException, IOException
     {
         this.M = m;
+        this.converter = converter;
         root = new BPlusLeaf<KeyType, ValueType>(m - 1);
         treeFile = new BPlusTreeFile<KeyType, ValueType>(m, converter);
         this.logger = logger;
+        height = 1;
+        rootOffset = Superblock.FIXED_ROOT;
         keepRoot();
     }
     
+    /**
+     * Opens the tree held by a tree file that is already open, such as a
+     * mapped local copy.
+     * @param m
+     * @param treeFile
+     * @throws IOException
+     */
+    public BPlusTree(int m, BPlusTreeFile<KeyType, ValueType> treeFile) throws IOException
+    {
+        this.M = m;
+        this.converter = treeFile.getConverter();
+        this.treeFile = treeFile;
+        root = treeFile.getRoot();
+        height = treeFile.getHeight();
+        keyCount = treeFile.getKeyCount();
+        minKey = treeFile.getMinKey();
+        maxKey = treeFile.getMaxKey();
+        rootOffset = treeFile.getSuperblock().getRootOffset();
+        if (rootOffset != Superblock.FIXED_ROOT)
+        {
+            //the file was written copy-on-write or built append-only, the
+            //fixed root page is stale
+            enableCopyOnWrite(1);
+        }
+    }
+    
     /**
      * Sets m and the logger, initializes the tree file with the converter. 
      * If both hdfsfilename and conf are not null, btreefile will use assigned hdfs file
@@ -69,15 +115,12 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
             String localfilename, String hdfsfilename, Configuration conf) 
                     throws FileNotFoundException, IOException
     {
-        this.M = m;
-        treeFile = new BPlusTreeFile<KeyType, ValueType>(m, converter, localfilename, hdfsfilename, conf);
-        try {
-            root = treeFile.getRoot();
-        } catch (ArrayIndexOutOfBoundsException e) {
-            System.err.println("Array Exception");
-            root = new BPlusLeaf<KeyType, ValueType>(m - 1);  
-        }
+        this(m, new BPlusTreeFile<KeyType, ValueType>(m, converter, localfilename, hdfsfilename, conf));
         this.logger = logger;
+        if (hdfsfilename != null && conf != null)
+        {
+            keyFilter = KeyFilter.read(FileSystem.get(conf), hdfsfilename, converter, treeFile.getSuperblock());
+        }
     }
     
     /**
@@ -98,18 +141,306 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
      */
     public void remove(RecordType record ) throws IOException
     {
-        delete(root, record, -1); 
-        if (root.numKeys == 0 && !root.isLeaf())
+        boolean found = search(record.getKey()) != null;
+        if (copyOnWrite)
         {
-            root = treeFile.readNode(((BPlusInternalNode<KeyType>)root).getChildren()[0]);
+            if (found)
+            {
+                removeCopyOnWrite(record.getKey());
+            }
         }
-        keepRoot();
+        else
+        {
+            delete(root, record, -1); 
+            if (root.numKeys == 0 && !root.isLeaf())
+            {
+                root = treeFile.readNode(((BPlusInternalNode<KeyType>)root).getChildren()[0]);
+                height--;
+            }
+        }
+        if (found)
+        {
+            keyCount--;
+            if (keyCount == 0)
+            {
+                minKey = null;
+                maxKey = null;
+            }
+            else if (record.getKey().compareTo(minKey) == 0 || record.getKey().compareTo(maxKey) == 0)
+            {
+                findBounds();
+            }
+        }
+        if (copyOnWrite)
+        {
+            publishIfDue();
+        }
+        else
+        {
+            keepRoot();
+        }
+        treeFile.commit();
+    }
+    
+    /**
+     * Makes every insert and remove atomic and durable through a redo log kept
+     * next to the local file.  The log is forced once per groupCommitSize
+     * operations, so a crash loses at most the last group but never leaves
+     * a half-written split behind; the next open replays the log.
+     * @param groupCommitSize
+     * @throws IOException
+     */
+    public void enableWriteAheadLog(int groupCommitSize) throws IOException
+    {
+        if (copyOnWrite)
+        {
+            throw new IOException("Copy-on-write trees do not use a redo log");
+        }
+        treeFile.enableWriteAheadLog(groupCommitSize);
+    }
+    
+    /**
+     * Switches the tree to copy-on-write: instead of being updated in place,
+     * every node an insert or remove changes is written to a new page, the
+     * path up to the root is rewritten, and the new root is published through
+     * the superblock.  Readers working from a snapshot() never see a
+     * half-applied update and never wait for the writer.
+     * 
+     * Nodes written since the last publish are still private to the writer
+     * and are updated in place, so publishing every publishEvery updates
+     * instead of every one saves both pages and forced writes.  Pages of old
+     * versions are never reclaimed; the file only grows.  Leaves are not
+     * merged and sibling links are not maintained, a leaf that runs empty is
+     * simply dropped from its parent.  Once a root has been published the
+     * file stays copy-on-write, also when it is opened again.
+     * @param publishEvery
+     * @throws IOException
+     */
+    public void enableCopyOnWrite(int publishEvery) throws IOException
+    {
+        if (treeFile.isWriteAheadLogEnabled())
+        {
+            throw new IOException("Copy-on-write trees do not use a redo log");
+        }
+        this.publishEvery = Math.max(1, publishEvery);
+        if (!copyOnWrite)
+        {
+            copyOnWrite = true;
+            updatesSincePublish = 0;
+            treeFile.markPublished();
+            published = new BPlusTreeSnapshot<KeyType, ValueType>(treeFile, treeFile.getRoot(), rootOffset,
+                treeFile.getSuperblock().getGeneration(), height, keyCount, minKey, maxKey);
+        }
+    }
+    
+    public boolean isCopyOnWrite()
+    {
+        return copyOnWrite;
+    }
+    
+    /**
+     * Publishes the current root of a copy-on-write tree: the pages written
+     * so far are forced to disk, then a new superblock points at the root.
+     * @throws IOException
+     */
+    public void publish() throws IOException
+    {
+        if (!copyOnWrite)
+        {
+            throw new IllegalStateException("Copy-on-write is not enabled");
+        }
+        if (updatesSincePublish == 0)
+        {
+            return;
+        }
+        treeFile.publishRoot(rootOffset, height, keyCount, minKey, maxKey);
+        published = new BPlusTreeSnapshot<KeyType, ValueType>(treeFile, treeFile.readNode(rootOffset), rootOffset,
+            treeFile.getSuperblock().getGeneration(), height, keyCount, minKey, maxKey);
+        updatesSincePublish = 0;
+    }
+    
+    /**
+     * Returns the last published version of a copy-on-write tree.  The
+     * snapshot can be searched from any thread while the tree is updated.
+     * @return the snapshot
+     */
+    public BPlusTreeSnapshot<KeyType, ValueType> snapshot()
+    {
+        if (!copyOnWrite)
+        {
+            throw new IllegalStateException("Copy-on-write is not enabled");
+        }
+        return published;
+    }
+    
+    private void publishIfDue() throws IOException
+    {
+        if (++updatesSincePublish >= publishEvery)
+        {
+            publish();
+        }
+    }
+    
+    /**
+     * Writes every buffered operation to the local file.
+     * @throws IOException
+     */
+    public void flush() throws IOException
+    {
+        treeFile.flush();
+    }
+    
+    /**
+     * Turns page checksum verification on or off.  Verification happens only
+     * the first time a page is loaded, so cached lookups never pay for it;
+     * turn it off for hot paths that can tolerate a corrupt page.
+     * @param verify
+     */
+    public void setVerifyChecksums(boolean verify)
+    {
+        treeFile.setVerifyChecksums(verify);
+    }
+    
+    /**
+     * Sends the node reads of the synced tree through an executor, which
+     * hedges slow reads and runs the reads of searchAll in parallel.
+     * @param executor the executor, or null to read on the calling thread
+     */
+    public void setReadExecutor(ReadExecutor executor)
+    {
+        treeFile.setReadExecutor(executor);
+    }
+    
+    /**
+     * Keeps the nodes read from HDFS in a page cache on local disk too, so
+     * that they survive a restart.
+     * @param cache a cache for pages of getPageLength() bytes, or null
+     */
+    public void setPageCache(PageCache cache)
+    {
+        treeFile.setPageCache(cache);
+    }
+    
+    /**
+     * @return the length of the pages the nodes are stored in
+     */
+    public int getPageLength()
+    {
+        return treeFile.getPageLength();
+    }
+    
+    /**
+     * @return the hdfs file the tree is synced to, or null
+     */
+    public String getHdfsFileName()
+    {
+        return treeFile.getHdfsFileName();
+    }
+    
+    /**
+     * Closes the hdfs file of a synced tree, once nothing reads the tree
+     * any more.
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        treeFile.closeHdfs();
+    }
+    
+    /**
+     * Builds Bloom filters over the keys when the tree is synced, and writes
+     * them next to it, so that searches of the synced tree for absent keys
+     * usually need no reads at all.  Opening the synced tree picks them up.
+     * @param falsePositiveRate the share of absent keys let through, e.g. 0.01
+     * @param keysPerPartition the keys in each of the filters covering
+     * consecutive key ranges, or 0 for a single filter
+     */
+    public void setKeyFilter(double falsePositiveRate, int keysPerPartition)
+    {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+        {
+            throw new IllegalArgumentException("False positive rate " + falsePositiveRate + " is not between 0 and 1");
+        }
+        filterFalsePositiveRate = falsePositiveRate;
+        filterKeysPerPartition = keysPerPartition;
+    }
+    
+    /**
+     * @return the filters of a synced tree, or null if it has none.
+     */
+    public KeyFilter<KeyType> getKeyFilter()
+    {
+        return keyFilter;
+    }
+    
+    /**
+     * Makes syncToHdfs lay the tree out level by level: the internal nodes
+     * packed together at the head of the file, root first, followed by the
+     * leaves in key order, and no node split across two hdfs blocks.  A
+     * lookup then finds the upper levels in one place, likely already read
+     * ahead, and a range scan reads the leaves sequentially.
+     * @param levelOrdered
+     */
+    public void setLevelOrderedSync(boolean levelOrdered)
+    {
+        treeFile.setLevelOrdered(levelOrdered);
+    }
+    
+    /**
+     * Writes a copy of the tree to a local file with the nodes in another
+     * order, e.g. van Emde Boas order for serving it read-only from a mapped
+     * file (see the mapped BPlusTreeFile constructor).  Pointers are
+     * rewritten in the copy, so it opens like any tree file.
+     * @param fileName
+     * @param layout
+     * @throws IOException
+     */
+    public void export(String fileName, TreeLayout layout) throws IOException
+    {
+        if (copyOnWrite)
+        {
+            publish();
+        }
+        flush();
+        treeFile.writeLayout(fileName, layout, 0);
     }
     
     public void syncToHdfs(String path, Configuration conf) throws IOException 
     {
+        if (copyOnWrite)
+        {
+            publish();
+        }
+        KeyFilter.Builder<KeyType> filterBuilder = null;
+        if (filterFalsePositiveRate > 0)
+        {
+            //read the keys from the local file, before it moves
+            filterBuilder = new KeyFilter.Builder<KeyType>(converter, keyCount, filterFalsePositiveRate,
+                filterKeysPerPartition);
+            BPlusTreeCursor<KeyType, ValueType> cursor = cursor(null);
+            while (cursor.next())
+            {
+                filterBuilder.add(cursor.getKey());
+            }
+        }
         treeFile.setupHdfs(path, conf);
         treeFile.syncToHdfs();
+        if (treeFile.isLevelOrdered())
+        {
+            //every node has moved
+            root = treeFile.getRoot();
+            rootOffset = treeFile.getSuperblock().getRootOffset();
+            if (copyOnWrite)
+            {
+                published = new BPlusTreeSnapshot<KeyType, ValueType>(treeFile, root, rootOffset,
+                    treeFile.getSuperblock().getGeneration(), height, keyCount, minKey, maxKey);
+            }
+        }
+        if (filterBuilder != null)
+        {
+            keyFilter = filterBuilder.build(treeFile.getSuperblock());
+            keyFilter.write(FileSystem.get(conf), path);
+        }
     }
     
     /**
@@ -123,6 +454,16 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
     public List<ValueType> getRange(KeyType key1, KeyType key2) throws IOException
     {
         ArrayList<ValueType> recordsInRange = new ArrayList<ValueType>();
+        if (copyOnWrite)
+        {
+            //no sibling links to follow, the cursor goes through the parents instead
+            BPlusTreeCursor<KeyType, ValueType> cursor = cursor(key1);
+            while (cursor.next() && cursor.getKey().compareTo(key2) <= 0)
+            {
+                recordsInRange.add(cursor.getValue());
+            }
+            return recordsInRange;
+        }
         BPlusLeaf<KeyType, ValueType> leaf = findLeaf(root, key1);
         boolean stillInRange = true;
         KeyType[] keys;
@@ -156,6 +497,52 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
         return recordsInRange;
     }
     
+    /**
+     * Returns the records whose keys start with the given prefix, such as
+     * all the rows of a player under (playerId, year) keys.  A prefix sorts
+     * right before the keys extending it, so this is a single range scan
+     * from the prefix, ending at the first key without it.
+     * @param prefix a PrefixKey, or a String for string keys
+     * @return a list of records for the prefix, in key order
+     * @throws IOException
+     */
+    public List<ValueType> getPrefixRange(KeyType prefix) throws IOException
+    {
+        ArrayList<ValueType> recordsWithPrefix = new ArrayList<ValueType>();
+        BPlusTreeCursor<KeyType, ValueType> cursor = cursor(prefix);
+        while (cursor.next() && startsWith(cursor.getKey(), prefix))
+        {
+            recordsWithPrefix.add(cursor.getValue());
+        }
+        return recordsWithPrefix;
+    }
+    
+    /**
+     * @param key
+     * @param prefix
+     * @return whether the key starts with the prefix
+     */
+    public static <KeyType> boolean startsWith(KeyType key, KeyType prefix)
+    {
+        if (key instanceof PrefixKey)
+            return ((PrefixKey<KeyType>) key).startsWith(prefix);
+        if (key instanceof String)
+            return ((String) key).startsWith((String) prefix);
+        throw new IllegalArgumentException("Keys of " + key.getClass().getName() + " have no prefixes");
+    }
+    
+    /**
+     * Returns a cursor over the records in key order.  Unlike getRange it
+     * does not collect the records, so it suits scans of the whole tree.
+     * @param from the first key of interest, or null to start at the smallest
+     * @return the cursor
+     * @throws IOException
+     */
+    public BPlusTreeCursor<KeyType, ValueType> cursor(KeyType from) throws IOException
+    {
+        return new BPlusTreeCursor<KeyType, ValueType>(treeFile, root, from);
+    }
+    
    
     private BPlusLeaf<KeyType, ValueType> findLeaf(
         BPlusNode<KeyType> sRoot,
@@ -206,9 +593,54 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
      */
     public ValueType search(KeyType key) throws IOException
     {
+        if (keyFilter != null && !keyFilter.mightContain(key))
+        {
+            return null;
+        }
         return search(key, root);
     }
     
+    /**
+     * Looks a batch of keys up, descending the tree one level at a time for
+     * all of them together.  On a synced tree every level then takes a
+     * single vectored read rather than a read per key, and keys sharing a
+     * path share its nodes.
+     * @param keys
+     * @return the record for each key, or null if not found, in key order
+     * of the argument
+     * @throws IOException
+     */
+    public List<ValueType> searchAll(List<KeyType> keys) throws IOException
+    {
+        ArrayList<ValueType> results = new ArrayList<ValueType>(keys.size());
+        ArrayList<KeyType> pending = new ArrayList<KeyType>();
+        ArrayList<Integer> pendingIndex = new ArrayList<Integer>();
+        for (int i = 0; i < keys.size(); i++)
+        {
+            results.add(null);
+            if (keyFilter == null || keyFilter.mightContain(keys.get(i)))
+            {
+                pending.add(keys.get(i));
+                pendingIndex.add(i);
+            }
+        }
+        List<BPlusNode<KeyType>> nodes = new ArrayList<BPlusNode<KeyType>>(Collections.nCopies(pending.size(), root));
+        while (!pending.isEmpty() && !nodes.get(0).isLeaf())
+        {
+            ArrayList<Long> children = new ArrayList<Long>(pending.size());
+            for (int i = 0; i < pending.size(); i++)
+            {
+                children.add(((BPlusInternalNode<KeyType>)nodes.get(i)).search(pending.get(i)));
+            }
+            nodes = treeFile.readNodes(children);
+        }
+        for (int i = 0; i < pending.size(); i++)
+        {
+            results.set(pendingIndex.get(i), ((BPlusLeaf<KeyType, ValueType>)nodes.get(i)).search(pending.get(i)));
+        }
+        return results;
+    }
+    
     /**
      * Delete helper function.
      * @param sRoot
@@ -525,11 +957,77 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
      */
     public void keepRoot() throws IOException {
         //System.err.print("keep root");
+        if (copyOnWrite) {
+            publish();
+            return;
+        }
         if (root.isLeaf()) {
             treeFile.writeLeaf((BPlusLeaf<KeyType, ValueType>)root, -1);
         } else {
             treeFile.writeInternalNode((BPlusInternalNode<KeyType>)root, -1);
         }
+        treeFile.writeSuperblock(height, keyCount, minKey, maxKey);
+    }
+    
+    /**
+     * Reads the smallest and largest keys back from the outermost leaves.
+     * @throws IOException
+     */
+    private void findBounds() throws IOException
+    {
+        BPlusNode<KeyType> node = root;
+        while (!node.isLeaf())
+        {
+            node = treeFile.readNode(((BPlusInternalNode<KeyType>)node).getChildren()[0]);
+        }
+        minKey = node.getNumKeys() > 0 ? node.getKeys()[0] : null;
+        node = root;
+        while (!node.isLeaf())
+        {
+            BPlusInternalNode<KeyType> internal = (BPlusInternalNode<KeyType>)node;
+            node = treeFile.readNode(internal.getChildren()[internal.getNumChildren() - 1]);
+        }
+        maxKey = node.getNumKeys() > 0 ? node.getKeys()[node.getNumKeys() - 1] : null;
+    }
+    
+    /**
+     * @return the number of levels in the tree, 1 for a lone root leaf.
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    /**
+     * @return the number of records in the tree.
+     */
+    public long getKeyCount()
+    {
+        return keyCount;
+    }
+    
+    /**
+     * @return the smallest key in the tree, or null if it is empty.
+     */
+    public KeyType getMinKey()
+    {
+        return minKey;
+    }
+    
+    /**
+     * @return the largest key in the tree, or null if it is empty.
+     */
+    public KeyType getMaxKey()
+    {
+        return maxKey;
+    }
+    
+    /**
+     * @return the last delta run folded into this tree by a compaction, or 0.
+     */
+    public long getDeltaSequence()
+    {
+        return treeFile.getSuperblock().getDeltaSequence();
     }
     
     /**
@@ -539,8 +1037,15 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
      */
     public void insert(RecordType record) throws IOException
     {
-        insert(record, root, -1);
-        if (splitHappened) //if a split happened, the root was split.  All we have to do is make the root a new internal node with one key (upVal) and the left/right pointers.
+        if (copyOnWrite)
+        {
+            insertCopyOnWrite(record);
+        }
+        else
+        {
+            insert(record, root, -1);
+        }
+        if (!copyOnWrite && splitHappened) //if a split happened, the root was split.  All we have to do is make the root a new internal node with one key (upVal) and the left/right pointers.
         {
             KeyType[] newRootKeys = (KeyType[]) new Comparable[M -1];
             Long[] newRootChildren = new Long[M];
@@ -548,8 +1053,214 @@ public class BPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, R
             newRootChildren[0] = upLeftChildOffset;
             newRootChildren[1] = upRightChildOffset;
             root = new BPlusInternalNode<KeyType>(newRootKeys, 1, newRootChildren, 2);
+            height++;
         }
-        keepRoot();
+        KeyType key = record.getKey();
+        keyCount++;
+        if (minKey == null || key.compareTo(minKey) < 0)
+        {
+            minKey = key;
+        }
+        if (maxKey == null || key.compareTo(maxKey) > 0)
+        {
+            maxKey = key;
+        }
+        if (copyOnWrite)
+        {
+            publishIfDue();
+        }
+        else
+        {
+            keepRoot();
+        }
+        treeFile.commit();
+    }
+    
+    /**
+     * Copy-on-write insert: rewrites the path from the root and grows a new
+     * root if the old one split.
+     * @param record
+     * @throws IOException
+     */
+    private void insertCopyOnWrite(RecordType record) throws IOException
+    {
+        long newOffset = insertCopy(record, root, rootOffset);
+        if (splitHappened)
+        {
+            KeyType[] newRootKeys = (KeyType[]) new Comparable[M -1];
+            Long[] newRootChildren = new Long[M];
+            newRootKeys[0] = upVal;
+            newRootChildren[0] = newOffset;
+            newRootChildren[1] = upRightChildOffset;
+            root = new BPlusInternalNode<KeyType>(newRootKeys, 1, newRootChildren, 2);
+            rootOffset = treeFile.writeNewInternalNode((BPlusInternalNode<KeyType>) root);
+            splitHappened = false;
+        }
+        else
+        {
+            rootOffset = newOffset;
+        }
+    }
+    
+    /**
+     * Copy-on-write insert helper.  The node is changed and written back
+     * through the tree file, which moves it to a new page unless nobody can
+     * see it yet.  A split leaves the median in upVal and the new right
+     * node in upRightChildOffset, as in the in-place insert.
+     * @param record
+     * @param sRoot
+     * @param thisOffset
+     * @return the offset the node (the left half, if it split) now lives at
+     * @throws IOException
+     */
+    private long insertCopy(RecordType record, BPlusNode<KeyType> sRoot, long thisOffset) throws IOException
+    {
+        if (sRoot.isLeaf())
+        {
+            BPlusLeaf<KeyType, ValueType> leaf = (BPlusLeaf<KeyType, ValueType>) sRoot;
+            splitHappened = leaf.isFull();
+            if (!splitHappened)
+            {
+                leaf.insert(record.getKey(), record.getValue());
+                return treeFile.writeLeafCopy(leaf, thisOffset);
+            }
+            KeyType[] sortedKeys = (KeyType[]) new Comparable[M];
+            ValueType[] sortedRecords = (ValueType[]) new Object[M];
+            ModifiedBinarySearcher<KeyType> searcher = new ModifiedBinarySearcher<KeyType>(leaf.getKeys());
+            int keyIndex = searcher.findIndexOfNextGreatest(record.getKey(), 0, M - 2) + 1;
+            System.arraycopy(leaf.getKeys(), 0, sortedKeys, 0, keyIndex);
+            sortedKeys[keyIndex] = record.getKey();
+            System.arraycopy(leaf.getKeys(), keyIndex, sortedKeys, keyIndex + 1, M - keyIndex - 1);
+            System.arraycopy(leaf.getRecords(), 0, sortedRecords, 0, keyIndex);
+            sortedRecords[keyIndex] = record.getValue();
+            System.arraycopy(leaf.getRecords(), keyIndex, sortedRecords, keyIndex + 1, M - keyIndex - 1);
+            
+            int upValIndex = M / 2;
+            upVal = sortedKeys[upValIndex];
+            KeyType[] leftKeys = (KeyType[]) new Comparable[M - 1];
+            KeyType[] rightKeys = (KeyType[]) new Comparable[M - 1];
+            ValueType[] leftRecords = (ValueType[]) new Object[M - 1];
+            ValueType[] rightRecords = (ValueType[]) new Object[M - 1];
+            System.arraycopy(sortedKeys, 0, leftKeys, 0, upValIndex);
+            System.arraycopy(sortedKeys, upValIndex, rightKeys, 0, M - upValIndex);
+            System.arraycopy(sortedRecords, 0, leftRecords, 0, upValIndex);
+            System.arraycopy(sortedRecords, upValIndex, rightRecords, 0, M - upValIndex);
+            upRightChildOffset = treeFile.writeNewLeaf(
+                new BPlusLeaf<KeyType, ValueType>(rightKeys, M - upValIndex, rightRecords, -1, -1));
+            return treeFile.writeLeafCopy(
+                new BPlusLeaf<KeyType, ValueType>(leftKeys, upValIndex, leftRecords, -1, -1), thisOffset);
+        }
+        
+        BPlusInternalNode<KeyType> internal = (BPlusInternalNode<KeyType>) sRoot;
+        Long[] children = internal.getChildren();
+        long childOffset = internal.search(record.getKey());
+        int childIndex = Utility.indexOf(children, childOffset);
+        children[childIndex] = insertCopy(record, treeFile.readNode(childOffset), childOffset);
+        if (!splitHappened)
+        {
+            return treeFile.writeInternalNodeCopy(internal, thisOffset);
+        }
+        if (!internal.isFull())
+        {
+            internal.add(upVal, upRightChildOffset);
+            splitHappened = false;
+            return treeFile.writeInternalNodeCopy(internal, thisOffset);
+        }
+        
+        //the median key moves up, the new child goes right after the one that split
+        KeyType[] sortedKeys = (KeyType[]) new Comparable[M];
+        Long[] sortedChildren = new Long[M + 1];
+        System.arraycopy(internal.getKeys(), 0, sortedKeys, 0, childIndex);
+        sortedKeys[childIndex] = upVal;
+        System.arraycopy(internal.getKeys(), childIndex, sortedKeys, childIndex + 1, M - 1 - childIndex);
+        System.arraycopy(children, 0, sortedChildren, 0, childIndex + 1);
+        sortedChildren[childIndex + 1] = upRightChildOffset;
+        System.arraycopy(children, childIndex + 1, sortedChildren, childIndex + 2, M - childIndex - 1);
+        
+        int upValIndex = M / 2;
+        upVal = sortedKeys[upValIndex];
+        KeyType[] leftKeys = (KeyType[]) new Comparable[M - 1];
+        KeyType[] rightKeys = (KeyType[]) new Comparable[M - 1];
+        Long[] leftChildren = new Long[M];
+        Long[] rightChildren = new Long[M];
+        System.arraycopy(sortedKeys, 0, leftKeys, 0, upValIndex);
+        System.arraycopy(sortedKeys, upValIndex + 1, rightKeys, 0, M - upValIndex - 1);
+        System.arraycopy(sortedChildren, 0, leftChildren, 0, upValIndex + 1);
+        System.arraycopy(sortedChildren, upValIndex + 1, rightChildren, 0, M - upValIndex);
+        upRightChildOffset = treeFile.writeNewInternalNode(
+            new BPlusInternalNode<KeyType>(rightKeys, M - upValIndex - 1, rightChildren, M - upValIndex));
+        return treeFile.writeInternalNodeCopy(
+            new BPlusInternalNode<KeyType>(leftKeys, upValIndex, leftChildren, upValIndex + 1), thisOffset);
+    }
+    
+    /**
+     * Copy-on-write remove of a key known to be in the tree.  Shrinks the
+     * tree while the root has a single child.
+     * @param key
+     * @throws IOException
+     */
+    private void removeCopyOnWrite(KeyType key) throws IOException
+    {
+        rootOffset = deleteCopy(key, root, rootOffset);
+        if (childEmptied && !root.isLeaf())
+        {
+            //that was the last key
+            root = new BPlusLeaf<KeyType, ValueType>(M - 1);
+            rootOffset = treeFile.writeNewLeaf((BPlusLeaf<KeyType, ValueType>) root);
+            height = 1;
+        }
+        childEmptied = false;
+        while (!root.isLeaf() && ((BPlusInternalNode<KeyType>) root).getNumChildren() == 1)
+        {
+            rootOffset = ((BPlusInternalNode<KeyType>) root).getChildren()[0];
+            root = treeFile.readNode(rootOffset);
+            height--;
+        }
+    }
+    
+    /**
+     * Copy-on-write delete helper.  A subtree that runs empty is dropped
+     * from its parent; if it was the only child, the parent is empty too.
+     * @param key
+     * @param sRoot
+     * @param thisOffset
+     * @return the offset the node now lives at
+     * @throws IOException
+     */
+    private long deleteCopy(KeyType key, BPlusNode<KeyType> sRoot, long thisOffset) throws IOException
+    {
+        if (sRoot.isLeaf())
+        {
+            BPlusLeaf<KeyType, ValueType> leaf = (BPlusLeaf<KeyType, ValueType>) sRoot;
+            leaf.delete(key);
+            childEmptied = leaf.getNumKeys() == 0;
+            if (childEmptied && sRoot != root)
+            {
+                //the parent drops it, no need for a copy
+                return thisOffset;
+            }
+            return treeFile.writeLeafCopy(leaf, thisOffset);
+        }
+        BPlusInternalNode<KeyType> internal = (BPlusInternalNode<KeyType>) sRoot;
+        Long[] children = internal.getChildren();
+        long childOffset = internal.search(key);
+        int childIndex = Utility.indexOf(children, childOffset);
+        long newChildOffset = deleteCopy(key, treeFile.readNode(childOffset), childOffset);
+        if (childEmptied)
+        {
+            if (internal.getNumChildren() == 1)
+            {
+                //the parent drops this node as well
+                return thisOffset;
+            }
+            internal.deleteChild(childIndex);
+            childEmptied = false;
+        }
+        else
+        {
+            children[childIndex] = newChildOffset;
+        }
+        return treeFile.writeInternalNodeCopy(internal, thisOffset);
     }
 
     /**
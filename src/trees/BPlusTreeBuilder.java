@@ -0,0 +1,315 @@
+package trees;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+
+import util.Converter;
+
+/**
+ * Builds a tree bottom-up from records that arrive in key order, writing
+ * every node exactly once: leaves are filled completely and written as
+ * soon as the next one starts, and an internal node is written once it
+ * has M children.  The root and the superblock come last, so the tree can
+ * be written append-only (see the stream constructor of BPlusTreeFile).
+ *
+ * Sibling links are not set; read the result with a cursor.
+ *
+ * toHdfs() builds straight into a file in hdfs, so sorted input never needs
+ * a local copy of the tree, nor a second pass to copy it over.  The file is
+ * written under a temporary name and renamed into place by finish().
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+@SuppressWarnings("unchecked")
+public class BPlusTreeBuilder<KeyType extends Comparable<? super KeyType>, ValueType>
+{
+    /**
+     * An internal node that is still collecting children.
+     */
+    private class PendingNode
+    {
+        private final ArrayList<KeyType> keys = new ArrayList<KeyType>();
+        private final ArrayList<Long> children = new ArrayList<Long>();
+        private KeyType firstKey;
+    }
+
+    public static final String TEMP_SUFFIX = ".build.tmp";
+
+    private final BPlusTreeFile<KeyType, ValueType> treeFile;
+    private final int M;
+    private final ArrayList<PendingNode> levels;
+    private KeyType[] leafKeys;
+    private ValueType[] leafRecords;
+    private int leafCount;
+    private long keyCount;
+    private KeyType minKey;
+    private KeyType maxKey;
+    private boolean finished;
+    // Set when building straight into hdfs.
+    private HdfsFile hdfsFile;
+    private String hdfsFileName;
+    private KeyFilter.Builder<KeyType> filterBuilder;
+
+    /**
+     * @param treeFile an empty tree file, usually writing to a stream
+     * @param m the order of the tree
+     */
+    public BPlusTreeBuilder(BPlusTreeFile<KeyType, ValueType> treeFile, int m)
+    {
+        this.treeFile = treeFile;
+        this.M = m;
+        this.levels = new ArrayList<PendingNode>();
+        this.leafKeys = (KeyType[]) new Comparable[m - 1];
+        this.leafRecords = (ValueType[]) new Object[m - 1];
+    }
+
+    /**
+     * Starts a tree built straight into a file in hdfs.
+     * @param m the order of the tree
+     * @param converter
+     * @param hdfsFileName the file the tree ends up in once finished
+     * @param conf
+     * @return the builder
+     * @throws IOException
+     */
+    public static <KeyType extends Comparable<? super KeyType>, ValueType> BPlusTreeBuilder<KeyType, ValueType> toHdfs(
+        int m, Converter<KeyType, ValueType> converter, String hdfsFileName, Configuration conf) throws IOException
+    {
+        HdfsFile file = new HdfsFile(hdfsFileName + TEMP_SUFFIX, conf);
+        BPlusTreeBuilder<KeyType, ValueType> builder = new BPlusTreeBuilder<KeyType, ValueType>(
+            new BPlusTreeFile<KeyType, ValueType>(m, converter, file.create()), m);
+        builder.hdfsFile = file;
+        builder.hdfsFileName = hdfsFileName;
+        return builder;
+    }
+
+    /**
+     * Builds Bloom filters over the keys as well, written next to the tree
+     * by finish() (see BPlusTree.setKeyFilter).  Only for trees built into
+     * hdfs.
+     * @param falsePositiveRate
+     * @param keysPerPartition
+     * @param expectedKeys about how many keys will be added
+     */
+    public void setKeyFilter(double falsePositiveRate, int keysPerPartition, long expectedKeys)
+    {
+        if (hdfsFile == null)
+        {
+            throw new IllegalStateException("Key filters are only built into hdfs");
+        }
+        filterBuilder = new KeyFilter.Builder<KeyType>(treeFile.getConverter(), expectedKeys, falsePositiveRate,
+            keysPerPartition);
+    }
+
+    /**
+     * Appends a record.  Keys must not decrease.
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    public void add(KeyType key, ValueType value) throws IOException
+    {
+        if (finished)
+        {
+            throw new IllegalStateException("Tree has been finished");
+        }
+        if (maxKey != null && key.compareTo(maxKey) < 0)
+        {
+            throw new IllegalArgumentException("Key " + key + " added after " + maxKey);
+        }
+        if (leafCount == M - 1)
+        {
+            writeLeaf();
+        }
+        leafKeys[leafCount] = key;
+        leafRecords[leafCount] = value;
+        leafCount++;
+        if (filterBuilder != null)
+        {
+            filterBuilder.add(key);
+        }
+        keyCount++;
+        if (minKey == null)
+        {
+            minKey = key;
+        }
+        maxKey = key;
+    }
+
+    /**
+     * Adds a leaf written elsewhere, as when the leaves of the tree are
+     * written in parallel (see ParallelTreeBuilder), to be indexed by the
+     * internal nodes this builder writes.  Do not mix with add().
+     * @param firstKey
+     * @param lastKey
+     * @param keys the keys in the leaf
+     * @param offset
+     * @throws IOException
+     */
+    void addLeaf(KeyType firstKey, KeyType lastKey, int keys, long offset) throws IOException
+    {
+        if (maxKey != null && firstKey.compareTo(maxKey) < 0)
+        {
+            throw new IllegalArgumentException("Leaf from " + firstKey + " added after " + maxKey);
+        }
+        addChild(0, firstKey, offset);
+        keyCount += keys;
+        if (minKey == null)
+        {
+            minKey = firstKey;
+        }
+        maxKey = lastKey;
+    }
+
+    /**
+     * Writes the last leaf and the partly filled internal nodes, then the
+     * superblock.  A tree built into hdfs is then closed and moved into
+     * place, followed by its key filter.
+     * @return the offset of the root
+     * @throws IOException
+     */
+    public long finish() throws IOException
+    {
+        long root = write();
+        publish();
+        return root;
+    }
+
+    /**
+     * The first half of finish(): writes the rest of the tree, and closes a
+     * tree built into hdfs under its temporary name.
+     * @return the offset of the root
+     * @throws IOException
+     */
+    long write() throws IOException
+    {
+        finished = true;
+        if (leafCount > 0 || levels.isEmpty())
+        {
+            writeLeaf();
+        }
+        long root = -1;
+        for (int level = 0; level < levels.size(); level++)
+        {
+            PendingNode node = levels.get(level);
+            boolean top = level == levels.size() - 1;
+            if (top && node.children.size() == 1)
+            {
+                root = node.children.get(0);
+                break;
+            }
+            long offset = writeInternalNode(node);
+            if (top)
+            {
+                root = offset;
+                break;
+            }
+            addChild(level + 1, node.firstKey, offset);
+        }
+        int height = levels.size() + 1;
+        if (levels.get(levels.size() - 1).children.size() == 1)
+        {
+            height--;
+        }
+        treeFile.finishStream(root, height, keyCount, minKey, maxKey);
+        if (hdfsFile != null)
+        {
+            hdfsFile.closeOutput();
+        }
+        return root;
+    }
+
+    /**
+     * The second half of finish(): moves a tree built into hdfs into place,
+     * followed by its key filter.
+     * @throws IOException
+     */
+    void publish() throws IOException
+    {
+        if (hdfsFile != null)
+        {
+            hdfsFile.rename(hdfsFileName);
+            if (filterBuilder != null)
+            {
+                filterBuilder.build(treeFile.getSuperblock()).write(hdfsFile.getFileSystem(), hdfsFileName);
+            }
+        }
+    }
+
+    /**
+     * Gives up on a tree being built into hdfs, deleting what has been
+     * written of it.  A tree already there is left alone.
+     * @throws IOException
+     */
+    public void abort() throws IOException
+    {
+        finished = true;
+        if (hdfsFile != null)
+        {
+            hdfsFile.closeOutput();
+            hdfsFile.delete();
+        }
+    }
+
+    private void writeLeaf() throws IOException
+    {
+        BPlusLeaf<KeyType, ValueType> leaf = new BPlusLeaf<KeyType, ValueType>(leafKeys, leafCount, leafRecords,
+            -1, -1);
+        long offset = treeFile.writeNewLeaf(leaf);
+        addChild(0, leafKeys[0], offset);
+        leafKeys = (KeyType[]) new Comparable[M - 1];
+        leafRecords = (ValueType[]) new Object[M - 1];
+        leafCount = 0;
+    }
+
+    /**
+     * Hands a finished node to its parent, writing the parent first if it
+     * is full.
+     * @param level the level of the parent, 0 right above the leaves
+     * @param firstKey the smallest key under the child
+     * @param offset
+     * @throws IOException
+     */
+    private void addChild(int level, KeyType firstKey, long offset) throws IOException
+    {
+        if (level == levels.size())
+        {
+            levels.add(new PendingNode());
+        }
+        PendingNode node = levels.get(level);
+        if (node.children.size() == M)
+        {
+            long full = writeInternalNode(node);
+            addChild(level + 1, node.firstKey, full);
+            node = new PendingNode();
+            levels.set(level, node);
+        }
+        if (node.children.isEmpty())
+        {
+            node.firstKey = firstKey;
+        }
+        else
+        {
+            node.keys.add(firstKey);
+        }
+        node.children.add(offset);
+    }
+
+    private long writeInternalNode(PendingNode node) throws IOException
+    {
+        KeyType[] keys = (KeyType[]) new Comparable[M - 1];
+        Long[] children = new Long[M];
+        node.keys.toArray(keys);
+        node.children.toArray(children);
+        return treeFile.writeNewInternalNode(new BPlusInternalNode<KeyType>(keys, node.keys.size(), children,
+            node.children.size()));
+    }
+
+    public long getKeyCount()
+    {
+        return keyCount;
+    }
+}
@@ -0,0 +1,127 @@
+package trees;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Walks the records of a tree in key order, starting at a given key.
+ *
+ * The cursor keeps the path from the root to the current leaf and moves on
+ * through the parents rather than the sibling links, so it works the same
+ * on copy-on-write trees, where sibling links are not maintained.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+@SuppressWarnings("unchecked")
+public class BPlusTreeCursor<KeyType extends Comparable<? super KeyType>, ValueType>
+    implements RecordCursor<KeyType, ValueType>
+{
+    private final BPlusTreeFile<KeyType, ValueType> treeFile;
+    private final ArrayList<BPlusInternalNode<KeyType>> path;
+    private final ArrayList<Integer> childIndexes;
+    private BPlusLeaf<KeyType, ValueType> leaf;
+    private int index;
+    private KeyType key;
+    private ValueType value;
+
+    /**
+     * @param treeFile
+     * @param root
+     * @param from the first key of interest, or null to start at the smallest
+     * @throws IOException
+     */
+    public BPlusTreeCursor(BPlusTreeFile<KeyType, ValueType> treeFile, BPlusNode<KeyType> root,
+        KeyType from) throws IOException
+    {
+        this.treeFile = treeFile;
+        this.path = new ArrayList<BPlusInternalNode<KeyType>>();
+        this.childIndexes = new ArrayList<Integer>();
+        BPlusNode<KeyType> node = root;
+        while (!node.isLeaf())
+        {
+            BPlusInternalNode<KeyType> internal = (BPlusInternalNode<KeyType>) node;
+            int childIndex = 0;
+            if (from != null)
+            {
+                long child = internal.search(from);
+                while (internal.getChildren()[childIndex] != child)
+                {
+                    childIndex++;
+                }
+            }
+            path.add(internal);
+            childIndexes.add(childIndex);
+            node = treeFile.readNode(internal.getChildren()[childIndex]);
+        }
+        leaf = (BPlusLeaf<KeyType, ValueType>) node;
+        index = 0;
+        if (from != null)
+        {
+            while (index < leaf.getNumKeys() && leaf.getKeys()[index].compareTo(from) < 0)
+            {
+                index++;
+            }
+        }
+    }
+
+    public boolean next() throws IOException
+    {
+        while (leaf != null && index >= leaf.getNumKeys())
+        {
+            nextLeaf();
+        }
+        if (leaf == null)
+        {
+            return false;
+        }
+        key = leaf.getKeys()[index];
+        value = leaf.getRecords()[index];
+        index++;
+        return true;
+    }
+
+    /**
+     * Climbs until a parent has a child further right, then goes down to
+     * the leftmost leaf under it.
+     * @throws IOException
+     */
+    private void nextLeaf() throws IOException
+    {
+        int depth = path.size() - 1;
+        while (depth >= 0 && childIndexes.get(depth) + 1 >= path.get(depth).getNumChildren())
+        {
+            depth--;
+        }
+        if (depth < 0)
+        {
+            leaf = null;
+            return;
+        }
+        childIndexes.set(depth, childIndexes.get(depth) + 1);
+        BPlusNode<KeyType> node = treeFile.readNode(path.get(depth).getChildren()[childIndexes.get(depth)]);
+        for (depth++; depth < path.size(); depth++)
+        {
+            path.set(depth, (BPlusInternalNode<KeyType>) node);
+            childIndexes.set(depth, 0);
+            node = treeFile.readNode(((BPlusInternalNode<KeyType>) node).getChildren()[0]);
+        }
+        leaf = (BPlusLeaf<KeyType, ValueType>) node;
+        index = 0;
+    }
+
+    public KeyType getKey()
+    {
+        return key;
+    }
+
+    public ValueType getValue()
+    {
+        return value;
+    }
+
+    public boolean isTombstone()
+    {
+        return false;
+    }
+}
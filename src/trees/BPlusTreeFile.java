@@ -1,14 +1,24 @@
 package trees;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.naming.OperationNotSupportedException;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.util.PureJavaCrc32C;
 
 import util.BPlusRecord;
 import util.Converter;
@@ -26,12 +36,29 @@ import trees.HdfsFile;
 public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueType> {
     private static final String DEFAULT_FILE_NAME = "BPlusTree.bin";
 
+    // The redo log of a local file lives next to it, under this suffix.
+    public static final String WAL_SUFFIX = ".wal";
+
+    // A file being rewritten level by level lives next to it, under this suffix.
+    private static final String LEVELS_SUFFIX = ".levels";
+
+    // Once the log grows past this, the data file is forced and the log emptied.
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    // Every page ends with a CRC32C of the bytes before it.
+    private static final int CHECKSUM_LENGTH = 4;
+
+    private static final int DEFAULT_NODE_CACHE_SIZE = 4096;
+
     // This is the calculated length of the longest node - we pad both nodes to
     // the same size so that
     // we can read all of the bytes for a node without having to know what kind
     // of node it is (yet)
     private final int LENGTH_OF_NODE_BYTES;
 
+    // The two superblock slots come first in the file, then the root page.
+    private final int LENGTH_OF_HEADER_BYTES;
+
     // M is the order of the tree that uses this file.
     private final int M;
 
@@ -46,8 +73,58 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
 
     private RandomAccessFile localFile;
 
+    // Set when the tree is written append-only to a stream.
+    private FSDataOutputStream out;
+
+    // The file position the start of the stream will end up at.
+    private long streamStart;
+
+    // Set when a local copy is read through a memory mapping.
+    private ByteBuffer mapped;
+
     private boolean synced;
 
+    // Offset the next new node will be written at.
+    private long nextNodeOffset;
+
+    // Nodes below this offset may be reachable from a published root and
+    // must not be overwritten in copy-on-write mode.
+    private long publishedNodeOffset;
+
+    private WriteAheadLog wal;
+
+    // Pages written by the operation in progress, keyed by file position.
+    private LinkedHashMap<Long, byte[]> transactionPages;
+
+    // Pages of committed operations not yet written to the data file.
+    private LinkedHashMap<Long, byte[]> dirtyPages;
+
+    private int groupCommitSize;
+
+    private int commitsSinceSync;
+
+    private boolean verifyChecksums;
+
+    // Whether syncToHdfs rewrites the file level by level first.
+    private boolean levelOrdered;
+
+    private final PureJavaCrc32C crc;
+
+    // Decoded nodes of a synced (read only) file.
+    private NodeCache<KeyType> nodeCache;
+
+    private int nodeCacheSize;
+
+    private ReadExecutor readExecutor;
+
+    // Pages of the synced file kept on local disk, shared with restarts.
+    private PageCache pageCache;
+
+    private Superblock superblock;
+
+    // The root page, when it came in with the superblocks.
+    private byte[] initialRootPage;
+
     /**
      * General constructor.
      * 
@@ -59,13 +136,16 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
             throws FileNotFoundException, IOException {
         localFileName = DEFAULT_FILE_NAME;
         hdfsFile = null;
-        localFile = new RandomAccessFile(localFileName, "rw");
         M = m;
         synced = false;
         this.converter = converter;
-        LENGTH_OF_NODE_BYTES = Math.max(
-                BPlusTreeFile.calculateLeafSize(m, converter),
-                BPlusTreeFile.calculateInternalNodeSize(m, converter));
+        LENGTH_OF_NODE_BYTES = BPlusTreeFile.calculateNodeSize(m, converter);
+        LENGTH_OF_HEADER_BYTES = Superblock.regionLength(converter.getKeyLength());
+        superblock = newSuperblock();
+        crc = new PureJavaCrc32C();
+        verifyChecksums = true;
+        nodeCacheSize = DEFAULT_NODE_CACHE_SIZE;
+        openLocalFile();
     }
 
     public BPlusTreeFile(int m, Converter<KeyType, ValueType> converter,
@@ -74,34 +154,462 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
         localFileName = localfilename;
         hdfsFileName = hdfsfilename;
         M = m;
+        this.converter = converter;
+        LENGTH_OF_NODE_BYTES = BPlusTreeFile.calculateNodeSize(m, converter);
+        LENGTH_OF_HEADER_BYTES = Superblock.regionLength(converter.getKeyLength());
+        superblock = newSuperblock();
+        crc = new PureJavaCrc32C();
+        verifyChecksums = true;
+        nodeCacheSize = DEFAULT_NODE_CACHE_SIZE;
         if (hdfsfilename != null && conf != null) {
             hdfsFile = new HdfsFile(hdfsfilename, conf);
             hdfsFile.open();
             synced = true;
+            nodeCache = new NodeCache<KeyType>(nodeCacheSize);
+            readHeader();
         } else {
-            localFile = new RandomAccessFile(localFileName, "rw");
+            openLocalFile();
             synced = false;
         }
+    }
+
+    /**
+     * Writes a new tree append-only to a stream, as when building straight
+     * into hdfs.  Nodes can only be written once, in order, and the
+     * superblock goes last (see finishStream); the superblock slots and the
+     * fixed root page at the head of the file stay empty.
+     * 
+     * @param m
+     * @param converter
+     * @param out an empty stream
+     * @throws IOException
+     */
+    public BPlusTreeFile(int m, Converter<KeyType, ValueType> converter,
+            FSDataOutputStream out) throws IOException {
+        M = m;
         this.converter = converter;
-        LENGTH_OF_NODE_BYTES = Math.max(
-                BPlusTreeFile.calculateLeafSize(m, converter),
-                BPlusTreeFile.calculateInternalNodeSize(m, converter));
+        this.out = out;
+        synced = false;
+        LENGTH_OF_NODE_BYTES = BPlusTreeFile.calculateNodeSize(m, converter);
+        LENGTH_OF_HEADER_BYTES = Superblock.regionLength(converter.getKeyLength());
+        superblock = newSuperblock();
+        crc = new PureJavaCrc32C();
+        verifyChecksums = true;
+        nodeCacheSize = DEFAULT_NODE_CACHE_SIZE;
+        out.write(new byte[LENGTH_OF_HEADER_BYTES + LENGTH_OF_NODE_BYTES]);
+        nextNodeOffset = 0;
     }
 
-    public BPlusNode<KeyType> getRoot() throws IOException {
-        byte[] bytes = readBytes(-1);
-        BPlusNode<KeyType> rt = null;
+    /**
+     * Writes one segment of a tree append-only to a stream: the nodes from
+     * firstNodeOffset on, numbered as they will be in the whole file once
+     * the segments are put one after another behind an empty head.  Lets
+     * several threads write the regions of one tree at once.
+     * 
+     * @param m
+     * @param converter
+     * @param out an empty stream
+     * @param firstNodeOffset the offset of the first node of the segment
+     * @throws IOException
+     */
+    public BPlusTreeFile(int m, Converter<KeyType, ValueType> converter,
+            FSDataOutputStream out, long firstNodeOffset) throws IOException {
+        M = m;
+        this.converter = converter;
+        this.out = out;
+        synced = false;
+        LENGTH_OF_NODE_BYTES = BPlusTreeFile.calculateNodeSize(m, converter);
+        LENGTH_OF_HEADER_BYTES = Superblock.regionLength(converter.getKeyLength());
+        superblock = newSuperblock();
+        crc = new PureJavaCrc32C();
+        verifyChecksums = true;
+        nodeCacheSize = DEFAULT_NODE_CACHE_SIZE;
+        nextNodeOffset = firstNodeOffset;
+        streamStart = toFilePosition(firstNodeOffset);
+    }
+
+    /**
+     * Opens a local tree file read-only through a memory mapping, as when
+     * serving an exported copy (see writeLayout) from local disk.  Decoded
+     * nodes are not cached; the mapped pages are the cache.
+     * 
+     * @param m
+     * @param converter
+     * @param mappedFile
+     * @throws IOException if the file is not a tree file or is too long to
+     *         map at once
+     */
+    public BPlusTreeFile(int m, Converter<KeyType, ValueType> converter,
+            File mappedFile) throws IOException {
+        localFileName = mappedFile.getPath();
+        M = m;
+        this.converter = converter;
+        LENGTH_OF_NODE_BYTES = BPlusTreeFile.calculateNodeSize(m, converter);
+        LENGTH_OF_HEADER_BYTES = Superblock.regionLength(converter.getKeyLength());
+        superblock = newSuperblock();
+        crc = new PureJavaCrc32C();
+        verifyChecksums = true;
+        nodeCacheSize = DEFAULT_NODE_CACHE_SIZE;
+        RandomAccessFile file = new RandomAccessFile(mappedFile, "r");
         try {
-            rt = getInternalNode(bytes);
-        } catch(Exception e) {
-            rt = getLeaf(bytes);
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException(mappedFile + " is too long to map");
+            }
+            mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    file.length());
+        } finally {
+            file.close();
+        }
+        // read only, like a synced file
+        synced = true;
+        readHeader();
+    }
+
+    /**
+     * Ends a tree written to a stream with its superblock.  The stream is
+     * left open.
+     * 
+     * @param rootOffset
+     * @param height
+     * @param keyCount
+     * @param minKey
+     * @param maxKey
+     * @throws IOException
+     */
+    public void finishStream(long rootOffset, int height, long keyCount,
+            KeyType minKey, KeyType maxKey) throws IOException {
+        if (out == null)
+            throw new IOException("Not writing to a stream");
+        writeSuperblock(rootOffset, height, keyCount, minKey, maxKey);
+        out.hflush();
+    }
+
+    /**
+     * Opens the local file, replaying its redo log first if a previous run
+     * died before the log was checkpointed.
+     *
+     * @throws IOException
+     */
+    private void openLocalFile() throws IOException {
+        localFile = new RandomAccessFile(localFileName, "rw");
+        String walFileName = localFileName + WAL_SUFFIX;
+        WriteAheadLog.recover(walFileName, localFile);
+        new File(walFileName).delete();
+        if (localFile.length() > 0) {
+            readHeader();
         }
-        if (rt.isLeaf()) {
-            rt = getLeaf(bytes);
+        long nodeBytes = Math.max(0, localFile.length() - LENGTH_OF_HEADER_BYTES
+                - LENGTH_OF_NODE_BYTES);
+        // rounded up past the trailing superblock of a file written append-only
+        nextNodeOffset = (nodeBytes + LENGTH_OF_NODE_BYTES - 1)
+                / LENGTH_OF_NODE_BYTES * LENGTH_OF_NODE_BYTES;
+        publishedNodeOffset = nextNodeOffset;
+    }
+
+    private Superblock newSuperblock() {
+        return new Superblock(M, LENGTH_OF_NODE_BYTES, converter.getKeyLength(),
+                converter.getRecordLength(), converter.getClass().getName());
+    }
+
+    /**
+     * Reads the superblocks and the root page behind them in a single read,
+     * and checks that the file was written with this converter and order.
+     *
+     * @throws IOException
+     */
+    private void readHeader() throws IOException {
+        byte[] bytes = new byte[LENGTH_OF_HEADER_BYTES + LENGTH_OF_NODE_BYTES];
+        if (mapped != null) {
+            ByteBuffer head = mapped.duplicate();
+            head.get(bytes, 0, Math.min(bytes.length, head.remaining()));
+        } else if (!synced) {
+            localFile.seek(0);
+            localFile.read(bytes);
         } else {
-            rt = getInternalNode(bytes);
+            hdfsFile.read(0, bytes, 0, bytes.length);
+        }
+        String fileName = synced && mapped == null ? hdfsFileName : localFileName;
+        superblock = Superblock.read(bytes, 2, newSuperblock(), fileName);
+        if (superblock == null) {
+            // written append-only: the superblock is at the very end
+            byte[] trailer = new byte[Superblock.slotLength(converter.getKeyLength())];
+            if (mapped != null) {
+                if (mapped.capacity() >= bytes.length + trailer.length) {
+                    ByteBuffer tail = mapped.duplicate();
+                    tail.position(mapped.capacity() - trailer.length);
+                    tail.get(trailer);
+                }
+            } else if (!synced) {
+                if (localFile.length() >= bytes.length + trailer.length) {
+                    localFile.seek(localFile.length() - trailer.length);
+                    localFile.readFully(trailer);
+                }
+            } else {
+                hdfsFile.read(-trailer.length, trailer, 0, trailer.length);
+            }
+            superblock = Superblock.read(trailer, 1, newSuperblock(), fileName);
+        }
+        if (superblock == null) {
+            throw new IOException(fileName + " is not a B+ tree file");
+        }
+        if (superblock.getRootOffset() == Superblock.FIXED_ROOT) {
+            initialRootPage = new byte[LENGTH_OF_NODE_BYTES];
+            System.arraycopy(bytes, LENGTH_OF_HEADER_BYTES, initialRootPage, 0,
+                    LENGTH_OF_NODE_BYTES);
+        }
+    }
+
+    /**
+     * Records the shape of the tree in the next superblock slot.  The root is
+     * in its fixed page.
+     *
+     * @param height
+     * @param keyCount
+     * @param minKey null if the tree is empty
+     * @param maxKey null if the tree is empty
+     * @throws IOException
+     */
+    public void writeSuperblock(int height, long keyCount, KeyType minKey,
+            KeyType maxKey) throws IOException {
+        writeSuperblock(Superblock.FIXED_ROOT, height, keyCount, minKey, maxKey);
+    }
+
+    /**
+     * Publishes a root written in copy-on-write mode: forces every page
+     * written so far, then points the next superblock at the new root.  A
+     * crash before the superblock lands leaves the previous root in place.
+     * Nodes written before this call must not be overwritten afterwards.
+     *
+     * @param rootOffset
+     * @param height
+     * @param keyCount
+     * @param minKey
+     * @param maxKey
+     * @throws IOException
+     */
+    public void publishRoot(long rootOffset, int height, long keyCount,
+            KeyType minKey, KeyType maxKey) throws IOException {
+        if (synced)
+            throw new IOException("File has been synced to hdfs");
+        localFile.getChannel().force(false);
+        writeSuperblock(rootOffset, height, keyCount, minKey, maxKey);
+        publishedNodeOffset = nextNodeOffset;
+    }
+
+    /**
+     * Treats every node written so far as reachable by readers, so that
+     * copy-on-write updates leave them alone.
+     */
+    public void markPublished() {
+        publishedNodeOffset = nextNodeOffset;
+    }
+
+    private void writeSuperblock(long rootOffset, int height, long keyCount,
+            KeyType minKey, KeyType maxKey) throws IOException {
+        superblock.nextGeneration();
+        superblock.setRootOffset(rootOffset);
+        superblock.setHeight(height);
+        superblock.setNodeCount(nextNodeOffset / LENGTH_OF_NODE_BYTES + 1);
+        superblock.setKeyCount(keyCount);
+        superblock.setMinKey(minKey == null ? null : converter.keyToBytes(minKey));
+        superblock.setMaxKey(maxKey == null ? null : converter.keyToBytes(maxKey));
+        long position = (long) superblock.getSlot()
+                * Superblock.slotLength(converter.getKeyLength());
+        if (out != null) {
+            position = streamStart + out.getPos();
+        }
+        writeRaw(position, superblock.toBytes());
+    }
+
+    public Superblock getSuperblock() {
+        return superblock;
+    }
+
+    public int getHeight() {
+        return superblock.getHeight();
+    }
+
+    public long getKeyCount() {
+        return superblock.getKeyCount();
+    }
+
+    /**
+     * @return the smallest key in the tree, or null if it is empty
+     */
+    public KeyType getMinKey() {
+        byte[] key = superblock.getMinKey();
+        return key == null ? null : converter.bytesToKey(key);
+    }
+
+    /**
+     * @return the largest key in the tree, or null if it is empty
+     */
+    public KeyType getMaxKey() {
+        byte[] key = superblock.getMaxKey();
+        return key == null ? null : converter.bytesToKey(key);
+    }
+
+    /**
+     * Starts logging every page write to a redo log next to the local file.
+     * Writes are held in memory until groupCommitSize operations have
+     * committed, then the log is forced once for the whole group and the
+     * pages are written to the data file.
+     *
+     * @param groupCommitSize
+     * @throws IOException
+     */
+    public void enableWriteAheadLog(int groupCommitSize) throws IOException {
+        if (synced)
+            throw new IOException("File has been synced to hdfs");
+        if (wal == null) {
+            wal = new WriteAheadLog(localFileName + WAL_SUFFIX);
+            transactionPages = new LinkedHashMap<Long, byte[]>();
+            dirtyPages = new LinkedHashMap<Long, byte[]>();
+            commitsSinceSync = 0;
+        }
+        this.groupCommitSize = Math.max(1, groupCommitSize);
+    }
+
+    /**
+     * Marks the end of one tree operation: every page written since the
+     * previous commit becomes one atomic record in the redo log.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        if (wal == null || transactionPages.isEmpty()) {
+            return;
+        }
+        wal.append(transactionPages);
+        transactionPages.clear();
+        if (++commitsSinceSync >= groupCommitSize) {
+            groupCommit();
+        }
+    }
+
+    /**
+     * Forces the log for every buffered commit, then applies the pages.
+     *
+     * @throws IOException
+     */
+    private void groupCommit() throws IOException {
+        wal.sync();
+        for (Map.Entry<Long, byte[]> page : dirtyPages.entrySet()) {
+            localFile.seek(page.getKey());
+            localFile.write(page.getValue());
+        }
+        dirtyPages.clear();
+        commitsSinceSync = 0;
+        if (wal.size() > CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        localFile.getFD().sync();
+        wal.truncate();
+    }
+
+    /**
+     * Commits and applies everything buffered so far and empties the redo log.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (wal == null) {
+            return;
+        }
+        commit();
+        groupCommit();
+        checkpoint();
+    }
+
+    public boolean isWriteAheadLogEnabled() {
+        return wal != null;
+    }
+
+    public BPlusNode<KeyType> getRoot() throws IOException {
+        if (superblock.getGeneration() == 0) {
+            // a brand new tree: an empty leaf without siblings
+            return new BPlusLeaf<KeyType, ValueType>(M - 1);
+        }
+        return readNode(superblock.getRootOffset());
+    }
+
+    /**
+     * Turns page checksum verification on or off.  Pages loaded while it is
+     * off are verified the next time they are read with it back on.
+     * 
+     * @param verify
+     */
+    public void setVerifyChecksums(boolean verify) {
+        verifyChecksums = verify;
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    /**
+     * Sets how many decoded nodes of a synced file are kept in memory.
+     * 
+     * @param size
+     */
+    public void setNodeCacheSize(int size) {
+        nodeCacheSize = size;
+        if (nodeCache != null) {
+            nodeCache.setCapacity(size);
+        }
+    }
+
+    /**
+     * Sends the reads of the synced file through an executor, which hedges
+     * the slow ones and runs those of readNodes in parallel.
+     * 
+     * @param executor the executor, or null to read on the calling thread
+     */
+    public void setReadExecutor(ReadExecutor executor) {
+        readExecutor = executor;
+        if (hdfsFile != null) {
+            hdfsFile.setReadExecutor(executor);
+        }
+    }
+
+    /**
+     * Keeps the pages read from the synced file in a local page cache as
+     * well, and looks there before going to HDFS.
+     * 
+     * @param cache a cache for pages of this file's page length, or null
+     */
+    public void setPageCache(PageCache cache) {
+        if (cache != null && cache.getPageLength() != LENGTH_OF_NODE_BYTES) {
+            throw new IllegalArgumentException("Page cache holds pages of "
+                    + cache.getPageLength() + " bytes, the file has "
+                    + LENGTH_OF_NODE_BYTES);
+        }
+        pageCache = cache;
+    }
+
+    public int getPageLength() {
+        return LENGTH_OF_NODE_BYTES;
+    }
+
+    public NodeCache<KeyType> getNodeCache() {
+        return nodeCache;
+    }
+
+    public String getHdfsFileName() {
+        return hdfsFileName;
+    }
+
+    /**
+     * Closes the hdfs file a synced tree reads from; the tree cannot be
+     * read after.
+     */
+    public void closeHdfs() throws IOException {
+        if (hdfsFile != null) {
+            hdfsFile.close();
         }
-        return rt;
     }
     
 
@@ -109,6 +617,7 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
         if (hdfsFile == null) {
             hdfsFileName = path;
             hdfsFile = new HdfsFile(hdfsFileName, conf);
+            hdfsFile.setReadExecutor(readExecutor);
         }
     }
 
@@ -117,14 +626,235 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
             if (hdfsFile == null) {
                 throw new IOException("Please setup hdfs first");
             }
+            if (superblock.getGeneration() == 0) {
+                // give an empty tree a root page and superblock to open
+                writeLeaf(new BPlusLeaf<KeyType, ValueType>(M - 1), -1);
+                writeSuperblock(1, 0, null, null);
+            }
+            flush();
+            if (levelOrdered) {
+                rewriteLevelOrdered(hdfsFile.getBlockSize());
+            }
             System.err.println("synchronizing");
             hdfsFile.copyLocalToHdfs(localFileName);
             System.err.println("file synced");
             synced = true;
+            nodeCache = new NodeCache<KeyType>(nodeCacheSize);
         }
         return synced;
     }
 
+    /**
+     * Makes syncToHdfs rewrite the file level by level before copying it:
+     * the internal nodes first, from the root down, then the leaves in key
+     * order.  The upper levels then come in one sequential read and range
+     * scans read the leaves front to back.
+     * 
+     * @param levelOrdered
+     */
+    public void setLevelOrdered(boolean levelOrdered) {
+        this.levelOrdered = levelOrdered;
+    }
+
+    public boolean isLevelOrdered() {
+        return levelOrdered;
+    }
+
+    public Converter<KeyType, ValueType> getConverter() {
+        return converter;
+    }
+
+    /**
+     * Rewrites the local file level by level (see writeLayout) and switches
+     * over to the rewritten file.
+     * 
+     * @param blockSize the block size of the target file system, or 0
+     * @throws IOException
+     */
+    private void rewriteLevelOrdered(long blockSize) throws IOException {
+        String rewrittenName = localFileName + LEVELS_SUFFIX;
+        writeLayout(rewrittenName, TreeLayout.LEVEL_ORDER, blockSize);
+
+        if (wal != null) {
+            // flushed and checkpointed already, and there are no more writes
+            wal.close();
+            wal = null;
+            new File(localFileName + WAL_SUFFIX).delete();
+        }
+        localFile.close();
+        if (!new File(rewrittenName).renameTo(new File(localFileName))) {
+            throw new IOException("Could not rename " + rewrittenName + " to "
+                    + localFileName);
+        }
+        openLocalFile();
+    }
+
+    /**
+     * Writes a copy of the tree to a new local file, with the nodes in the
+     * order of the layout and every pointer remapped, so that the copy opens
+     * like any other tree file.  The root goes to the fixed root page and
+     * the leaves are linked to their neighbours in key order.  No page
+     * straddles a multiple of blockSize, so that reading a node never takes
+     * two blocks (and maybe two datanodes); the page that would is left
+     * empty.
+     * 
+     * @param fileName the copy, replaced if it exists
+     * @param layout
+     * @param blockSize the block size of the file system the copy is meant
+     *        for, or 0
+     * @throws IOException
+     */
+    public void writeLayout(String fileName, TreeLayout layout, long blockSize)
+            throws IOException {
+        long root = superblock.getRootOffset();
+        Map<Long, BPlusInternalNode<KeyType>> internalNodes = new HashMap<Long, BPlusInternalNode<KeyType>>();
+        List<List<Long>> levels = readLevels(root, internalNodes);
+        List<Long> leaves = levels.get(levels.size() - 1);
+        List<Long> order = new ArrayList<Long>();
+        if (layout == TreeLayout.VAN_EMDE_BOAS) {
+            addVanEmdeBoas(root, levels.size(), internalNodes, order);
+        } else {
+            for (List<Long> level : levels) {
+                order.addAll(level);
+            }
+        }
+
+        // the root comes first in every layout
+        Map<Long, Long> remapped = new HashMap<Long, Long>();
+        remapped.put(root, Superblock.FIXED_ROOT);
+        long next = 0;
+        for (long offset : order.subList(1, order.size())) {
+            long position = toFilePosition(next);
+            if (blockSize > 0 && position / blockSize
+                    != (position + LENGTH_OF_NODE_BYTES - 1) / blockSize) {
+                next += LENGTH_OF_NODE_BYTES;
+            }
+            remapped.put(offset, next);
+            next += LENGTH_OF_NODE_BYTES;
+        }
+        Map<Long, Integer> leafIndex = new HashMap<Long, Integer>();
+        for (int i = 0; i < leaves.size(); i++) {
+            leafIndex.put(leaves.get(i), i);
+        }
+
+        new File(fileName).delete();
+        BPlusTreeFile<KeyType, ValueType> copy = new BPlusTreeFile<KeyType, ValueType>(
+                M, converter, fileName, null, null);
+        try {
+            for (long offset : order) {
+                BPlusInternalNode<KeyType> node = internalNodes.get(offset);
+                if (node != null) {
+                    Long[] children = new Long[node.getChildren().length];
+                    for (int j = 0; j < node.getNumChildren(); j++) {
+                        children[j] = remapped.get(node.getChildren()[j]);
+                    }
+                    copy.writeInternalNode(new BPlusInternalNode<KeyType>(node.getKeys(),
+                            node.getNumKeys(), children, node.getNumChildren(),
+                            remapSibling(remapped, node.getLeft()),
+                            remapSibling(remapped, node.getRight())),
+                            remapped.get(offset));
+                } else {
+                    int i = leafIndex.get(offset);
+                    BPlusLeaf<KeyType, ValueType> leaf = (BPlusLeaf<KeyType, ValueType>) readNode(offset);
+                    long left = i > 0 ? remapped.get(leaves.get(i - 1)) : -1;
+                    long right = i < leaves.size() - 1 ? remapped.get(leaves.get(i + 1)) : -1;
+                    copy.writeLeaf(new BPlusLeaf<KeyType, ValueType>(leaf.getKeys(),
+                            leaf.getNumKeys(), leaf.getRecords(), left, right),
+                            remapped.get(offset));
+                }
+            }
+            copy.getSuperblock().setDeltaSequence(superblock.getDeltaSequence());
+            copy.writeSuperblock(superblock.getHeight(), superblock.getKeyCount(),
+                    getMinKey(), getMaxKey());
+            copy.localFile.getFD().sync();
+        } finally {
+            copy.localFile.close();
+        }
+    }
+
+    /**
+     * Reads the tree level by level.
+     * 
+     * @param root
+     * @param internalNodes filled with every internal node by offset
+     * @return the offsets of every level in key order, from the root down to
+     *         the leaves
+     * @throws IOException
+     */
+    private List<List<Long>> readLevels(long root,
+            Map<Long, BPlusInternalNode<KeyType>> internalNodes) throws IOException {
+        List<List<Long>> levels = new ArrayList<List<Long>>();
+        List<Long> level = new ArrayList<Long>();
+        level.add(root);
+        while (true) {
+            levels.add(level);
+            List<Long> children = new ArrayList<Long>();
+            for (long offset : level) {
+                BPlusNode<KeyType> node = readNode(offset);
+                if (node.isLeaf()) {
+                    return levels;
+                }
+                BPlusInternalNode<KeyType> internalNode = (BPlusInternalNode<KeyType>) node;
+                internalNodes.put(offset, internalNode);
+                for (int i = 0; i < internalNode.getNumChildren(); i++) {
+                    children.add(internalNode.getChildren()[i]);
+                }
+            }
+            level = children;
+        }
+    }
+
+    /**
+     * Appends the subtree of the given height below node in van Emde Boas
+     * order: the top half of the levels first, then each subtree hanging
+     * off it, all laid out the same way recursively.  Whatever the size of
+     * a page or cache line, a lookup then crosses about log_B(n) of them.
+     */
+    private void addVanEmdeBoas(long node, int height,
+            Map<Long, BPlusInternalNode<KeyType>> internalNodes, List<Long> order) {
+        if (height == 1) {
+            order.add(node);
+            return;
+        }
+        int top = height / 2;
+        addVanEmdeBoas(node, top, internalNodes, order);
+        List<Long> subtrees = new ArrayList<Long>();
+        addDescendants(node, top, internalNodes, subtrees);
+        for (long subtree : subtrees) {
+            addVanEmdeBoas(subtree, height - top, internalNodes, order);
+        }
+    }
+
+    private void addDescendants(long node, int depth,
+            Map<Long, BPlusInternalNode<KeyType>> internalNodes, List<Long> descendants) {
+        if (depth == 0) {
+            descendants.add(node);
+            return;
+        }
+        BPlusInternalNode<KeyType> internalNode = internalNodes.get(node);
+        for (int i = 0; i < internalNode.getNumChildren(); i++) {
+            addDescendants(internalNode.getChildren()[i], depth - 1, internalNodes, descendants);
+        }
+    }
+
+    private static long remapSibling(Map<Long, Long> remapped, long offset) {
+        Long sibling = offset < 0 ? null : remapped.get(offset);
+        return sibling == null ? -1 : sibling;
+    }
+
+    /**
+     * Calculates the length of a page: the longest node plus its checksum.
+     * 
+     * @param m
+     * @param converter
+     * @return
+     */
+    static int calculateNodeSize(int m, Converter converter) {
+        return Math.max(BPlusTreeFile.calculateLeafSize(m, converter),
+                BPlusTreeFile.calculateInternalNodeSize(m, converter))
+                + CHECKSUM_LENGTH;
+    }
+
     /**
      * Calculates the minimum length of the byte array required to represent the
      * BPlusLeaf.
@@ -150,6 +880,64 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
         return 1 + 4 + (m - 1) * converter.getKeyLength() + m * 8 + 4 + 16;
     }
 
+    /**
+     * Maps a node offset to its position in the file: the root lives in
+     * the page right after the superblocks (offset -1), node n in the page
+     * n + 1 after them.
+     *
+     * @param offset
+     * @return
+     */
+    private long toFilePosition(long offset) {
+        return LENGTH_OF_HEADER_BYTES
+                + (offset < 0 ? 0 : offset + LENGTH_OF_NODE_BYTES);
+    }
+
+    /**
+     * Writes a page, through the redo log if there is one.
+     *
+     * @param offset
+     * @param bytes
+     * @throws IOException
+     */
+    private void writeBytes(long offset, byte[] bytes) throws IOException {
+        if (synced)
+            throw new IOException("File has been synced to hdfs");
+        synchronized (crc) {
+            crc.reset();
+            crc.update(bytes, 0, LENGTH_OF_NODE_BYTES - CHECKSUM_LENGTH);
+            ByteBuffer.wrap(bytes).putInt(LENGTH_OF_NODE_BYTES - CHECKSUM_LENGTH,
+                    (int) crc.getValue());
+        }
+        writeRaw(toFilePosition(offset), bytes);
+    }
+
+    /**
+     * Writes bytes at a file position, through the redo log if there is one.
+     *
+     * @param position
+     * @param bytes
+     * @throws IOException
+     */
+    private void writeRaw(long position, byte[] bytes) throws IOException {
+        if (synced)
+            throw new IOException("File has been synced to hdfs");
+        initialRootPage = null;
+        if (out != null) {
+            if (position != streamStart + out.getPos()) {
+                throw new IOException("Stream is append-only, cannot write at "
+                        + position + " after " + (streamStart + out.getPos()));
+            }
+            out.write(bytes);
+        } else if (wal != null) {
+            transactionPages.put(position, bytes);
+            dirtyPages.put(position, bytes);
+        } else {
+            localFile.seek(position);
+            localFile.write(bytes);
+        }
+    }
+
     /**
      * Reads the bytes required to construct a node from the given offset.
      * 
@@ -158,23 +946,78 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
      * @throws IOException
      */
     private byte[] readBytes(long offset) throws IOException {
-        if (offset < 0) {
-            offset = 0;
-        } else {
-            offset += LENGTH_OF_NODE_BYTES;
+        byte[] rootPage = initialRootPage;
+        if (offset < 0 && rootPage != null) {
+            initialRootPage = null;
+            return rootPage;
         }
+        offset = toFilePosition(offset);
         byte[] bytes = new byte[LENGTH_OF_NODE_BYTES];
+        if (mapped != null) {
+            ByteBuffer page = mapped.duplicate();
+            page.position((int) offset);
+            page.get(bytes);
+            return bytes;
+        }
+        if (wal != null) {
+            byte[] pending = dirtyPages.get(offset);
+            if (pending != null) {
+                System.arraycopy(pending, 0, bytes, 0, LENGTH_OF_NODE_BYTES);
+                return bytes;
+            }
+        }
         if (!synced) {
-            long oldOffset = localFile.getFilePointer();
-            localFile.seek(offset);
-            localFile.read(bytes);
-            localFile.seek(oldOffset);
-        } else {
+            // positional reads leave the file pointer alone, so snapshot
+            // readers can share the file with the writer
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (localFile.getChannel().read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+        } else if (pageCache == null) {
+            hdfsFile.read(offset, bytes, 0, LENGTH_OF_NODE_BYTES);
+        } else if (!getCachedPage(offset, bytes)) {
             hdfsFile.read(offset, bytes, 0, LENGTH_OF_NODE_BYTES);
+            putCachedPage(offset, bytes);
         }
         return bytes;
     }
 
+    /**
+     * Looks a page of the synced file up in the page cache.  A cached page
+     * that fails its checksum is dropped, so that it is read from hdfs
+     * again.
+     * 
+     * @param position
+     * @param bytes filled with the page if it is cached
+     * @return true if an intact page was cached
+     */
+    private boolean getCachedPage(long position, byte[] bytes) {
+        if (!pageCache.get(hdfsFile.getIdentity(), hdfsFile.getModificationTime(),
+                position, bytes)) {
+            return false;
+        }
+        if (checksumMatches(bytes)) {
+            return true;
+        }
+        pageCache.remove(hdfsFile.getIdentity(), hdfsFile.getModificationTime(), position);
+        return false;
+    }
+
+    /**
+     * Puts a page read from hdfs in the page cache, unless it fails its
+     * checksum: a torn read kept in the cache would outlive a restart.
+     * 
+     * @param position
+     * @param bytes
+     */
+    private void putCachedPage(long position, byte[] bytes) {
+        if (checksumMatches(bytes)) {
+            pageCache.put(hdfsFile.getIdentity(), hdfsFile.getModificationTime(), position, bytes);
+        }
+    }
+
     /**
      * public method for reading a node at a given offset. First determines the
      * type of node, then calls the appropriate helper method.
@@ -184,7 +1027,87 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
      * @throws IOException
      */
     public BPlusNode<KeyType> readNode(long offset) throws IOException {
-        byte[] bytes = readBytes(offset);
+        BPlusNode<KeyType> cached = getCachedNode(offset);
+        if (cached != null) {
+            return cached;
+        }
+        return decodeNode(readBytes(offset), offset);
+    }
+
+    /**
+     * Reads several nodes at once.  The ones of a synced file that are not
+     * cached are fetched in a single vectored read, so nodes lying close
+     * together in the file cost one round trip between them.
+     * 
+     * @param offsets
+     * @return the nodes, in the order of the offsets
+     * @throws IOException
+     */
+    public List<BPlusNode<KeyType>> readNodes(List<Long> offsets) throws IOException {
+        List<BPlusNode<KeyType>> nodes = new ArrayList<BPlusNode<KeyType>>(offsets.size());
+        if (hdfsFile == null || !synced || mapped != null) {
+            for (long offset : offsets) {
+                nodes.add(readNode(offset));
+            }
+            return nodes;
+        }
+        Map<Long, byte[]> fetched = new HashMap<Long, byte[]>();
+        List<HdfsFile.Range> ranges = new ArrayList<HdfsFile.Range>();
+        for (long offset : offsets) {
+            BPlusNode<KeyType> cached = getCachedNode(offset);
+            nodes.add(cached);
+            if (cached == null && !fetched.containsKey(offset)) {
+                byte[] bytes = new byte[LENGTH_OF_NODE_BYTES];
+                fetched.put(offset, bytes);
+                if (pageCache == null || !getCachedPage(toFilePosition(offset), bytes)) {
+                    ranges.add(new HdfsFile.Range(toFilePosition(offset), bytes, 0,
+                            LENGTH_OF_NODE_BYTES));
+                }
+            }
+        }
+        hdfsFile.readVectored(ranges);
+        if (pageCache != null) {
+            for (HdfsFile.Range range : ranges) {
+                putCachedPage(range.getPosition(), range.getBuffer());
+            }
+        }
+        Map<Long, BPlusNode<KeyType>> decoded = new HashMap<Long, BPlusNode<KeyType>>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i) == null) {
+                long offset = offsets.get(i);
+                BPlusNode<KeyType> node = decoded.get(offset);
+                if (node == null) {
+                    node = decodeNode(fetched.get(offset), offset);
+                    decoded.put(offset, node);
+                }
+                nodes.set(i, node);
+            }
+        }
+        return nodes;
+    }
+
+    private BPlusNode<KeyType> getCachedNode(long offset) {
+        if (nodeCache != null) {
+            NodeCache.Entry<KeyType> cached = nodeCache.get(offset);
+            if (cached != null && (cached.isVerified() || !verifyChecksums)) {
+                return cached.getNode();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Verifies and decodes the bytes of a page, and caches the node.
+     * 
+     * @param bytes
+     * @param offset
+     * @return
+     * @throws IOException
+     */
+    private BPlusNode<KeyType> decodeNode(byte[] bytes, long offset) throws IOException {
+        if (verifyChecksums) {
+            verifyChecksum(bytes, offset);
+        }
         byte flag = bytes[0];
         BPlusNode<KeyType> toReturn;
         if (flag == 0) {
@@ -192,9 +1115,43 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
         } else {
             toReturn = getInternalNode(bytes);
         }
+        if (nodeCache != null) {
+            nodeCache.put(offset, toReturn, verifyChecksums);
+        }
         return toReturn;
     }
 
+    /**
+     * Checks the CRC32C at the end of a page.
+     * 
+     * @param bytes
+     * @param offset
+     * @throws ChecksumException
+     */
+    private void verifyChecksum(byte[] bytes, long offset)
+            throws ChecksumException {
+        if (!checksumMatches(bytes)) {
+            long position = toFilePosition(offset);
+            throw new ChecksumException("Checksum mismatch in page at "
+                    + position + " of "
+                    + (synced ? hdfsFileName : localFileName), position);
+        }
+    }
+
+    /**
+     * @param bytes a page
+     * @return whether the CRC32C at the end of the page matches it
+     */
+    private boolean checksumMatches(byte[] bytes) {
+        int stored = ByteBuffer.wrap(bytes).getInt(
+                LENGTH_OF_NODE_BYTES - CHECKSUM_LENGTH);
+        synchronized (crc) {
+            crc.reset();
+            crc.update(bytes, 0, LENGTH_OF_NODE_BYTES - CHECKSUM_LENGTH);
+            return stored == (int) crc.getValue();
+        }
+    }
+
     /**
      * Method for creating a leaf from the given byte array.
      * 
@@ -316,8 +1273,9 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
      */
     public long writeNewInternalNode(BPlusInternalNode<KeyType> toWrite)
             throws IOException {
-        long pointer = localFile.getFilePointer();
-        writeInternalNode(toWrite, localFile.getFilePointer(), false);
+        long pointer = nextNodeOffset;
+        writeInternalNode(toWrite, pointer);
+        nextNodeOffset += LENGTH_OF_NODE_BYTES;
         return pointer;
     }
 
@@ -331,40 +1289,64 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
      */
     public long writeNewLeaf(BPlusLeaf<KeyType, ValueType> toWrite)
             throws IOException {
-        long pointer = localFile.getFilePointer();
-        writeLeaf(toWrite, localFile.getFilePointer(), false);
+        long pointer = nextNodeOffset;
+        writeLeaf(toWrite, pointer);
+        nextNodeOffset += LENGTH_OF_NODE_BYTES;
         return pointer;
     }
 
+    /**
+     * Writes a node changed in copy-on-write mode: in place if it was written
+     * since the last published root, otherwise to a new page.
+     * 
+     * @param toWrite
+     * @param offset where the node was read from, -1 for the fixed root
+     * @return the offset the node now lives at
+     * @throws IOException
+     */
+    public long writeInternalNodeCopy(BPlusInternalNode<KeyType> toWrite,
+            long offset) throws IOException {
+        if (offset >= publishedNodeOffset) {
+            writeInternalNode(toWrite, offset);
+            return offset;
+        }
+        return writeNewInternalNode(toWrite);
+    }
+
+    /**
+     * The leaf counterpart of writeInternalNodeCopy.
+     * 
+     * @param toWrite
+     * @param offset
+     * @return the offset the leaf now lives at
+     * @throws IOException
+     */
+    public long writeLeafCopy(BPlusLeaf<KeyType, ValueType> toWrite, long offset)
+            throws IOException {
+        if (offset >= publishedNodeOffset) {
+            writeLeaf(toWrite, offset);
+            return offset;
+        }
+        return writeNewLeaf(toWrite);
+    }
+
     public void writeInternalNode(BPlusInternalNode<KeyType> toWrite,
             long offset) throws IOException {
-        writeInternalNode(toWrite, offset, true);
+        writeBytes(offset, internalNodeToBytes(toWrite));
     }
 
     public void writeLeaf(BPlusLeaf<KeyType, ValueType> toWrite, long offset)
             throws IOException {
-        writeLeaf(toWrite, offset, true);
+        writeBytes(offset, leafToBytes(toWrite));
     }
 
     /**
-     * Method for converting an internal node to bytes and writing it to the
-     * file.
+     * Method for converting an internal node to bytes.
      * 
      * @param toWrite
-     * @param offset
-     * @throws OperationNotSupportedException
-     * @throws IOException
+     * @return
      */
-    private void writeInternalNode(BPlusInternalNode<KeyType> toWrite,
-            long offset, boolean alreadyInFile) throws IOException {
-        if (synced)
-            throw new IOException("File has been synced to hdfs");
-        //System.err.println(offset);
-        if (offset < 0) {
-            offset = 0;
-        } else {
-            offset += LENGTH_OF_NODE_BYTES;
-        }
+    private byte[] internalNodeToBytes(BPlusInternalNode<KeyType> toWrite) {
         byte[] bytesToWrite = new byte[LENGTH_OF_NODE_BYTES];
         byte[] tempArray;
         int arrayCursor = 0;
@@ -415,34 +1397,16 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
         tempArray = BPlusTreeFile.longToBytes(toWrite.getRight());
         System.arraycopy(tempArray, 0, bytesToWrite, arrayCursor, 8);
         arrayCursor += 8;
-        if (alreadyInFile) {
-            long oldOffset = localFile.getFilePointer();
-            localFile.seek(offset);
-            localFile.write(bytesToWrite);
-            localFile.seek(oldOffset);
-        } else {
-            localFile.seek(offset);
-            localFile.write(bytesToWrite);
-        }
+        return bytesToWrite;
     }
 
     /**
-     * Method for converting a leaf to bytes and then writing it to this file.
+     * Method for converting a leaf to bytes.
      * 
      * @param toWrite
-     * @param offset
-     * @throws IOException
+     * @return
      */
-    private void writeLeaf(BPlusLeaf<KeyType, ValueType> toWrite, long offset,
-            boolean alreadyInFile) throws IOException {
-        if (synced)
-            throw new IOException("File has been synced to hdfs");
-        //System.err.println(offset);
-        if (offset < 0) {
-            offset = 0;
-        } else {
-            offset += LENGTH_OF_NODE_BYTES;
-        }
+    private byte[] leafToBytes(BPlusLeaf<KeyType, ValueType> toWrite) {
         byte[] bytesToWrite = new byte[LENGTH_OF_NODE_BYTES];
         byte[] tempArray;
         int arrayCursor = 0;
@@ -491,22 +1455,14 @@ public class BPlusTreeFile<KeyType extends Comparable<? super KeyType>, ValueTyp
         tempArray = BPlusTreeFile.longToBytes(toWrite.getRight());
         System.arraycopy(tempArray, 0, bytesToWrite, arrayCursor, 8);
         arrayCursor += 8;
-        if (alreadyInFile) {
-            long oldOffset = localFile.getFilePointer();
-            localFile.seek(offset);
-            localFile.write(bytesToWrite);
-            localFile.seek(oldOffset);
-        } else {
-            localFile.seek(offset);
-            localFile.write(bytesToWrite);
-        }
+        return bytesToWrite;
     }
 
     // method reimplementation
     public long getFilePointer() throws IOException {
         if (synced)
             throw new IOException("File has been synced to hdfs");
-        return localFile.getFilePointer();
+        return nextNodeOffset;
     }
 
     public int getNodeLength() {
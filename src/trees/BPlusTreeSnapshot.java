@@ -0,0 +1,128 @@
+package trees;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A point-in-time, read only view of a copy-on-write B+ tree.  Pages
+ * reachable from a published root are never overwritten, so a snapshot
+ * keeps answering from the same version of the tree while the writer
+ * carries on, without taking any lock.
+ *
+ * Sibling links are not maintained in copy-on-write mode, so range scans
+ * go through a cursor that moves on through the parents instead.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+@SuppressWarnings("unchecked")
+public class BPlusTreeSnapshot<KeyType extends Comparable<? super KeyType>, ValueType>
+{
+    private final BPlusTreeFile<KeyType, ValueType> treeFile;
+    private final BPlusNode<KeyType> root;
+    private final long rootOffset;
+    private final long generation;
+    private final int height;
+    private final long keyCount;
+    private final KeyType minKey;
+    private final KeyType maxKey;
+
+    /**
+     * @param treeFile
+     * @param root a copy of the root that nobody else modifies
+     * @param rootOffset
+     * @param generation the superblock generation that published the root
+     * @param height
+     * @param keyCount
+     * @param minKey
+     * @param maxKey
+     */
+    public BPlusTreeSnapshot(BPlusTreeFile<KeyType, ValueType> treeFile, BPlusNode<KeyType> root,
+        long rootOffset, long generation, int height, long keyCount, KeyType minKey, KeyType maxKey)
+    {
+        this.treeFile = treeFile;
+        this.root = root;
+        this.rootOffset = rootOffset;
+        this.generation = generation;
+        this.height = height;
+        this.keyCount = keyCount;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+    }
+
+    /**
+     * Attempts to find the record for the key within this version of the tree.
+     * @param key
+     * @return the record for the key, or null if not found.
+     * @throws IOException
+     */
+    public ValueType search(KeyType key) throws IOException
+    {
+        BPlusNode<KeyType> node = root;
+        while (!node.isLeaf())
+        {
+            node = treeFile.readNode(((BPlusInternalNode<KeyType>) node).search(key));
+        }
+        return ((BPlusLeaf<KeyType, ValueType>) node).search(key);
+    }
+
+    /**
+     * Returns all of the records whose keys are within the range
+     * (key1, key2) inclusive.
+     * @param key1
+     * @param key2
+     * @return a list of records for the range
+     * @throws IOException
+     */
+    public List<ValueType> getRange(KeyType key1, KeyType key2) throws IOException
+    {
+        ArrayList<ValueType> recordsInRange = new ArrayList<ValueType>();
+        BPlusTreeCursor<KeyType, ValueType> cursor = cursor(key1);
+        while (cursor.next() && cursor.getKey().compareTo(key2) <= 0)
+        {
+            recordsInRange.add(cursor.getValue());
+        }
+        return recordsInRange;
+    }
+
+    /**
+     * @param from the first key of interest, or null to start at the smallest
+     * @return a cursor over this version of the tree
+     * @throws IOException
+     */
+    public BPlusTreeCursor<KeyType, ValueType> cursor(KeyType from) throws IOException
+    {
+        return new BPlusTreeCursor<KeyType, ValueType>(treeFile, root, from);
+    }
+
+    public long getRootOffset()
+    {
+        return rootOffset;
+    }
+
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public long getKeyCount()
+    {
+        return keyCount;
+    }
+
+    public KeyType getMinKey()
+    {
+        return minKey;
+    }
+
+    public KeyType getMaxKey()
+    {
+        return maxKey;
+    }
+}
@@ -0,0 +1,381 @@
+package trees;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import util.BPlusRecord;
+import util.Converter;
+import util.RateLimiter;
+
+/**
+ * Folds the delta runs of a DeltaBPlusTree into a new base tree.
+ *
+ * The base leaves and the runs are merged in a single pass, newest first,
+ * dropping deleted keys, and the new tree is built bottom-up straight into
+ * a new base file next to the old one, named <base>.base.<sequence> after
+ * the last run it holds (see currentBaseFileName() for opening the tree
+ * again).  The delta layer then switches over to it; lookups keep running
+ * against the old layers meanwhile.  The old base and the runs folded in
+ * are only closed and deleted at the start of the next compaction (or by
+ * deleteRetired()), as lookups that started before the switch may still be
+ * reading them.  The new base records the last run it holds, so runs left
+ * behind by a crash are ignored when the tree is opened again.  A base
+ * with Bloom filters gets new ones, built from the same merge.
+ *
+ * The merge may be throttled to a number of bytes per second so that it
+ * does not starve the lookups, and reports its progress while it runs.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ * @param <RecordType>
+ */
+public class Compactor<KeyType extends Comparable<? super KeyType>, ValueType, RecordType extends BPlusRecord<KeyType, ValueType>>
+    implements Runnable
+{
+    public static final String BASE_SUFFIX = ".base.";
+    public static final String TEMP_SUFFIX = ".compact.tmp";
+
+    private final DeltaBPlusTree<KeyType, ValueType, RecordType> tree;
+    private final int M;
+    private final RateLimiter rateLimiter;
+    private volatile boolean running;
+    private volatile long recordsRead;
+    private volatile long recordsWritten;
+    private volatile long bytesWritten;
+    private volatile long estimatedRecords;
+    private volatile long startMillis;
+    private volatile long finishMillis;
+    private volatile IOException failure;
+    private List<DeltaFile<KeyType, ValueType>> retired;
+    private BPlusTree<KeyType, ValueType, RecordType> retiredBase;
+
+    /**
+     * @param tree the tree to compact
+     * @param m the order of the new base tree
+     * @param bytesPerSecond how fast the merge may read, or 0 for no limit
+     */
+    public Compactor(DeltaBPlusTree<KeyType, ValueType, RecordType> tree, int m, long bytesPerSecond)
+    {
+        this.tree = tree;
+        this.M = m;
+        this.rateLimiter = new RateLimiter(bytesPerSecond);
+        this.retired = new ArrayList<DeltaFile<KeyType, ValueType>>();
+    }
+
+    /**
+     * @param baseFileName the file the tree was first synced to
+     * @param deltaSequence the last run the base holds
+     * @return the path of the base written by a compaction
+     */
+    public static Path basePathFor(String baseFileName, long deltaSequence)
+    {
+        return new Path(baseFileName + BASE_SUFFIX + String.format("%06d", deltaSequence));
+    }
+
+    /**
+     * Finds the base to open a tree with: the one written by the last
+     * compaction, or the file the tree was synced to if it was never
+     * compacted.
+     * @param fs
+     * @param baseFileName the file the tree was first synced to
+     * @return the file name of the newest base
+     * @throws IOException
+     */
+    public static String currentBaseFileName(FileSystem fs, String baseFileName) throws IOException
+    {
+        String current = baseFileName;
+        long newest = -1;
+        FileStatus[] statuses = fs.globStatus(new Path(baseFileName + BASE_SUFFIX + "*"));
+        if (statuses != null)
+        {
+            for (FileStatus status : statuses)
+            {
+                String name = status.getPath().getName();
+                long sequence;
+                try
+                {
+                    sequence = Long.parseLong(name.substring(name.lastIndexOf(BASE_SUFFIX) + BASE_SUFFIX.length()));
+                }
+                catch (NumberFormatException e)
+                {
+                    //a filter or a base still being written
+                    continue;
+                }
+                if (sequence > newest)
+                {
+                    newest = sequence;
+                    current = status.getPath().toString();
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Compacts the tree, for running on a background thread.  A failure is
+     * kept for getFailure() rather than thrown.
+     */
+    public void run()
+    {
+        try
+        {
+            compact();
+        }
+        catch (IOException e)
+        {
+            failure = e;
+        }
+    }
+
+    /**
+     * Merges the delta runs present now into a new base tree and switches
+     * the tree over to it.  Runs flushed while the merge is going on stay
+     * on top of the new base.
+     * @return true if there was anything to compact
+     * @throws IOException
+     */
+    public synchronized boolean compact() throws IOException
+    {
+        //the time since the last compaction is not credit for this one
+        rateLimiter.reset();
+        deleteRetired();
+        List<DeltaFile<KeyType, ValueType>> runs = tree.getDeltaFiles();
+        if (runs.isEmpty())
+        {
+            return false;
+        }
+        BPlusTree<KeyType, ValueType, RecordType> base = tree.getBase();
+        Converter<KeyType, ValueType> converter = tree.getConverter();
+        Configuration conf = tree.getConfiguration();
+        long deltaSequence = runs.get(0).getSequence();
+        long bytesPerRecord = converter.getKeyLength() + converter.getRecordLength();
+
+        running = true;
+        failure = null;
+        startMillis = System.currentTimeMillis();
+        finishMillis = 0;
+        recordsRead = 0;
+        recordsWritten = 0;
+        bytesWritten = 0;
+        long estimate = base.getKeyCount();
+        ArrayList<RecordCursor<KeyType, ValueType>> sources = new ArrayList<RecordCursor<KeyType, ValueType>>();
+        for (DeltaFile<KeyType, ValueType> run : runs)
+        {
+            sources.add(new CountingCursor(run.cursor(null), bytesPerRecord));
+            estimate += run.getCount();
+        }
+        sources.add(new CountingCursor(base.cursor(null), bytesPerRecord));
+        estimatedRecords = estimate;
+
+        FileSystem fs = FileSystem.get(conf);
+        //a new name, as the old base may still be read until it is retired
+        Path basePath = basePathFor(tree.getBaseFileName(), deltaSequence);
+        Path temp = new Path(basePath.toString() + TEMP_SUFFIX);
+        KeyFilter<KeyType> oldFilter = base.getKeyFilter();
+        KeyFilter.Builder<KeyType> filterBuilder = null;
+        if (oldFilter != null)
+        {
+            filterBuilder = new KeyFilter.Builder<KeyType>(converter, estimate, oldFilter.getFalsePositiveRate(),
+                oldFilter.getKeysPerPartition());
+        }
+        KeyFilter<KeyType> newFilter = null;
+        try
+        {
+            FSDataOutputStream out = fs.create(temp, true);
+            try
+            {
+                BPlusTreeFile<KeyType, ValueType> treeFile = new BPlusTreeFile<KeyType, ValueType>(M, converter, out);
+                treeFile.getSuperblock().setDeltaSequence(deltaSequence);
+                BPlusTreeBuilder<KeyType, ValueType> builder = new BPlusTreeBuilder<KeyType, ValueType>(treeFile, M);
+                RecordCursor<KeyType, ValueType> merged = new MergingCursor<KeyType, ValueType>(sources, true);
+                while (merged.next())
+                {
+                    builder.add(merged.getKey(), merged.getValue());
+                    if (filterBuilder != null)
+                    {
+                        filterBuilder.add(merged.getKey());
+                    }
+                    recordsWritten++;
+                }
+                builder.finish();
+                if (filterBuilder != null)
+                {
+                    newFilter = filterBuilder.build(treeFile.getSuperblock());
+                }
+                bytesWritten = out.getPos();
+            }
+            finally
+            {
+                out.close();
+            }
+            HdfsFile.replace(fs, temp, basePath);
+        }
+        catch (IOException e)
+        {
+            fs.delete(temp, false);
+            running = false;
+            throw e;
+        }
+
+        if (newFilter != null)
+        {
+            newFilter.write(fs, basePath.toString());
+        }
+        BPlusTree<KeyType, ValueType, RecordType> newBase = new BPlusTree<KeyType, ValueType, RecordType>(M,
+            converter, null, null, basePath.toString(), conf);
+        retired = tree.replaceBase(newBase);
+        retiredBase = base;
+        finishMillis = System.currentTimeMillis();
+        running = false;
+        return true;
+    }
+
+    /**
+     * Closes and deletes the base and the runs replaced by the last
+     * compaction.  Only call this once no lookup can still be using the
+     * layers from before it.
+     * @throws IOException
+     */
+    public synchronized void deleteRetired() throws IOException
+    {
+        FileSystem fs = FileSystem.get(tree.getConfiguration());
+        for (DeltaFile<KeyType, ValueType> run : retired)
+        {
+            run.close();
+            fs.delete(run.getPath(), false);
+        }
+        retired = new ArrayList<DeltaFile<KeyType, ValueType>>();
+        if (retiredBase != null)
+        {
+            retiredBase.close();
+            String baseFileName = retiredBase.getHdfsFileName();
+            fs.delete(new Path(baseFileName), false);
+            fs.delete(KeyFilter.pathFor(baseFileName), false);
+            retiredBase = null;
+        }
+    }
+
+    /**
+     * Counts and throttles the records read from one source of the merge.
+     */
+    private class CountingCursor implements RecordCursor<KeyType, ValueType>
+    {
+        private final RecordCursor<KeyType, ValueType> source;
+        private final long bytesPerRecord;
+
+        private CountingCursor(RecordCursor<KeyType, ValueType> source, long bytesPerRecord)
+        {
+            this.source = source;
+            this.bytesPerRecord = bytesPerRecord;
+        }
+
+        public boolean next() throws IOException
+        {
+            if (!source.next())
+            {
+                return false;
+            }
+            recordsRead++;
+            rateLimiter.acquire(bytesPerRecord);
+            return true;
+        }
+
+        public KeyType getKey()
+        {
+            return source.getKey();
+        }
+
+        public ValueType getValue()
+        {
+            return source.getValue();
+        }
+
+        public boolean isTombstone()
+        {
+            return source.isTombstone();
+        }
+    }
+
+    /**
+     * Changes the throttle, also while a merge is running.
+     * @param bytesPerSecond the limit, or 0 for none
+     */
+    public void setRate(long bytesPerSecond)
+    {
+        rateLimiter.setRate(bytesPerSecond);
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return roughly how much of the merge is done, from 0 to 1
+     */
+    public float getProgress()
+    {
+        long estimate = estimatedRecords;
+        if (estimate == 0)
+        {
+            return running ? 0f : 1f;
+        }
+        return Math.min(1f, (float) recordsRead / estimate);
+    }
+
+    /**
+     * @return the records read from the base and the runs so far
+     */
+    public long getRecordsRead()
+    {
+        return recordsRead;
+    }
+
+    public long getRecordsWritten()
+    {
+        return recordsWritten;
+    }
+
+    /**
+     * @return the length of the last new base tree
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the records in the base and the runs when the merge started
+     */
+    public long getEstimatedRecords()
+    {
+        return estimatedRecords;
+    }
+
+    /**
+     * @return the milliseconds the running or last merge took
+     */
+    public long getElapsedMillis()
+    {
+        if (startMillis == 0)
+        {
+            return 0;
+        }
+        return (running || finishMillis == 0 ? System.currentTimeMillis() : finishMillis) - startMillis;
+    }
+
+    /**
+     * @return what made the last background run fail, or null
+     */
+    public IOException getFailure()
+    {
+        return failure;
+    }
+}
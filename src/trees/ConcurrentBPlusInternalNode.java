@@ -0,0 +1,119 @@
+package trees;
+
+/**
+ * Represents an internal node within the in-memory concurrent B+ tree.
+ * Holds keys and direct references to children.  All mutators must only
+ * be called while holding the write latch.
+ *
+ * @param <KeyType>
+ */
+@SuppressWarnings("unchecked")
+public class ConcurrentBPlusInternalNode<KeyType extends Comparable<? super KeyType>>
+    extends ConcurrentBPlusNode<KeyType>
+{
+    private ConcurrentBPlusNode<KeyType>[] children;
+
+    /**
+     * Creates a node with one key and two children, used when the root splits.
+     * @param m the order of the tree
+     * @param key
+     * @param left
+     * @param right
+     */
+    public ConcurrentBPlusInternalNode(int m, KeyType key,
+        ConcurrentBPlusNode<KeyType> left, ConcurrentBPlusNode<KeyType> right)
+    {
+        this(m);
+        keys[0] = key;
+        children[0] = left;
+        children[1] = right;
+        numKeys = 1;
+    }
+
+    private ConcurrentBPlusInternalNode(int m)
+    {
+        super((KeyType[]) new Comparable[m - 1], 0);
+        this.children = new ConcurrentBPlusNode[m];
+    }
+
+    @Override
+    public boolean isLeaf()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the child that should contain the key, if it is in the tree.
+     * Keys equal to a separator live in the right subtree.
+     * @param key
+     * @return the child to descend into
+     */
+    public ConcurrentBPlusNode<KeyType> findChild(KeyType key)
+    {
+        int low = 0;
+        int high = numKeys;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) <= 0)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return children[low];
+    }
+
+    /**
+     * Adds a separator and the new right child produced by splitting one
+     * of this node's children.  The caller has made sure the node is not full.
+     * @param key
+     * @param rightChild
+     */
+    public void add(KeyType key, ConcurrentBPlusNode<KeyType> rightChild)
+    {
+        int index = lowerBound(key);
+        System.arraycopy(keys, index, keys, index + 1, numKeys - index);
+        System.arraycopy(children, index + 1, children, index + 2, numKeys - index);
+        keys[index] = key;
+        children[index + 1] = rightChild;
+        numKeys++;
+    }
+
+    /**
+     * Moves the upper half of this node into a new right sibling.  The median
+     * key is removed from both and must be pushed into the parent.
+     * @return the new right sibling
+     */
+    public ConcurrentBPlusInternalNode<KeyType> split()
+    {
+        ConcurrentBPlusInternalNode<KeyType> newNode =
+            new ConcurrentBPlusInternalNode<KeyType>(children.length);
+        int mid = numKeys / 2;
+        int movedKeys = numKeys - mid - 1;
+        System.arraycopy(keys, mid + 1, newNode.keys, 0, movedKeys);
+        System.arraycopy(children, mid + 1, newNode.children, 0, movedKeys + 1);
+        newNode.numKeys = movedKeys;
+        for (int i = mid + 1; i <= numKeys; i++)
+        {
+            children[i] = null;
+        }
+        for (int i = mid; i < numKeys; i++)
+        {
+            keys[i] = null;
+        }
+        numKeys = mid;
+        return newNode;
+    }
+
+    /**
+     * @return the key that split() will push up; only valid before splitting.
+     */
+    public KeyType medianKey()
+    {
+        return keys[numKeys / 2];
+    }
+}
@@ -0,0 +1,165 @@
+package trees;
+
+/**
+ * A leaf of the in-memory concurrent B+ tree.  Leaves are chained
+ * left to right so that range scans do not have to go back up the tree.
+ * All mutators must only be called while holding the write latch.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+@SuppressWarnings("unchecked")
+public class ConcurrentBPlusLeaf<KeyType extends Comparable<? super KeyType>, ValueType>
+    extends ConcurrentBPlusNode<KeyType>
+{
+    private ValueType[] records;
+    private volatile ConcurrentBPlusLeaf<KeyType, ValueType> right;
+
+    /**
+     * @param m the order of the tree; the leaf holds m - 1 records.
+     */
+    public ConcurrentBPlusLeaf(int m)
+    {
+        super((KeyType[]) new Comparable[m - 1], 0);
+        this.records = (ValueType[]) new Object[m - 1];
+        this.right = null;
+    }
+
+    @Override
+    public boolean isLeaf()
+    {
+        return true;
+    }
+
+    /**
+     * Searches for the given key.
+     * @param key
+     * @return the index of the key, or -1 if not found.
+     */
+    public int indexOf(KeyType key)
+    {
+        int index = lowerBound(key);
+        if (index < numKeys && keys[index].compareTo(key) == 0)
+        {
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * @param key
+     * @return the index of the first key >= key.
+     */
+    public int firstIndexAtLeast(KeyType key)
+    {
+        return lowerBound(key);
+    }
+
+    /**
+     * @param key
+     * @return the index of the first key > key.
+     */
+    public int firstIndexAfter(KeyType key)
+    {
+        int index = lowerBound(key);
+        if (index < numKeys && keys[index].compareTo(key) == 0)
+        {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @param index
+     * @return the key at index
+     */
+    public KeyType getKey(int index)
+    {
+        return keys[index];
+    }
+
+    /**
+     * @param index
+     * @return the record at index
+     */
+    public ValueType getRecord(int index)
+    {
+        return records[index];
+    }
+
+    /**
+     * @return the right sibling of this leaf, null for the last leaf.
+     */
+    public ConcurrentBPlusLeaf<KeyType, ValueType> getRight()
+    {
+        return right;
+    }
+
+    /**
+     * Inserts the key, or replaces the record if the key is already present.
+     * The caller has made sure the leaf is not full.
+     * @param key
+     * @param record
+     * @return true if a new key was added, false if a record was replaced.
+     */
+    public boolean insert(KeyType key, ValueType record)
+    {
+        int index = lowerBound(key);
+        if (index < numKeys && keys[index].compareTo(key) == 0)
+        {
+            records[index] = record;
+            return false;
+        }
+        System.arraycopy(keys, index, keys, index + 1, numKeys - index);
+        System.arraycopy(records, index, records, index + 1, numKeys - index);
+        keys[index] = key;
+        records[index] = record;
+        numKeys++;
+        return true;
+    }
+
+    /**
+     * Deletes the key and its record.  Leaves are allowed to underflow;
+     * they are never merged while readers may be traversing them.
+     * @param key
+     * @return true if the key was present.
+     */
+    public boolean delete(KeyType key)
+    {
+        int index = indexOf(key);
+        if (index < 0)
+        {
+            return false;
+        }
+        System.arraycopy(keys, index + 1, keys, index, numKeys - index - 1);
+        System.arraycopy(records, index + 1, records, index, numKeys - index - 1);
+        --numKeys;
+        keys[numKeys] = null;
+        records[numKeys] = null;
+        return true;
+    }
+
+    /**
+     * Moves the upper half of this leaf into a new right sibling.
+     * @return the new right sibling; its first key separates the two leaves.
+     */
+    public ConcurrentBPlusLeaf<KeyType, ValueType> split()
+    {
+        ConcurrentBPlusLeaf<KeyType, ValueType> newLeaf =
+            new ConcurrentBPlusLeaf<KeyType, ValueType>(keys.length + 1);
+        int mid = numKeys / 2;
+        int moved = numKeys - mid;
+        System.arraycopy(keys, mid, newLeaf.keys, 0, moved);
+        System.arraycopy(records, mid, newLeaf.records, 0, moved);
+        newLeaf.numKeys = moved;
+        newLeaf.right = right;
+        for (int i = mid; i < numKeys; i++)
+        {
+            keys[i] = null;
+            records[i] = null;
+        }
+        numKeys = mid;
+        right = newLeaf;
+        return newLeaf;
+    }
+}
@@ -0,0 +1,148 @@
+package trees;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class represents a node within an in-memory B+ tree that is
+ * shared between threads.  Every node carries a version counter
+ * (a StampedLock) that readers validate instead of locking, and that
+ * writers take exclusively while they change the node.
+ *
+ * @param <KeyType>
+ */
+public abstract class ConcurrentBPlusNode<KeyType extends Comparable<? super KeyType>>
+{
+    protected KeyType[] keys;
+    protected int numKeys;
+    private final StampedLock version;
+    private volatile boolean obsolete;
+
+    /**
+     * Constructor for shared data.
+     * @param keys
+     * @param numKeys
+     */
+    public ConcurrentBPlusNode(KeyType[] keys, int numKeys)
+    {
+        this.keys = keys;
+        this.numKeys = numKeys;
+        this.version = new StampedLock();
+        this.obsolete = false;
+    }
+
+    /**
+     * A quick checker to see if the node is a leaf.
+     * @return true if this is a leaf
+     */
+    public abstract boolean isLeaf();
+
+    /**
+     * @return true if the node is full
+     */
+    public boolean isFull()
+    {
+        return numKeys == keys.length;
+    }
+
+    /**
+     * Returns the number of keys in keys.  Only meaningful to readers
+     * once the version they hold has been validated.
+     * @return number of keys present
+     */
+    public int getNumKeys()
+    {
+        return numKeys;
+    }
+
+    /**
+     * Starts an optimistic read of this node.
+     * @return the version to validate against, or 0 if the node is
+     * currently write locked or has been replaced, in which case the
+     * caller must restart.
+     */
+    public long readLockOrRestart()
+    {
+        long stamp = version.tryOptimisticRead();
+        if (obsolete)
+        {
+            return 0;
+        }
+        return stamp;
+    }
+
+    /**
+     * Checks that nothing was written to this node since the version
+     * was read.
+     * @param stamp
+     * @return true if everything read under this version is consistent
+     */
+    public boolean validate(long stamp)
+    {
+        return stamp != 0 && version.validate(stamp);
+    }
+
+    /**
+     * Turns an optimistic read into an exclusive latch, provided that the
+     * node has not changed in between.
+     * @param stamp
+     * @return the write stamp, or 0 if the caller must restart.
+     */
+    public long upgradeToWriteLockOrRestart(long stamp)
+    {
+        if (stamp == 0)
+        {
+            return 0;
+        }
+        long writeStamp = version.tryConvertToWriteLock(stamp);
+        if (writeStamp != 0 && obsolete)
+        {
+            version.unlockWrite(writeStamp);
+            return 0;
+        }
+        return writeStamp;
+    }
+
+    /**
+     * Releases the exclusive latch and publishes a new version.
+     * @param writeStamp
+     */
+    public void writeUnlock(long writeStamp)
+    {
+        version.unlockWrite(writeStamp);
+    }
+
+    /**
+     * Releases the exclusive latch and marks the node as no longer part
+     * of the tree, so that every reader still holding it restarts.
+     * @param writeStamp
+     */
+    public void writeUnlockObsolete(long writeStamp)
+    {
+        obsolete = true;
+        version.unlockWrite(writeStamp);
+    }
+
+    /**
+     * Finds the position of the first key that is >= the given key.
+     * @param key
+     * @return an index in [0, numKeys]
+     */
+    protected int lowerBound(KeyType key)
+    {
+        int low = 0;
+        int high = numKeys;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
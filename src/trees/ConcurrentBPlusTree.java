@@ -0,0 +1,393 @@
+package trees;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.BPlusRecord;
+
+/**
+ * This class implements a B+ tree held entirely in memory and shared between
+ * threads, for hot indexes that fit in RAM.
+ *
+ * Synchronization uses optimistic lock coupling: readers never latch,
+ * they remember the version of every node they look at and validate it before
+ * trusting what they read, restarting from the root if a writer got in the way.
+ * Writers descend the same way and only latch the nodes they change (the leaf,
+ * or a full node and its parent when splitting).  Full nodes are split eagerly
+ * on the way down so that a split never has to propagate upwards.
+ *
+ * Leaves are never merged; a deleted key simply leaves room in its leaf.
+ * Inserting an existing key replaces its record.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ * @param <RecordType>
+ */
+@SuppressWarnings("unchecked")
+public class ConcurrentBPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, RecordType extends BPlusRecord<KeyType, ValueType>>
+{
+    private volatile ConcurrentBPlusNode<KeyType> root;
+    private final int M;
+    private final AtomicLong size;
+
+    /**
+     * Creates an empty tree.
+     * @param m the order of the tree
+     */
+    public ConcurrentBPlusTree(int m)
+    {
+        if (m < 4)
+        {
+            throw new IllegalArgumentException("Order must be at least 4, got " + m);
+        }
+        this.M = m;
+        this.root = new ConcurrentBPlusLeaf<KeyType, ValueType>(m);
+        this.size = new AtomicLong();
+    }
+
+    /**
+     * @return the number of keys in the tree.
+     */
+    public long size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return true if the tree holds no keys.
+     */
+    public boolean isEmpty()
+    {
+        return size.get() == 0;
+    }
+
+    /**
+     * Attempts to find the record for the key within the tree.  Never blocks.
+     * @param key
+     * @return the record for the key, or null if not found.
+     */
+    public ValueType search(KeyType key)
+    {
+        long[] version = new long[1];
+        while (true)
+        {
+            ConcurrentBPlusLeaf<KeyType, ValueType> leaf = findLeaf(key, version);
+            if (leaf == null)
+            {
+                continue;
+            }
+            ValueType value;
+            try
+            {
+                int index = leaf.indexOf(key);
+                value = index < 0 ? null : leaf.getRecord(index);
+            }
+            catch (RuntimeException e)
+            {
+                if (leaf.validate(version[0]))
+                {
+                    throw e;
+                }
+                continue;
+            }
+            if (leaf.validate(version[0]))
+            {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Returns all of the records whose keys are within the range
+     * (key1, key2) inclusive.  Never blocks; if a writer changes a leaf while
+     * it is being scanned the scan resumes after the last key it returned.
+     * @param key1
+     * @param key2
+     * @return a list of records for the range
+     */
+    public List<ValueType> getRange(KeyType key1, KeyType key2)
+    {
+        ArrayList<ValueType> recordsInRange = new ArrayList<ValueType>();
+        ArrayList<KeyType> leafKeys = new ArrayList<KeyType>();
+        ArrayList<ValueType> leafRecords = new ArrayList<ValueType>();
+        KeyType lastKey = null;
+        long[] version = new long[1];
+
+        restart:
+        while (true)
+        {
+            ConcurrentBPlusLeaf<KeyType, ValueType> leaf = findLeaf(lastKey == null ? key1 : lastKey, version);
+            if (leaf == null)
+            {
+                continue;
+            }
+            long leafVersion = version[0];
+            while (true)
+            {
+                leafKeys.clear();
+                leafRecords.clear();
+                boolean pastEnd = false;
+                ConcurrentBPlusLeaf<KeyType, ValueType> next;
+                try
+                {
+                    int i = lastKey == null ? leaf.firstIndexAtLeast(key1) : leaf.firstIndexAfter(lastKey);
+                    for (int numKeys = leaf.getNumKeys(); i < numKeys; i++)
+                    {
+                        KeyType key = leaf.getKey(i);
+                        if (key.compareTo(key2) > 0)
+                        {
+                            pastEnd = true;
+                            break;
+                        }
+                        leafKeys.add(key);
+                        leafRecords.add(leaf.getRecord(i));
+                    }
+                    next = leaf.getRight();
+                }
+                catch (RuntimeException e)
+                {
+                    if (leaf.validate(leafVersion))
+                    {
+                        throw e;
+                    }
+                    continue restart;
+                }
+                if (!leaf.validate(leafVersion))
+                {
+                    continue restart;
+                }
+                recordsInRange.addAll(leafRecords);
+                if (!leafKeys.isEmpty())
+                {
+                    lastKey = leafKeys.get(leafKeys.size() - 1);
+                }
+                if (pastEnd || next == null)
+                {
+                    return recordsInRange;
+                }
+                long nextVersion = next.readLockOrRestart();
+                // the leaf must not have split between reading its right pointer and latching the next leaf
+                if (nextVersion == 0 || !leaf.validate(leafVersion))
+                {
+                    continue restart;
+                }
+                leaf = next;
+                leafVersion = nextVersion;
+            }
+        }
+    }
+
+    /**
+     * Public method for inserting a record into the tree.
+     * @param record
+     */
+    public void insert(RecordType record)
+    {
+        while (!tryInsert(record.getKey(), record.getValue()))
+        {
+            // restart from the root
+        }
+    }
+
+    /**
+     * Removes the record from the tree.
+     * @param record
+     */
+    public void remove(RecordType record)
+    {
+        long[] version = new long[1];
+        while (true)
+        {
+            ConcurrentBPlusLeaf<KeyType, ValueType> leaf = findLeaf(record.getKey(), version);
+            if (leaf == null)
+            {
+                continue;
+            }
+            long writeStamp = leaf.upgradeToWriteLockOrRestart(version[0]);
+            if (writeStamp == 0)
+            {
+                continue;
+            }
+            if (leaf.delete(record.getKey()))
+            {
+                size.decrementAndGet();
+            }
+            leaf.writeUnlock(writeStamp);
+            return;
+        }
+    }
+
+    /**
+     * Descends optimistically to the leaf that may contain the key.
+     * @param key
+     * @param version receives the version of the returned leaf
+     * @return the leaf, or null if the descent has to restart.
+     */
+    private ConcurrentBPlusLeaf<KeyType, ValueType> findLeaf(KeyType key, long[] version)
+    {
+        ConcurrentBPlusNode<KeyType> node = root;
+        long nodeVersion = node.readLockOrRestart();
+        if (nodeVersion == 0 || node != root)
+        {
+            return null;
+        }
+        try
+        {
+            while (!node.isLeaf())
+            {
+                ConcurrentBPlusNode<KeyType> child = ((ConcurrentBPlusInternalNode<KeyType>) node).findChild(key);
+                long childVersion = child == null ? 0 : child.readLockOrRestart();
+                if (!node.validate(nodeVersion) || childVersion == 0)
+                {
+                    return null;
+                }
+                node = child;
+                nodeVersion = childVersion;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            if (node.validate(nodeVersion))
+            {
+                throw e;
+            }
+            return null;
+        }
+        version[0] = nodeVersion;
+        return (ConcurrentBPlusLeaf<KeyType, ValueType>) node;
+    }
+
+    /**
+     * One optimistic attempt at an insert.
+     * @param key
+     * @param value
+     * @return false if the attempt has to be restarted.
+     */
+    private boolean tryInsert(KeyType key, ValueType value)
+    {
+        ConcurrentBPlusNode<KeyType> node = root;
+        long nodeVersion = node.readLockOrRestart();
+        if (nodeVersion == 0 || node != root)
+        {
+            return false;
+        }
+        ConcurrentBPlusInternalNode<KeyType> parent = null;
+        long parentVersion = 0;
+        try
+        {
+            while (!node.isLeaf())
+            {
+                ConcurrentBPlusInternalNode<KeyType> inner = (ConcurrentBPlusInternalNode<KeyType>) node;
+                if (inner.isFull())
+                {
+                    split(inner, nodeVersion, parent, parentVersion);
+                    return false;
+                }
+                ConcurrentBPlusNode<KeyType> child = inner.findChild(key);
+                long childVersion = child == null ? 0 : child.readLockOrRestart();
+                if (!inner.validate(nodeVersion) || childVersion == 0)
+                {
+                    return false;
+                }
+                parent = inner;
+                parentVersion = nodeVersion;
+                node = child;
+                nodeVersion = childVersion;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            if (node.validate(nodeVersion))
+            {
+                throw e;
+            }
+            return false;
+        }
+
+        ConcurrentBPlusLeaf<KeyType, ValueType> leaf = (ConcurrentBPlusLeaf<KeyType, ValueType>) node;
+        if (leaf.isFull())
+        {
+            split(leaf, nodeVersion, parent, parentVersion);
+            return false;
+        }
+        long writeStamp = leaf.upgradeToWriteLockOrRestart(nodeVersion);
+        if (writeStamp == 0)
+        {
+            return false;
+        }
+        if (leaf.insert(key, value))
+        {
+            size.incrementAndGet();
+        }
+        leaf.writeUnlock(writeStamp);
+        return true;
+    }
+
+    /**
+     * Splits a full node, latching it and its parent.  The parent cannot be
+     * full because full nodes are split on the way down.  The caller always
+     * restarts afterwards, whether or not the split happened.
+     * @param node
+     * @param nodeVersion
+     * @param parent the parent, or null if node is the root
+     * @param parentVersion
+     */
+    private void split(ConcurrentBPlusNode<KeyType> node, long nodeVersion,
+        ConcurrentBPlusInternalNode<KeyType> parent, long parentVersion)
+    {
+        long parentStamp = 0;
+        if (parent != null)
+        {
+            parentStamp = parent.upgradeToWriteLockOrRestart(parentVersion);
+            if (parentStamp == 0)
+            {
+                return;
+            }
+        }
+        long nodeStamp = node.upgradeToWriteLockOrRestart(nodeVersion);
+        if (nodeStamp == 0)
+        {
+            if (parent != null)
+            {
+                parent.writeUnlock(parentStamp);
+            }
+            return;
+        }
+        if (parent == null && node != root)
+        {
+            // somebody else grew the tree in the meantime
+            node.writeUnlock(nodeStamp);
+            return;
+        }
+
+        KeyType separator;
+        ConcurrentBPlusNode<KeyType> newNode;
+        if (node.isLeaf())
+        {
+            ConcurrentBPlusLeaf<KeyType, ValueType> newLeaf = ((ConcurrentBPlusLeaf<KeyType, ValueType>) node).split();
+            separator = newLeaf.getKey(0);
+            newNode = newLeaf;
+        }
+        else
+        {
+            ConcurrentBPlusInternalNode<KeyType> inner = (ConcurrentBPlusInternalNode<KeyType>) node;
+            separator = inner.medianKey();
+            newNode = inner.split();
+        }
+
+        if (parent != null)
+        {
+            parent.add(separator, newNode);
+        }
+        else
+        {
+            root = new ConcurrentBPlusInternalNode<KeyType>(M, separator, node, newNode);
+        }
+        node.writeUnlock(nodeStamp);
+        if (parent != null)
+        {
+            parent.writeUnlock(parentStamp);
+        }
+    }
+}
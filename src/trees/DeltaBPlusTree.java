@@ -0,0 +1,338 @@
+package trees;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import util.BPlusRecord;
+import util.Converter;
+import util.DeltaRecord;
+
+/**
+ * A mutable layer over a read-only tree, so that an index synced to hdfs
+ * can take small updates without being rebuilt.
+ *
+ * Inserts and removes go to an in-memory sorted buffer (the memtable);
+ * a remove leaves a tombstone.  When the memtable fills up, or on flush(),
+ * it is written next to the base file as a new sorted delta run.  Lookups
+ * check the memtable, then the delta runs from newest to oldest, then the
+ * base tree; range scans merge all of them.  A key in the delta layer
+ * replaces every record the base holds for it.
+ *
+ * The delta runs pile up until a Compactor folds them into a new base
+ * tree.  Lookups may run concurrently with each other, with updates and
+ * with a compaction; updates are serialized.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ * @param <RecordType>
+ */
+public class DeltaBPlusTree<KeyType extends Comparable<? super KeyType>, ValueType, RecordType extends BPlusRecord<KeyType, ValueType>>
+{
+    public static final int DEFAULT_MEMTABLE_SIZE = 1 << 16;
+
+    /**
+     * The base tree and the delta runs on top of it, replaced as a whole
+     * so that a reader never pairs a new base with runs it already holds.
+     */
+    private static class Layers<KeyType extends Comparable<? super KeyType>, ValueType, RecordType extends BPlusRecord<KeyType, ValueType>>
+    {
+        private final BPlusTree<KeyType, ValueType, RecordType> base;
+        private final List<DeltaFile<KeyType, ValueType>> deltaFiles; //newest first
+
+        private Layers(BPlusTree<KeyType, ValueType, RecordType> base, List<DeltaFile<KeyType, ValueType>> deltaFiles)
+        {
+            this.base = base;
+            this.deltaFiles = Collections.unmodifiableList(deltaFiles);
+        }
+    }
+
+    /**
+     * The records of the memtable and how many there are, swapped out
+     * together by a flush; the size() of the map would walk all of it.
+     */
+    private static class Memtable<KeyType extends Comparable<? super KeyType>, ValueType>
+    {
+        private final ConcurrentSkipListMap<KeyType, DeltaRecord<KeyType, ValueType>> records =
+            new ConcurrentSkipListMap<KeyType, DeltaRecord<KeyType, ValueType>>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private void put(DeltaRecord<KeyType, ValueType> record)
+        {
+            if (records.put(record.getKey(), record) == null)
+            {
+                count.incrementAndGet();
+            }
+        }
+    }
+
+    private final Converter<KeyType, ValueType> converter;
+    private final String baseFileName;
+    private final Configuration conf;
+    private final FileSystem fs;
+    private volatile Memtable<KeyType, ValueType> memtable;
+    private volatile Layers<KeyType, ValueType, RecordType> layers;
+    private long nextSequence;
+    private int memtableSize;
+
+    /**
+     * Opens the delta layer of a base tree, picking up the delta runs
+     * already written next to it that the base does not hold yet.
+     * @param base the read-only base tree
+     * @param converter the converter the base tree was written with
+     * @param baseFileName the path of the base tree on the file system
+     * @param conf
+     * @throws IOException
+     */
+    public DeltaBPlusTree(BPlusTree<KeyType, ValueType, RecordType> base, Converter<KeyType, ValueType> converter,
+        String baseFileName, Configuration conf) throws IOException
+    {
+        this.converter = converter;
+        this.baseFileName = baseFileName;
+        this.conf = conf;
+        this.fs = FileSystem.get(conf);
+        this.memtable = new Memtable<KeyType, ValueType>();
+        this.memtableSize = DEFAULT_MEMTABLE_SIZE;
+        this.nextSequence = base.getDeltaSequence() + 1;
+        ArrayList<DeltaFile<KeyType, ValueType>> deltaFiles = new ArrayList<DeltaFile<KeyType, ValueType>>();
+        for (Path path : DeltaFile.list(fs, baseFileName))
+        {
+            long sequence = DeltaFile.sequenceOf(path);
+            if (sequence > base.getDeltaSequence())
+            {
+                //older runs were left behind by a compaction that did not get to delete them
+                deltaFiles.add(0, new DeltaFile<KeyType, ValueType>(fs, path, converter));
+                nextSequence = sequence + 1;
+            }
+        }
+        this.layers = new Layers<KeyType, ValueType, RecordType>(base, deltaFiles);
+    }
+
+    /**
+     * Inserts the record, replacing whatever the tree holds for its key.
+     * @param record
+     * @throws IOException
+     */
+    public synchronized void insert(RecordType record) throws IOException
+    {
+        memtable.put(new DeltaRecord<KeyType, ValueType>(record.getKey(), record.getValue(), false));
+        flushIfFull();
+    }
+
+    /**
+     * Removes every record for the record's key.
+     * @param record
+     * @throws IOException
+     */
+    public synchronized void remove(RecordType record) throws IOException
+    {
+        memtable.put(new DeltaRecord<KeyType, ValueType>(record.getKey(), null, true));
+        flushIfFull();
+    }
+
+    /**
+     * Attempts to find the record for the key, newest layer first.
+     * @param key
+     * @return the record for the key, or null if not found.
+     * @throws IOException
+     */
+    public ValueType search(KeyType key) throws IOException
+    {
+        //the memtable first: flush() publishes the new run before it swaps the memtable out
+        DeltaRecord<KeyType, ValueType> record = memtable.records.get(key);
+        Layers<KeyType, ValueType, RecordType> current = layers;
+        for (int i = 0; record == null && i < current.deltaFiles.size(); i++)
+        {
+            record = current.deltaFiles.get(i).search(key);
+        }
+        if (record != null)
+        {
+            return record.isTombstone() ? null : record.getValue();
+        }
+        return current.base.search(key);
+    }
+
+    /**
+     * Returns all of the records whose keys are within the range
+     * (key1, key2) inclusive, with the delta layer applied.
+     * @param key1
+     * @param key2
+     * @return a list of records for the range
+     * @throws IOException
+     */
+    public List<ValueType> getRange(KeyType key1, KeyType key2) throws IOException
+    {
+        ArrayList<ValueType> recordsInRange = new ArrayList<ValueType>();
+        RecordCursor<KeyType, ValueType> cursor = cursor(key1, true);
+        while (cursor.next() && cursor.getKey().compareTo(key2) <= 0)
+        {
+            recordsInRange.add(cursor.getValue());
+        }
+        return recordsInRange;
+    }
+
+    /**
+     * Returns a cursor over the tree with the delta layer applied.
+     * @param from the first key of interest, or null to start at the smallest
+     * @param dropTombstones false to also see the keys the delta layer deletes
+     * @return the cursor
+     * @throws IOException
+     */
+    public RecordCursor<KeyType, ValueType> cursor(KeyType from, boolean dropTombstones) throws IOException
+    {
+        //the memtable first, as in search()
+        ConcurrentSkipListMap<KeyType, DeltaRecord<KeyType, ValueType>> records = memtable.records;
+        Layers<KeyType, ValueType, RecordType> current = layers;
+        ArrayList<RecordCursor<KeyType, ValueType>> sources = new ArrayList<RecordCursor<KeyType, ValueType>>();
+        sources.add(memtableCursor(records, from));
+        for (DeltaFile<KeyType, ValueType> deltaFile : current.deltaFiles)
+        {
+            sources.add(deltaFile.cursor(from));
+        }
+        sources.add(current.base.cursor(from));
+        return new MergingCursor<KeyType, ValueType>(sources, dropTombstones);
+    }
+
+    private RecordCursor<KeyType, ValueType> memtableCursor(
+        ConcurrentSkipListMap<KeyType, DeltaRecord<KeyType, ValueType>> memtable, KeyType from)
+    {
+        final Iterator<DeltaRecord<KeyType, ValueType>> records =
+            (from == null ? memtable : memtable.tailMap(from, true)).values().iterator();
+        return new RecordCursor<KeyType, ValueType>() {
+            private DeltaRecord<KeyType, ValueType> record;
+
+            public boolean next()
+            {
+                record = records.hasNext() ? records.next() : null;
+                return record != null;
+            }
+
+            public KeyType getKey()
+            {
+                return record.getKey();
+            }
+
+            public ValueType getValue()
+            {
+                return record.getValue();
+            }
+
+            public boolean isTombstone()
+            {
+                return record.isTombstone();
+            }
+        };
+    }
+
+    /**
+     * Writes the memtable out as a new delta run.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (memtable.records.isEmpty())
+        {
+            return;
+        }
+        Path path = DeltaFile.pathFor(baseFileName, nextSequence++);
+        DeltaFile.write(fs, path, converter, memtable.records.values().iterator());
+        Layers<KeyType, ValueType, RecordType> current = layers;
+        ArrayList<DeltaFile<KeyType, ValueType>> deltaFiles = new ArrayList<DeltaFile<KeyType, ValueType>>();
+        deltaFiles.add(new DeltaFile<KeyType, ValueType>(fs, path, converter));
+        deltaFiles.addAll(current.deltaFiles);
+        layers = new Layers<KeyType, ValueType, RecordType>(current.base, deltaFiles);
+        //a fresh memtable rather than clear(), so that readers still holding
+        //the old one, possibly with the old runs, keep seeing its records
+        memtable = new Memtable<KeyType, ValueType>();
+    }
+
+    /**
+     * Puts a new base tree in place of the current one, together with the
+     * runs it does not hold yet.  Called by the compactor once the new base
+     * file has been written.
+     * @param newBase a base holding every run up to its delta sequence
+     * @return the runs the new base holds, which may now be deleted
+     */
+    public synchronized List<DeltaFile<KeyType, ValueType>> replaceBase(BPlusTree<KeyType, ValueType, RecordType> newBase)
+    {
+        ArrayList<DeltaFile<KeyType, ValueType>> kept = new ArrayList<DeltaFile<KeyType, ValueType>>();
+        ArrayList<DeltaFile<KeyType, ValueType>> folded = new ArrayList<DeltaFile<KeyType, ValueType>>();
+        for (DeltaFile<KeyType, ValueType> deltaFile : layers.deltaFiles)
+        {
+            (deltaFile.getSequence() > newBase.getDeltaSequence() ? kept : folded).add(deltaFile);
+        }
+        layers = new Layers<KeyType, ValueType, RecordType>(newBase, kept);
+        return folded;
+    }
+
+    private void flushIfFull() throws IOException
+    {
+        if (memtable.count.get() >= memtableSize)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Sets how many keys the memtable holds before it is written out.
+     * @param size
+     */
+    public void setMemtableSize(int size)
+    {
+        memtableSize = Math.max(1, size);
+    }
+
+    public int getMemtableCount()
+    {
+        return memtable.count.get();
+    }
+
+    /**
+     * @return the delta runs, newest first
+     */
+    public List<DeltaFile<KeyType, ValueType>> getDeltaFiles()
+    {
+        return layers.deltaFiles;
+    }
+
+    public BPlusTree<KeyType, ValueType, RecordType> getBase()
+    {
+        return layers.base;
+    }
+
+    public Converter<KeyType, ValueType> getConverter()
+    {
+        return converter;
+    }
+
+    public String getBaseFileName()
+    {
+        return baseFileName;
+    }
+
+    public Configuration getConfiguration()
+    {
+        return conf;
+    }
+
+    /**
+     * Flushes the memtable and closes the delta runs.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException
+    {
+        flush();
+        for (DeltaFile<KeyType, ValueType> deltaFile : layers.deltaFiles)
+        {
+            deltaFile.close();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package trees;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+import util.Converter;
+import util.DeltaRecord;
+
+/**
+ * An immutable, sorted run of delta records next to a base tree file, named
+ * <base>.delta.<sequence>; a higher sequence is a newer run.
+ *
+ * Records have a fixed length (a tombstone flag, the key and the record) and
+ * are grouped in blocks of a fixed number of records.  The file ends with an
+ * index holding the first key and the CRC32C of every block, the last key of
+ * the run, and a trailer, so opening a run takes two small reads and a lookup
+ * one more.  Runs are written to a temporary name and renamed into place, so
+ * readers never see a partial run.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+public class DeltaFile<KeyType extends Comparable<? super KeyType>, ValueType> {
+    public static final String DELTA_SUFFIX = ".delta.";
+    public static final int DEFAULT_BLOCK_RECORDS = 64;
+
+    private static final int MAGIC = 0x444c5431; // "DLT1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int TRAILER_LENGTH = 6 * 4 + 2 * 8;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * @param baseFileName
+     * @param sequence
+     * @return the path of the delta run with the given sequence
+     */
+    public static Path pathFor(String baseFileName, long sequence) {
+        return new Path(baseFileName + DELTA_SUFFIX + String.format("%06d", sequence));
+    }
+
+    /**
+     * @param path
+     * @return the sequence of a delta run, or -1 if the path is not one
+     */
+    public static long sequenceOf(Path path) {
+        String name = path.getName();
+        int at = name.lastIndexOf(DELTA_SUFFIX);
+        if (at < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(at + DELTA_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Lists the delta runs of a base file, oldest first.
+     *
+     * @param fs
+     * @param baseFileName
+     * @return
+     * @throws IOException
+     */
+    public static List<Path> list(FileSystem fs, String baseFileName)
+            throws IOException {
+        ArrayList<Path> paths = new ArrayList<Path>();
+        FileStatus[] statuses = fs.globStatus(new Path(baseFileName + DELTA_SUFFIX + "*"));
+        if (statuses != null) {
+            for (FileStatus status : statuses) {
+                if (sequenceOf(status.getPath()) >= 0) {
+                    paths.add(status.getPath());
+                }
+            }
+        }
+        Collections.sort(paths, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return Long.valueOf(sequenceOf(a)).compareTo(sequenceOf(b));
+            }
+        });
+        return paths;
+    }
+
+    /**
+     * Writes a sorted run of records.
+     *
+     * @param fs
+     * @param path
+     * @param converter
+     * @param records in strictly increasing key order
+     * @return the number of records written
+     * @throws IOException
+     */
+    public static <KeyType extends Comparable<? super KeyType>, ValueType> long write(
+            FileSystem fs, Path path, Converter<KeyType, ValueType> converter,
+            Iterator<DeltaRecord<KeyType, ValueType>> records)
+            throws IOException {
+        int keyLength = converter.getKeyLength();
+        int recordLength = 1 + keyLength + converter.getRecordLength();
+        int blockLength = recordLength * DEFAULT_BLOCK_RECORDS;
+        Path temp = new Path(path.toString() + TEMP_SUFFIX);
+        FSDataOutputStream out = fs.create(temp, true);
+        ByteBuffer block = ByteBuffer.allocate(blockLength);
+        ByteBuffer index = ByteBuffer.allocate(1024);
+        PureJavaCrc32C crc = new PureJavaCrc32C();
+        byte[] emptyRecord = new byte[converter.getRecordLength()];
+        byte[] lastKey = null;
+        long count = 0;
+        try {
+            while (records.hasNext()) {
+                DeltaRecord<KeyType, ValueType> record = records.next();
+                byte[] key = converter.keyToBytes(record.getKey());
+                if (block.position() == 0) {
+                    index = ensureRoom(index, keyLength + 4);
+                    index.put(key, 0, keyLength);
+                }
+                block.put((byte) (record.isTombstone() ? 1 : 0));
+                block.put(key, 0, keyLength);
+                block.put(record.isTombstone() ? emptyRecord
+                        : converter.recordToBytes(record.getValue()), 0,
+                        converter.getRecordLength());
+                lastKey = key;
+                count++;
+                if (!block.hasRemaining()) {
+                    writeBlock(out, block, index, crc);
+                }
+            }
+            if (block.position() > 0) {
+                writeBlock(out, block, index, crc);
+            }
+            long indexOffset = out.getPos();
+            index = ensureRoom(index, keyLength);
+            if (lastKey != null) {
+                index.put(lastKey, 0, keyLength);
+            }
+            out.write(index.array(), 0, index.position());
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+            trailer.putInt(keyLength);
+            trailer.putInt(converter.getRecordLength());
+            trailer.putInt(DEFAULT_BLOCK_RECORDS);
+            trailer.putInt(index.position());
+            trailer.putLong(count);
+            trailer.putLong(indexOffset);
+            trailer.putInt(FORMAT_VERSION);
+            trailer.putInt(MAGIC);
+            out.write(trailer.array());
+        } finally {
+            out.close();
+        }
+        if (!fs.rename(temp, path)) {
+            fs.delete(temp, false);
+            throw new IOException("Could not rename " + temp + " to " + path);
+        }
+        return count;
+    }
+
+    private static ByteBuffer ensureRoom(ByteBuffer buffer, int room) {
+        if (buffer.remaining() >= room) {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(),
+                buffer.position() + room));
+        bigger.put(buffer.array(), 0, buffer.position());
+        return bigger;
+    }
+
+    private static void writeBlock(FSDataOutputStream out, ByteBuffer block,
+            ByteBuffer index, PureJavaCrc32C crc) throws IOException {
+        crc.reset();
+        crc.update(block.array(), 0, block.position());
+        index.putInt((int) crc.getValue());
+        out.write(block.array(), 0, block.position());
+        block.clear();
+    }
+
+    /**
+     * Opens a delta run for reading.
+     *
+     * @param fs
+     * @param path
+     * @param converter
+     * @throws IOException
+     */
+    public DeltaFile(FileSystem fs, Path path, Converter<KeyType, ValueType> converter)
+            throws IOException {
+        path_ = path;
+        converter_ = converter;
+        sequence_ = sequenceOf(path);
+        long length = fs.getFileStatus(path).getLen();
+        in_ = fs.open(path);
+        if (length < TRAILER_LENGTH) {
+            in_.close();
+            throw new IOException(path + " is not a delta file");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        in_.readFully(length - TRAILER_LENGTH, trailer.array());
+        int keyLength = trailer.getInt();
+        int recordLength = trailer.getInt();
+        blockRecords_ = trailer.getInt();
+        int indexLength = trailer.getInt();
+        count_ = trailer.getLong();
+        long indexOffset = trailer.getLong();
+        int version = trailer.getInt();
+        if (trailer.getInt() != MAGIC || version > FORMAT_VERSION) {
+            in_.close();
+            throw new IOException(path + " is not a delta file");
+        }
+        if (keyLength != converter.getKeyLength()
+                || recordLength != converter.getRecordLength()) {
+            in_.close();
+            throw new IOException(path + " has keys of " + keyLength
+                    + " bytes and records of " + recordLength
+                    + " bytes, the converter uses " + converter.getKeyLength()
+                    + " and " + converter.getRecordLength());
+        }
+        recordLength_ = 1 + keyLength + recordLength;
+        numBlocks_ = (int) ((count_ + blockRecords_ - 1) / blockRecords_);
+        blockKeys_ = new ArrayList<KeyType>(numBlocks_);
+        blockCrcs_ = new int[numBlocks_];
+        ByteBuffer index = ByteBuffer.allocate(indexLength);
+        in_.readFully(indexOffset, index.array());
+        byte[] key = new byte[keyLength];
+        for (int i = 0; i < numBlocks_; i++) {
+            index.get(key);
+            blockKeys_.add(converter.bytesToKey(key.clone()));
+            blockCrcs_[i] = index.getInt();
+        }
+        if (count_ > 0) {
+            index.get(key);
+            maxKey_ = converter.bytesToKey(key.clone());
+        }
+    }
+
+    /**
+     * Looks the key up in this run.
+     *
+     * @param key
+     * @return the record for the key (maybe a tombstone), or null if this
+     *         run does not mention the key
+     * @throws IOException
+     */
+    public DeltaRecord<KeyType, ValueType> search(KeyType key) throws IOException {
+        if (count_ == 0 || key.compareTo(blockKeys_.get(0)) < 0
+                || key.compareTo(maxKey_) > 0) {
+            return null;
+        }
+        int block = findBlock(key);
+        byte[] bytes = readBlock(block);
+        int low = 0;
+        int high = recordsIn(block) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            DeltaRecord<KeyType, ValueType> record = decode(bytes, mid);
+            int result = record.getKey().compareTo(key);
+            if (result == 0) {
+                return record;
+            } else if (result < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param from the first key of interest, or null to start at the smallest
+     * @return a cursor over the run, tombstones included
+     */
+    public RecordCursor<KeyType, ValueType> cursor(final KeyType from) {
+        return new RecordCursor<KeyType, ValueType>() {
+            private int block = from == null || count_ == 0 ? 0 : findBlock(from);
+            private int index = -1;
+            private byte[] bytes;
+            private DeltaRecord<KeyType, ValueType> record;
+
+            public boolean next() throws IOException {
+                while (block < numBlocks_) {
+                    if (bytes == null) {
+                        bytes = readBlock(block);
+                    }
+                    while (++index < recordsIn(block)) {
+                        record = decode(bytes, index);
+                        if (from == null || record.getKey().compareTo(from) >= 0) {
+                            return true;
+                        }
+                    }
+                    block++;
+                    index = -1;
+                    bytes = null;
+                }
+                return false;
+            }
+
+            public KeyType getKey() {
+                return record.getKey();
+            }
+
+            public ValueType getValue() {
+                return record.getValue();
+            }
+
+            public boolean isTombstone() {
+                return record.isTombstone();
+            }
+        };
+    }
+
+    /**
+     * @param key
+     * @return the last block whose first key is not greater than key
+     */
+    private int findBlock(KeyType key) {
+        int low = 0;
+        int high = numBlocks_ - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockKeys_.get(mid).compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private int recordsIn(int block) {
+        return (int) Math.min(blockRecords_, count_ - (long) block * blockRecords_);
+    }
+
+    private byte[] readBlock(int block) throws IOException {
+        byte[] bytes = new byte[recordsIn(block) * recordLength_];
+        long position = (long) block * blockRecords_ * recordLength_;
+        in_.readFully(position, bytes);
+        PureJavaCrc32C crc = new PureJavaCrc32C();
+        crc.update(bytes, 0, bytes.length);
+        if ((int) crc.getValue() != blockCrcs_[block]) {
+            throw new ChecksumException("Checksum mismatch in block " + block
+                    + " of " + path_, position);
+        }
+        return bytes;
+    }
+
+    private DeltaRecord<KeyType, ValueType> decode(byte[] bytes, int index) {
+        int offset = index * recordLength_;
+        int keyLength = converter_.getKeyLength();
+        byte[] key = new byte[keyLength];
+        System.arraycopy(bytes, offset + 1, key, 0, keyLength);
+        boolean tombstone = bytes[offset] != 0;
+        ValueType value = null;
+        if (!tombstone) {
+            byte[] record = new byte[converter_.getRecordLength()];
+            System.arraycopy(bytes, offset + 1 + keyLength, record, 0, record.length);
+            value = converter_.bytesToRecord(record);
+        }
+        return new DeltaRecord<KeyType, ValueType>(converter_.bytesToKey(key), value, tombstone);
+    }
+
+    public void close() throws IOException {
+        in_.close();
+    }
+
+    public Path getPath() {
+        return path_;
+    }
+
+    public long getSequence() {
+        return sequence_;
+    }
+
+    public long getCount() {
+        return count_;
+    }
+
+    public KeyType getMinKey() {
+        return count_ == 0 ? null : blockKeys_.get(0);
+    }
+
+    public KeyType getMaxKey() {
+        return maxKey_;
+    }
+
+    private final Path path_;
+    private final Converter<KeyType, ValueType> converter_;
+    private final long sequence_;
+    private final FSDataInputStream in_;
+    private final long count_;
+    private final int blockRecords_;
+    private final int recordLength_;
+    private final int numBlocks_;
+    private final List<KeyType> blockKeys_;
+    private final int[] blockCrcs_;
+    private KeyType maxKey_;
+}
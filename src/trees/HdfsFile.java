@@ -1,8 +1,16 @@
 package trees;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -10,9 +18,51 @@ import org.apache.hadoop.conf.Configuration;
 
 public class HdfsFile {
     
+    // Ranges at most this many bytes apart are read together.
+    public static final int DEFAULT_MAX_GAP = 64 * 1024;
+    
+    // No single read is made longer than this by merging ranges.
+    public static final int DEFAULT_MAX_MERGED_LENGTH = 4 * 1024 * 1024;
+    
+    /**
+     * One part of a vectored read: length bytes at position of the file,
+     * to be put into buffer at offset.
+     */
+    public static class Range {
+        private final long position_;
+        private final int length_;
+        private final byte[] buffer_;
+        private final int offset_;
+        
+        public Range(long position, byte[] buffer, int offset, int length) {
+            position_ = position;
+            buffer_ = buffer;
+            offset_ = offset;
+            length_ = length;
+        }
+        
+        public long getPosition() {
+            return position_;
+        }
+        
+        public int getLength() {
+            return length_;
+        }
+        
+        public byte[] getBuffer() {
+            return buffer_;
+        }
+        
+        public int getOffset() {
+            return offset_;
+        }
+    }
+    
     public HdfsFile(String filename, Configuration conf) throws IOException {
         fs_ = FileSystem.get(conf);
         path_ = new Path(filename);
+        maxGap_ = DEFAULT_MAX_GAP;
+        maxMergedLength_ = DEFAULT_MAX_MERGED_LENGTH;
     }
     
     public void open() throws IOException {
@@ -21,8 +71,91 @@ public class HdfsFile {
         status_ = fs_.getFileStatus(path_);
     }
     
+    /**
+     * Creates the file for writing, replacing any file already there.
+     * @return the stream writing the file
+     */
+    public FSDataOutputStream create() throws IOException {
+        out_ = fs_.create(path_, true);
+        return out_;
+    }
+    
+    /**
+     * Appends to the file made by create().
+     */
     public void write(byte[] buffer, int offset, int length) throws IOException {
-        //out_.write(buffer, offset, length);
+        if (out_ == null) {
+            throw new IOException(path_ + " is not open for writing");
+        }
+        out_.write(buffer, offset, length);
+    }
+    
+    /**
+     * Closes the file made by create().
+     */
+    public void closeOutput() throws IOException {
+        if (out_ != null) {
+            out_.close();
+            out_ = null;
+        }
+    }
+    
+    /**
+     * Closes the stream reading the file.
+     */
+    public void close() throws IOException {
+        if (in_ != null) {
+            in_.close();
+            in_ = null;
+        }
+    }
+    
+    /**
+     * Moves the file to another name, replacing any file there in a single
+     * step (see replace()).
+     */
+    public void rename(String filename) throws IOException {
+        Path target = new Path(filename);
+        replace(fs_, path_, target);
+        path_ = target;
+    }
+    
+    /**
+     * Renames temp over target in a single step, so that target is never
+     * missing, even if the process dies half way: readers find either the
+     * old file or the new one.  A file system rename() will not overwrite,
+     * and deleting the target first would leave nothing behind a crash in
+     * between.  If the rename fails temp is deleted.
+     */
+    public static void replace(FileSystem fs, Path temp, Path target) throws IOException {
+        try {
+            FileContext.getFileContext(fs.getUri(), fs.getConf()).rename(temp, target,
+                    Options.Rename.OVERWRITE);
+        } catch (IOException e) {
+            fs.delete(temp, false);
+            throw e;
+        }
+        if (fs instanceof ChecksumFileSystem) {
+            // the local file system keeps the checksums in a side file,
+            // which the rename leaves behind
+            ChecksumFileSystem checksumFs = (ChecksumFileSystem) fs;
+            Path tempSums = checksumFs.getChecksumFile(temp);
+            Path sums = checksumFs.getChecksumFile(target);
+            if (!checksumFs.getRawFileSystem().rename(tempSums, sums)) {
+                checksumFs.getRawFileSystem().delete(sums, false);
+            }
+        }
+    }
+    
+    /**
+     * Deletes the file.
+     */
+    public void delete() throws IOException {
+        fs_.delete(path_, false);
+    }
+    
+    public FileSystem getFileSystem() {
+        return fs_;
     }
     
     public void copyLocalToHdfs(String src) throws IOException {
@@ -38,18 +171,154 @@ public class HdfsFile {
         open();
     }
     
+    /**
+     * @return what tells the open file apart from others: its qualified
+     *         path and its length
+     */
+    public String getIdentity() {
+        return status_.getPath().toString() + "@" + status_.getLen();
+    }
+    
+    public long getModificationTime() {
+        return status_.getModificationTime();
+    }
+    
+    /**
+     * @return the size of the blocks the file system stores this file in
+     */
+    public long getBlockSize() {
+        return fs_.getDefaultBlockSize(path_);
+    }
+    
+    /**
+     * Reads length bytes at position, or at that many bytes before the end
+     * of the file if position is negative.  What lies past the end of the
+     * file (the last page may be written short) is left as it is in the
+     * buffer.  With a read executor set the read is hedged.
+     */
     public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (executor_ != null) {
+            executor_.read(this, position, buffer, offset, length);
+        } else {
+            readDirect(position, buffer, offset, length);
+        }
+    }
+    
+    /**
+     * Reads on the calling thread.
+     */
+    void readDirect(long position, byte[] buffer, int offset, int length) throws IOException {
         if (position < 0) {
             position = status_.getLen() + position;
         }
-        in_.read(position, buffer, offset, length);
+        // a positional read may return less than asked for
+        in_.readFully(position, buffer, offset,
+                (int) Math.max(0, Math.min(length, status_.getLen() - position)));
+        reads_.incrementAndGet();
 //        System.err.println(new String(buffer, "ascii") + " " + length + " "
 //                + buffer.length + " " + in_.getPos());
     }
     
+    /**
+     * Fills a batch of ranges with as few reads as possible: ranges that
+     * overlap or lie at most the maximum gap apart are read as one, up to
+     * the maximum merged length, and the bytes are then copied out to each
+     * range.  Reading the gap costs less than another round trip to a
+     * datanode.  With a read executor set, the merged reads go out in
+     * parallel.
+     * @param ranges in any order; negative positions are not allowed
+     * @throws IOException
+     */
+    public void readVectored(List<Range> ranges) throws IOException {
+        List<Range> sorted = new ArrayList<Range>(ranges);
+        Collections.sort(sorted, new Comparator<Range>() {
+            public int compare(Range a, Range b) {
+                return a.position_ < b.position_ ? -1 : a.position_ > b.position_ ? 1 : 0;
+            }
+        });
+        List<Range> reads = new ArrayList<Range>();
+        List<Integer> groups = new ArrayList<Integer>();
+        int first = 0;
+        while (first < sorted.size()) {
+            long start = sorted.get(first).position_;
+            long end = start + sorted.get(first).length_;
+            int last = first + 1;
+            while (last < sorted.size()) {
+                Range next = sorted.get(last);
+                long mergedEnd = Math.max(end, next.position_ + next.length_);
+                if (next.position_ - end > maxGap_ || mergedEnd - start > maxMergedLength_) {
+                    break;
+                }
+                end = mergedEnd;
+                last++;
+            }
+            if (last == first + 1) {
+                reads.add(sorted.get(first));
+            } else {
+                reads.add(new Range(start, new byte[(int) (end - start)], 0, (int) (end - start)));
+            }
+            groups.add(first);
+            first = last;
+        }
+        groups.add(sorted.size());
+        
+        if (executor_ != null) {
+            executor_.readAll(this, reads);
+        } else {
+            for (Range read : reads) {
+                readDirect(read.position_, read.buffer_, read.offset_, read.length_);
+            }
+        }
+        for (int g = 0; g < reads.size(); g++) {
+            Range merged = reads.get(g);
+            if (groups.get(g + 1) - groups.get(g) == 1) {
+                continue;
+            }
+            for (int i = groups.get(g); i < groups.get(g + 1); i++) {
+                Range range = sorted.get(i);
+                System.arraycopy(merged.buffer_, (int) (range.position_ - merged.position_),
+                        range.buffer_, range.offset_, range.length_);
+            }
+        }
+    }
+    
+    /**
+     * Sends the reads of the file through an executor, which runs them in
+     * parallel and hedges the slow ones.
+     * @param executor the executor, or null to read on the calling thread
+     */
+    public void setReadExecutor(ReadExecutor executor) {
+        executor_ = executor;
+    }
+    
+    /**
+     * @param maxGap the most bytes between two ranges read as one
+     */
+    public void setMaxGap(int maxGap) {
+        maxGap_ = maxGap;
+    }
+    
+    /**
+     * @param maxMergedLength the longest read merging ranges may make
+     */
+    public void setMaxMergedLength(int maxMergedLength) {
+        maxMergedLength_ = maxMergedLength;
+    }
+    
+    /**
+     * @return the positional reads made so far
+     */
+    public long getReadCount() {
+        return reads_.get();
+    }
+    
     private FileSystem fs_;
     private Path path_;
     private FSDataInputStream in_;
     private FileStatus status_;
-    //private FSDataOutputStream out_;
+    private int maxGap_;
+    private int maxMergedLength_;
+    private final AtomicLong reads_ = new AtomicLong();
+    private volatile ReadExecutor executor_;
+    private FSDataOutputStream out_;
 }
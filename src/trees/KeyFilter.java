@@ -0,0 +1,326 @@
+package trees;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
+
+import util.Converter;
+
+/**
+ * Bloom filters over the keys of a read-only tree, kept in a file named
+ * <tree>.bloom next to it, so that a lookup for a key the tree does not
+ * hold can usually be answered without reading a single node.
+ *
+ * The keys may be split into partitions of consecutive key ranges with a
+ * filter each; a lookup only probes the filter of the range holding the
+ * key, which keeps the bits it touches close together.  The file also
+ * records which version of the tree it describes, and a filter that does
+ * not match the tree it is opened with is ignored.
+ *
+ * @param <KeyType>
+ */
+public class KeyFilter<KeyType extends Comparable<? super KeyType>> {
+    public static final String FILTER_SUFFIX = ".bloom";
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final int MAGIC = 0x424c4d31; // "BLM1"
+    private static final int FORMAT_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Collects the keys of a tree in key order into partitioned filters.
+     *
+     * @param <KeyType>
+     */
+    public static class Builder<KeyType extends Comparable<? super KeyType>> {
+        private final Converter<KeyType, ?> converter_;
+        private final double falsePositiveRate_;
+        private final int keysPerPartition_;
+        private final long expectedKeys_;
+        private final List<KeyType> firstKeys_;
+        private final List<BloomFilter> filters_;
+        private BloomFilter current_;
+        private long keysInCurrent_;
+        private KeyType lastKey_;
+
+        /**
+         * @param converter
+         * @param expectedKeys about how many keys will be added
+         * @param falsePositiveRate the wanted rate of absent keys that the
+         *        filter lets through, between 0 and 1
+         * @param keysPerPartition the keys in each partition, or 0 for a
+         *        single filter over the whole tree
+         */
+        public Builder(Converter<KeyType, ?> converter, long expectedKeys,
+                double falsePositiveRate, int keysPerPartition) {
+            if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+                throw new IllegalArgumentException("False positive rate "
+                        + falsePositiveRate + " is not between 0 and 1");
+            }
+            converter_ = converter;
+            expectedKeys_ = Math.max(1, expectedKeys);
+            falsePositiveRate_ = falsePositiveRate;
+            keysPerPartition_ = keysPerPartition;
+            firstKeys_ = new ArrayList<KeyType>();
+            filters_ = new ArrayList<BloomFilter>();
+        }
+
+        /**
+         * Adds a key.  Keys must not decrease; a key repeated across a
+         * partition boundary is added to both partitions.
+         *
+         * @param key
+         */
+        public void add(KeyType key) {
+            boolean repeated = lastKey_ != null && key.compareTo(lastKey_) == 0;
+            if (current_ == null || (keysPerPartition_ > 0
+                    && keysInCurrent_ >= keysPerPartition_ && !repeated)) {
+                long keys = keysPerPartition_ > 0 ? Math.min(keysPerPartition_,
+                        expectedKeys_) : expectedKeys_;
+                current_ = newFilter(keys, falsePositiveRate_);
+                firstKeys_.add(key);
+                filters_.add(current_);
+                keysInCurrent_ = 0;
+            }
+            current_.add(new Key(converter_.keyToBytes(key)));
+            keysInCurrent_++;
+            lastKey_ = key;
+        }
+
+        /**
+         * @param superblock the superblock of the tree the keys came from,
+         *        as it was synced
+         * @return the filter
+         */
+        public KeyFilter<KeyType> build(Superblock superblock) {
+            return new KeyFilter<KeyType>(converter_, falsePositiveRate_,
+                    keysPerPartition_, firstKeys_, filters_,
+                    Fingerprint.of(superblock));
+        }
+    }
+
+    /**
+     * The superblock fields that change whenever the tree does.
+     */
+    private static class Fingerprint {
+        private long generation;
+        private long rootOffset;
+        private long keyCount;
+        private long deltaSequence;
+
+        private static Fingerprint of(Superblock superblock) {
+            Fingerprint fingerprint = new Fingerprint();
+            fingerprint.generation = superblock.getGeneration();
+            fingerprint.rootOffset = superblock.getRootOffset();
+            fingerprint.keyCount = superblock.getKeyCount();
+            fingerprint.deltaSequence = superblock.getDeltaSequence();
+            return fingerprint;
+        }
+
+        private boolean matches(Fingerprint other) {
+            return generation == other.generation
+                    && rootOffset == other.rootOffset
+                    && keyCount == other.keyCount
+                    && deltaSequence == other.deltaSequence;
+        }
+    }
+
+    private final Converter<KeyType, ?> converter_;
+    private final double falsePositiveRate_;
+    private final int keysPerPartition_;
+    private final List<KeyType> firstKeys_;
+    private final List<BloomFilter> filters_;
+    private final Fingerprint fingerprint_;
+
+    private KeyFilter(Converter<KeyType, ?> converter, double falsePositiveRate,
+            int keysPerPartition, List<KeyType> firstKeys,
+            List<BloomFilter> filters, Fingerprint fingerprint) {
+        converter_ = converter;
+        falsePositiveRate_ = falsePositiveRate;
+        keysPerPartition_ = keysPerPartition;
+        firstKeys_ = firstKeys;
+        filters_ = filters;
+        fingerprint_ = fingerprint;
+    }
+
+    /**
+     * Sizes a filter for the number of keys and false positive rate: m =
+     * -n ln p / (ln 2)^2 bits and k = m / n ln 2 hash functions.
+     */
+    private static BloomFilter newFilter(long keys, double falsePositiveRate) {
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int vectorSize = (int) Math.min(Integer.MAX_VALUE - 64, Math.max(64, bits));
+        int hashes = Math.max(1, (int) Math.round((double) vectorSize / keys * ln2));
+        return new BloomFilter(vectorSize, hashes, Hash.MURMUR_HASH);
+    }
+
+    /**
+     * @param treeFileName
+     * @return the path of the filter file of the tree
+     */
+    public static Path pathFor(String treeFileName) {
+        return new Path(treeFileName + FILTER_SUFFIX);
+    }
+
+    /**
+     * @param key
+     * @return false if the tree certainly does not hold the key
+     */
+    public boolean mightContain(KeyType key) {
+        if (filters_.isEmpty() || key.compareTo(firstKeys_.get(0)) < 0) {
+            return false;
+        }
+        int low = 0;
+        int high = firstKeys_.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstKeys_.get(mid).compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return filters_.get(low).membershipTest(new Key(converter_.keyToBytes(key)));
+    }
+
+    /**
+     * Writes the filter next to the tree, replacing any older one.
+     *
+     * @param fs
+     * @param treeFileName
+     * @throws IOException
+     */
+    public void write(FileSystem fs, String treeFileName) throws IOException {
+        Path path = pathFor(treeFileName);
+        Path temp = new Path(path.toString() + TEMP_SUFFIX);
+        FSDataOutputStream out = fs.create(temp, true);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+        HdfsFile.replace(fs, temp, path);
+    }
+
+    /**
+     * Writes the filter to a stream.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(converter_.getKeyLength());
+        out.writeLong(fingerprint_.generation);
+        out.writeLong(fingerprint_.rootOffset);
+        out.writeLong(fingerprint_.keyCount);
+        out.writeLong(fingerprint_.deltaSequence);
+        out.writeDouble(falsePositiveRate_);
+        out.writeInt(keysPerPartition_);
+        out.writeInt(filters_.size());
+        for (int i = 0; i < filters_.size(); i++) {
+            out.write(converter_.keyToBytes(firstKeys_.get(i)), 0,
+                    converter_.getKeyLength());
+            filters_.get(i).write(out);
+        }
+    }
+
+    /**
+     * Reads the filter of a tree, if it has a current one.
+     *
+     * @param fs
+     * @param treeFileName
+     * @param converter
+     * @param superblock the superblock of the tree as opened
+     * @return the filter, or null if the tree has none or it describes
+     *         another version of the tree
+     * @throws IOException
+     */
+    public static <KeyType extends Comparable<? super KeyType>> KeyFilter<KeyType> read(
+            FileSystem fs, String treeFileName, Converter<KeyType, ?> converter,
+            Superblock superblock) throws IOException {
+        Path path = pathFor(treeFileName);
+        if (!fs.exists(path)) {
+            return null;
+        }
+        FSDataInputStream in = fs.open(path);
+        try {
+            return read(in, converter, superblock, path.toString());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a filter from a stream.
+     *
+     * @param in
+     * @param converter
+     * @param superblock the superblock of the tree as opened
+     * @param name used in error messages
+     * @return the filter, or null if it describes another version of the tree
+     * @throws IOException if the stream does not hold a filter for keys of
+     *         this converter
+     */
+    public static <KeyType extends Comparable<? super KeyType>> KeyFilter<KeyType> read(
+            DataInputStream in, Converter<KeyType, ?> converter,
+            Superblock superblock, String name) throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC || version > FORMAT_VERSION) {
+            throw new IOException(name + " is not a key filter");
+        }
+        int keyLength = in.readInt();
+        if (keyLength != converter.getKeyLength()) {
+            throw new IOException(name + " has keys of " + keyLength
+                    + " bytes, the converter uses " + converter.getKeyLength());
+        }
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.generation = in.readLong();
+        fingerprint.rootOffset = in.readLong();
+        fingerprint.keyCount = in.readLong();
+        fingerprint.deltaSequence = in.readLong();
+        if (!fingerprint.matches(Fingerprint.of(superblock))) {
+            return null;
+        }
+        double falsePositiveRate = in.readDouble();
+        int keysPerPartition = in.readInt();
+        int partitions = in.readInt();
+        List<KeyType> firstKeys = new ArrayList<KeyType>(partitions);
+        List<BloomFilter> filters = new ArrayList<BloomFilter>(partitions);
+        byte[] key = new byte[keyLength];
+        for (int i = 0; i < partitions; i++) {
+            in.readFully(key);
+            firstKeys.add(converter.bytesToKey(key.clone()));
+            BloomFilter filter = new BloomFilter();
+            filter.readFields(in);
+            filters.add(filter);
+        }
+        return new KeyFilter<KeyType>(converter, falsePositiveRate,
+                keysPerPartition, firstKeys, filters, fingerprint);
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate_;
+    }
+
+    public int getKeysPerPartition() {
+        return keysPerPartition_;
+    }
+
+    public int getPartitionCount() {
+        return filters_.size();
+    }
+}
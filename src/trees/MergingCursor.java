@@ -0,0 +1,105 @@
+package trees;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several sorted cursors into one, newest first: when more than one
+ * of them holds a key, only the records of the newest one are returned.
+ * Records repeating a key within one cursor (duplicate keys of a base tree)
+ * are all returned.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+public class MergingCursor<KeyType extends Comparable<? super KeyType>, ValueType>
+    implements RecordCursor<KeyType, ValueType>
+{
+    private final List<? extends RecordCursor<KeyType, ValueType>> sources;
+    private final PriorityQueue<Integer> heads;
+    private final boolean dropTombstones;
+    private boolean started;
+    private int current;
+    private KeyType key;
+    private ValueType value;
+    private boolean tombstone;
+
+    /**
+     * @param sources the cursors to merge, newest first
+     * @param dropTombstones whether deleted keys are skipped rather than
+     * returned as tombstones
+     */
+    public MergingCursor(final List<? extends RecordCursor<KeyType, ValueType>> sources,
+        boolean dropTombstones)
+    {
+        this.sources = sources;
+        this.dropTombstones = dropTombstones;
+        this.current = -1;
+        this.heads = new PriorityQueue<Integer>(Math.max(1, sources.size()), new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                int result = sources.get(a).getKey().compareTo(sources.get(b).getKey());
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+    }
+
+    public boolean next() throws IOException
+    {
+        if (!started)
+        {
+            started = true;
+            for (int i = 0; i < sources.size(); i++)
+            {
+                if (sources.get(i).next())
+                {
+                    heads.add(i);
+                }
+            }
+        }
+        while (!heads.isEmpty())
+        {
+            int source = heads.poll();
+            RecordCursor<KeyType, ValueType> cursor = sources.get(source);
+            KeyType nextKey = cursor.getKey();
+            ValueType nextValue = cursor.getValue();
+            boolean nextTombstone = cursor.isTombstone();
+            if (cursor.next())
+            {
+                heads.add(source);
+            }
+            // equal keys come out newest first, so an older cursor's copy is shadowed
+            boolean shadowed = current >= 0 && source != current && nextKey.compareTo(key) == 0;
+            if (shadowed)
+            {
+                continue;
+            }
+            current = source;
+            key = nextKey;
+            value = nextValue;
+            tombstone = nextTombstone;
+            if (!(tombstone && dropTombstones))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public KeyType getKey()
+    {
+        return key;
+    }
+
+    public ValueType getValue()
+    {
+        return value;
+    }
+
+    public boolean isTombstone()
+    {
+        return tombstone;
+    }
+}
@@ -0,0 +1,256 @@
+package trees;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import indexes.PostingList;
+import indexes.PostingListConverter;
+import util.BPlusRecord;
+import util.Converter;
+
+/**
+ * A tree holding any number of values per key.  Each key has a single entry,
+ * whose record is the posting list of the key: its values inline while they
+ * are few, else the place of an overflow block in the postings file next to
+ * the tree (see PostingFile).  A lookup therefore finds all the values of a
+ * key in one leaf, and at most one more read, however many there are.
+ *
+ * Adding a value rewrites the record of its key, by removing and inserting
+ * it again, as the tree keeps every record it is given.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+public class MultiValueBPlusTree<KeyType extends Comparable<? super KeyType>, ValueType>
+{
+    public static final int DEFAULT_INLINE_VALUES = 4;
+
+    /**
+     * The tree record of a key and its posting list.
+     */
+    public static class Posting<KeyType extends Comparable<? super KeyType>, ValueType>
+        extends BPlusRecord<KeyType, PostingList<ValueType>>
+    {
+        public Posting(KeyType key, PostingList<ValueType> postings)
+        {
+            super(key, postings);
+        }
+    }
+
+    private final Converter<KeyType, ValueType> valueConverter;
+    private final int inlineValues;
+    private final BPlusTree<KeyType, PostingList<ValueType>, Posting<KeyType, ValueType>> tree;
+    private final PostingFile postings;
+
+    /**
+     * Creates a tree in a local file, with its postings next to it, or
+     * reopens the tree and postings already there.
+     * @param m
+     * @param valueConverter the converter of the keys and single values
+     * @param inlineValues the values of a key kept in its record
+     * @param localFileName
+     * @throws IOException
+     */
+    public MultiValueBPlusTree(int m, Converter<KeyType, ValueType> valueConverter, int inlineValues,
+        String localFileName) throws IOException
+    {
+        this.valueConverter = valueConverter;
+        this.inlineValues = inlineValues;
+        this.tree = new BPlusTree<KeyType, PostingList<ValueType>, Posting<KeyType, ValueType>>(m,
+            new PostingListConverter<KeyType, ValueType>(valueConverter, inlineValues), null, localFileName, null,
+            null);
+        File postingsFile = new File(localFileName + PostingFile.POSTINGS_SUFFIX);
+        if (tree.getKeyCount() == 0)
+        {
+            //no record points into postings left from an earlier tree
+            postingsFile.delete();
+        }
+        this.postings = new PostingFile(postingsFile.getPath(), valueConverter.getRecordLength());
+    }
+
+    /**
+     * Opens a synced tree and its postings, read-only.
+     * @param m
+     * @param valueConverter
+     * @param inlineValues as the tree was made with
+     * @param hdfsFileName
+     * @param conf
+     * @throws IOException
+     */
+    public MultiValueBPlusTree(int m, Converter<KeyType, ValueType> valueConverter, int inlineValues,
+        String hdfsFileName, Configuration conf) throws IOException
+    {
+        this.valueConverter = valueConverter;
+        this.inlineValues = inlineValues;
+        this.tree = new BPlusTree<KeyType, PostingList<ValueType>, Posting<KeyType, ValueType>>(m,
+            new PostingListConverter<KeyType, ValueType>(valueConverter, inlineValues), null, null, hdfsFileName,
+            conf);
+        this.postings = new PostingFile(hdfsFileName + PostingFile.POSTINGS_SUFFIX,
+            valueConverter.getRecordLength(), conf);
+    }
+
+    /**
+     * Adds a value to those of a key.
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    public void add(KeyType key, ValueType value) throws IOException
+    {
+        PostingList<ValueType> list = tree.search(key);
+        if (list == null)
+        {
+            list = new PostingList<ValueType>();
+            list.addValue(value);
+            tree.insert(new Posting<KeyType, ValueType>(key, list));
+            return;
+        }
+        //the postings are written first, so that if that fails the key keeps its values
+        int count = list.getCount();
+        byte[] bytes = valueConverter.recordToBytes(value);
+        if (list.isInline() && count < inlineValues)
+        {
+            list.addValue(value);
+        }
+        else if (list.isInline())
+        {
+            //spill the inline values and the new one to a block of their own
+            byte[][] values = new byte[count + 1][];
+            for (int i = 0; i < count; i++)
+            {
+                values[i] = valueConverter.recordToBytes(list.getRecords().get(i));
+            }
+            values[count] = bytes;
+            int capacity = Math.max(2 * (count + 1), 2 * inlineValues);
+            list.setOverflow(postings.writeBlock(values, count + 1, capacity), capacity);
+            list.setCount(count + 1);
+        }
+        else if (count < list.getOverflowCapacity())
+        {
+            postings.writeValue(list.getOverflowOffset(), list.getOverflowCapacity(), count, bytes);
+            list.setCount(count + 1);
+        }
+        else
+        {
+            byte[][] values = postings.readBlock(list.getOverflowOffset(), list.getOverflowCapacity(), count);
+            byte[][] grown = new byte[count + 1][];
+            System.arraycopy(values, 0, grown, 0, count);
+            grown[count] = bytes;
+            int capacity = 2 * list.getOverflowCapacity();
+            list.setOverflow(postings.writeBlock(grown, count + 1, capacity), capacity);
+            list.setCount(count + 1);
+        }
+        Posting<KeyType, ValueType> posting = new Posting<KeyType, ValueType>(key, list);
+        tree.remove(posting);
+        tree.insert(posting);
+    }
+
+    /**
+     * @param key
+     * @return every value of the key, in the order they were added; empty if
+     * the key is not in the tree
+     * @throws IOException
+     */
+    public List<ValueType> search(KeyType key) throws IOException
+    {
+        PostingList<ValueType> list = tree.search(key);
+        if (list == null)
+        {
+            return new ArrayList<ValueType>();
+        }
+        return valuesOf(list);
+    }
+
+    /**
+     * @param key1
+     * @param key2
+     * @return the values of the keys between key1 and key2, inclusive, in
+     * key order
+     * @throws IOException
+     */
+    public List<ValueType> getRange(KeyType key1, KeyType key2) throws IOException
+    {
+        ArrayList<ValueType> values = new ArrayList<ValueType>();
+        for (PostingList<ValueType> list : tree.getRange(key1, key2))
+        {
+            values.addAll(valuesOf(list));
+        }
+        return values;
+    }
+
+    /**
+     * @param prefix
+     * @return the values of the keys starting with the prefix, in key order
+     * (see BPlusTree.getPrefixRange())
+     * @throws IOException
+     */
+    public List<ValueType> getPrefixRange(KeyType prefix) throws IOException
+    {
+        ArrayList<ValueType> values = new ArrayList<ValueType>();
+        for (PostingList<ValueType> list : tree.getPrefixRange(prefix))
+        {
+            values.addAll(valuesOf(list));
+        }
+        return values;
+    }
+
+    /**
+     * @param list
+     * @return the values of a posting list, read from its block if need be
+     * @throws IOException
+     */
+    private List<ValueType> valuesOf(PostingList<ValueType> list) throws IOException
+    {
+        if (list.isInline())
+        {
+            return list.getRecords();
+        }
+        ArrayList<ValueType> values = new ArrayList<ValueType>(list.getCount());
+        for (byte[] value : postings.readBlock(list.getOverflowOffset(), list.getOverflowCapacity(),
+            list.getCount()))
+        {
+            values.add(valueConverter.bytesToRecord(value));
+        }
+        return values;
+    }
+
+    /**
+     * Moves the tree and its postings to HDFS.
+     * @param hdfsFileName
+     * @param conf
+     * @throws IOException
+     */
+    public void syncToHdfs(String hdfsFileName, Configuration conf) throws IOException
+    {
+        tree.syncToHdfs(hdfsFileName, conf);
+        postings.syncToHdfs(hdfsFileName + PostingFile.POSTINGS_SUFFIX, conf);
+    }
+
+    /**
+     * Writes the local tree out and closes its postings, so that both can
+     * be reopened.
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        tree.flush();
+        postings.close();
+    }
+
+    /**
+     * @return the keys in the tree, each counted once
+     */
+    public long getKeyCount()
+    {
+        return tree.getKeyCount();
+    }
+
+    public BPlusTree<KeyType, PostingList<ValueType>, Posting<KeyType, ValueType>> getTree()
+    {
+        return tree;
+    }
+}
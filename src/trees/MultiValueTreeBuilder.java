@@ -0,0 +1,130 @@
+package trees;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import indexes.PostingList;
+import indexes.PostingListConverter;
+import util.Converter;
+
+/**
+ * Builds a multi-value tree (see MultiValueBPlusTree) from keys in order,
+ * each with all its values at once: the tree bottom-up straight into hdfs
+ * by a BPlusTreeBuilder, and the postings too long to keep inline into a
+ * local postings file, synced next to the tree when it is finished.  Each
+ * overflow block is written once, exactly as long as its list.
+ *
+ * The postings are copied under a temporary name while the tree is being
+ * finished, and each file replaces the old one in a single rename, the
+ * postings just before the tree, so that a failed copy leaves the older
+ * tree and its postings as they were.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+public class MultiValueTreeBuilder<KeyType extends Comparable<? super KeyType>, ValueType>
+{
+    private final Converter<KeyType, ValueType> valueConverter;
+    private final int inlineValues;
+    private final String hdfsFileName;
+    private final Configuration conf;
+    private final BPlusTreeBuilder<KeyType, PostingList<ValueType>> builder;
+    private final PostingFile postings;
+
+    /**
+     * @param m
+     * @param valueConverter the converter of the keys and single values
+     * @param inlineValues the values of a key kept in its record
+     * @param hdfsFileName
+     * @param localPostings where the postings wait for the tree, locally
+     * @param conf
+     * @throws IOException
+     */
+    public MultiValueTreeBuilder(int m, Converter<KeyType, ValueType> valueConverter, int inlineValues,
+        String hdfsFileName, File localPostings, Configuration conf) throws IOException
+    {
+        this.valueConverter = valueConverter;
+        this.inlineValues = inlineValues;
+        this.hdfsFileName = hdfsFileName;
+        this.conf = conf;
+        this.builder = BPlusTreeBuilder.toHdfs(m,
+            new PostingListConverter<KeyType, ValueType>(valueConverter, inlineValues), hdfsFileName, conf);
+        this.postings = new PostingFile(localPostings.getPath(), valueConverter.getRecordLength());
+    }
+
+    /**
+     * Adds a key with its values.  Keys must increase.
+     * @param key
+     * @param values
+     * @throws IOException
+     */
+    public void add(KeyType key, List<ValueType> values) throws IOException
+    {
+        PostingList<ValueType> list;
+        if (values.size() <= inlineValues)
+        {
+            list = new PostingList<ValueType>();
+            for (ValueType value : values)
+            {
+                list.addValue(value);
+            }
+        }
+        else
+        {
+            byte[][] bytes = new byte[values.size()][];
+            for (int i = 0; i < bytes.length; i++)
+            {
+                bytes[i] = valueConverter.recordToBytes(values.get(i));
+            }
+            list = new PostingList<ValueType>(bytes.length, postings.writeBlock(bytes, bytes.length, bytes.length),
+                bytes.length);
+        }
+        builder.add(key, list);
+    }
+
+    /**
+     * Finishes the tree and moves the postings next to it.
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        String postingsName = hdfsFileName + PostingFile.POSTINGS_SUFFIX;
+        Path temp = new Path(postingsName + BPlusTreeBuilder.TEMP_SUFFIX);
+        FileSystem fs = temp.getFileSystem(conf);
+        //one left by a failed build would be taken for the copy
+        fs.delete(temp, false);
+        try
+        {
+            postings.syncToHdfs(temp.toString(), conf);
+            builder.write();
+        }
+        catch (IOException e)
+        {
+            fs.delete(temp, false);
+            builder.abort();
+            throw e;
+        }
+        postings.rename(postingsName);
+        builder.publish();
+    }
+
+    /**
+     * Gives up on the tree, deleting what has been written of it.
+     * @throws IOException
+     */
+    public void abort() throws IOException
+    {
+        builder.abort();
+        postings.close();
+    }
+
+    public long getKeyCount()
+    {
+        return builder.getKeyCount();
+    }
+}
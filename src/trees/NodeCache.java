@@ -0,0 +1,165 @@
+package trees;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A cache of decoded nodes, keyed by node offset.  Only used once a tree is
+ * read only, so cached nodes can never go stale.
+ *
+ * Each entry remembers whether its page checksum was verified when it was
+ * loaded, so a cached lookup never pays for a checksum.
+ *
+ * Lookups take no lock: the entries live in a concurrent map and a hit only
+ * sets the entry's reference bit.  Eviction approximates LRU with the CLOCK
+ * algorithm, the offsets queued in insertion order standing for the clock:
+ * the hand gives an entry whose bit is set a second chance, clearing the
+ * bit and queueing it again, and evicts the first one whose bit is clear.
+ * Hits and misses are counted in stripes by thread, a cache line apart.
+ *
+ * @param <KeyType>
+ */
+public class NodeCache<KeyType extends Comparable<? super KeyType>> {
+
+    private static final int COUNTER_STRIPES = 16;
+    // longs in a cache line
+    private static final int COUNTER_SPACING = 8;
+
+    /**
+     * A cached node and whether its page has been verified.
+     */
+    public static class Entry<KeyType extends Comparable<? super KeyType>> {
+        private final BPlusNode<KeyType> node;
+        private final boolean verified;
+        private volatile boolean referenced;
+
+        public Entry(BPlusNode<KeyType> node, boolean verified) {
+            this.node = node;
+            this.verified = verified;
+        }
+
+        public BPlusNode<KeyType> getNode() {
+            return node;
+        }
+
+        public boolean isVerified() {
+            return verified;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry<KeyType>> entries_;
+    private final ConcurrentLinkedQueue<Long> clock_;
+    private final AtomicInteger size_;
+    private volatile int capacity_;
+    private final AtomicLongArray hits_;
+    private final AtomicLongArray misses_;
+
+    /**
+     * @param capacity maximum number of nodes kept
+     */
+    public NodeCache(int capacity) {
+        capacity_ = capacity;
+        entries_ = new ConcurrentHashMap<Long, Entry<KeyType>>();
+        clock_ = new ConcurrentLinkedQueue<Long>();
+        size_ = new AtomicInteger();
+        hits_ = new AtomicLongArray(COUNTER_STRIPES * COUNTER_SPACING);
+        misses_ = new AtomicLongArray(COUNTER_STRIPES * COUNTER_SPACING);
+    }
+
+    /**
+     * @param offset
+     * @return the cached entry, or null
+     */
+    public Entry<KeyType> get(long offset) {
+        Entry<KeyType> entry = entries_.get(offset);
+        if (entry == null) {
+            misses_.incrementAndGet(stripe());
+            return null;
+        }
+        hits_.incrementAndGet(stripe());
+        // only written when it changes, so hot entries stay shared in every core's cache
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a node.  A node read by two threads at once is kept once, but a
+     * verified node replaces an unverified one, cached while checks were
+     * off, which lookups skip once they are on again.
+     */
+    public void put(long offset, BPlusNode<KeyType> node, boolean verified) {
+        Entry<KeyType> entry = new Entry<KeyType>(node, verified);
+        Entry<KeyType> cached = entries_.putIfAbsent(offset, entry);
+        if (cached == null) {
+            clock_.offer(offset);
+            size_.incrementAndGet();
+            evict();
+        } else if (verified && !cached.verified) {
+            // if another thread got there first, its entry is as good
+            entries_.replace(offset, cached, entry);
+        }
+    }
+
+    /**
+     * Moves the clock hand until the cache is within its capacity.
+     */
+    private void evict() {
+        while (size_.get() > capacity_) {
+            Long offset = clock_.poll();
+            if (offset == null) {
+                return;
+            }
+            Entry<KeyType> entry = entries_.get(offset);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.referenced && capacity_ > 0) {
+                entry.referenced = false;
+                clock_.offer(offset);
+            } else if (entries_.remove(offset, entry)) {
+                size_.decrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Long offset = clock_.poll(); offset != null; offset = clock_.poll()) {
+            if (entries_.remove(offset) != null) {
+                size_.decrementAndGet();
+            }
+        }
+    }
+
+    public void setCapacity(int capacity) {
+        capacity_ = capacity;
+        evict();
+    }
+
+    public int size() {
+        return size_.get();
+    }
+
+    private static int stripe() {
+        return ((int) Thread.currentThread().getId() & (COUNTER_STRIPES - 1)) * COUNTER_SPACING;
+    }
+
+    private static long sum(AtomicLongArray counters) {
+        long sum = 0;
+        for (int i = 0; i < COUNTER_STRIPES; i++) {
+            sum += counters.get(i * COUNTER_SPACING);
+        }
+        return sum;
+    }
+
+    public long getHits() {
+        return sum(hits_);
+    }
+
+    public long getMisses() {
+        return sum(misses_);
+    }
+}
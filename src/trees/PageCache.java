@@ -0,0 +1,293 @@
+package trees;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+/**
+ * A second tier below the NodeCache: pages read from HDFS are kept in a
+ * memory mapped slab file in a local directory, so that a restarted process,
+ * or another one on the same machine, reads the hot pages of an index at
+ * local disk speed rather than from a datanode again.
+ *
+ * A page is keyed by the identity of the file it came from (its path and
+ * length), the modification time of the file and the position of the page,
+ * so pages of a file that has been replaced are never returned.  The slab
+ * is set associative: a key hashes to a set of a few slots, and a new page
+ * replaces the least recently used slot of its set.  As the place of a page
+ * follows from its key alone there is no index to rebuild or share; every
+ * process mapping the slab sees the pages the others put there.
+ *
+ * Each slot carries a checksum over its key and page, so a slot torn by a
+ * crash or by two processes writing it at once reads as a miss.
+ *
+ * One slab file is kept per page length, named pages-<length>.slab.
+ */
+public class PageCache implements Closeable {
+    public static final int DEFAULT_WAYS = 4;
+
+    private static final int MAGIC = 0x50474331; // "PGC1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 64;
+
+    // file hash, modification time, position, last use, crc, page length
+    private static final int SLOT_HEADER_LENGTH = 40;
+    private static final int HASH = 0;
+    private static final int MODIFIED = 8;
+    private static final int POSITION = 16;
+    private static final int STAMP = 24;
+    private static final int CRC = 32;
+    private static final int LENGTH = 36;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file_;
+    private final int pageLength_;
+    private final int ways_;
+    private final int sets_;
+    private final int slotLength_;
+    private final RandomAccessFile raf_;
+    private final MappedByteBuffer slab_;
+    private final PureJavaCrc32C crc_;
+    private long clock_;
+    private long hits_;
+    private long misses_;
+
+    /**
+     * Opens the slab for pages of the given length in the directory,
+     * creating it if need be.  A slab of another size is started afresh.
+     *
+     * @param directory
+     * @param pageLength
+     * @param capacityBytes the most the slab may take on disk; below 2GB
+     * @param ways the slots a page may go to
+     * @throws IOException
+     */
+    public PageCache(File directory, int pageLength, long capacityBytes, int ways)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + directory);
+        }
+        pageLength_ = pageLength;
+        ways_ = ways;
+        slotLength_ = SLOT_HEADER_LENGTH + pageLength;
+        long slabBytes = Math.min(capacityBytes, Integer.MAX_VALUE);
+        sets_ = (int) Math.max(1, (slabBytes - HEADER_LENGTH) / ((long) slotLength_ * ways));
+        long length = slabLength(pageLength, (long) sets_ * ways);
+        file_ = new File(directory, "pages-" + pageLength + ".slab");
+        crc_ = new PureJavaCrc32C();
+
+        raf_ = new RandomAccessFile(file_, "rw");
+        boolean fresh = raf_.length() != length || !matchesHeader();
+        if (fresh) {
+            raf_.setLength(0);
+            raf_.setLength(length);
+        }
+        slab_ = raf_.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        if (fresh) {
+            slab_.putInt(0, MAGIC);
+            slab_.putInt(4, FORMAT_VERSION);
+            slab_.putInt(8, pageLength_);
+            slab_.putInt(12, ways_);
+            slab_.putInt(16, sets_);
+        } else {
+            // carry on with the stamps already in the slab
+            for (long slot = 0; slot < (long) sets_ * ways_; slot++) {
+                clock_ = Math.max(clock_, slab_.getLong(slotStart(slot) + STAMP));
+            }
+        }
+    }
+
+    public PageCache(File directory, int pageLength, long capacityBytes) throws IOException {
+        this(directory, pageLength, capacityBytes, DEFAULT_WAYS);
+    }
+
+    /**
+     * @param pageLength
+     * @param slots
+     * @return the capacity in bytes of a slab holding that many pages
+     */
+    public static long slabLength(int pageLength, long slots) {
+        return HEADER_LENGTH + slots * (SLOT_HEADER_LENGTH + pageLength);
+    }
+
+    private boolean matchesHeader() throws IOException {
+        if (raf_.length() < HEADER_LENGTH) {
+            return false;
+        }
+        raf_.seek(0);
+        return raf_.readInt() == MAGIC && raf_.readInt() == FORMAT_VERSION
+                && raf_.readInt() == pageLength_ && raf_.readInt() == ways_
+                && raf_.readInt() == sets_;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the identity of a file.
+     */
+    private static long hash(String fileIdentity) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : fileIdentity.getBytes(UTF8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int setOf(long fileHash, long modificationTime, long position) {
+        long h = fileHash ^ (modificationTime * 0x9e3779b97f4a7c15L) ^ (position * 0xc2b2ae3d27d4eb4fL);
+        h ^= h >>> 31;
+        return (int) ((h & Long.MAX_VALUE) % sets_);
+    }
+
+    private int slotStart(long slot) {
+        return (int) (HEADER_LENGTH + slot * slotLength_);
+    }
+
+    /**
+     * @param fileIdentity what tells the file apart from others, e.g. its
+     *        qualified path and length
+     * @param modificationTime
+     * @param position of the page in the file
+     * @param page filled with the page if it is cached
+     * @return true if the page was cached
+     */
+    public synchronized boolean get(String fileIdentity, long modificationTime,
+            long position, byte[] page) {
+        long fileHash = hash(fileIdentity);
+        int set = setOf(fileHash, modificationTime, position);
+        for (int way = 0; way < ways_; way++) {
+            int start = slotStart((long) set * ways_ + way);
+            if (slab_.getLong(start + HASH) != fileHash
+                    || slab_.getLong(start + MODIFIED) != modificationTime
+                    || slab_.getLong(start + POSITION) != position
+                    || slab_.getInt(start + LENGTH) != pageLength_) {
+                continue;
+            }
+            ByteBuffer slot = slab_.duplicate();
+            slot.position(start + SLOT_HEADER_LENGTH);
+            slot.get(page, 0, pageLength_);
+            if (checksum(fileHash, modificationTime, position, page) != slab_.getInt(start + CRC)) {
+                continue;
+            }
+            slab_.putLong(start + STAMP, ++clock_);
+            hits_++;
+            return true;
+        }
+        misses_++;
+        return false;
+    }
+
+    /**
+     * Puts a page in the cache, in place of the least recently used page of
+     * its set.
+     *
+     * @param fileIdentity
+     * @param modificationTime
+     * @param position
+     * @param page
+     */
+    public synchronized void put(String fileIdentity, long modificationTime,
+            long position, byte[] page) {
+        long fileHash = hash(fileIdentity);
+        int set = setOf(fileHash, modificationTime, position);
+        int victim = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int way = 0; way < ways_; way++) {
+            int start = slotStart((long) set * ways_ + way);
+            if (slab_.getLong(start + HASH) == fileHash
+                    && slab_.getLong(start + MODIFIED) == modificationTime
+                    && slab_.getLong(start + POSITION) == position) {
+                victim = start;
+                break;
+            }
+            long stamp = slab_.getLong(start + STAMP);
+            if (stamp < oldest) {
+                oldest = stamp;
+                victim = start;
+            }
+        }
+        // invalidate the slot while it is rewritten
+        slab_.putInt(victim + LENGTH, 0);
+        ByteBuffer slot = slab_.duplicate();
+        slot.position(victim + SLOT_HEADER_LENGTH);
+        slot.put(page, 0, pageLength_);
+        slab_.putLong(victim + HASH, fileHash);
+        slab_.putLong(victim + MODIFIED, modificationTime);
+        slab_.putLong(victim + POSITION, position);
+        slab_.putLong(victim + STAMP, ++clock_);
+        slab_.putInt(victim + CRC, checksum(fileHash, modificationTime, position, page));
+        slab_.putInt(victim + LENGTH, pageLength_);
+    }
+
+    /**
+     * Drops a page from the cache, as when it turned out to be corrupt.
+     *
+     * @param fileIdentity
+     * @param modificationTime
+     * @param position
+     */
+    public synchronized void remove(String fileIdentity, long modificationTime, long position) {
+        long fileHash = hash(fileIdentity);
+        int set = setOf(fileHash, modificationTime, position);
+        for (int way = 0; way < ways_; way++) {
+            int start = slotStart((long) set * ways_ + way);
+            if (slab_.getLong(start + HASH) == fileHash
+                    && slab_.getLong(start + MODIFIED) == modificationTime
+                    && slab_.getLong(start + POSITION) == position) {
+                slab_.putInt(start + LENGTH, 0);
+                // the first slot of the set to be reused
+                slab_.putLong(start + STAMP, 0);
+            }
+        }
+    }
+
+    private int checksum(long fileHash, long modificationTime, long position, byte[] page) {
+        crc_.reset();
+        for (long field : new long[] { fileHash, modificationTime, position }) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                crc_.update((int) (field >>> shift) & 0xff);
+            }
+        }
+        crc_.update(page, 0, pageLength_);
+        return (int) crc_.getValue();
+    }
+
+    public int getPageLength() {
+        return pageLength_;
+    }
+
+    /**
+     * @return the pages the slab holds at most
+     */
+    public long getCapacity() {
+        return (long) sets_ * ways_;
+    }
+
+    public File getFile() {
+        return file_;
+    }
+
+    public synchronized long getHits() {
+        return hits_;
+    }
+
+    public synchronized long getMisses() {
+        return misses_;
+    }
+
+    /**
+     * Writes the slab out and closes it.  The mapping itself goes when it
+     * is garbage collected.
+     */
+    public synchronized void close() throws IOException {
+        slab_.force();
+        raf_.close();
+    }
+}
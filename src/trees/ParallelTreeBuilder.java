@@ -0,0 +1,499 @@
+package trees;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import util.Converter;
+
+/**
+ * Builds a tree from records in any order on several threads at once.
+ *
+ * The records are spilled to a local file as they come, while a sample of
+ * their keys is kept.  build() then picks split points from the sample and
+ * routes the records into one local file per key range.  As the number of
+ * records in each range is then known, so is the number of leaves it takes,
+ * and each range gets its own region of pages in the final file.  Worker
+ * threads sort the ranges and write their leaves into a segment file each,
+ * numbered for their region and linked to the leaves of the neighbouring
+ * regions, so the leaves form a single chain.  The internal levels over all
+ * the leaves are then written into one last segment, with the superblock,
+ * and the segments are put together behind an empty head: concatenated in
+ * place where the file system can, copied otherwise.
+ *
+ * Each key range is sorted in memory, so there should be enough ranges for
+ * one per thread to fit.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+@SuppressWarnings("unchecked")
+public class ParallelTreeBuilder<KeyType extends Comparable<? super KeyType>, ValueType>
+{
+    public static final String TEMP_SUFFIX = ".build.tmp";
+    public static final String SEGMENT_SUFFIX = ".segment-";
+    public static final int SAMPLES_PER_PARTITION = 100;
+
+    private final int M;
+    private final Converter<KeyType, ValueType> converter;
+    private final int threads;
+    private final int partitions;
+    private final File tempDirectory;
+    private final File spill;
+    private final DataOutputStream spillOut;
+    private final ArrayList<KeyType> sample;
+    private final Random random;
+    private long count;
+
+    /**
+     * @param m the order of the tree
+     * @param converter
+     * @param threads the leaves written at once
+     * @param partitions the key ranges, at least threads
+     * @param tempDirectory where the records wait for the build, locally
+     * @throws IOException
+     */
+    public ParallelTreeBuilder(int m, Converter<KeyType, ValueType> converter, int threads, int partitions,
+        File tempDirectory) throws IOException
+    {
+        this.M = m;
+        this.converter = converter;
+        this.threads = threads;
+        this.partitions = Math.max(partitions, 1);
+        this.tempDirectory = tempDirectory;
+        this.spill = File.createTempFile("tree", ".spill", tempDirectory);
+        this.spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill)));
+        this.sample = new ArrayList<KeyType>();
+        this.random = new Random(0);
+    }
+
+    /**
+     * Adds a record, in any order.
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    public void add(KeyType key, ValueType value) throws IOException
+    {
+        spillOut.write(converter.keyToBytes(key), 0, converter.getKeyLength());
+        spillOut.write(converter.recordToBytes(value), 0, converter.getRecordLength());
+        //reservoir sampling keeps every key equally likely to be in the sample
+        int sampleSize = partitions * SAMPLES_PER_PARTITION;
+        if (sample.size() < sampleSize)
+        {
+            sample.add(key);
+        }
+        else
+        {
+            long slot = (long) (random.nextDouble() * (count + 1));
+            if (slot < sampleSize)
+            {
+                sample.set((int) slot, key);
+            }
+        }
+        count++;
+    }
+
+    /**
+     * Builds the tree from the records added.
+     * @param hdfsFileName where the tree goes
+     * @param conf
+     * @throws IOException
+     */
+    public void build(String hdfsFileName, Configuration conf) throws IOException
+    {
+        spillOut.close();
+        File[] ranges = new File[partitions];
+        FileSystem fs = FileSystem.get(conf);
+        ArrayList<Path> segments = new ArrayList<Path>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try
+        {
+            if (count == 0)
+            {
+                BPlusTreeBuilder.toHdfs(M, converter, hdfsFileName, conf).finish();
+                return;
+            }
+            List<KeyType> splits = chooseSplits();
+            long[] counts = route(splits, ranges);
+
+            //the leaves of each range, and where its region starts
+            int nodeLength = BPlusTreeFile.calculateNodeSize(M, converter);
+            long[] firstLeaf = new long[partitions];
+            long[] lastLeaf = new long[partitions];
+            long next = 0;
+            for (int p = 0; p < partitions; p++)
+            {
+                firstLeaf[p] = next;
+                next += (counts[p] + M - 2) / (M - 1) * nodeLength;
+                lastLeaf[p] = next - nodeLength;
+            }
+            long topStart = next;
+
+            ArrayList<Future<List<Leaf>>> results = new ArrayList<Future<List<Leaf>>>();
+            long left = -1;
+            for (int p = 0; p < partitions; p++)
+            {
+                if (counts[p] == 0)
+                {
+                    results.add(null);
+                    continue;
+                }
+                long right = -1;
+                for (int q = p + 1; q < partitions && right < 0; q++)
+                {
+                    if (counts[q] > 0)
+                    {
+                        right = firstLeaf[q];
+                    }
+                }
+                Path segment = new Path(hdfsFileName + SEGMENT_SUFFIX + p);
+                segments.add(segment);
+                results.add(pool.submit(new LeafWriter(fs, segment, ranges[p], (int) counts[p], firstLeaf[p], left,
+                    right)));
+                left = lastLeaf[p];
+            }
+
+            //the internal levels go behind the last region, with the superblock
+            Path top = new Path(hdfsFileName + SEGMENT_SUFFIX + "top");
+            segments.add(top);
+            FSDataOutputStream topOut = fs.create(top, true);
+            try
+            {
+                BPlusTreeBuilder<KeyType, ValueType> builder = new BPlusTreeBuilder<KeyType, ValueType>(
+                    new BPlusTreeFile<KeyType, ValueType>(M, converter, topOut, topStart), M);
+                for (Future<List<Leaf>> result : results)
+                {
+                    if (result == null)
+                    {
+                        continue;
+                    }
+                    for (Leaf leaf : get(result))
+                    {
+                        builder.addLeaf(leaf.firstKey, leaf.lastKey, leaf.keys, leaf.offset);
+                    }
+                }
+                builder.finish();
+            }
+            finally
+            {
+                topOut.close();
+            }
+            join(fs, conf, hdfsFileName, segments, Superblock.regionLength(converter.getKeyLength()) + nodeLength);
+        }
+        finally
+        {
+            pool.shutdownNow();
+            spill.delete();
+            for (File range : ranges)
+            {
+                if (range != null)
+                {
+                    range.delete();
+                }
+            }
+            for (Path segment : segments)
+            {
+                fs.delete(segment, false);
+            }
+        }
+    }
+
+    /**
+     * @return the keys that start the second and later key ranges
+     */
+    private List<KeyType> chooseSplits()
+    {
+        ArrayList<KeyType> sorted = new ArrayList<KeyType>(sample);
+        Collections.sort(sorted);
+        ArrayList<KeyType> splits = new ArrayList<KeyType>();
+        for (int p = 1; p < partitions; p++)
+        {
+            splits.add(sorted.get((int) ((long) p * sorted.size() / partitions)));
+        }
+        return splits;
+    }
+
+    /**
+     * Copies the spilled records into a local file per key range.
+     * @return the records in each range
+     */
+    private long[] route(List<KeyType> splits, File[] ranges) throws IOException
+    {
+        long[] counts = new long[partitions];
+        DataOutputStream[] outs = new DataOutputStream[partitions];
+        byte[] key = new byte[converter.getKeyLength()];
+        byte[] record = new byte[converter.getRecordLength()];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill)));
+        try
+        {
+            for (int p = 0; p < partitions; p++)
+            {
+                ranges[p] = File.createTempFile("tree", ".range-" + p, tempDirectory);
+                outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ranges[p])));
+            }
+            for (long i = 0; i < count; i++)
+            {
+                in.readFully(key);
+                in.readFully(record);
+                //equal keys all go to the same range
+                int p = Collections.binarySearch(splits, converter.bytesToKey(key.clone()));
+                p = p >= 0 ? p + 1 : -p - 1;
+                outs[p].write(key);
+                outs[p].write(record);
+                counts[p]++;
+            }
+        }
+        finally
+        {
+            in.close();
+            for (DataOutputStream out : outs)
+            {
+                if (out != null)
+                {
+                    out.close();
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * What the internal levels need to know of a leaf.
+     */
+    private class Leaf
+    {
+        private final KeyType firstKey;
+        private final KeyType lastKey;
+        private final int keys;
+        private final long offset;
+
+        private Leaf(KeyType firstKey, KeyType lastKey, int keys, long offset)
+        {
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+            this.keys = keys;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Sorts one key range and writes its leaves into a segment.
+     */
+    private class LeafWriter implements Callable<List<Leaf>>
+    {
+        private final FileSystem fs;
+        private final Path segment;
+        private final File range;
+        private final int records;
+        private final long firstLeaf;
+        private final long left;
+        private final long right;
+
+        private LeafWriter(FileSystem fs, Path segment, File range, int records, long firstLeaf, long left,
+            long right)
+        {
+            this.fs = fs;
+            this.segment = segment;
+            this.range = range;
+            this.records = records;
+            this.firstLeaf = firstLeaf;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * @return the leaves written, in key order
+         */
+        public List<Leaf> call() throws IOException
+        {
+            final KeyType[] keys = (KeyType[]) new Comparable[records];
+            final ValueType[] values = (ValueType[]) new Object[records];
+            byte[] key = new byte[converter.getKeyLength()];
+            byte[] record = new byte[converter.getRecordLength()];
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(range)));
+            try
+            {
+                for (int i = 0; i < records; i++)
+                {
+                    in.readFully(key);
+                    in.readFully(record);
+                    keys[i] = converter.bytesToKey(key.clone());
+                    values[i] = converter.bytesToRecord(record.clone());
+                }
+                if (in.read() >= 0)
+                {
+                    throw new IOException(range + " holds more than " + records + " records");
+                }
+            }
+            catch (EOFException e)
+            {
+                throw new IOException(range + " holds fewer than " + records + " records", e);
+            }
+            finally
+            {
+                in.close();
+            }
+            Integer[] order = new Integer[records];
+            for (int i = 0; i < records; i++)
+            {
+                order[i] = i;
+            }
+            //stable, so equal keys keep the order they were added in
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    return keys[a].compareTo(keys[b]);
+                }
+            });
+
+            ArrayList<Leaf> leaves = new ArrayList<Leaf>();
+            FSDataOutputStream out = fs.create(segment, true);
+            try
+            {
+                BPlusTreeFile<KeyType, ValueType> treeFile = new BPlusTreeFile<KeyType, ValueType>(M, converter, out,
+                    firstLeaf);
+                int perLeaf = M - 1;
+                int leafCount = (records + perLeaf - 1) / perLeaf;
+                long offset = firstLeaf;
+                for (int l = 0; l < leafCount; l++)
+                {
+                    int from = l * perLeaf;
+                    int n = Math.min(perLeaf, records - from);
+                    KeyType[] leafKeys = (KeyType[]) new Comparable[perLeaf];
+                    ValueType[] leafRecords = (ValueType[]) new Object[perLeaf];
+                    for (int i = 0; i < n; i++)
+                    {
+                        leafKeys[i] = keys[order[from + i]];
+                        leafRecords[i] = values[order[from + i]];
+                    }
+                    long prev = l == 0 ? left : offset - treeFile.getNodeLength();
+                    long next = l == leafCount - 1 ? right : offset + treeFile.getNodeLength();
+                    long written = treeFile.writeNewLeaf(new BPlusLeaf<KeyType, ValueType>(leafKeys, n, leafRecords,
+                        prev, next));
+                    leaves.add(new Leaf(leafKeys[0], leafKeys[n - 1], n, written));
+                    offset += treeFile.getNodeLength();
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            return leaves;
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the leaves", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Writing the leaves failed", e.getCause());
+        }
+    }
+
+    /**
+     * Puts the segments together behind an empty head, under a temporary
+     * name, and then moves the tree into place.
+     */
+    private static void join(FileSystem fs, Configuration conf, String hdfsFileName, List<Path> segments,
+        long headLength) throws IOException
+    {
+        Path temp = new Path(hdfsFileName + TEMP_SUFFIX);
+        FSDataOutputStream out = fs.create(temp, true);
+        boolean concatenated = false;
+        try
+        {
+            out.write(new byte[(int) headLength]);
+        }
+        finally
+        {
+            out.close();
+        }
+        try
+        {
+            fs.concat(temp, segments.toArray(new Path[segments.size()]));
+            concatenated = true;
+        }
+        catch (UnsupportedOperationException e)
+        {
+            //the local file system cannot concatenate
+        }
+        catch (IOException e)
+        {
+            //nor can hdfs, when the blocks do not line up; concat changes
+            //nothing if it fails
+        }
+        if (!concatenated)
+        {
+            out = fs.create(temp, true);
+            try
+            {
+                out.write(new byte[(int) headLength]);
+                for (Path segment : segments)
+                {
+                    FSDataInputStream in = fs.open(segment);
+                    try
+                    {
+                        IOUtils.copyBytes(in, out, conf, false);
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        Path target = new Path(hdfsFileName);
+        HdfsFile.replace(fs, temp, target);
+    }
+
+    /**
+     * @return the records added so far
+     */
+    public long getCount()
+    {
+        return count;
+    }
+}
@@ -0,0 +1,226 @@
+package trees;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The overflow blocks of the posting lists of a multi-value tree, kept in a
+ * file named <tree>.postings next to it.  A block holds the values of one
+ * key one after another, behind the number of values it has room for, so
+ * all the values of a key come in a single read.
+ *
+ * Blocks are only ever added at the end of the file.  While the file is
+ * local a value is appended to a block in place if it has room; a full
+ * block is copied to a new one of twice its capacity, leaving the old one
+ * unused, so a list of n values costs O(n) writes in all.  Once synced to
+ * HDFS the file is read-only.
+ *
+ * The tree record of a key holds the count of its values, so a block that
+ * disagrees with its record about its capacity is reported as corrupt.
+ */
+public class PostingFile {
+    public static final String POSTINGS_SUFFIX = ".postings";
+
+    private static final int MAGIC = 0x50535431; // "PST1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int BLOCK_HEADER_LENGTH = 4;
+
+    private final int valueLength_;
+    private String localFileName_;
+    private RandomAccessFile local_;
+    private HdfsFile hdfsFile_;
+
+    /**
+     * Opens a local postings file to add to it, creating it if it is
+     * missing or empty.
+     *
+     * @param localFileName
+     * @param valueLength the length of one value in bytes
+     * @throws IOException if the file there is not a postings file of values
+     *         of this length
+     */
+    public PostingFile(String localFileName, int valueLength) throws IOException {
+        valueLength_ = valueLength;
+        localFileName_ = localFileName;
+        local_ = new RandomAccessFile(localFileName, "rw");
+        byte[] header = new byte[HEADER_LENGTH];
+        if (local_.length() == 0) {
+            ByteBuffer.wrap(header).putInt(MAGIC).putInt(FORMAT_VERSION).putInt(valueLength);
+            local_.write(header);
+            return;
+        }
+        try {
+            local_.readFully(header);
+            checkHeader(localFileName, header);
+        } catch (IOException e) {
+            local_.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a synced postings file for reading.
+     *
+     * @param hdfsFileName
+     * @param valueLength
+     * @param conf
+     * @throws IOException if the file is not a postings file of values of
+     *         this length
+     */
+    public PostingFile(String hdfsFileName, int valueLength, Configuration conf) throws IOException {
+        valueLength_ = valueLength;
+        hdfsFile_ = new HdfsFile(hdfsFileName, conf);
+        hdfsFile_.open();
+        checkHeader(hdfsFileName);
+    }
+
+    private void checkHeader(String name) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        hdfsFile_.read(0, header, 0, HEADER_LENGTH);
+        checkHeader(name, header);
+    }
+
+    private void checkHeader(String name, byte[] header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.getInt() != MAGIC || buffer.getInt() > FORMAT_VERSION) {
+            throw new IOException(name + " is not a postings file");
+        }
+        int valueLength = buffer.getInt();
+        if (valueLength != valueLength_) {
+            throw new IOException(name + " has values of " + valueLength
+                    + " bytes, the converter uses " + valueLength_);
+        }
+    }
+
+    /**
+     * Writes a new block at the end of the file.
+     *
+     * @param values the first values of the block, each valueLength long
+     * @param count the values to take from the array
+     * @param capacity the values the block has room for
+     * @return the offset of the block
+     * @throws IOException
+     */
+    public long writeBlock(byte[][] values, int count, int capacity) throws IOException {
+        checkWritable();
+        if (count > capacity) {
+            throw new IllegalArgumentException(count + " values do not fit in a block of " + capacity);
+        }
+        long offset = local_.length();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_LENGTH + capacity * valueLength_);
+        block.putInt(capacity);
+        for (int i = 0; i < count; i++) {
+            block.put(values[i], 0, valueLength_);
+        }
+        local_.seek(offset);
+        local_.write(block.array());
+        return offset;
+    }
+
+    /**
+     * Puts a value in a free slot of a block.
+     *
+     * @param offset the offset of the block
+     * @param capacity the capacity of the block
+     * @param index the slot, below the capacity
+     * @param value
+     * @throws IOException
+     */
+    public void writeValue(long offset, int capacity, int index, byte[] value) throws IOException {
+        checkWritable();
+        if (index >= capacity) {
+            throw new IllegalArgumentException("Slot " + index + " is past a block of " + capacity);
+        }
+        local_.seek(offset + BLOCK_HEADER_LENGTH + (long) index * valueLength_);
+        local_.write(value, 0, valueLength_);
+    }
+
+    /**
+     * Reads the first values of a block.
+     *
+     * @param offset the offset of the block
+     * @param capacity the capacity of the block, as its tree record says
+     * @param count the values in the block
+     * @return the values, each valueLength long
+     * @throws IOException if the block is not what the record says
+     */
+    public byte[][] readBlock(long offset, int capacity, int count) throws IOException {
+        if (count > capacity) {
+            throw new IOException(count + " values do not fit in the block of "
+                    + capacity + " at " + offset);
+        }
+        byte[] block = new byte[BLOCK_HEADER_LENGTH + count * valueLength_];
+        if (hdfsFile_ != null) {
+            hdfsFile_.read(offset, block, 0, block.length);
+        } else {
+            local_.seek(offset);
+            local_.readFully(block);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        int stored = buffer.getInt();
+        if (stored != capacity) {
+            throw new IOException("Postings block at " + offset + " has room for " + stored
+                    + " values, its record says " + capacity);
+        }
+        byte[][] values = new byte[count][valueLength_];
+        for (int i = 0; i < count; i++) {
+            buffer.get(values[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Moves the local file to HDFS and reads from there on.
+     *
+     * @param hdfsFileName
+     * @param conf
+     * @throws IOException
+     */
+    public void syncToHdfs(String hdfsFileName, Configuration conf) throws IOException {
+        checkWritable();
+        local_.close();
+        local_ = null;
+        hdfsFile_ = new HdfsFile(hdfsFileName, conf);
+        hdfsFile_.copyLocalToHdfs(localFileName_);
+        checkHeader(hdfsFileName);
+    }
+
+    /**
+     * Moves a synced file to another name in hdfs, replacing any file there.
+     *
+     * @param hdfsFileName
+     * @throws IOException
+     */
+    public void rename(String hdfsFileName) throws IOException {
+        if (hdfsFile_ == null) {
+            throw new IOException("Postings file is not synced");
+        }
+        hdfsFile_.rename(hdfsFileName);
+    }
+
+    private void checkWritable() throws IOException {
+        if (local_ == null) {
+            throw new IOException("Postings file is read-only once synced");
+        }
+    }
+
+    public int getValueLength() {
+        return valueLength_;
+    }
+
+    /**
+     * Closes a local file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (local_ != null) {
+            local_.close();
+            local_ = null;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package trees;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * Runs the positional reads of HdfsFiles on a pool of threads, so that
+ * independent reads (the pages of a vectored read) go out in parallel, and
+ * hedges them: a read that has not come back after a percentile of the
+ * recent read latencies gets a duplicate, and whichever answers first is
+ * used.  A slow datanode then costs about that percentile rather than its
+ * own latency.  A read that fails is retried the same way.
+ *
+ * Each attempt reads into a buffer of its own, as the loser may still be
+ * running when the winner is returned.  The loser is left to finish rather
+ * than interrupted, which would close the channel under the stream.
+ *
+ * A duplicate read goes through the same stream as the read it hedges.
+ * That gets round a slow disk or a stalled thread, but an HDFS stream sends
+ * it to the same datanode as the first attempt, so it gets no further on
+ * a slow datanode.  For files on HDFS the DFS client's own hedged reads,
+ * which do try another replica, are used instead, once turned on with
+ * enableHdfsHedgedReads(): the executor then still reads ranges in
+ * parallel, but leaves slow and failed reads to the client, which also
+ * tries the other replicas when a read fails.
+ *
+ * One executor may serve any number of files.
+ */
+public class ReadExecutor implements Closeable {
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+    // The hedge delay until enough reads have been timed.
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 20;
+
+    // Hedging sooner than this would double the load for little gain.
+    public static final long DEFAULT_MIN_DELAY_MICROS = 500;
+
+    // The DFS client's settings for hedging reads to another replica.
+    public static final String HDFS_HEDGED_READ_THREADS = "dfs.client.hedged.read.threadpool.size";
+    public static final String HDFS_HEDGED_READ_THRESHOLD = "dfs.client.hedged.read.threshold.millis";
+
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int MIN_SAMPLES = 32;
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    /**
+     * A range being read, with the attempts at it.
+     */
+    private static class Read {
+        private final HdfsFile.Range range_;
+        private final long startNanos_;
+        private int pending_;
+        private boolean hedged_;
+        private boolean done_;
+
+        private Read(HdfsFile.Range range) {
+            range_ = range;
+            startNanos_ = System.nanoTime();
+        }
+    }
+
+    /**
+     * The outcome of one attempt at a read.
+     */
+    private static class Attempt {
+        private final Read read_;
+        private final boolean hedge_;
+        private byte[] bytes_;
+        private IOException failure_;
+
+        private Attempt(Read read, boolean hedge) {
+            read_ = read;
+            hedge_ = hedge;
+        }
+    }
+
+    private final ExecutorService pool_;
+    private final double hedgePercentile_;
+    private volatile long initialDelayNanos_;
+    private volatile long minDelayNanos_;
+    private volatile long hedgeDelayNanos_;
+    private final long[] latencies_;
+    private long samples_;
+    private final AtomicLong reads_ = new AtomicLong();
+    private final AtomicLong hedges_ = new AtomicLong();
+    private final AtomicLong hedgeWins_ = new AtomicLong();
+
+    /**
+     * @param threads the reads that may run at once; losers keep their
+     *        thread until they finish, so allow for the slow reads that
+     *        may be outstanding
+     * @param hedgePercentile the percentile of the read latencies after
+     *        which a read is hedged, between 0 and 1, or 0 not to hedge
+     */
+    public ReadExecutor(int threads, double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile >= 1) {
+            throw new IllegalArgumentException("Hedge percentile "
+                    + hedgePercentile + " is not between 0 and 1");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        pool_ = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hdfs-read-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        hedgePercentile_ = hedgePercentile;
+        initialDelayNanos_ = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INITIAL_DELAY_MILLIS);
+        minDelayNanos_ = TimeUnit.MICROSECONDS.toNanos(DEFAULT_MIN_DELAY_MICROS);
+        hedgeDelayNanos_ = initialDelayNanos_;
+        latencies_ = new long[LATENCY_SAMPLES];
+    }
+
+    /**
+     * Turns on the DFS client's hedged reads, which send the duplicate of
+     * a slow read to another datanode holding the block.  The client reads
+     * these settings when it is made, so the file system must be created
+     * from this configuration (see FileSystem.newInstance()).
+     *
+     * @param conf
+     * @param threads the threads the client hedges with
+     * @param thresholdMillis how long a read waits before it is hedged,
+     *        about the p95 of the cluster's read latencies
+     */
+    public static void enableHdfsHedgedReads(Configuration conf, int threads, long thresholdMillis) {
+        conf.setInt(HDFS_HEDGED_READ_THREADS, threads);
+        conf.setLong(HDFS_HEDGED_READ_THRESHOLD, thresholdMillis);
+    }
+
+    /**
+     * @param file
+     * @return whether the file system hedges the reads of the file to other
+     *         replicas itself, so duplicates here would only go to the same
+     *         datanode
+     */
+    static boolean isHedgedByFileSystem(HdfsFile file) {
+        FileSystem fs = file.getFileSystem();
+        return "hdfs".equals(fs.getUri().getScheme()) && fs.getConf().getInt(HDFS_HEDGED_READ_THREADS, 0) > 0;
+    }
+
+    /**
+     * Reads length bytes of the file at position into the buffer, hedging
+     * the read if it is slow.
+     *
+     * @see HdfsFile#read(long, byte[], int, int)
+     */
+    public void read(HdfsFile file, long position, byte[] buffer, int offset,
+            int length) throws IOException {
+        readAll(file, Collections.singletonList(new HdfsFile.Range(position,
+                buffer, offset, length)));
+    }
+
+    /**
+     * Reads the ranges of the file in parallel, hedging the slow ones, and
+     * returns once all of them are filled.
+     *
+     * @param file
+     * @param ranges
+     * @throws IOException if some range could not be read by any attempt
+     */
+    public void readAll(HdfsFile file, List<HdfsFile.Range> ranges) throws IOException {
+        boolean hedging = hedgePercentile_ > 0 && !isHedgedByFileSystem(file);
+        CompletionService<Attempt> completion = new ExecutorCompletionService<Attempt>(pool_);
+        List<Read> reads = new ArrayList<Read>(ranges.size());
+        for (HdfsFile.Range range : ranges) {
+            Read read = new Read(range);
+            reads.add(read);
+            submit(completion, file, read, false);
+        }
+        int remaining = reads.size();
+        try {
+            while (remaining > 0) {
+                long wait = hedging ? hedgeDue(completion, file, reads) : -1;
+                Future<Attempt> future = wait < 0 ? completion.take()
+                        : completion.poll(wait, TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    continue;
+                }
+                Attempt attempt = get(future);
+                Read read = attempt.read_;
+                read.pending_--;
+                if (read.done_) {
+                    continue;
+                }
+                if (attempt.failure_ == null) {
+                    HdfsFile.Range range = read.range_;
+                    System.arraycopy(attempt.bytes_, 0, range.getBuffer(),
+                            range.getOffset(), range.getLength());
+                    read.done_ = true;
+                    remaining--;
+                    if (attempt.hedge_) {
+                        hedgeWins_.incrementAndGet();
+                    }
+                } else if (hedging && !read.hedged_) {
+                    hedge(completion, file, read);
+                } else if (read.pending_ == 0) {
+                    throw attempt.failure_;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a read");
+        }
+    }
+
+    /**
+     * Hedges the reads that have waited longer than the hedge delay.
+     *
+     * @return the nanoseconds until the next read is due for a hedge, or
+     *         -1 if none is left to hedge
+     */
+    private long hedgeDue(CompletionService<Attempt> completion, HdfsFile file,
+            List<Read> reads) {
+        long delay = hedgeDelayNanos_;
+        long now = System.nanoTime();
+        long wait = -1;
+        for (Read read : reads) {
+            if (read.done_ || read.hedged_) {
+                continue;
+            }
+            long due = read.startNanos_ + delay - now;
+            if (due <= 0) {
+                hedge(completion, file, read);
+            } else if (wait < 0 || due < wait) {
+                wait = due;
+            }
+        }
+        return wait;
+    }
+
+    private void hedge(CompletionService<Attempt> completion, HdfsFile file, Read read) {
+        read.hedged_ = true;
+        hedges_.incrementAndGet();
+        submit(completion, file, read, true);
+    }
+
+    private void submit(CompletionService<Attempt> completion, final HdfsFile file,
+            Read read, boolean hedge) {
+        final Attempt attempt = new Attempt(read, hedge);
+        final HdfsFile.Range range = read.range_;
+        read.pending_++;
+        reads_.incrementAndGet();
+        completion.submit(new Callable<Attempt>() {
+            public Attempt call() {
+                long start = System.nanoTime();
+                byte[] bytes = new byte[range.getLength()];
+                try {
+                    file.readDirect(range.getPosition(), bytes, 0, bytes.length);
+                    attempt.bytes_ = bytes;
+                    record(System.nanoTime() - start);
+                } catch (IOException e) {
+                    attempt.failure_ = e;
+                }
+                return attempt;
+            }
+        });
+    }
+
+    private static Attempt get(Future<Attempt> future) throws IOException,
+            InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Read failed", e.getCause());
+        }
+    }
+
+    /**
+     * Adds the latency of a read, and now and then works the hedge delay
+     * out again from the recent ones.
+     */
+    private synchronized void record(long nanos) {
+        latencies_[(int) (samples_ % LATENCY_SAMPLES)] = nanos;
+        samples_++;
+        if (samples_ == MIN_SAMPLES || (samples_ > MIN_SAMPLES && samples_ % RECOMPUTE_INTERVAL == 0)) {
+            long[] sorted = Arrays.copyOf(latencies_, (int) Math.min(samples_, LATENCY_SAMPLES));
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(hedgePercentile_ * sorted.length) - 1;
+            hedgeDelayNanos_ = Math.max(minDelayNanos_, sorted[Math.max(0, index)]);
+        }
+    }
+
+    /**
+     * @param millis how long to wait before hedging until enough reads
+     *        have been timed to know their latencies
+     */
+    public synchronized void setInitialDelay(long millis) {
+        initialDelayNanos_ = TimeUnit.MILLISECONDS.toNanos(millis);
+        if (samples_ < MIN_SAMPLES) {
+            hedgeDelayNanos_ = initialDelayNanos_;
+        }
+    }
+
+    /**
+     * @param micros the shortest wait before hedging, however fast reads are
+     */
+    public void setMinDelay(long micros) {
+        minDelayNanos_ = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    /**
+     * @return how long a read now waits before it is hedged, in nanoseconds
+     */
+    public long getHedgeDelayNanos() {
+        return hedgeDelayNanos_;
+    }
+
+    /**
+     * @return the attempts made, hedges included
+     */
+    public long getReadCount() {
+        return reads_.get();
+    }
+
+    public long getHedgeCount() {
+        return hedges_.get();
+    }
+
+    /**
+     * @return the hedges that answered before the read they duplicated
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins_.get();
+    }
+
+    /**
+     * Stops the threads once the reads running now are done.
+     */
+    public void close() {
+        pool_.shutdown();
+    }
+}
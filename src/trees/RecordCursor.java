@@ -0,0 +1,30 @@
+package trees;
+
+import java.io.IOException;
+
+/**
+ * A forward-only walk over records in key order, such as the leaves of a
+ * tree or a sorted delta run.  A tombstone marks a key deleted by a newer
+ * run; it hides the key in every older one.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+public interface RecordCursor<KeyType extends Comparable<? super KeyType>, ValueType>
+{
+    /**
+     * Moves to the next record.  Must be called once before the first one.
+     * @return false once there are no more records
+     * @throws IOException
+     */
+    public boolean next() throws IOException;
+
+    public KeyType getKey();
+
+    public ValueType getValue();
+
+    /**
+     * @return true if the current record deletes its key
+     */
+    public boolean isTombstone();
+}
@@ -0,0 +1,244 @@
+package trees;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.hash.Hash;
+import org.apache.hadoop.util.hash.MurmurHash;
+
+import util.Converter;
+
+/**
+ * The router of a sharded index: how keys are spread over the shard trees,
+ * and where the shards are.  Keys go to a shard either by a hash of their
+ * bytes, which spreads any keys evenly but sends every range scan to all
+ * the shards, or by key range, given by the first key of each shard after
+ * the first.
+ *
+ * The manifest is a small file of its own; the shard files are named in it
+ * relative to its directory.
+ *
+ * @param <KeyType>
+ */
+public class ShardManifest<KeyType extends Comparable<? super KeyType>> {
+    public static final String SHARD_SUFFIX = ".shard-";
+
+    private static final int MAGIC = 0x53484431; // "SHD1"
+    private static final int FORMAT_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public enum Partitioning {
+        HASH, RANGE
+    }
+
+    private final Converter<KeyType, ?> converter_;
+    private final Partitioning partitioning_;
+    private final List<KeyType> splits_;
+    private final List<String> shardNames_;
+    private final Hash hash_;
+
+    /**
+     * @param converter
+     * @param partitioning
+     * @param shards the number of shards
+     * @param splits for range partitioning, the first keys of the second
+     *        and later shards, increasing; null for hash partitioning
+     * @param baseName the name of the manifest file, after which the
+     *        shards are named
+     */
+    public ShardManifest(Converter<KeyType, ?> converter, Partitioning partitioning,
+            int shards, List<KeyType> splits, String baseName) {
+        this(converter, partitioning, splits, shardNames(new Path(baseName).getName(), shards));
+    }
+
+    private ShardManifest(Converter<KeyType, ?> converter, Partitioning partitioning,
+            List<KeyType> splits, List<String> shardNames) {
+        if (partitioning == Partitioning.RANGE) {
+            if (splits == null || splits.size() != shardNames.size() - 1) {
+                throw new IllegalArgumentException(shardNames.size()
+                        + " range shards need " + (shardNames.size() - 1) + " split keys");
+            }
+            for (int i = 1; i < splits.size(); i++) {
+                if (splits.get(i - 1).compareTo(splits.get(i)) >= 0) {
+                    throw new IllegalArgumentException("Split keys do not increase at "
+                            + splits.get(i));
+                }
+            }
+        }
+        converter_ = converter;
+        partitioning_ = partitioning;
+        splits_ = partitioning == Partitioning.RANGE ? new ArrayList<KeyType>(splits)
+                : Collections.<KeyType>emptyList();
+        shardNames_ = shardNames;
+        hash_ = MurmurHash.getInstance();
+    }
+
+    private static List<String> shardNames(String baseName, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("An index needs a shard");
+        }
+        List<String> names = new ArrayList<String>(shards);
+        for (int i = 0; i < shards; i++) {
+            names.add(baseName + SHARD_SUFFIX + i);
+        }
+        return names;
+    }
+
+    /**
+     * @param key
+     * @return the shard holding the key
+     */
+    public int shardFor(KeyType key) {
+        if (partitioning_ == Partitioning.HASH) {
+            int hash = hash_.hash(converter_.keyToBytes(key), converter_.getKeyLength(), 0);
+            return (hash & Integer.MAX_VALUE) % shardNames_.size();
+        }
+        int index = Collections.binarySearch(splits_, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * @param from the smallest key of interest
+     * @param to the largest key of interest
+     * @return the shards that may hold keys between the two, in key order
+     *         for range partitioning
+     */
+    public List<Integer> shardsFor(KeyType from, KeyType to) {
+        List<Integer> shards = new ArrayList<Integer>();
+        if (partitioning_ == Partitioning.HASH) {
+            for (int i = 0; i < shardNames_.size(); i++) {
+                shards.add(i);
+            }
+        } else {
+            for (int i = shardFor(from); i <= shardFor(to); i++) {
+                shards.add(i);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * @param manifestName the path of this manifest
+     * @param shard
+     * @return the path of the shard's tree file
+     */
+    public String getShardPath(String manifestName, int shard) {
+        Path parent = new Path(manifestName).getParent();
+        String name = shardNames_.get(shard);
+        return parent == null ? name : new Path(parent, name).toString();
+    }
+
+    /**
+     * @param manifestName the path of a manifest not yet written
+     * @param shard
+     * @return the path its shard will have
+     */
+    public static String defaultShardPath(String manifestName, int shard) {
+        return manifestName + SHARD_SUFFIX + shard;
+    }
+
+    public int getShardCount() {
+        return shardNames_.size();
+    }
+
+    public Partitioning getPartitioning() {
+        return partitioning_;
+    }
+
+    public List<KeyType> getSplits() {
+        return Collections.unmodifiableList(splits_);
+    }
+
+    /**
+     * Writes the manifest, replacing any older one.
+     *
+     * @param fs
+     * @param manifestName
+     * @throws IOException
+     */
+    public void write(FileSystem fs, String manifestName) throws IOException {
+        Path path = new Path(manifestName);
+        Path temp = new Path(manifestName + TEMP_SUFFIX);
+        FSDataOutputStream out = fs.create(temp, true);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+        HdfsFile.replace(fs, temp, path);
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(converter_.getKeyLength());
+        out.writeInt(partitioning_.ordinal());
+        out.writeInt(shardNames_.size());
+        for (String name : shardNames_) {
+            out.writeUTF(name);
+        }
+        for (KeyType split : splits_) {
+            out.write(converter_.keyToBytes(split), 0, converter_.getKeyLength());
+        }
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * @param fs
+     * @param manifestName
+     * @param converter
+     * @return the manifest
+     * @throws IOException if the file is not a manifest for keys of this
+     *         converter
+     */
+    public static <KeyType extends Comparable<? super KeyType>> ShardManifest<KeyType> read(
+            FileSystem fs, String manifestName, Converter<KeyType, ?> converter)
+            throws IOException {
+        FSDataInputStream in = fs.open(new Path(manifestName));
+        try {
+            return read(in, converter, manifestName);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static <KeyType extends Comparable<? super KeyType>> ShardManifest<KeyType> read(
+            DataInputStream in, Converter<KeyType, ?> converter, String name)
+            throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC || version > FORMAT_VERSION) {
+            throw new IOException(name + " is not a shard manifest");
+        }
+        int keyLength = in.readInt();
+        if (keyLength != converter.getKeyLength()) {
+            throw new IOException(name + " has keys of " + keyLength
+                    + " bytes, the converter uses " + converter.getKeyLength());
+        }
+        Partitioning partitioning = Partitioning.values()[in.readInt()];
+        int shards = in.readInt();
+        List<String> names = new ArrayList<String>(shards);
+        for (int i = 0; i < shards; i++) {
+            names.add(in.readUTF());
+        }
+        List<KeyType> splits = null;
+        if (partitioning == Partitioning.RANGE) {
+            splits = new ArrayList<KeyType>(shards - 1);
+            byte[] key = new byte[keyLength];
+            for (int i = 0; i < shards - 1; i++) {
+                in.readFully(key);
+                splits.add(converter.bytesToKey(key.clone()));
+            }
+        }
+        return new ShardManifest<KeyType>(converter, partitioning, splits, names);
+    }
+}
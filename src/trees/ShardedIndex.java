@@ -0,0 +1,150 @@
+package trees;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+
+import util.BPlusRecord;
+import util.Converter;
+
+/**
+ * An index spread over several read-only trees, each in a file of its own,
+ * with a manifest routing the keys to them (see ShardManifest).  A lookup
+ * goes to the one shard that may hold the key; a range scan goes to the
+ * shards that may hold keys in the range and merges their records in key
+ * order.  Each shard stays as shallow as a tree of its share of the keys,
+ * and the shards can be built, stored and read independently.
+ *
+ * Shards are opened on first use.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ * @param <RecordType>
+ */
+public class ShardedIndex<KeyType extends Comparable<? super KeyType>, ValueType, RecordType extends BPlusRecord<KeyType, ValueType>>
+{
+    private final int M;
+    private final Converter<KeyType, ValueType> converter;
+    private final String manifestName;
+    private final Configuration conf;
+    private final ShardManifest<KeyType> manifest;
+    private final List<BPlusTree<KeyType, ValueType, RecordType>> shards;
+
+    /**
+     * Opens a sharded index by its manifest.
+     * @param m the order of the shard trees
+     * @param converter
+     * @param manifestName
+     * @param conf
+     * @throws IOException
+     */
+    public ShardedIndex(int m, Converter<KeyType, ValueType> converter, String manifestName, Configuration conf)
+        throws IOException
+    {
+        this.M = m;
+        this.converter = converter;
+        this.manifestName = manifestName;
+        this.conf = conf;
+        this.manifest = ShardManifest.read(FileSystem.get(conf), manifestName, converter);
+        this.shards = new ArrayList<BPlusTree<KeyType, ValueType, RecordType>>();
+        for (int i = 0; i < manifest.getShardCount(); i++)
+        {
+            shards.add(null);
+        }
+    }
+
+    /**
+     * @param shard
+     * @return the tree of the shard, opened if need be
+     * @throws IOException
+     */
+    public synchronized BPlusTree<KeyType, ValueType, RecordType> getShard(int shard) throws IOException
+    {
+        BPlusTree<KeyType, ValueType, RecordType> tree = shards.get(shard);
+        if (tree == null)
+        {
+            tree = new BPlusTree<KeyType, ValueType, RecordType>(M, converter, null, null,
+                manifest.getShardPath(manifestName, shard), conf);
+            shards.set(shard, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Searches the one shard that may hold the key.
+     * @param key
+     * @return the record, or null if not found
+     * @throws IOException
+     */
+    public ValueType search(KeyType key) throws IOException
+    {
+        return getShard(manifest.shardFor(key)).search(key);
+    }
+
+    /**
+     * Returns the records of the keys between key1 and key2, inclusive, in
+     * key order, from the shards that may hold them.
+     * @param key1
+     * @param key2
+     * @return the records
+     * @throws IOException
+     */
+    public List<ValueType> getRange(KeyType key1, KeyType key2) throws IOException
+    {
+        ArrayList<ValueType> records = new ArrayList<ValueType>();
+        RecordCursor<KeyType, ValueType> cursor = cursor(key1, key2);
+        while (cursor.next() && cursor.getKey().compareTo(key2) <= 0)
+        {
+            records.add(cursor.getValue());
+        }
+        return records;
+    }
+
+    /**
+     * Returns a cursor over the records from a key on, merged in key order
+     * from the shards that may hold keys up to another.  Past that key the
+     * cursor may end early.
+     * @param from the first key of interest
+     * @param to the last key of interest
+     * @return the cursor
+     * @throws IOException
+     */
+    public RecordCursor<KeyType, ValueType> cursor(KeyType from, KeyType to) throws IOException
+    {
+        List<Integer> overlapping = manifest.shardsFor(from, to);
+        ArrayList<RecordCursor<KeyType, ValueType>> sources = new ArrayList<RecordCursor<KeyType, ValueType>>();
+        for (int shard : overlapping)
+        {
+            sources.add(getShard(shard).cursor(from));
+        }
+        //the shards hold disjoint keys, so none hides another
+        return new MergingCursor<KeyType, ValueType>(sources, false);
+    }
+
+    /**
+     * @return the keys in all the shards
+     * @throws IOException
+     */
+    public long getKeyCount() throws IOException
+    {
+        long keys = 0;
+        for (int i = 0; i < shards.size(); i++)
+        {
+            keys += getShard(i).getKeyCount();
+        }
+        return keys;
+    }
+
+    public ShardManifest<KeyType> getManifest()
+    {
+        return manifest;
+    }
+
+    public int getShardCount()
+    {
+        return manifest.getShardCount();
+    }
+}
@@ -0,0 +1,123 @@
+package trees;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+
+import util.Converter;
+
+/**
+ * Builds a sharded index (see ShardedIndex) from records in any order.
+ * Each record is routed to its shard as it is added, and the shards are
+ * then built at the same time, each by a ParallelTreeBuilder of its own
+ * on one thread of a pool.  The manifest is written last, so the index
+ * only appears once every shard is there.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+public class ShardedIndexBuilder<KeyType extends Comparable<? super KeyType>, ValueType>
+{
+    // The key ranges each shard is sorted in.
+    private static final int PARTITIONS_PER_SHARD = 4;
+
+    private final ShardManifest<KeyType> manifest;
+    private final String manifestName;
+    private final int threads;
+    private final List<ParallelTreeBuilder<KeyType, ValueType>> builders;
+
+    /**
+     * @param m the order of the shard trees
+     * @param converter
+     * @param manifest how the keys are spread over the shards
+     * @param manifestName where the manifest goes; the shards go next to it
+     * @param threads the shards built at once
+     * @param tempDirectory where the records wait for the build, locally
+     * @throws IOException
+     */
+    public ShardedIndexBuilder(int m, Converter<KeyType, ValueType> converter, ShardManifest<KeyType> manifest,
+        String manifestName, int threads, File tempDirectory) throws IOException
+    {
+        this.manifest = manifest;
+        this.manifestName = manifestName;
+        this.threads = threads;
+        this.builders = new ArrayList<ParallelTreeBuilder<KeyType, ValueType>>();
+        for (int i = 0; i < manifest.getShardCount(); i++)
+        {
+            builders.add(new ParallelTreeBuilder<KeyType, ValueType>(m, converter, 1, PARTITIONS_PER_SHARD,
+                tempDirectory));
+        }
+    }
+
+    /**
+     * Adds a record, in any order.
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    public void add(KeyType key, ValueType value) throws IOException
+    {
+        builders.get(manifest.shardFor(key)).add(key, value);
+    }
+
+    /**
+     * Builds the shards, then writes the manifest.
+     * @param conf
+     * @throws IOException
+     */
+    public void build(final Configuration conf) throws IOException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try
+        {
+            ArrayList<Future<Void>> shards = new ArrayList<Future<Void>>();
+            for (int i = 0; i < builders.size(); i++)
+            {
+                final ParallelTreeBuilder<KeyType, ValueType> builder = builders.get(i);
+                final String shardPath = manifest.getShardPath(manifestName, i);
+                shards.add(pool.submit(new Callable<Void>()
+                {
+                    public Void call() throws IOException
+                    {
+                        builder.build(shardPath, conf);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> shard : shards)
+            {
+                try
+                {
+                    shard.get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted building the shards", e);
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof IOException)
+                    {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Building a shard failed", e.getCause());
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        manifest.write(FileSystem.get(conf), manifestName);
+    }
+}
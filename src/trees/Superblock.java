@@ -0,0 +1,323 @@
+package trees;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+/**
+ * The superblock at the head of a tree file.  It describes how the file was
+ * written (format version, order, page and key/record lengths, converter) and
+ * where the tree is (root offset, height, node and key counts, key bounds), so
+ * that a file can be opened with one small read and a mismatched converter is
+ * rejected before any page is decoded.
+ *
+ * The head of the file holds two superblock slots.  Each write goes to the
+ * slot the previous one did not use, with a higher generation; a reader takes
+ * the valid slot with the highest generation, so a torn superblock write never
+ * loses the previous one.
+ */
+public class Superblock {
+    public static final int MAGIC = 0x4250542b; // "BPT+"
+    public static final int FORMAT_VERSION = 1;
+
+    // offset of the root when it lives in the fixed page after the superblocks
+    public static final long FIXED_ROOT = -1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_CONVERTER_NAME = 256;
+    private static final int FIXED_FIELDS = 4 * 8 + 8 * 5 + 2 + MAX_CONVERTER_NAME + 2 + 4;
+
+    private int formatVersion;
+    private long generation;
+    private int m;
+    private int pageLength;
+    private int keyLength;
+    private int recordLength;
+    private String converterName;
+    private long rootOffset;
+    private int height;
+    private long nodeCount;
+    private long keyCount;
+    private long deltaSequence;
+    private byte[] minKey;
+    private byte[] maxKey;
+
+    /**
+     * Describes a new, empty tree.
+     */
+    public Superblock(int m, int pageLength, int keyLength, int recordLength,
+            String converterName) {
+        this.formatVersion = FORMAT_VERSION;
+        this.generation = 0;
+        this.m = m;
+        this.pageLength = pageLength;
+        this.keyLength = keyLength;
+        this.recordLength = recordLength;
+        this.converterName = converterName;
+        this.rootOffset = FIXED_ROOT;
+        this.height = 1;
+        this.nodeCount = 1;
+        this.keyCount = 0;
+        this.deltaSequence = 0;
+        this.minKey = null;
+        this.maxKey = null;
+    }
+
+    /**
+     * @param keyLength
+     * @return the length of one superblock slot for the given key length
+     */
+    public static int slotLength(int keyLength) {
+        int length = FIXED_FIELDS + 2 * keyLength;
+        return (length + 511) / 512 * 512;
+    }
+
+    /**
+     * @param keyLength
+     * @return the length of the superblock region at the head of the file
+     */
+    public static int regionLength(int keyLength) {
+        return 2 * slotLength(keyLength);
+    }
+
+    /**
+     * @return the slot this superblock is written to
+     */
+    public int getSlot() {
+        return (int) (generation & 1);
+    }
+
+    /**
+     * Serializes this superblock into a slot, ending with its CRC32C.
+     *
+     * @return a slotLength(keyLength) byte array
+     */
+    public byte[] toBytes() {
+        int slotLength = slotLength(keyLength);
+        ByteBuffer buffer = ByteBuffer.allocate(slotLength);
+        buffer.putInt(MAGIC);
+        buffer.putInt(formatVersion);
+        buffer.putInt(slotLength);
+        buffer.putInt(keyLength);
+        buffer.putInt(recordLength);
+        buffer.putInt(m);
+        buffer.putInt(pageLength);
+        byte[] name = converterName.getBytes(UTF8);
+        buffer.putShort((short) Math.min(name.length, MAX_CONVERTER_NAME));
+        buffer.put(name, 0, Math.min(name.length, MAX_CONVERTER_NAME));
+        buffer.position(buffer.position() + MAX_CONVERTER_NAME - Math.min(name.length, MAX_CONVERTER_NAME));
+        buffer.putLong(generation);
+        buffer.putLong(rootOffset);
+        buffer.putInt(height);
+        buffer.putLong(nodeCount);
+        buffer.putLong(keyCount);
+        buffer.putLong(deltaSequence);
+        putKey(buffer, minKey);
+        putKey(buffer, maxKey);
+        PureJavaCrc32C crc = new PureJavaCrc32C();
+        crc.update(buffer.array(), 0, slotLength - 4);
+        buffer.putInt(slotLength - 4, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    private void putKey(ByteBuffer buffer, byte[] key) {
+        buffer.put((byte) (key == null ? 0 : 1));
+        if (key != null) {
+            buffer.put(key, 0, keyLength);
+        } else {
+            buffer.position(buffer.position() + keyLength);
+        }
+    }
+
+    private byte[] getKey(ByteBuffer buffer) {
+        boolean present = buffer.get() != 0;
+        byte[] key = new byte[keyLength];
+        buffer.get(key);
+        return present ? key : null;
+    }
+
+    /**
+     * Reads the newest valid superblock from a run of superblock slots,
+     * checking that the file was written with the same layout the caller
+     * expects.  The head of a file holds two slots; a file written
+     * append-only leaves them empty and ends with a single one instead.
+     *
+     * @param region the slots, at least slots * slotLength(keyLength) bytes
+     * @param slots the number of slots in the region
+     * @param expected a superblock describing the caller's tree
+     * @param fileName used in error messages
+     * @return the newest valid superblock, or null if no slot holds one
+     * @throws IOException if the file was written with a different converter
+     * or order, or every slot is corrupt
+     */
+    public static Superblock read(byte[] region, int slots, Superblock expected,
+            String fileName) throws IOException {
+        int slotLength = slotLength(expected.keyLength);
+        Superblock best = null;
+        boolean sawMagic = false;
+        for (int slot = 0; slot < slots; slot++) {
+            ByteBuffer buffer = ByteBuffer.wrap(region, slot * slotLength, slotLength).slice();
+            if (buffer.getInt() != MAGIC) {
+                continue;
+            }
+            sawMagic = true;
+            Superblock sb = new Superblock(0, 0, 0, 0, null);
+            sb.formatVersion = buffer.getInt();
+            if (sb.formatVersion > FORMAT_VERSION) {
+                throw new IOException(fileName + " has format version "
+                        + sb.formatVersion + ", newest supported is " + FORMAT_VERSION);
+            }
+            int storedSlotLength = buffer.getInt();
+            sb.keyLength = buffer.getInt();
+            sb.recordLength = buffer.getInt();
+            sb.m = buffer.getInt();
+            sb.pageLength = buffer.getInt();
+            byte[] name = new byte[Math.max(0, Math.min(buffer.getShort(), MAX_CONVERTER_NAME))];
+            buffer.get(name);
+            sb.converterName = new String(name, UTF8);
+            buffer.position(buffer.position() + MAX_CONVERTER_NAME - name.length);
+            if (storedSlotLength == slotLength) {
+                PureJavaCrc32C crc = new PureJavaCrc32C();
+                crc.update(region, slot * slotLength, slotLength - 4);
+                if (buffer.getInt(slotLength - 4) != (int) crc.getValue()) {
+                    continue;
+                }
+            }
+            expected.checkCompatible(sb, storedSlotLength, fileName);
+            sb.generation = buffer.getLong();
+            sb.rootOffset = buffer.getLong();
+            sb.height = buffer.getInt();
+            sb.nodeCount = buffer.getLong();
+            sb.keyCount = buffer.getLong();
+            sb.deltaSequence = buffer.getLong();
+            sb.minKey = sb.getKey(buffer);
+            sb.maxKey = sb.getKey(buffer);
+            if (best == null || sb.generation > best.generation) {
+                best = sb;
+            }
+        }
+        if (!sawMagic) {
+            return null;
+        }
+        if (best == null) {
+            throw new IOException("Every superblock of " + fileName + " is corrupt");
+        }
+        return best;
+    }
+
+    private void checkCompatible(Superblock stored, int storedSlotLength,
+            String fileName) throws IOException {
+        if (!converterName.equals(stored.converterName)) {
+            throw new IOException(fileName + " was written with converter "
+                    + stored.converterName + ", not " + converterName);
+        }
+        if (stored.keyLength != keyLength || stored.recordLength != recordLength
+                || storedSlotLength != slotLength(keyLength)) {
+            throw new IOException(fileName + " has keys of " + stored.keyLength
+                    + " bytes and records of " + stored.recordLength
+                    + " bytes, the converter uses " + keyLength + " and "
+                    + recordLength);
+        }
+        if (stored.m != m || stored.pageLength != pageLength) {
+            throw new IOException(fileName + " has order " + stored.m
+                    + " and " + stored.pageLength + " byte pages, expected order "
+                    + m + " and " + pageLength + " byte pages");
+        }
+    }
+
+    /**
+     * Moves to the next generation, which will be written to the other slot.
+     */
+    public void nextGeneration() {
+        generation++;
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getPageLength() {
+        return pageLength;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    public String getConverterName() {
+        return converterName;
+    }
+
+    public long getRootOffset() {
+        return rootOffset;
+    }
+
+    public void setRootOffset(long rootOffset) {
+        this.rootOffset = rootOffset;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    public void setNodeCount(long nodeCount) {
+        this.nodeCount = nodeCount;
+    }
+
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    public void setKeyCount(long keyCount) {
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * @return the newest delta run already folded into this tree
+     */
+    public long getDeltaSequence() {
+        return deltaSequence;
+    }
+
+    public void setDeltaSequence(long deltaSequence) {
+        this.deltaSequence = deltaSequence;
+    }
+
+    public byte[] getMinKey() {
+        return minKey;
+    }
+
+    public void setMinKey(byte[] minKey) {
+        this.minKey = minKey;
+    }
+
+    public byte[] getMaxKey() {
+        return maxKey;
+    }
+
+    public void setMaxKey(byte[] maxKey) {
+        this.maxKey = maxKey;
+    }
+}
@@ -0,0 +1,20 @@
+package trees;
+
+/**
+ * The orders a tree file can be written in by BPlusTreeFile.writeLayout.
+ */
+public enum TreeLayout
+{
+    /**
+     * The root, then the internal nodes one level after the other, then the
+     * leaves, each level in key order.
+     */
+    LEVEL_ORDER,
+
+    /**
+     * Recursively the top half of the levels, then each subtree below them
+     * (the van Emde Boas layout), which keeps a root-to-leaf path within
+     * few pages or cache lines whatever their size.
+     */
+    VAN_EMDE_BOAS
+}
@@ -0,0 +1,221 @@
+package trees;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A redo log of page images for the local build file.
+ *
+ * Every transaction (one insert or remove on the tree, which may touch several
+ * pages when nodes split) is appended as a single record holding the full image
+ * of every page it wrote, followed by a checksum.  Records are buffered and the
+ * log is only forced to disk once per group of transactions; the data file must
+ * not see a page before the group that contains it has been forced.
+ *
+ * On open, every complete record is replayed onto the data file in order.  A
+ * torn record at the tail (the JVM died while appending) fails its checksum and
+ * is ignored together with everything after it, which leaves the data file in
+ * the state of the last group that made it to disk.
+ */
+public class WriteAheadLog {
+    private static final int RECORD_MAGIC = 0x57414c31; // "WAL1"
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File file_;
+    private FileOutputStream fileOut_;
+    private DataOutputStream out_;
+    private long sequence_;
+    private long size_;
+
+    /**
+     * Opens the log for appending.  Recover first if the log may hold
+     * records from a previous run.
+     *
+     * @param filename
+     * @throws IOException
+     */
+    public WriteAheadLog(String filename) throws IOException {
+        file_ = new File(filename);
+        fileOut_ = new FileOutputStream(file_, true);
+        out_ = new DataOutputStream(new BufferedOutputStream(fileOut_, BUFFER_SIZE));
+        sequence_ = 0;
+        size_ = file_.length();
+    }
+
+    /**
+     * Appends one committed transaction.  The record is buffered; it is only
+     * durable after the next sync().
+     *
+     * @param pages physical file offset -> page image
+     * @throws IOException
+     */
+    public void append(Map<Long, byte[]> pages) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[8];
+        writeInt(RECORD_MAGIC, out_, crc, header);
+        writeLong(sequence_++, out_, crc, header);
+        writeInt(pages.size(), out_, crc, header);
+        size_ += 16;
+        for (Map.Entry<Long, byte[]> page : pages.entrySet()) {
+            byte[] bytes = page.getValue();
+            writeLong(page.getKey(), out_, crc, header);
+            writeInt(bytes.length, out_, crc, header);
+            out_.write(bytes);
+            crc.update(bytes, 0, bytes.length);
+            size_ += 12 + bytes.length;
+        }
+        out_.writeLong(crc.getValue());
+        size_ += 8;
+    }
+
+    /**
+     * Forces every appended record to disk (group commit).
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        out_.flush();
+        fileOut_.getChannel().force(false);
+    }
+
+    /**
+     * Empties the log.  Only call once the data file itself has been forced.
+     *
+     * @throws IOException
+     */
+    public void truncate() throws IOException {
+        out_.flush();
+        fileOut_.getChannel().truncate(0);
+        fileOut_.getChannel().force(false);
+        size_ = 0;
+    }
+
+    /**
+     * @return the number of bytes in the log, including buffered records.
+     */
+    public long size() {
+        return size_;
+    }
+
+    public void close() throws IOException {
+        out_.close();
+    }
+
+    /**
+     * Replays every complete record of the log onto the data file and forces
+     * the data file.  The log itself is left untouched.
+     *
+     * @param filename
+     * @param dataFile
+     * @return the number of transactions replayed
+     * @throws IOException
+     */
+    public static long recover(String filename, RandomAccessFile dataFile)
+            throws IOException {
+        File logFile = new File(filename);
+        if (!logFile.exists() || logFile.length() == 0) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(logFile), BUFFER_SIZE));
+        long replayed = 0;
+        try {
+            while (true) {
+                long[] offsets;
+                byte[][] images;
+                CRC32 crc = new CRC32();
+                byte[] header = new byte[8];
+                try {
+                    if (readInt(in, crc, header) != RECORD_MAGIC) {
+                        break;
+                    }
+                    readLong(in, crc, header);
+                    int numPages = readInt(in, crc, header);
+                    if (numPages < 0) {
+                        break;
+                    }
+                    offsets = new long[numPages];
+                    images = new byte[numPages][];
+                    for (int i = 0; i < numPages; i++) {
+                        offsets[i] = readLong(in, crc, header);
+                        int length = readInt(in, crc, header);
+                        if (length < 0 || length > logFile.length()) {
+                            throw new EOFException();
+                        }
+                        images[i] = new byte[length];
+                        in.readFully(images[i]);
+                        crc.update(images[i], 0, length);
+                    }
+                    if (in.readLong() != crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // torn tail
+                    break;
+                }
+                for (int i = 0; i < offsets.length; i++) {
+                    dataFile.seek(offsets[i]);
+                    dataFile.write(images[i]);
+                }
+                replayed++;
+            }
+        } finally {
+            in.close();
+        }
+        dataFile.getFD().sync();
+        if (replayed > 0) {
+            System.err.println("recovered " + replayed + " transactions from " + filename);
+        }
+        return replayed;
+    }
+
+    private static void writeInt(int value, DataOutputStream out, CRC32 crc,
+            byte[] scratch) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            scratch[i] = (byte) (value >>> (24 - 8 * i));
+        }
+        out.write(scratch, 0, 4);
+        crc.update(scratch, 0, 4);
+    }
+
+    private static void writeLong(long value, DataOutputStream out, CRC32 crc,
+            byte[] scratch) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        out.write(scratch, 0, 8);
+        crc.update(scratch, 0, 8);
+    }
+
+    private static int readInt(DataInputStream in, CRC32 crc, byte[] scratch)
+            throws IOException {
+        in.readFully(scratch, 0, 4);
+        crc.update(scratch, 0, 4);
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (scratch[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static long readLong(DataInputStream in, CRC32 crc, byte[] scratch)
+            throws IOException {
+        in.readFully(scratch, 0, 8);
+        crc.update(scratch, 0, 8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (scratch[i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -1,23 +1,27 @@
 package util;
 
+import java.nio.charset.Charset;
 
 public class BPlusConverter implements Converter<String, String> {
+    // rather than the platform default, which may not encode every key
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     @Override
     public String bytesToKey( byte[] b )
     {
-        return new String(b).trim();
+        return new String(b, UTF8).trim();
     }
 
     @Override
     public String bytesToRecord( byte[] b )
     {
-        return new String(b).trim();
+        return new String(b, UTF8).trim();
     }
     
     @Override
     public byte[] keyToBytes(String key)
     {
-        int lengthDiff = getRecordLength() - key.length();
+        int lengthDiff = getRecordLength() - key.getBytes(UTF8).length;
         String byteKey = key;
         if (lengthDiff < 0)
             throw new IllegalArgumentException("Key value: " + key + "is too long!");
@@ -28,12 +32,12 @@ public class BPlusConverter implements Converter<String, String> {
                 byteKey += " ";
             }
         }    
-        return byteKey.getBytes();
+        return byteKey.getBytes(UTF8);
     }
     @Override
     public byte[] recordToBytes(String record)
     {
-        int lengthDiff = getKeyLength() - record.length();
+        int lengthDiff = getKeyLength() - record.getBytes(UTF8).length;
         String byteRecord = record;
         if (lengthDiff < 0)
             throw new IllegalArgumentException("Record value: " + record + "is too long!");
@@ -45,7 +49,7 @@ public class BPlusConverter implements Converter<String, String> {
                 byteRecord += " ";
             }
         }            
-        return byteRecord.getBytes();
+        return byteRecord.getBytes(UTF8);
     }
     @Override
     public int getKeyLength()
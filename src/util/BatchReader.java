@@ -0,0 +1,189 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a binary record stream on a thread of its own, handing batches of
+ * records to the consumer through a bounded queue, so that parsing and
+ * inserting overlap and a slow consumer holds the reader back rather than
+ * letting batches pile up.  Batches go back to the reader once consumed
+ * (see release()) and are filled again.
+ *
+ * The stream starts with the int MAGIC and an int giving its layout.  In
+ * the ROWS layout each record is an int key length, the key, an int value
+ * length and the value, and a key length of -1 ends the stream.  In the
+ * COLUMNS layout each batch is an int record count, the lengths of its
+ * keys, the lengths of its values, then all its key bytes and all its
+ * value bytes, and a count of 0 ends the stream.  Numbers are big-endian,
+ * text UTF-8.
+ */
+public class BatchReader implements Closeable
+{
+    public static final int MAGIC = 0x48495831; // "HIX1"
+    public static final int ROWS = 0;
+    public static final int COLUMNS = 1;
+    public static final int END_OF_ROWS = -1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataInputStream in;
+    private final int batchRecords;
+    private final BlockingQueue<RecordBatch> full;
+    private final BlockingQueue<RecordBatch> free;
+    private final Thread thread;
+    private volatile IOException failure;
+
+    /**
+     * Starts reading the stream.
+     * @param in
+     * @param batchRecords the records in a batch of rows
+     * @param queuedBatches the batches read ahead at most
+     */
+    public BatchReader(InputStream in, int batchRecords, int queuedBatches)
+    {
+        this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        this.batchRecords = batchRecords;
+        this.full = new ArrayBlockingQueue<RecordBatch>(queuedBatches);
+        //one batch being filled and one being consumed besides the queued ones
+        this.free = new ArrayBlockingQueue<RecordBatch>(queuedBatches + 2);
+        for (int i = 0; i < queuedBatches + 2; i++)
+        {
+            free.add(new RecordBatch(batchRecords));
+        }
+        this.thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                read();
+            }
+        }, "batch-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void read()
+    {
+        RecordBatch batch = null;
+        try
+        {
+            int magic = in.readInt();
+            int layout = in.readInt();
+            if (magic != MAGIC || (layout != ROWS && layout != COLUMNS))
+            {
+                throw new IOException("Not a record stream");
+            }
+            batch = nextFree();
+            while (true)
+            {
+                if (layout == ROWS)
+                {
+                    int keyLength = in.readInt();
+                    if (keyLength == END_OF_ROWS)
+                    {
+                        break;
+                    }
+                    batch.readRow(in, keyLength);
+                    if (!batch.isFull())
+                    {
+                        continue;
+                    }
+                }
+                else
+                {
+                    int records = in.readInt();
+                    if (records == 0)
+                    {
+                        break;
+                    }
+                    batch.readColumns(in, records);
+                }
+                full.put(batch);
+                batch = nextFree();
+            }
+        }
+        catch (IOException e)
+        {
+            failure = e;
+        }
+        catch (InterruptedException e)
+        {
+            failure = new InterruptedIOException("Interrupted reading records");
+            return;
+        }
+        try
+        {
+            if (batch == null)
+            {
+                batch = nextFree();
+            }
+            batch.setLast(true);
+            full.put(batch);
+        }
+        catch (InterruptedException e)
+        {
+            //the consumer is gone
+        }
+    }
+
+    private RecordBatch nextFree() throws InterruptedException
+    {
+        RecordBatch batch = free.take();
+        batch.clear();
+        return batch;
+    }
+
+    /**
+     * Waits for the next batch.  The last batch, which may hold records too,
+     * says so by isLast().
+     * @return the batch
+     * @throws IOException if the stream could not be read
+     */
+    public RecordBatch take() throws IOException
+    {
+        RecordBatch batch;
+        try
+        {
+            batch = full.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for records");
+        }
+        if (batch.isLast() && failure != null)
+        {
+            throw failure;
+        }
+        return batch;
+    }
+
+    /**
+     * Gives a consumed batch back to be filled again.
+     * @param batch
+     */
+    public void release(RecordBatch batch)
+    {
+        free.offer(batch);
+    }
+
+    public int getBatchRecords()
+    {
+        return batchRecords;
+    }
+
+    /**
+     * Stops the reader and closes the stream.
+     */
+    public void close() throws IOException
+    {
+        thread.interrupt();
+        in.close();
+    }
+}
@@ -0,0 +1,135 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A key of several columns, such as (playerId, year), compared column by
+ * column.  A key may hold fewer parts than its converter has columns, to
+ * serve as the prefix of a range scan; a prefix sorts before every key
+ * that extends it.
+ *
+ * Strings compare by code point, which is the order of their UTF-8 bytes,
+ * so keys sort the same here as in their encoding (see
+ * CompositeKeyConverter).
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class CompositeKey implements Comparable<CompositeKey>, PrefixKey<CompositeKey>
+{
+    private final Comparable[] parts;
+
+    /**
+     * @param parts the leading columns of the key, none of them null
+     */
+    public CompositeKey(Comparable... parts)
+    {
+        for (Comparable part : parts)
+        {
+            if (part == null)
+            {
+                throw new IllegalArgumentException("Key parts may not be null");
+            }
+        }
+        this.parts = parts.clone();
+    }
+
+    public static CompositeKey of(Comparable... parts)
+    {
+        return new CompositeKey(parts);
+    }
+
+    public int size()
+    {
+        return parts.length;
+    }
+
+    public Comparable getPart(int index)
+    {
+        return parts[index];
+    }
+
+    /**
+     * @param length
+     * @return the key of the first length parts of this one
+     */
+    public CompositeKey prefix(int length)
+    {
+        return new CompositeKey(Arrays.copyOf(parts, length));
+    }
+
+    @Override
+    public boolean startsWith(CompositeKey prefix)
+    {
+        if (prefix.parts.length > parts.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.parts.length; i++)
+        {
+            if (compareParts(parts[i], prefix.parts[i]) != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int compareTo(CompositeKey other)
+    {
+        int length = Math.min(parts.length, other.parts.length);
+        for (int i = 0; i < length; i++)
+        {
+            int comparison = compareParts(parts[i], other.parts[i]);
+            if (comparison != 0)
+            {
+                return comparison;
+            }
+        }
+        return parts.length - other.parts.length;
+    }
+
+    private static int compareParts(Comparable a, Comparable b)
+    {
+        if (a instanceof String && b instanceof String)
+        {
+            return compareCodePoints((String) a, (String) b);
+        }
+        return a.compareTo(b);
+    }
+
+    private static int compareCodePoints(String a, String b)
+    {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length())
+        {
+            int x = a.codePointAt(i);
+            int y = b.codePointAt(j);
+            if (x != y)
+            {
+                return x - y;
+            }
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        return (a.length() - i) - (b.length() - j);
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        return other instanceof CompositeKey && compareTo((CompositeKey) other) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(parts);
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(parts);
+    }
+}
@@ -0,0 +1,170 @@
+package util;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+/**
+ * Stores composite keys so that their bytes sort as the keys do.  Each
+ * part is a marker byte of 1 followed by the part: numbers and timestamps
+ * as OrderedKeyConverter encodes them, strings as their UTF-8 bytes with
+ * each 0 byte escaped as 0, 0xff and a 0, 0 terminator, so that a shorter
+ * string sorts before its extensions whatever bytes follow it.  The rest
+ * of the key is zero padding, which sorts before the marker of a further
+ * part, so a prefix sorts before the keys that extend it.
+ */
+public class CompositeKeyConverter extends OrderedKeyConverter<CompositeKey>
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte PART = 1;
+    private static final byte ESCAPE = 0;
+    private static final byte ESCAPED_ZERO = (byte) 0xff;
+    private static final byte TERMINATOR = 0;
+
+    private final Class<?>[] columns;
+    private final int keyLength;
+
+    /**
+     * @param keyLength the length of an encoded key in bytes, which bounds
+     * the length of its strings
+     * @param columns the type of each column, one of String, Integer, Long,
+     * Double and Timestamp
+     */
+    public CompositeKeyConverter(int keyLength, Class<?>... columns)
+    {
+        for (Class<?> column : columns)
+        {
+            if (column != String.class && column != Integer.class && column != Long.class
+                && column != Double.class && column != Timestamp.class)
+            {
+                throw new IllegalArgumentException("Columns of " + column.getName() + " are not supported");
+            }
+        }
+        this.columns = columns.clone();
+        this.keyLength = keyLength;
+    }
+
+    @Override
+    public byte[] keyToBytes(CompositeKey key)
+    {
+        if (key.size() > columns.length)
+        {
+            throw new IllegalArgumentException("Key " + key + " has more than " + columns.length + " parts");
+        }
+        try
+        {
+            return super.keyToBytes(key);
+        }
+        catch (BufferOverflowException e)
+        {
+            throw new IllegalArgumentException("Key " + key + " is longer than " + keyLength + " bytes");
+        }
+    }
+
+    @Override
+    protected void putKey(ByteBuffer buffer, CompositeKey key)
+    {
+        for (int i = 0; i < key.size(); i++)
+        {
+            buffer.put(PART);
+            Object part = key.getPart(i);
+            if (!columns[i].isInstance(part))
+            {
+                throw new IllegalArgumentException("Part " + i + " of " + key + " is not a "
+                    + columns[i].getSimpleName());
+            }
+            if (columns[i] == String.class)
+            {
+                for (byte b : ((String) part).getBytes(UTF8))
+                {
+                    buffer.put(b);
+                    if (b == ESCAPE)
+                    {
+                        buffer.put(ESCAPED_ZERO);
+                    }
+                }
+                buffer.put(ESCAPE);
+                buffer.put(TERMINATOR);
+            }
+            else if (columns[i] == Integer.class)
+            {
+                putOrderedInt(buffer, (Integer) part);
+            }
+            else if (columns[i] == Long.class)
+            {
+                putOrderedLong(buffer, (Long) part);
+            }
+            else if (columns[i] == Double.class)
+            {
+                putOrderedDouble(buffer, (Double) part);
+            }
+            else
+            {
+                TimestampKeyConverter.putTimestamp(buffer, (Timestamp) part);
+            }
+        }
+    }
+
+    @Override
+    protected CompositeKey getKey(ByteBuffer buffer)
+    {
+        ArrayList<Comparable<?>> parts = new ArrayList<Comparable<?>>();
+        while (parts.size() < columns.length && buffer.hasRemaining() && buffer.get() == PART)
+        {
+            Class<?> column = columns[parts.size()];
+            if (column == String.class)
+            {
+                parts.add(getString(buffer));
+            }
+            else if (column == Integer.class)
+            {
+                parts.add(getOrderedInt(buffer));
+            }
+            else if (column == Long.class)
+            {
+                parts.add(getOrderedLong(buffer));
+            }
+            else if (column == Double.class)
+            {
+                parts.add(getOrderedDouble(buffer));
+            }
+            else
+            {
+                parts.add(TimestampKeyConverter.getTimestamp(buffer));
+            }
+        }
+        return new CompositeKey(parts.toArray(new Comparable<?>[parts.size()]));
+    }
+
+    private static String getString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        int length = 0;
+        while (true)
+        {
+            byte b = buffer.get();
+            if (b == ESCAPE)
+            {
+                if (buffer.get() == TERMINATOR)
+                {
+                    break;
+                }
+            }
+            bytes[length++] = b;
+        }
+        return new String(bytes, 0, length, UTF8);
+    }
+
+    public int getColumnCount()
+    {
+        return columns.length;
+    }
+
+    @Override
+    public int getKeyLength()
+    {
+        return keyLength;
+    }
+}
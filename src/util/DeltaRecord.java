@@ -0,0 +1,29 @@
+package util;
+
+/**
+ * A record of a delta run on top of a read-only tree: either a new value
+ * for its key, or a tombstone that deletes the key.
+ *
+ * @param <KeyType>
+ * @param <ValueType>
+ */
+public class DeltaRecord<KeyType extends Comparable<? super KeyType>, ValueType> extends BPlusRecord<KeyType, ValueType>
+{
+    private boolean tombstone;
+
+    /**
+     * @param key
+     * @param value ignored for a tombstone
+     * @param tombstone
+     */
+    public DeltaRecord(KeyType key, ValueType value, boolean tombstone)
+    {
+        super(key, tombstone ? null : value);
+        this.tombstone = tombstone;
+    }
+
+    public boolean isTombstone()
+    {
+        return tombstone;
+    }
+}
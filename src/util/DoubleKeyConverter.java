@@ -0,0 +1,28 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores double keys in 8 bytes that sort as Double.compareTo() does (see
+ * OrderedKeyConverter.putOrderedDouble()).
+ */
+public class DoubleKeyConverter extends OrderedKeyConverter<Double>
+{
+    @Override
+    protected void putKey(ByteBuffer buffer, Double key)
+    {
+        putOrderedDouble(buffer, key);
+    }
+
+    @Override
+    protected Double getKey(ByteBuffer buffer)
+    {
+        return getOrderedDouble(buffer);
+    }
+
+    @Override
+    public int getKeyLength()
+    {
+        return 8;
+    }
+}
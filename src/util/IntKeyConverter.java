@@ -0,0 +1,28 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores int keys in 4 bytes that sort in signed order (see
+ * OrderedKeyConverter).
+ */
+public class IntKeyConverter extends OrderedKeyConverter<Integer>
+{
+    @Override
+    protected void putKey(ByteBuffer buffer, Integer key)
+    {
+        putOrderedInt(buffer, key);
+    }
+
+    @Override
+    protected Integer getKey(ByteBuffer buffer)
+    {
+        return getOrderedInt(buffer);
+    }
+
+    @Override
+    public int getKeyLength()
+    {
+        return 4;
+    }
+}
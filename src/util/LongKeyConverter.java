@@ -0,0 +1,28 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores long keys in 8 bytes that sort in signed order (see
+ * OrderedKeyConverter).
+ */
+public class LongKeyConverter extends OrderedKeyConverter<Long>
+{
+    @Override
+    protected void putKey(ByteBuffer buffer, Long key)
+    {
+        putOrderedLong(buffer, key);
+    }
+
+    @Override
+    protected Long getKey(ByteBuffer buffer)
+    {
+        return getOrderedLong(buffer);
+    }
+
+    @Override
+    public int getKeyLength()
+    {
+        return 8;
+    }
+}
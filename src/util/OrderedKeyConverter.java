@@ -0,0 +1,133 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A converter of fixed-width binary keys whose bytes, compared unsigned
+ * and left to right, sort the same as the keys themselves, so numeric
+ * columns need not be indexed as padded decimal strings.  Records are file
+ * offsets in a long, as with BattingBPlusConverter.
+ * @param <KeyType>
+ */
+public abstract class OrderedKeyConverter<KeyType> implements Converter<KeyType, Long>
+{
+    private static final int RECORD_LENGTH = 8;
+
+    /**
+     * Compares two byte arrays unsigned and left to right, a prefix
+     * sorting before the longer array.
+     * @param a
+     * @param b
+     * @return less than, equal to or greater than 0 as a sorts before, with
+     * or after b
+     */
+    public static int compareBytes(byte[] a, byte[] b)
+    {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++)
+        {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0)
+            {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Encodes a long so that its bytes sort in signed order: big-endian,
+     * with the sign bit flipped.
+     * @param buffer
+     * @param value
+     */
+    public static void putOrderedLong(ByteBuffer buffer, long value)
+    {
+        buffer.putLong(value ^ Long.MIN_VALUE);
+    }
+
+    public static long getOrderedLong(ByteBuffer buffer)
+    {
+        return buffer.getLong() ^ Long.MIN_VALUE;
+    }
+
+    public static void putOrderedInt(ByteBuffer buffer, int value)
+    {
+        buffer.putInt(value ^ Integer.MIN_VALUE);
+    }
+
+    public static int getOrderedInt(ByteBuffer buffer)
+    {
+        return buffer.getInt() ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Encodes a double in the order of Double.compareTo(): negative
+     * numbers have all their bits flipped, so larger magnitudes sort first,
+     * and the rest just the sign bit.  -0.0 sorts before 0.0 and NaN, made
+     * canonical, after positive infinity.
+     * @param buffer
+     * @param value
+     */
+    public static void putOrderedDouble(ByteBuffer buffer, double value)
+    {
+        long bits = Double.doubleToLongBits(value);
+        buffer.putLong(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+    }
+
+    public static double getOrderedDouble(ByteBuffer buffer)
+    {
+        long bits = buffer.getLong();
+        return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+    }
+
+    /**
+     * Writes the key into a buffer of getKeyLength() bytes.
+     * @param buffer
+     * @param key
+     */
+    protected abstract void putKey(ByteBuffer buffer, KeyType key);
+
+    /**
+     * Reads a key written by putKey().
+     * @param buffer
+     * @return the key
+     */
+    protected abstract KeyType getKey(ByteBuffer buffer);
+
+    @Override
+    public KeyType bytesToKey(byte[] b)
+    {
+        return getKey(ByteBuffer.wrap(b));
+    }
+
+    @Override
+    public byte[] keyToBytes(KeyType key)
+    {
+        if (key == null)
+        {
+            throw new IllegalArgumentException("Keys may not be null");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(getKeyLength());
+        putKey(buffer, key);
+        return buffer.array();
+    }
+
+    @Override
+    public Long bytesToRecord(byte[] b)
+    {
+        return ByteBuffer.wrap(b).getLong();
+    }
+
+    @Override
+    public byte[] recordToBytes(Long record)
+    {
+        return ByteBuffer.allocate(RECORD_LENGTH).putLong(record).array();
+    }
+
+    @Override
+    public int getRecordLength()
+    {
+        return RECORD_LENGTH;
+    }
+}
@@ -0,0 +1,17 @@
+package util;
+
+/**
+ * A key made of leading parts, each key sorting right after its prefixes
+ * and before any key that does not start with them, so that the keys
+ * starting with a prefix are one range of the tree (see
+ * BPlusTree.getPrefixRange()).
+ * @param <KeyType>
+ */
+public interface PrefixKey<KeyType>
+{
+    /**
+     * @param prefix
+     * @return whether this key starts with the parts of the prefix
+     */
+    public boolean startsWith(KeyType prefix);
+}
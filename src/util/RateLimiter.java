@@ -0,0 +1,90 @@
+package util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Holds a caller back so that it consumes no more than a set number of
+ * bytes per second, on average since it started.  Time spent idle earns
+ * at most a second's worth of credit, so a caller coming back after a
+ * pause cannot run unthrottled until the average catches up.
+ */
+public class RateLimiter
+{
+    private static final long MAX_BURST_NANOS = 1000000000L;
+
+    private volatile long bytesPerSecond;
+    private long startNanos;
+    private long consumed;
+
+    /**
+     * @param bytesPerSecond the limit, or 0 for none
+     */
+    public RateLimiter(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Accounts for the bytes, sleeping first if the caller is ahead of the
+     * limit.
+     * @param bytes
+     * @throws IOException if interrupted while sleeping
+     */
+    public synchronized void acquire(long bytes) throws IOException
+    {
+        long limit = bytesPerSecond;
+        if (limit <= 0)
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        if (startNanos + (long) (consumed * 1e9 / limit) < now - MAX_BURST_NANOS)
+        {
+            //the caller has been idle: start the average over, a second back
+            startNanos = now - MAX_BURST_NANOS;
+            consumed = 0;
+        }
+        consumed += bytes;
+        long due = startNanos + (long) (consumed * 1e9 / limit);
+        long wait = due - now;
+        if (wait > 1000000)
+        {
+            try
+            {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+    }
+
+    /**
+     * Changes the limit; the average starts over.
+     * @param bytesPerSecond the limit, or 0 for none
+     */
+    public synchronized void setRate(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        this.startNanos = System.nanoTime();
+        this.consumed = 0;
+    }
+
+    /**
+     * Starts the average over, so that earlier idle time earns no credit.
+     */
+    public synchronized void reset()
+    {
+        this.startNanos = System.nanoTime();
+        this.consumed = 0;
+    }
+
+    public long getRate()
+    {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,219 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A batch of key/value records read from a binary record stream (see
+ * BatchReader).  The bytes of all the records go into one buffer, found by
+ * their offsets and lengths, and the buffer and arrays are kept and reused
+ * from batch to batch, so reading a record allocates nothing.
+ */
+public class RecordBatch
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int capacity;
+    private byte[] data;
+    private int used;
+    private int[] keyStart;
+    private int[] keyLength;
+    private int[] valueStart;
+    private int[] valueLength;
+    private int count;
+    private boolean last;
+
+    /**
+     * @param capacity the records a batch of rows holds
+     */
+    public RecordBatch(int capacity)
+    {
+        this.capacity = capacity;
+        this.data = new byte[64 * capacity];
+        this.keyStart = new int[capacity];
+        this.keyLength = new int[capacity];
+        this.valueStart = new int[capacity];
+        this.valueLength = new int[capacity];
+    }
+
+    /**
+     * Empties the batch for reuse.
+     */
+    public void clear()
+    {
+        used = 0;
+        count = 0;
+        last = false;
+    }
+
+    public boolean isFull()
+    {
+        return count >= capacity;
+    }
+
+    private void ensureRecords(int records)
+    {
+        if (records > keyStart.length)
+        {
+            int length = Math.max(records, 2 * keyStart.length);
+            keyStart = Arrays.copyOf(keyStart, length);
+            keyLength = Arrays.copyOf(keyLength, length);
+            valueStart = Arrays.copyOf(valueStart, length);
+            valueLength = Arrays.copyOf(valueLength, length);
+        }
+    }
+
+    private int reserve(int length) throws IOException
+    {
+        if (length < 0)
+        {
+            throw new IOException("Negative record length " + length);
+        }
+        if (used + length > data.length)
+        {
+            data = Arrays.copyOf(data, Math.max(used + length, 2 * data.length));
+        }
+        int start = used;
+        used += length;
+        return start;
+    }
+
+    /**
+     * Reads a record of a row stream: the key, then the length of the
+     * value and the value.
+     * @param in
+     * @param keyBytes the length of the key, already read
+     * @throws IOException
+     */
+    public void readRow(DataInputStream in, int keyBytes) throws IOException
+    {
+        ensureRecords(count + 1);
+        keyStart[count] = reserve(keyBytes);
+        keyLength[count] = keyBytes;
+        in.readFully(data, keyStart[count], keyBytes);
+        int valueBytes = in.readInt();
+        valueStart[count] = reserve(valueBytes);
+        valueLength[count] = valueBytes;
+        in.readFully(data, valueStart[count], valueBytes);
+        count++;
+    }
+
+    /**
+     * Reads a columnar batch: the lengths of the keys, the lengths of the
+     * values, then the bytes of all the keys and of all the values.
+     * @param in
+     * @param records the records in the batch, already read
+     * @throws IOException
+     */
+    public void readColumns(DataInputStream in, int records) throws IOException
+    {
+        if (records < 0)
+        {
+            throw new IOException("Negative record count " + records);
+        }
+        ensureRecords(count + records);
+        int keyBytes = 0;
+        for (int i = count; i < count + records; i++)
+        {
+            keyLength[i] = readLength(in);
+            keyBytes += keyLength[i];
+        }
+        int valueBytes = 0;
+        for (int i = count; i < count + records; i++)
+        {
+            valueLength[i] = readLength(in);
+            valueBytes += valueLength[i];
+        }
+        int keys = reserve(keyBytes);
+        in.readFully(data, keys, keyBytes);
+        int values = reserve(valueBytes);
+        in.readFully(data, values, valueBytes);
+        for (int i = count; i < count + records; i++)
+        {
+            keyStart[i] = keys;
+            keys += keyLength[i];
+            valueStart[i] = values;
+            values += valueLength[i];
+        }
+        count += records;
+    }
+
+    private static int readLength(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            throw new IOException("Negative record length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * @return the records in the batch
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * @return whether the stream ends with this batch
+     */
+    public boolean isLast()
+    {
+        return last;
+    }
+
+    public void setLast(boolean last)
+    {
+        this.last = last;
+    }
+
+    /**
+     * @return the buffer holding the bytes of the records
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public int getKeyStart(int record)
+    {
+        return keyStart[record];
+    }
+
+    public int getKeyLength(int record)
+    {
+        return keyLength[record];
+    }
+
+    public int getValueStart(int record)
+    {
+        return valueStart[record];
+    }
+
+    public int getValueLength(int record)
+    {
+        return valueLength[record];
+    }
+
+    /**
+     * @param record
+     * @return the key, decoded from UTF-8
+     */
+    public String getKey(int record)
+    {
+        return new String(data, keyStart[record], keyLength[record], UTF8);
+    }
+
+    /**
+     * @param record
+     * @return the value, decoded from UTF-8
+     */
+    public String getValue(int record)
+    {
+        return new String(data, valueStart[record], valueLength[record], UTF8);
+    }
+}
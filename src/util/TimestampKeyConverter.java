@@ -0,0 +1,51 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+
+/**
+ * Stores timestamp keys, as Hive's TIMESTAMP columns hold them, in 12
+ * bytes: the whole seconds since the epoch in an ordered long, then the
+ * nanoseconds, which are never negative, in an int.  Timestamps before
+ * 1970 round their seconds down so the nanoseconds still count forwards.
+ */
+public class TimestampKeyConverter extends OrderedKeyConverter<Timestamp>
+{
+    @Override
+    protected void putKey(ByteBuffer buffer, Timestamp key)
+    {
+        putTimestamp(buffer, key);
+    }
+
+    @Override
+    protected Timestamp getKey(ByteBuffer buffer)
+    {
+        return getTimestamp(buffer);
+    }
+
+    public static void putTimestamp(ByteBuffer buffer, Timestamp key)
+    {
+        long millis = key.getTime();
+        long seconds = millis / 1000;
+        if (millis % 1000 < 0)
+        {
+            seconds--;
+        }
+        putOrderedLong(buffer, seconds);
+        buffer.putInt(key.getNanos());
+    }
+
+    public static Timestamp getTimestamp(ByteBuffer buffer)
+    {
+        long seconds = getOrderedLong(buffer);
+        Timestamp key = new Timestamp(seconds * 1000);
+        key.setNanos(buffer.getInt());
+        return key;
+    }
+
+    @Override
+    public int getKeyLength()
+    {
+        return 12;
+    }
+}